@@ -147,6 +147,13 @@ public class ExecutionRequirements {
   public static final ImmutableMap<String, String> WORKER_MODE_ENABLED =
       ImmutableMap.of(SUPPORTS_WORKERS, "1");
 
+  /**
+   * If an action supports running in persistent worker mode with several requests on the same
+   * worker process at a time. The worker must copy the request id of each request into its
+   * response.
+   */
+  public static final String SUPPORTS_MULTIPLEX_WORKERS = "supports-multiplex-workers";
+
   /**
    * Requires local execution without sandboxing for a spawn.
    *
@@ -23,12 +23,20 @@ import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.unix.ProcMeminfoParser;
 import com.google.devtools.build.lib.util.OS;
-import com.google.devtools.build.lib.util.Pair;
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 
 /**
  * Used to keep track of resources consumed by the Blaze action execution threads and throttle them
@@ -57,6 +65,13 @@ import java.util.concurrent.CountDownLatch;
  * guarantees that at least one thread will always be able to acquire any amount of requested
  * resources (even if it is greater than amount of available resources). Therefore, assuming that
  * threads correctly release acquired resources, Blaze will never be fully blocked.
+ *
+ * <p>Resource usage is tracked in an immutable snapshot that is updated with compare-and-set, so
+ * acquisitions that can proceed immediately and releases with no blocked threads never contend on
+ * the monitor. Blocked requests are grouped by priority and by the amount of resources they
+ * request. Wakeups consider higher priorities first, and stop looking at a group as soon as one of
+ * its requests does not fit, so their cost depends on the number of groups and granted requests
+ * rather than on the number of blocked threads.
  */
 @ThreadSafe
 public class ResourceManager {
@@ -118,43 +133,150 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
   private static final double MIN_NECESSARY_IO_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  /** Priority of requests that don't specify one. */
+  public static final int DEFAULT_PRIORITY = 0;
 
-  // The total amount of resources on the local host. Must be set by
-  // an explicit call to setAvailableResources(), often using
-  // LocalHostCapacity.getLocalHostCapacity() as an argument.
-  private ResourceSet staticResources = null;
+  /**
+   * Priority of test spawns. No other action consumes the outputs of a test, so they are never on
+   * the critical path of the build and are woken up after the spawns that other actions wait for.
+   */
+  public static final int TEST_PRIORITY = -1;
+
+  /**
+   * An immutable snapshot of the used resources. Acquisitions and releases swap in a new snapshot
+   * with a compare-and-set, so that uncontended requests never take the monitor.
+   */
+  private static final class Usage {
+    static final Usage NONE = new Usage(0, 0, 0, 0);
+
+    // Used amount of CPU capacity (where 1.0 corresponds to the one fully
+    // occupied CPU core. Corresponds to the CPU resource definition in the
+    // ResourceSet class.
+    final double cpu;
+    // Used amount of RAM capacity in MB. Corresponds to the RAM resource
+    // definition in the ResourceSet class.
+    final double ram;
+    // Used amount of I/O resources. Corresponds to the I/O resource
+    // definition in the ResourceSet class.
+    final double io;
+    // Used local test count. Corresponds to the local test count definition in the ResourceSet
+    // class.
+    final int localTestCount;
+
+    Usage(double cpu, double ram, double io, int localTestCount) {
+      this.cpu = cpu;
+      this.ram = ram;
+      this.io = io;
+      this.localTestCount = localTestCount;
+    }
+
+    boolean isZero() {
+      return cpu == 0.0 && ram == 0.0 && io == 0.0 && localTestCount == 0;
+    }
+
+    Usage plus(ResourceSet resources) {
+      return new Usage(
+          cpu + resources.getCpuUsage(),
+          ram + resources.getMemoryMb(),
+          io + resources.getIoUsage(),
+          localTestCount + resources.getLocalTestCount());
+    }
+
+    Usage minus(ResourceSet resources) {
+      // TODO(bazel-team): (2010) rounding error can accumulate and value below can end up being
+      // e.g. 1E-15. So if it is small enough, we set it to 0. But maybe there is a better
+      // solution.
+      return new Usage(
+          roundToZero(cpu - resources.getCpuUsage()),
+          roundToZero(ram - resources.getMemoryMb()),
+          roundToZero(io - resources.getIoUsage()),
+          localTestCount - resources.getLocalTestCount());
+    }
+
+    private static double roundToZero(double value) {
+      return value < 0.0001 ? 0 : value;
+    }
+  }
+
+  /**
+   * The amount of resources of a request. Requests of equal amounts either all fit or none does, so
+   * blocked requests are grouped by it.
+   */
+  private static final class Amount {
+    final double cpu;
+    final double ram;
+    final double io;
+    final int localTestCount;
+
+    Amount(ResourceSet resources) {
+      this.cpu = resources.getCpuUsage();
+      this.ram = resources.getMemoryMb();
+      this.io = resources.getIoUsage();
+      this.localTestCount = resources.getLocalTestCount();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Amount)) {
+        return false;
+      }
+      Amount that = (Amount) o;
+      return cpu == that.cpu
+          && ram == that.ram
+          && io == that.io
+          && localTestCount == that.localTestCount;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(cpu, ram, io, localTestCount);
+    }
+  }
+
+  /**
+   * A blocked acquisition. Its latch is counted down once the resources have been granted (or the
+   * resource manager was reset).
+   */
+  private static final class Request {
+    final ResourceSet resources;
+    final int priority;
+    final Amount amount;
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    Request(ResourceSet resources, int priority) {
+      this.resources = resources;
+      this.priority = priority;
+      this.amount = new Amount(resources);
+    }
+  }
 
-  private ResourceSet availableResources = null;
+  // Blocked requests by decreasing priority, then by amount in the order in which the amounts were
+  // first blocked, and in arrival order within an amount. Guarded by this.
+  private final NavigableMap<Integer, Map<Amount, Set<Request>>> requests =
+      new TreeMap<>(Comparator.reverseOrder());
+  private int numRequests;
 
-  // Used amount of CPU capacity (where 1.0 corresponds to the one fully
-  // occupied CPU core. Corresponds to the CPU resource definition in the
-  // ResourceSet class.
-  private double usedCpu;
+  // Number of threads that are about to block or are blocked. Releases only take the monitor to
+  // wake up threads if this is positive.
+  private final AtomicInteger waiters = new AtomicInteger();
 
-  // Used amount of RAM capacity in MB. Corresponds to the RAM resource
-  // definition in the ResourceSet class.
-  private double usedRam;
+  private final AtomicReference<Usage> usage = new AtomicReference<>(Usage.NONE);
 
-  // Used amount of I/O resources. Corresponds to the I/O resource
-  // definition in the ResourceSet class.
-  private double usedIo;
+  // The total amount of resources on the local host. Must be set by
+  // an explicit call to setAvailableResources(), often using
+  // LocalHostCapacity.getLocalHostCapacity() as an argument.
+  private volatile ResourceSet staticResources = null;
 
-  // Used local test count. Corresponds to the local test count definition in the ResourceSet class.
-  private int usedLocalTestCount;
+  private volatile ResourceSet availableResources = null;
 
   // Specifies how much of the RAM in staticResources we should allow to be used.
   public static final int DEFAULT_RAM_UTILIZATION_PERCENTAGE = 67;
-  private int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
+  private volatile int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
 
   // Determines if local memory estimates are used.
-  private boolean localMemoryEstimate = false;
+  private volatile boolean localMemoryEstimate = false;
 
-  private ResourceManager() {
-    requestList = new LinkedList<>();
-  }
+  private ResourceManager() {}
 
   @VisibleForTesting public static ResourceManager instanceForTestingOnly() {
     return new ResourceManager();
@@ -165,15 +287,18 @@ public class ResourceManager {
    * Note - it does not reset available resources. Use separate call to setAvailableResources().
    */
   public synchronized void resetResourceUsage() {
-    usedCpu = 0;
-    usedRam = 0;
-    usedIo = 0;
-    usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
-      // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+    usage.set(Usage.NONE);
+    for (Map<Amount, Set<Request>> groups : requests.values()) {
+      for (Set<Request> group : groups.values()) {
+        for (Request request : group) {
+          // CountDownLatch can be set only to 0 or 1.
+          request.latch.countDown();
+        }
+      }
     }
-    requestList.clear();
+    waiters.addAndGet(-numRequests);
+    requests.clear();
+    numRequests = 0;
   }
 
   /**
@@ -212,43 +337,66 @@ public class ResourceManager {
    */
   public ResourceHandle acquireResources(ActionExecutionMetadata owner, ResourceSet resources)
       throws InterruptedException {
+    return acquireResources(owner, resources, DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Acquires requested resource set. Will block if resource is not available. Once resources are
+   * released, blocked requests with a higher {@code priority} are considered first, for example
+   * to let actions on the critical path run before others, see {@link #getPriority}.
+   *
+   * <p>NB! This method must be thread-safe!
+   */
+  public ResourceHandle acquireResources(
+      ActionExecutionMetadata owner, ResourceSet resources, int priority)
+      throws InterruptedException {
     Preconditions.checkNotNull(
         resources, "acquireResources called with resources == NULL during %s", owner);
     Preconditions.checkState(
         !threadHasResources(), "acquireResources with existing resource lock during %s", owner);
 
     AutoProfiler p = profiled(owner.describe(), ProfilerTask.ACTION_LOCK);
-    CountDownLatch latch = null;
+    Request request = null;
     try {
-      latch = acquire(resources);
-      if (latch != null) {
-        latch.await();
+      request = acquire(resources, priority);
+      if (request != null) {
+        request.latch.await();
       }
     } catch (InterruptedException e) {
       // Synchronize on this to avoid any racing with #processWaitingThreads
+      boolean granted;
       synchronized (this) {
-        if (latch.getCount() == 0) {
-          // Resources already acquired by other side. Release them, but not inside this
-          // synchronized block to avoid deadlock.
-          release(resources);
-        } else {
+        granted = request.latch.getCount() == 0;
+        if (!granted) {
           // Inform other side that resources shouldn't be acquired.
-          latch.countDown();
+          removeRequest(request);
+          waiters.decrementAndGet();
+          request.latch.countDown();
         }
       }
+      if (granted) {
+        // Resources already acquired by other side. Release them, but not inside the
+        // synchronized block to avoid deadlock.
+        release(resources);
+      }
       throw e;
     }
 
     threadLocked.set(true);
 
     // Profile acquisition only if it waited for resource to become available.
-    if (latch != null) {
+    if (request != null) {
       p.complete();
     }
 
     return new ResourceHandle(this, owner, resources);
   }
 
+  /** Returns the priority with which the local resources of {@code spawn} should be acquired. */
+  public static int getPriority(Spawn spawn) {
+    return spawn.getLocalResources().getLocalTestCount() > 0 ? TEST_PRIORITY : DEFAULT_PRIORITY;
+  }
+
   /**
    * Acquires the given resources if available immediately. Does not block.
    *
@@ -261,16 +409,7 @@ public class ResourceManager {
     Preconditions.checkState(
         !threadHasResources(), "tryAcquire with existing resource lock during %s", owner);
 
-    boolean acquired = false;
-
-    synchronized (this) {
-      if (areResourcesAvailable(resources)) {
-        incrementResources(resources);
-        acquired = true;
-      }
-    }
-
-    if (acquired) {
+    if (tryIncrementResources(resources)) {
       threadLocked.set(resources != ResourceSet.ZERO);
       return new ResourceHandle(this, owner, resources);
     }
@@ -278,19 +417,28 @@ public class ResourceManager {
     return null;
   }
 
-  private void incrementResources(ResourceSet resources) {
-    usedCpu += resources.getCpuUsage();
-    usedRam += resources.getMemoryMb();
-    usedIo += resources.getIoUsage();
-    usedLocalTestCount += resources.getLocalTestCount();
+  /**
+   * Atomically marks the given resources as used if they are available.
+   *
+   * @return whether the resources were available
+   */
+  private boolean tryIncrementResources(ResourceSet resources) {
+    while (true) {
+      Usage current = usage.get();
+      if (!areResourcesAvailable(current, resources)) {
+        return false;
+      }
+      if (usage.compareAndSet(current, current.plus(resources))) {
+        return true;
+      }
+    }
   }
 
   /**
    * Return true if any resources have been claimed through this manager.
    */
-  public synchronized boolean inUse() {
-    return usedCpu != 0.0 || usedRam != 0.0 || usedIo != 0.0 || usedLocalTestCount != 0
-        || !requestList.isEmpty();
+  public boolean inUse() {
+    return !usage.get().isZero() || waiters.get() != 0;
   }
 
 
@@ -327,70 +475,110 @@ public class ResourceManager {
     }
   }
 
-  private synchronized CountDownLatch acquire(ResourceSet resources) {
-    if (areResourcesAvailable(resources)) {
-      incrementResources(resources);
+  /**
+   * Marks the resources as used, or returns a pending request whose latch is released once they
+   * have been granted.
+   */
+  @Nullable
+  private Request acquire(ResourceSet resources, int priority) {
+    if (tryIncrementResources(resources)) {
       return null;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
-    requestList.add(request);
-    return request.second;
+    // Announce the waiter before checking availability once more. A concurrent release either
+    // happens before that check, or sees the waiter and processes the queue after it was added.
+    waiters.incrementAndGet();
+    synchronized (this) {
+      if (tryIncrementResources(resources)) {
+        waiters.decrementAndGet();
+        return null;
+      }
+      Request request = new Request(resources, priority);
+      requests
+          .computeIfAbsent(priority, p -> new LinkedHashMap<>())
+          .computeIfAbsent(request.amount, a -> new LinkedHashSet<>())
+          .add(request);
+      numRequests++;
+      return request;
+    }
   }
 
-  private synchronized boolean release(ResourceSet resources) {
-    usedCpu -= resources.getCpuUsage();
-    usedRam -= resources.getMemoryMb();
-    usedIo -= resources.getIoUsage();
-    usedLocalTestCount -= resources.getLocalTestCount();
-
-    // TODO(bazel-team): (2010) rounding error can accumulate and value below can end up being
-    // e.g. 1E-15. So if it is small enough, we set it to 0. But maybe there is a better solution.
-    double epsilon = 0.0001;
-    if (usedCpu < epsilon) {
-      usedCpu = 0;
-    }
-    if (usedRam < epsilon) {
-      usedRam = 0;
-    }
-    if (usedIo < epsilon) {
-      usedIo = 0;
+  private boolean release(ResourceSet resources) {
+    while (true) {
+      Usage current = usage.get();
+      if (usage.compareAndSet(current, current.minus(resources))) {
+        break;
+      }
     }
-    if (!requestList.isEmpty()) {
-      processWaitingThreads();
+    if (waiters.get() != 0) {
+      synchronized (this) {
+        processWaitingThreads();
+      }
       return true;
     }
     return false;
   }
 
+  private synchronized void removeRequest(Request request) {
+    Map<Amount, Set<Request>> groups = requests.get(request.priority);
+    Set<Request> group = groups.get(request.amount);
+    group.remove(request);
+    numRequests--;
+    if (group.isEmpty()) {
+      groups.remove(request.amount);
+      if (groups.isEmpty()) {
+        requests.remove(request.priority);
+      }
+    }
+  }
+
   /**
    * Tries to unblock one or more waiting threads if there are sufficient resources available.
+   * Requests are considered in priority order, but a request that does not fit does not prevent
+   * requests of other amounts from being granted.
    */
   private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
-    while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (request.second.getCount() != 0) {
-        if (areResourcesAvailable(request.first)) {
-          incrementResources(request.first);
-          request.second.countDown();
+    Iterator<Map<Amount, Set<Request>>> levels = requests.values().iterator();
+    while (levels.hasNext()) {
+      Map<Amount, Set<Request>> groups = levels.next();
+      Iterator<Set<Request>> groupIterator = groups.values().iterator();
+      while (groupIterator.hasNext()) {
+        Set<Request> group = groupIterator.next();
+        Iterator<Request> iterator = group.iterator();
+        // The requests of a group all ask for the same amount, so once one of them does not fit,
+        // none of the later ones does either.
+        while (iterator.hasNext()) {
+          Request request = iterator.next();
+          if (!tryIncrementResources(request.resources)) {
+            break;
+          }
           iterator.remove();
+          numRequests--;
+          waiters.decrementAndGet();
+          request.latch.countDown();
         }
-      } else {
-        // Cancelled by other side.
-        iterator.remove();
+        if (group.isEmpty()) {
+          groupIterator.remove();
+        }
+      }
+      if (groups.isEmpty()) {
+        levels.remove();
       }
     }
   }
 
   // Method will return true if all requested resources are considered to be available.
-  private boolean areResourcesAvailable(ResourceSet resources) {
+  private boolean areResourcesAvailable(Usage used, ResourceSet resources) {
+    ResourceSet availableResources = this.availableResources;
     Preconditions.checkNotNull(availableResources);
     // Comparison below is robust, since any calculation errors will be fixed
     // by the release() method.
-    if (usedCpu == 0.0 && usedRam == 0.0 && usedIo == 0.0 && usedLocalTestCount == 0) {
+    if (used.isZero()) {
       return true;
     }
+    double usedCpu = used.cpu;
+    double usedRam = used.ram;
+    double usedIo = used.io;
+    int usedLocalTestCount = used.localTestCount;
     // Use only MIN_NECESSARY_???_RATIO of the resource value to check for
     // allocation. This is necessary to account for the fact that most of the
     // requested resource sets use pessimistic estimations. Note that this
@@ -448,11 +636,11 @@ public class ResourceManager {
 
   @VisibleForTesting
   synchronized int getWaitCount() {
-    return requestList.size();
+    return numRequests;
   }
 
   @VisibleForTesting
-  synchronized boolean isAvailable(double ram, double cpu, double io, int localTestCount) {
-    return areResourcesAvailable(ResourceSet.create(ram, cpu, io, localTestCount));
+  boolean isAvailable(double ram, double cpu, double io, int localTestCount) {
+    return areResourcesAvailable(usage.get(), ResourceSet.create(ram, cpu, io, localTestCount));
   }
 }
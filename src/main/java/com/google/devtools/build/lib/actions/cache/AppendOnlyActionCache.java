@@ -0,0 +1,632 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics.MissReason;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.UnixGlob;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An implementation of the ActionCache interface that stores encoded entries in an append-only log
+ * file.
+ *
+ * <p>Unlike {@link CompactPersistentActionCache}, entries are never deserialized onto the heap as a
+ * whole: the only in-memory state is an on-heap {@code long[]} mapping the {@link
+ * PersistentStringIndexer} id of every action key to the offset of its latest record in the log.
+ * {@link #save} writes this array to an index file next to the log, so that the next server only
+ * has to copy it back onto the heap with one bulk read and replay the records appended since,
+ * instead of decoding every entry. Superseded and removed records are reclaimed by compacting the
+ * log once they make up most of it.
+ *
+ * <p>The log and the index both carry a generation number, which compaction increments. An index
+ * is only used with the log of the same generation, so a crash while the compacted log replaces the
+ * old one can't leave behind an index whose offsets point into the wrong log.
+ *
+ * <p>Entries are encoded exactly like in {@link CompactPersistentActionCache}.
+ */
+@ConditionallyThreadSafe // condition: each instance must instantiated with
+                         // different cache root
+public class AppendOnlyActionCache implements ActionCache {
+  private static final int VERSION = 13;
+  private static final int MAGIC = 0x41434c47; // "ACLG"
+
+  private static final int SAVE_INTERVAL_SECONDS = 3;
+
+  /** Size of the log header: magic, version and generation. */
+  private static final int LOG_HEADER_SIZE = 16;
+  /** Size of a record header: key id and length of the encoded entry. */
+  private static final int RECORD_HEADER_SIZE = 8;
+  /** Record length marking the removal of an entry. */
+  private static final int TOMBSTONE = -1;
+  /**
+   * Size of the index header: magic, version, log generation, covered log length, dead bytes in
+   * the covered log, indexer size and number of offsets.
+   */
+  private static final int INDEX_HEADER_SIZE = 40;
+
+  /** Offset value of keys without a live record. */
+  private static final long NO_RECORD = 0;
+
+  /** The log is compacted if it is at least this large and mostly made of dead records. */
+  private static final long MIN_COMPACTION_SIZE = 1 << 20;
+
+  private final Path logFile;
+  private final Path indexFile;
+  private final PersistentStringIndexer indexer;
+  private final Clock clock;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // All fields below are guarded by lock.
+  private FileChannel log;
+  private long generation;
+  private long logEnd;
+  private long deadBytes;
+  private long[] offsets = new long[1024];
+
+  /** Guarded by the monitor of {@link #indexer}, which is also held while it is flushed. */
+  private long nextIndexerFlushSecs;
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final Map<MissReason, AtomicInteger> misses = new EnumMap<>(MissReason.class);
+
+  public AppendOnlyActionCache(Path cacheRoot, Clock clock) throws IOException {
+    this.logFile = logFile(cacheRoot);
+    this.indexFile = indexFile(cacheRoot);
+    this.clock = clock;
+    try {
+      indexer =
+          PersistentStringIndexer.newPersistentStringIndexer(
+              cacheRoot.getChild("append_filename_index_v" + VERSION + ".blaze"), clock);
+    } catch (IOException e) {
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load filename index data", e);
+    }
+    try {
+      load();
+    } catch (IOException e) {
+      if (log != null) {
+        log.close();
+      }
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load action cache data", e);
+    }
+    synchronized (indexer) {
+      nextIndexerFlushSecs =
+          TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime()) + SAVE_INTERVAL_SECONDS;
+    }
+
+    for (MissReason reason : MissReason.values()) {
+      if (reason == MissReason.UNRECOGNIZED) {
+        // The presence of this enum value is a protobuf artifact and confuses our metrics
+        // externalization code below. Just skip it.
+        continue;
+      }
+      misses.put(reason, new AtomicInteger(0));
+    }
+  }
+
+  public static Path logFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_v" + VERSION + ".blaze");
+  }
+
+  public static Path indexFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_index_v" + VERSION + ".blaze");
+  }
+
+  /**
+   * Rename corrupted files so they could be analyzed later. This would also ensure that next
+   * initialization attempt will create empty cache.
+   */
+  private static void renameCorruptedFiles(Path cacheRoot) {
+    try {
+      for (Path path :
+          UnixGlob.forPath(cacheRoot)
+              .addPattern("action_log_*v" + VERSION + ".*")
+              .addPattern("append_filename_*_v" + VERSION + ".*")
+              .glob()) {
+        path.renameTo(path.getParentDirectory().getChild(path.getBaseName() + ".bad"));
+      }
+    } catch (IOException e) {
+      // do nothing
+    }
+  }
+
+  /**
+   * Opens the log, maps in the index written by the last {@link #save} and replays the records
+   * appended after it.
+   */
+  private void load() throws IOException {
+    log = openLog(logFile);
+    long logSize = log.size();
+    if (logSize == 0) {
+      writeLogHeader(log, generation);
+      logEnd = LOG_HEADER_SIZE;
+      return;
+    }
+    ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+    readFully(log, header, 0);
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      throw new IOException("Unexpected action log header");
+    }
+    generation = header.getLong(8);
+
+    long replayFrom = LOG_HEADER_SIZE;
+    if (indexFile.exists()) {
+      try (FileChannel index = FileChannel.open(indexFile.getPathFile().toPath())) {
+        MappedByteBuffer mapped = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+        if (mapped.remaining() < INDEX_HEADER_SIZE
+            || mapped.getInt() != MAGIC
+            || mapped.getInt() != VERSION) {
+          throw new IOException("Unexpected action log index header");
+        }
+        long indexGeneration = mapped.getLong();
+        long coveredLength = mapped.getLong();
+        long coveredDeadBytes = mapped.getLong();
+        int indexerSize = mapped.getInt();
+        int count = mapped.getInt();
+        if (indexGeneration != generation) {
+          // The index was written for a compacted log that never replaced this one.
+          logEnd = LOG_HEADER_SIZE;
+          replay(logSize);
+          return;
+        }
+        if (coveredLength > logSize || coveredLength < LOG_HEADER_SIZE) {
+          throw new IOException("Action log is shorter than its index: " + coveredLength);
+        }
+        if (indexerSize > indexer.size()) {
+          throw new IOException(
+              String.format(
+                  "Validation mismatch: index refers to %d keys, filename index has %d",
+                  indexerSize, indexer.size()));
+        }
+        LongBuffer storedOffsets = mapped.asLongBuffer();
+        if (storedOffsets.remaining() != count) {
+          throw new IOException("Truncated action log index");
+        }
+        offsets = new long[Math.max(count, offsets.length)];
+        storedOffsets.get(offsets, 0, count);
+        replayFrom = coveredLength;
+        deadBytes = coveredDeadBytes;
+      }
+    }
+    logEnd = replayFrom;
+    replay(logSize);
+  }
+
+  /**
+   * Replays the records between {@link #logEnd} and {@code logSize} into the index. A torn record
+   * at the end of the log, as left by a crash, is discarded.
+   */
+  private void replay(long logSize) throws IOException {
+    ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    while (logEnd + RECORD_HEADER_SIZE <= logSize) {
+      recordHeader.clear();
+      readFully(log, recordHeader, logEnd);
+      int id = recordHeader.getInt(0);
+      int length = recordHeader.getInt(4);
+      long recordSize = RECORD_HEADER_SIZE + Math.max(length, 0);
+      if (id < 0 || length < TOMBSTONE || logEnd + recordSize > logSize) {
+        break;
+      }
+      // Records for keys the filename index lost in a crash cannot be looked up reliably.
+      if (id < indexer.size()) {
+        if (length == TOMBSTONE) {
+          clearOffset(id);
+        } else {
+          setOffset(id, logEnd);
+        }
+      }
+      deadBytes += length == TOMBSTONE ? recordSize : 0;
+      logEnd += recordSize;
+    }
+    if (logEnd < logSize) {
+      log.truncate(logEnd);
+    }
+  }
+
+  @Override
+  public ActionCache.Entry get(String key) {
+    int id = indexer.getIndex(key);
+    if (id < 0) {
+      return null;
+    }
+    byte[] data;
+    lock.readLock().lock();
+    try {
+      long offset = id < offsets.length ? offsets[id] : NO_RECORD;
+      if (offset == NO_RECORD) {
+        return null;
+      }
+      data = readRecord(id, offset);
+    } catch (IOException e) {
+      return ActionCache.Entry.CORRUPTED;
+    } finally {
+      lock.readLock().unlock();
+    }
+    try {
+      return CompactPersistentActionCache.decode(indexer, data);
+    } catch (IOException e) {
+      // return entry marked as corrupted.
+      return ActionCache.Entry.CORRUPTED;
+    }
+  }
+
+  @Override
+  public void put(String key, ActionCache.Entry entry) {
+    // Encode record. Note that both methods may create new mappings in the indexer.
+    int id = indexer.getOrCreateIndex(key);
+    byte[] content = CompactPersistentActionCache.encode(indexer, entry);
+    maybeFlushIndexer();
+
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + content.length);
+    record.putInt(id).putInt(content.length).put(content).flip();
+    lock.writeLock().lock();
+    try {
+      long offset = append(record);
+      setOffset(id, offset);
+    } catch (IOException e) {
+      // The entry is simply not cached; the action will be re-executed next time.
+      clearOffset(id);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    int id = indexer.getIndex(key);
+    if (id < 0) {
+      return;
+    }
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    record.putInt(id).putInt(TOMBSTONE).flip();
+    lock.writeLock().lock();
+    try {
+      clearOffset(id);
+      append(record);
+      deadBytes += RECORD_HEADER_SIZE;
+    } catch (IOException e) {
+      // The stale record stays in the log; it will be found again after a restart.
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public long save() throws IOException {
+    long indexerSize = indexer.save();
+    lock.writeLock().lock();
+    try {
+      if (logEnd >= MIN_COMPACTION_SIZE && deadBytes * 2 > logEnd) {
+        compact();
+      } else {
+        log.force(false);
+        writeIndex();
+      }
+      return indexerSize + logEnd + indexFile.getFileSize();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void clear() {
+    indexer.clear();
+    lock.writeLock().lock();
+    try {
+      Arrays.fill(offsets, NO_RECORD);
+      logEnd = LOG_HEADER_SIZE;
+      deadBytes = 0;
+      // The index goes first, so that it never covers more than the truncated log.
+      indexFile.delete();
+      log.truncate(LOG_HEADER_SIZE);
+    } catch (IOException e) {
+      // The log and index will be overwritten on the next save.
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Closes the log. The cache must not be used afterwards. */
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      log.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.readLock().lock();
+    try {
+      return "Action cache (" + countEntries() + " records, " + logEnd + " log bytes, "
+          + deadBytes + " dead bytes)";
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Dumps action cache content. */
+  @Override
+  public void dump(PrintStream out) {
+    out.println("String indexer content:\n");
+    out.println(indexer);
+    lock.readLock().lock();
+    try {
+      out.println("Action cache (" + countEntries() + " records):\n");
+      for (int id = 0; id < offsets.length; id++) {
+        if (offsets[id] == NO_RECORD) {
+          continue;
+        }
+        String content;
+        int length = 0;
+        try {
+          byte[] data = readRecord(id, offsets[id]);
+          length = data.length;
+          content = CompactPersistentActionCache.decode(indexer, data).toString();
+        } catch (IOException e) {
+          content = e + "\n";
+        }
+        out.println(id + ", " + indexer.getStringForIndex(id) + ":\n"
+            + content + "\n      packed_len = " + length + "\n");
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Returns the number of bytes occupied by the log, including dead records. */
+  @VisibleForTesting
+  long getLogSize() {
+    lock.readLock().lock();
+    try {
+      return logEnd;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Forces the filename index to disk at most every few seconds, like the action map does. */
+  private void maybeFlushIndexer() {
+    long timeSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime());
+    synchronized (indexer) {
+      if (timeSecs > nextIndexerFlushSecs) {
+        nextIndexerFlushSecs = timeSecs + SAVE_INTERVAL_SECONDS;
+        indexer.flush();
+      }
+    }
+  }
+
+  private long append(ByteBuffer record) throws IOException {
+    long offset = logEnd;
+    int size = record.remaining();
+    while (record.hasRemaining()) {
+      log.write(record, offset + record.position());
+    }
+    logEnd += size;
+    return offset;
+  }
+
+  /** Reads the record of the given key id at the given offset, which must belong to that id. */
+  private byte[] readRecord(int id, long offset) throws IOException {
+    ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    readFully(log, recordHeader, offset);
+    int length = recordHeader.getInt(4);
+    if (length < 0 || offset + RECORD_HEADER_SIZE + length > logEnd) {
+      throw new IOException("Corrupted action log record at offset " + offset);
+    }
+    if (recordHeader.getInt(0) != id) {
+      throw new IOException(
+          String.format(
+              "Action log record at offset %d belongs to key %d, not %d",
+              offset, recordHeader.getInt(0), id));
+    }
+    ByteBuffer data = ByteBuffer.allocate(length);
+    readFully(log, data, offset + RECORD_HEADER_SIZE);
+    return data.array();
+  }
+
+  private void setOffset(int id, long offset) {
+    if (id >= offsets.length) {
+      offsets = Arrays.copyOf(offsets, Math.max(id + 1, offsets.length * 2));
+    }
+    long previous = offsets[id];
+    if (previous != NO_RECORD) {
+      deadBytes += recordSizeAt(previous);
+    }
+    offsets[id] = offset;
+  }
+
+  private void clearOffset(int id) {
+    if (id < offsets.length && offsets[id] != NO_RECORD) {
+      deadBytes += recordSizeAt(offsets[id]);
+      offsets[id] = NO_RECORD;
+    }
+  }
+
+  private long recordSizeAt(long offset) {
+    ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    try {
+      readFully(log, recordHeader, offset);
+      return RECORD_HEADER_SIZE + Math.max(recordHeader.getInt(4), 0);
+    } catch (IOException e) {
+      return RECORD_HEADER_SIZE;
+    }
+  }
+
+  private int countEntries() {
+    int count = 0;
+    for (long offset : offsets) {
+      if (offset != NO_RECORD) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Copies the live records into a fresh log of the next generation and atomically replaces the
+   * current one. Records are transferred by the kernel without being decoded.
+   *
+   * <p>The index of the compacted log is written before the log replaces the current one. A crash
+   * in between leaves an index of the next generation, which the current log doesn't use.
+   */
+  private void compact() throws IOException {
+    Path compactedFile = logFile.getParentDirectory().getChild(logFile.getBaseName() + ".tmp");
+    long newGeneration = generation + 1;
+    long[] newOffsets = new long[offsets.length];
+    long newEnd = LOG_HEADER_SIZE;
+    try (FileChannel compacted = openLog(compactedFile)) {
+      compacted.truncate(0);
+      writeLogHeader(compacted, newGeneration);
+      compacted.position(LOG_HEADER_SIZE);
+      for (int id = 0; id < offsets.length; id++) {
+        if (offsets[id] == NO_RECORD) {
+          continue;
+        }
+        long size = recordSizeAt(offsets[id]);
+        long transferred = 0;
+        while (transferred < size) {
+          transferred += log.transferTo(offsets[id] + transferred, size - transferred, compacted);
+        }
+        newOffsets[id] = newEnd;
+        newEnd += size;
+      }
+      compacted.force(false);
+    }
+    writeIndex(newGeneration, newOffsets, newEnd, /*deadBytes=*/ 0);
+    compactedFile.renameTo(logFile);
+    log.close();
+    log = openLog(logFile);
+    generation = newGeneration;
+    offsets = newOffsets;
+    logEnd = newEnd;
+    deadBytes = 0;
+  }
+
+  /** Writes the index of the current log, atomically replacing the previous index file. */
+  private void writeIndex() throws IOException {
+    writeIndex(generation, offsets, logEnd, deadBytes);
+  }
+
+  private void writeIndex(long generation, long[] offsets, long logEnd, long deadBytes)
+      throws IOException {
+    Path tmpFile = indexFile.getParentDirectory().getChild(indexFile.getBaseName() + ".tmp");
+    ByteBuffer buffer =
+        ByteBuffer.allocate(INDEX_HEADER_SIZE + offsets.length * Long.BYTES)
+            .putInt(MAGIC)
+            .putInt(VERSION)
+            .putLong(generation)
+            .putLong(logEnd)
+            .putLong(deadBytes)
+            .putInt(indexer.size())
+            .putInt(offsets.length);
+    buffer.asLongBuffer().put(offsets);
+    buffer.clear();
+    try (FileChannel index =
+        FileChannel.open(
+            tmpFile.getPathFile().toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining()) {
+        index.write(buffer);
+      }
+      index.force(false);
+    }
+    tmpFile.renameTo(indexFile);
+  }
+
+  private static FileChannel openLog(Path path) throws IOException {
+    return FileChannel.open(
+        path.getPathFile().toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  private static void writeLogHeader(FileChannel channel, long generation) throws IOException {
+    ByteBuffer header =
+        ByteBuffer.allocate(LOG_HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(generation);
+    header.flip();
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of action log at " + position);
+      }
+    }
+  }
+
+  @Override
+  public void accountHit() {
+    hits.incrementAndGet();
+  }
+
+  @Override
+  public void accountMiss(MissReason reason) {
+    AtomicInteger counter = misses.get(reason);
+    Preconditions.checkNotNull(counter, "Miss reason %s was not registered in the misses map "
+        + "during cache construction", reason);
+    counter.incrementAndGet();
+  }
+
+  @Override
+  public void mergeIntoActionCacheStatistics(ActionCacheStatistics.Builder builder) {
+    builder.setHits(hits.get());
+
+    int totalMisses = 0;
+    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
+      int count = entry.getValue().get();
+      builder.addMissDetailsBuilder().setReason(entry.getKey()).setCount(count);
+      totalMisses += count;
+    }
+    builder.setMisses(totalMisses);
+  }
+
+  @Override
+  public void resetStatistics() {
+    hits.set(0);
+    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
+      entry.getValue().set(0);
+    }
+  }
+}
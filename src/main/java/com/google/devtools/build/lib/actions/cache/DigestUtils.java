@@ -33,6 +33,7 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 
 /**
  * Utility class for getting md5 digests of files.
@@ -41,7 +42,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * costly (i.e. when {@link Path#getFastDigest()} is not available). The cache can be enabled via
  * the {@link #configureCache(long)} function, but note that enabling this cache might have an
  * impact on correctness because not all changes to files can be purely detected from their
- * metadata.
+ * metadata. A second cache that is kept on disk across server restarts can be enabled via {@link
+ * #configurePersistentCache}.
  *
  * <p>Note that this class is responsible for digesting file metadata in an order-independent
  * manner. Care must be taken to do this properly. The digest must be a function of the set of
@@ -139,6 +141,13 @@ public class DigestUtils {
    */
   private static Cache<CacheKey, byte[]> globalCache = null;
 
+  /**
+   * Cache of file digests that outlives the server, consulted when {@link #globalCache} misses.
+   *
+   * <p>This is null when the cache is disabled.
+   */
+  @Nullable private static volatile PersistentFileDigestCache persistentCache = null;
+
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
@@ -191,6 +200,14 @@ public class DigestUtils {
     }
   }
 
+  /**
+   * Sets the cache of file digests that is kept on disk across server restarts, or disables it if
+   * {@code cache} is null.
+   */
+  public static void configurePersistentCache(@Nullable PersistentFileDigestCache cache) {
+    persistentCache = cache;
+  }
+
   /**
    * Obtains cache statistics.
    *
@@ -229,14 +246,28 @@ public class DigestUtils {
 
     // Attempt a cache lookup if the cache is enabled.
     Cache<CacheKey, byte[]> cache = globalCache;
+    PersistentFileDigestCache persistentCache = DigestUtils.persistentCache;
+    FileStatus status = null;
     CacheKey key = null;
+    if (cache != null || persistentCache != null) {
+      status = path.stat();
+    }
     if (cache != null) {
-      key = new CacheKey(path, path.stat());
+      key = new CacheKey(path, status);
       digest = cache.getIfPresent(key);
       if (digest != null) {
         return digest;
       }
     }
+    if (persistentCache != null) {
+      digest = persistentCache.get(path, status, path.getFileSystem().getDigestFunction());
+      if (digest != null) {
+        if (cache != null) {
+          cache.put(key, digest);
+        }
+        return digest;
+      }
+    }
 
     // Compute digest from the file contents.
     if (fileSize > MULTI_THREADED_DIGEST_MAX_FILE_SIZE && !MULTI_THREADED_DIGEST.get()) {
@@ -253,6 +284,9 @@ public class DigestUtils {
     if (cache != null) {
       cache.put(key, digest);
     }
+    if (persistentCache != null) {
+      persistentCache.put(path, status, path.getFileSystem().getDigestFunction(), digest);
+    }
     return digest;
   }
 
@@ -0,0 +1,353 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.PersistentMap;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A cache of file digests that is kept on disk, so that files don't have to be digested again
+ * after the server restarts.
+ *
+ * <p>Entries are keyed by the path of the file, the hash function, and as much of the file status
+ * as is available: the node id, size, modification time and change time. A file is only digested
+ * again if any of them changed. Since the change time is updated by the file system on every
+ * write, and can't be set by tools, this detects more changes than the in-memory cache of {@link
+ * DigestUtils}.
+ *
+ * <p>The cache is loaded lazily on the first lookup, so that it doesn't slow down commands that
+ * don't digest files. It holds at most a given number of entries and evicts the least recently
+ * used ones. Lookups and insertions don't wait for each other or for the journal to be written;
+ * recency is only tracked within a server, so the order of the entries is lost on restarts.
+ */
+@ThreadSafe
+public final class PersistentFileDigestCache {
+  private static final Logger logger = Logger.getLogger(PersistentFileDigestCache.class.getName());
+
+  /**
+   * Files that changed less than this long before they were digested are not cached, since they
+   * may have been changed again within the granularity of the file system timestamps.
+   */
+  @VisibleForTesting static final long RACY_CHANGE_MILLIS = 2000;
+
+  /** The key of a digest: the file and its status at the time it was digested. */
+  @VisibleForTesting
+  static final class Key {
+    private final String path;
+    private final String hashFunction;
+    private final long nodeId;
+    private final long size;
+    private final long modifiedTime;
+    private final long changeTime;
+
+    Key(
+        String path,
+        String hashFunction,
+        long nodeId,
+        long size,
+        long modifiedTime,
+        long changeTime) {
+      this.path = path;
+      this.hashFunction = hashFunction;
+      this.nodeId = nodeId;
+      this.size = size;
+      this.modifiedTime = modifiedTime;
+      this.changeTime = changeTime;
+    }
+
+    static Key create(Path path, FileStatus status, DigestHashFunction hashFunction)
+        throws IOException {
+      return new Key(
+          path.getPathString(),
+          hashFunction.toString(),
+          status.getNodeId(),
+          status.getSize(),
+          status.getLastModifiedTime(),
+          status.getLastChangeTime());
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (object == this) {
+        return true;
+      }
+      if (!(object instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) object;
+      return path.equals(key.path)
+          && hashFunction.equals(key.hashFunction)
+          && nodeId == key.nodeId
+          && size == key.size
+          && modifiedTime == key.modifiedTime
+          && changeTime == key.changeTime;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, hashFunction, nodeId, size, modifiedTime, changeTime);
+    }
+  }
+
+  /** The on-disk map of the digests. */
+  private static final class DigestMap extends PersistentMap<Key, byte[]> {
+    private static final int VERSION = 0x01;
+    private static final long SAVE_INTERVAL_NS = 3L * 1000 * 1000 * 1000;
+
+    private final Clock clock;
+    private long nextUpdate;
+
+    DigestMap(Map<Key, byte[]> map, Path mapFile, Path journalFile, Clock clock) {
+      super(VERSION, map, mapFile, journalFile);
+      this.clock = clock;
+      nextUpdate = clock.nanoTime();
+    }
+
+    @Override
+    protected boolean updateJournal() {
+      long time = clock.nanoTime();
+      if (time > nextUpdate) {
+        nextUpdate = time + SAVE_INTERVAL_NS;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    protected Key readKey(DataInputStream in) throws IOException {
+      return new Key(
+          in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    @Override
+    protected byte[] readValue(DataInputStream in) throws IOException {
+      int length = in.readUnsignedByte();
+      byte[] digest = new byte[length];
+      in.readFully(digest);
+      return digest;
+    }
+
+    @Override
+    protected void writeKey(Key key, DataOutputStream out) throws IOException {
+      out.writeUTF(key.path);
+      out.writeUTF(key.hashFunction);
+      out.writeLong(key.nodeId);
+      out.writeLong(key.size);
+      out.writeLong(key.modifiedTime);
+      out.writeLong(key.changeTime);
+    }
+
+    @Override
+    protected void writeValue(byte[] value, DataOutputStream out) throws IOException {
+      out.writeByte(value.length);
+      out.write(value);
+    }
+  }
+
+  /** A lookup or insertion that has not been applied to the recency order and journal yet. */
+  private static final class Update {
+    final Key key;
+    // Null for lookups.
+    @Nullable final byte[] digest;
+
+    Update(Key key, @Nullable byte[] digest) {
+      this.key = key;
+      this.digest = digest;
+    }
+  }
+
+  private final Path cacheDirectory;
+  private final int maxEntries;
+  private final Clock clock;
+
+  // Looked up and inserted into without any lock. Lookups and insertions are queued up as updates,
+  // and applied to the on-disk map by whichever thread gets the disk lock, so that threads never
+  // wait for the journal to be written.
+  private final Map<Key, byte[]> entries = new ConcurrentHashMap<>();
+  private final Queue<Update> updates = new ConcurrentLinkedQueue<>();
+
+  private final ReentrantLock diskLock = new ReentrantLock();
+
+  @GuardedBy("diskLock")
+  private final DigestMap digests;
+
+  // The keys of the digests, in least recently used order.
+  @GuardedBy("diskLock")
+  private final Set<Key> recency = new LinkedHashSet<>();
+
+  private volatile boolean loaded;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Creates a cache that is stored in the given directory, which it must not share with any other
+   * cache.
+   *
+   * @param maxEntries the maximum number of digests to keep
+   */
+  public PersistentFileDigestCache(Path cacheDirectory, int maxEntries, Clock clock) {
+    this.cacheDirectory = cacheDirectory;
+    this.maxEntries = maxEntries;
+    this.clock = clock;
+    this.digests =
+        new DigestMap(
+            entries,
+            cacheDirectory.getChild("digests_v1.blaze"),
+            cacheDirectory.getChild("digests_v1.journal"),
+            clock);
+  }
+
+  public Path getCacheDirectory() {
+    return cacheDirectory;
+  }
+
+  /** Returns the cached digest of the file with the given status, or null if there is none. */
+  @Nullable
+  public byte[] get(Path path, FileStatus status, DigestHashFunction hashFunction)
+      throws IOException {
+    ensureLoaded();
+    Key key = Key.create(path, status, hashFunction);
+    byte[] digest = entries.get(key);
+    if (digest == null) {
+      missCount.incrementAndGet();
+    } else {
+      hitCount.incrementAndGet();
+      updates.add(new Update(key, null));
+      applyUpdates();
+    }
+    return digest;
+  }
+
+  /**
+   * Caches the digest of the file with the given status, unless the file changed so recently that
+   * a later change may not be detectable from its status.
+   */
+  public void put(Path path, FileStatus status, DigestHashFunction hashFunction, byte[] digest)
+      throws IOException {
+    if (status.getLastChangeTime() > clock.currentTimeMillis() - RACY_CHANGE_MILLIS
+        || status.getLastModifiedTime() > clock.currentTimeMillis() - RACY_CHANGE_MILLIS) {
+      return;
+    }
+    ensureLoaded();
+    Key key = Key.create(path, status, hashFunction);
+    entries.put(key, digest);
+    updates.add(new Update(key, digest));
+    applyUpdates();
+  }
+
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    diskLock.lock();
+    try {
+      if (loaded) {
+        return;
+      }
+      try {
+        digests.load();
+      } catch (IOException e) {
+        // The digests are recomputed as needed, so the cache can just start out empty.
+        logger.warning("Failed to load file digest cache, starting with an empty one: " + e);
+      }
+      recency.addAll(entries.keySet());
+      loaded = true;
+    } finally {
+      diskLock.unlock();
+    }
+  }
+
+  /**
+   * Applies the queued updates unless another thread is already doing so. Threads that find the
+   * disk lock taken leave their updates to its holder, which keeps going until the queue is empty.
+   */
+  private void applyUpdates() {
+    while (!updates.isEmpty() && diskLock.tryLock()) {
+      try {
+        applyUpdatesLocked();
+      } finally {
+        diskLock.unlock();
+      }
+    }
+  }
+
+  @GuardedBy("diskLock")
+  private void applyUpdatesLocked() {
+    Update update;
+    while ((update = updates.poll()) != null) {
+      recency.remove(update.key);
+      if (update.digest != null) {
+        recency.add(update.key);
+        // Writes the journal from time to time.
+        digests.put(update.key, update.digest);
+      } else if (entries.containsKey(update.key)) {
+        recency.add(update.key);
+      }
+    }
+    Iterator<Key> eldest = recency.iterator();
+    while (recency.size() > maxEntries) {
+      digests.remove(eldest.next());
+      eldest.remove();
+    }
+  }
+
+  /** Writes the cached digests to disk, if the cache has been used. */
+  public void save() throws IOException {
+    if (!loaded) {
+      return;
+    }
+    diskLock.lock();
+    try {
+      applyUpdatesLocked();
+      digests.save();
+    } finally {
+      diskLock.unlock();
+    }
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  @VisibleForTesting
+  int size() {
+    ensureLoaded();
+    return entries.size();
+  }
+}
@@ -189,7 +189,7 @@ public class BazelRepositoryModule extends BlazeModule {
   @Override
   public void serverInit(OptionsParsingResult startupOptions, ServerBuilder builder) {
     builder.addCommands(new FetchCommand());
-    builder.addCommands(new SyncCommand());
+    builder.addCommands(new SyncCommand(httpDownloader));
     builder.addInfoItems(new RepositoryCacheInfoItem(repositoryCache));
   }
 
@@ -240,6 +240,9 @@ public class BazelRepositoryModule extends BlazeModule {
     RepositoryOptions repoOptions = env.getOptions().getOptions(RepositoryOptions.class);
     if (repoOptions != null) {
       repositoryCache.setHardlink(repoOptions.useHardlinks);
+      repositoryCache.setMaxSize(repoOptions.repositoryCacheMaxSizeMb * 1024 * 1024);
+      httpDownloader.setConnectionsPerDownload(
+          Math.max(repoOptions.repositoryDownloadConnections, 1));
       if (repoOptions.experimentalRepositoryCache != null) {
         Path repositoryCachePath;
         if (repoOptions.experimentalRepositoryCache.isAbsolute()) {
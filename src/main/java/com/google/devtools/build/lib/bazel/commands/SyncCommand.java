@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.bazel.commands;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.bazel.repository.downloader.HttpDownloader;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.RepositoryName;
@@ -51,6 +52,12 @@ import com.google.devtools.common.options.OptionsParsingResult;
 public final class SyncCommand implements BlazeCommand {
   public static final String NAME = "sync";
 
+  private final HttpDownloader httpDownloader;
+
+  public SyncCommand(HttpDownloader httpDownloader) {
+    this.httpDownloader = httpDownloader;
+  }
+
   @Override
   public void editOptions(OptionsParser optionsParser) {}
 
@@ -105,9 +112,14 @@ public final class SyncCommand implements BlazeCommand {
         workspace = fileValue.next();
       }
 
+      // Download the files of all rules that declare them into the repository cache up front, so
+      // that the repositories don't download them one after the other as they are fetched.
+      Iterable<Rule> rules = fileValue.getPackage().getTargets(Rule.class);
+      httpDownloader.prefetch(rules, env.getReporter(), env.getActionClientEnv());
+
       // take all skylark workspace rules and get their values
       ImmutableSet.Builder<SkyKey> repositoriesToFetch = new ImmutableSet.Builder<>();
-      for (Rule rule : fileValue.getPackage().getTargets(Rule.class)) {
+      for (Rule rule : rules) {
         if (rule.getRuleClassObject().getWorkspaceOnly() && rule.getRuleClassObject().isSkylark()) {
           // TODO(aehlig): avoid the detour of serializing and then parsing the repository name
           try {
@@ -0,0 +1,228 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+
+/**
+ * Writes the files of an archive that is being extracted on a pool of threads.
+ *
+ * <p>Archives are read sequentially, but writing a file (creating it, writing its contents and
+ * setting its mode and modification time) mostly waits for the file system. The thread reading the
+ * archive buffers the contents of each small file in memory and hands them to a writer thread, so
+ * that it can go on decompressing while the file is written. A buffered file is written with a
+ * single call, which lets the file system allocate it in one piece. The memory used for buffers is
+ * bounded; large files and files of unknown size are written by the reading thread itself.
+ *
+ * <p>All methods must be called by the thread that reads the archive.
+ */
+final class ArchiveEntryWriter implements AutoCloseable {
+  @VisibleForTesting static final int MAX_BUFFERED_FILE_SIZE = 4 * 1024 * 1024;
+  private static final int MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+  private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+  /** Shared by all extractions. Writers mostly wait for I/O, so there are more than cores. */
+  private static final ListeningExecutorService writerPool =
+      MoreExecutors.listeningDecorator(
+          Executors.newFixedThreadPool(
+              Math.max(4, 2 * Runtime.getRuntime().availableProcessors()),
+              new ThreadFactoryBuilder()
+                  .setNameFormat("archive-entry-writer-%d")
+                  .setDaemon(true)
+                  .build()));
+
+  private final String archive;
+  @Nullable private final ExtendedEventHandler eventHandler;
+  private final Semaphore bufferedBytes = new Semaphore(MAX_BUFFERED_BYTES);
+  /** Files whose write has not finished yet. */
+  private final Map<Path, Future<?>> pendingWrites = new ConcurrentHashMap<>();
+  private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+  private long files;
+  private long bytes;
+  private long nextProgressNanos;
+
+  /**
+   * @param archive the name of the archive in progress events
+   * @param eventHandler the receiver of progress events, or null to not report progress
+   */
+  ArchiveEntryWriter(String archive, @Nullable ExtendedEventHandler eventHandler) {
+    this.archive = archive;
+    this.eventHandler = eventHandler;
+    this.nextProgressNanos = System.nanoTime() + PROGRESS_INTERVAL_NANOS;
+  }
+
+  /** Creates a directory and its parents. */
+  void createDirectory(Path dir) throws IOException, InterruptedException {
+    checkFailure();
+    awaitWrite(dir);
+    FileSystemUtils.createDirectoryAndParents(dir);
+  }
+
+  /**
+   * Writes a regular file, replacing whatever is at its path, and sets its mode and modification
+   * time. Creates the parent directories of the file.
+   *
+   * @param contents the contents of the file, which are consumed before this returns
+   * @param size the number of bytes in {@code contents}, or -1 if not known
+   */
+  void writeFile(Path path, InputStream contents, long size, int mode, long lastModifiedTime)
+      throws IOException, InterruptedException {
+    checkFailure();
+    awaitWrite(path);
+    FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+    if (size < 0 || size > MAX_BUFFERED_FILE_SIZE) {
+      long written =
+          Files.copy(contents, path.getPathFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+      setAttributes(path, mode, lastModifiedTime);
+      recordFile(written);
+      return;
+    }
+
+    int length = (int) size;
+    bufferedBytes.acquire(length);
+    ListenableFuture<?> write;
+    try {
+      byte[] buffer = new byte[length];
+      ByteStreams.readFully(contents, buffer);
+      write =
+          writerPool.submit(
+              () -> {
+                try {
+                  writeBuffered(path, buffer, mode, lastModifiedTime);
+                } catch (IOException e) {
+                  failure.compareAndSet(null, e);
+                } catch (RuntimeException e) {
+                  failure.compareAndSet(null, new IOException("Failed to write " + path, e));
+                } finally {
+                  bufferedBytes.release(length);
+                }
+              });
+    } catch (IOException | RuntimeException e) {
+      bufferedBytes.release(length);
+      throw e;
+    }
+    pendingWrites.put(path, write);
+    write.addListener(() -> pendingWrites.remove(path, write), MoreExecutors.directExecutor());
+    recordFile(length);
+  }
+
+  /**
+   * Waits until the write of the file at {@code path}, if any, is done. Must be called before
+   * anything else is done with a path that may have been passed to {@link #writeFile}, e.g. before
+   * creating a hard link to it.
+   */
+  void awaitWrite(Path path) throws InterruptedException {
+    Future<?> write = pendingWrites.get(path);
+    if (write != null) {
+      try {
+        write.get();
+      } catch (ExecutionException e) {
+        // Writes record their failures themselves.
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /** Waits until all files are written, and throws the first failure to write one. */
+  void finish() throws IOException, InterruptedException {
+    for (Path path : new ArrayList<>(pendingWrites.keySet())) {
+      awaitWrite(path);
+    }
+    checkFailure();
+    if (eventHandler != null) {
+      eventHandler.post(new ExtractionProgressEvent(archive, files, bytes, true));
+    }
+  }
+
+  /**
+   * Waits for all pending writes, so that no file is written after the extraction is over, even if
+   * it failed.
+   */
+  @Override
+  public void close() {
+    for (Future<?> write : new ArrayList<>(pendingWrites.values())) {
+      try {
+        Uninterruptibles.getUninterruptibly(write);
+      } catch (ExecutionException e) {
+        // Writes record their failures themselves.
+      }
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    IOException e = failure.get();
+    if (e != null) {
+      throw new IOException("Error extracting " + archive + ": " + e.getMessage(), e);
+    }
+  }
+
+  private static void writeBuffered(Path path, byte[] buffer, int mode, long lastModifiedTime)
+      throws IOException {
+    java.nio.file.Path file = path.getPathFile().toPath();
+    Files.deleteIfExists(file);
+    try (FileChannel channel =
+        FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      ByteBuffer contents = ByteBuffer.wrap(buffer);
+      while (contents.hasRemaining()) {
+        channel.write(contents);
+      }
+    }
+    setAttributes(path, mode, lastModifiedTime);
+  }
+
+  private static void setAttributes(Path path, int mode, long lastModifiedTime)
+      throws IOException {
+    path.chmod(mode);
+    path.setLastModifiedTime(lastModifiedTime);
+  }
+
+  private void recordFile(long size) {
+    files++;
+    bytes += size;
+    if (eventHandler != null) {
+      long now = System.nanoTime();
+      if (now - nextProgressNanos >= 0) {
+        nextProgressNanos = now + PROGRESS_INTERVAL_NANOS;
+        eventHandler.post(new ExtractionProgressEvent(archive, files, bytes, false));
+      }
+    }
+  }
+}
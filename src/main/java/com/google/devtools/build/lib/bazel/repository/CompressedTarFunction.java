@@ -15,35 +15,58 @@
 package com.google.devtools.build.lib.bazel.repository;
 
 import com.google.common.base.Optional;
-import com.google.devtools.build.lib.bazel.repository.DecompressorValue.Decompressor;
+import com.google.devtools.build.lib.bazel.repository.DecompressorValue.StreamingDecompressor;
 import com.google.devtools.build.lib.rules.repository.RepositoryFunction.RepositoryFunctionException;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
-
-import java.util.Date;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 
 /**
  * Common code for unarchiving a compressed TAR file.
+ *
+ * <p>TAR files are read sequentially, so they can be extracted while they are read from any
+ * stream, e.g. while they are downloaded.
  */
-public abstract class CompressedTarFunction implements Decompressor {
-  protected abstract InputStream getDecompressorStream(DecompressorDescriptor descriptor)
+public abstract class CompressedTarFunction implements StreamingDecompressor {
+  private static final int BUFFER_SIZE = 32 * 1024;
+
+  /** Returns a stream of the TAR file that is compressed in {@code compressedStream}. */
+  protected abstract InputStream getDecompressorStream(InputStream compressedStream)
       throws IOException;
 
   @Override
-  public Path decompress(DecompressorDescriptor descriptor) throws RepositoryFunctionException {
+  public Path decompress(DecompressorDescriptor descriptor)
+      throws RepositoryFunctionException, InterruptedException {
+    try (InputStream archiveStream = descriptor.archivePath().getInputStream()) {
+      return decompress(descriptor, archiveStream);
+    } catch (IOException e) {
+      throw new RepositoryFunctionException(e, Transience.TRANSIENT);
+    }
+  }
+
+  @Override
+  public Path decompress(DecompressorDescriptor descriptor, InputStream archiveStream)
+      throws RepositoryFunctionException, InterruptedException {
     Optional<String> prefix = descriptor.prefix();
     boolean foundPrefix = false;
 
-    try (InputStream decompressorStream = getDecompressorStream(descriptor)) {
+    // The caller owns the archive stream, which is not closed with the decompressor stream.
+    InputStream unclosableStream =
+        new FilterInputStream(new BufferedInputStream(archiveStream, BUFFER_SIZE)) {
+          @Override
+          public void close() {}
+        };
+    try (InputStream decompressorStream = getDecompressorStream(unclosableStream);
+        ArchiveEntryWriter writer =
+            new ArchiveEntryWriter(
+                descriptor.archivePath().getBaseName(), descriptor.eventHandler())) {
       TarArchiveInputStream tarStream = new TarArchiveInputStream(decompressorStream);
       TarArchiveEntry entry;
       while ((entry = tarStream.getNextTarEntry()) != null) {
@@ -54,11 +77,11 @@ public abstract class CompressedTarFunction implements Decompressor {
         }
 
         Path filename = descriptor.repositoryPath().getRelative(entryPath.getPathFragment());
-        FileSystemUtils.createDirectoryAndParents(filename.getParentDirectory());
         if (entry.isDirectory()) {
-          FileSystemUtils.createDirectoryAndParents(filename);
+          writer.createDirectory(filename);
         } else {
           if (entry.isSymbolicLink() || entry.isLink()) {
+            FileSystemUtils.createDirectoryAndParents(filename.getParentDirectory());
             PathFragment linkName = PathFragment.create(entry.getLinkName());
             boolean wasAbsolute = linkName.isAbsolute();
             // Strip the prefix from the link path if set.
@@ -69,27 +92,31 @@ public abstract class CompressedTarFunction implements Decompressor {
               // even if the prefix is not set
               linkName = descriptor.repositoryPath().getRelative(linkName).asFragment();
             }
+            writer.awaitWrite(filename);
             if (filename.exists()) {
               filename.delete();
             }
             if (entry.isSymbolicLink()) {
               FileSystemUtils.ensureSymbolicLink(filename, linkName);
             } else {
-              FileSystemUtils.createHardLink(
-                  filename, descriptor.repositoryPath().getRelative(linkName));
+              Path target = descriptor.repositoryPath().getRelative(linkName);
+              // A hard link can only be created once its target is complete.
+              writer.awaitWrite(target);
+              FileSystemUtils.createHardLink(filename, target);
             }
           } else {
-            Files.copy(
-                tarStream, filename.getPathFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
-            filename.chmod(entry.getMode());
-
             // This can only be done on real files, not links, or it will skip the reader to
             // the next "real" file to try to find the mod time info.
-            Date lastModified = entry.getLastModifiedDate();
-            filename.setLastModifiedTime(lastModified.getTime());
+            writer.writeFile(
+                filename,
+                tarStream,
+                entry.getSize(),
+                entry.getMode(),
+                entry.getLastModifiedDate().getTime());
           }
         }
       }
+      writer.finish();
     } catch (IOException e) {
       throw new RepositoryFunctionException(e, Transience.TRANSIENT);
     }
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.bazel.repository;
 
 import com.google.common.base.Optional;
 import com.google.devtools.build.lib.bazel.repository.DecompressorValue.Decompressor;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.rules.repository.RepositoryFunction.RepositoryFunctionException;
 import com.google.devtools.build.lib.vfs.Path;
 
@@ -35,10 +36,12 @@ public class DecompressorDescriptor {
   private final Optional<String> prefix;
   private final boolean executable;
   private final Decompressor decompressor;
+  @Nullable private final ExtendedEventHandler eventHandler;
 
   private DecompressorDescriptor(
       String targetKind, String targetName, Path archivePath, Path repositoryPath,
-      @Nullable String prefix, boolean executable, Decompressor decompressor) {
+      @Nullable String prefix, boolean executable, Decompressor decompressor,
+      @Nullable ExtendedEventHandler eventHandler) {
     this.targetKind = targetKind;
     this.targetName = targetName;
     this.archivePath = archivePath;
@@ -46,6 +49,7 @@ public class DecompressorDescriptor {
     this.prefix = Optional.fromNullable(prefix);
     this.executable = executable;
     this.decompressor = decompressor;
+    this.eventHandler = eventHandler;
   }
 
   public String targetKind() {
@@ -76,6 +80,12 @@ public class DecompressorDescriptor {
     return decompressor;
   }
 
+  /** Returns the receiver of progress events, or null if progress is not reported. */
+  @Nullable
+  public ExtendedEventHandler eventHandler() {
+    return eventHandler;
+  }
+
   @Override
   public boolean equals(Object other) {
     if (this == other) {
@@ -117,6 +127,7 @@ public class DecompressorDescriptor {
     private String prefix;
     private boolean executable;
     private Decompressor decompressor;
+    private ExtendedEventHandler eventHandler;
 
     private Builder() {
     }
@@ -126,7 +137,8 @@ public class DecompressorDescriptor {
         decompressor = DecompressorValue.getDecompressor(archivePath);
       }
       return new DecompressorDescriptor(
-          targetKind, targetName, archivePath, repositoryPath, prefix, executable, decompressor);
+          targetKind, targetName, archivePath, repositoryPath, prefix, executable, decompressor,
+          eventHandler);
     }
 
     public Builder setTargetKind(String targetKind) {
@@ -163,5 +175,10 @@ public class DecompressorDescriptor {
       this.decompressor = decompressor;
       return this;
     }
+
+    public Builder setEventHandler(ExtendedEventHandler eventHandler) {
+      this.eventHandler = eventHandler;
+      return this;
+    }
   }
 }
@@ -19,6 +19,7 @@ import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyValue;
+import java.io.InputStream;
 
 /**
  * The contents of decompressed archive.
@@ -26,7 +27,21 @@ import com.google.devtools.build.skyframe.SkyValue;
 public class DecompressorValue implements SkyValue {
   /** Implementation of a decompression algorithm. */
   public interface Decompressor {
-    Path decompress(DecompressorDescriptor descriptor) throws RepositoryFunctionException;
+    Path decompress(DecompressorDescriptor descriptor)
+        throws RepositoryFunctionException, InterruptedException;
+  }
+
+  /**
+   * A decompression algorithm that can extract an archive while it is read, e.g. while it is
+   * downloaded, without having the whole archive on disk.
+   */
+  public interface StreamingDecompressor extends Decompressor {
+    /**
+     * Extracts the archive read from {@code archiveStream}, which is not closed. The archive path
+     * of the descriptor is only used to name the archive.
+     */
+    Path decompress(DecompressorDescriptor descriptor, InputStream archiveStream)
+        throws RepositoryFunctionException, InterruptedException;
   }
 
   private final Path directory;
@@ -50,7 +65,7 @@ public class DecompressorValue implements SkyValue {
     return directory.hashCode();
   }
 
-  static Decompressor getDecompressor(Path archivePath)
+  public static Decompressor getDecompressor(Path archivePath)
       throws RepositoryFunctionException {
     String baseName = archivePath.getBaseName();
     if (baseName.endsWith(".zip") || baseName.endsWith(".jar") || baseName.endsWith(".war")) {
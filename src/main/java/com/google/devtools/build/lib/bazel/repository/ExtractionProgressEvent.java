@@ -0,0 +1,57 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository;
+
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+
+/**
+ * Postable event reporting on progress made extracting an archive into a repository: the number
+ * of files and bytes written so far.
+ */
+public class ExtractionProgressEvent implements ExtendedEventHandler.FetchProgress {
+  private final String archive;
+  private final long files;
+  private final long bytes;
+  private final boolean finished;
+
+  public ExtractionProgressEvent(String archive, long files, long bytes, boolean finished) {
+    this.archive = archive;
+    this.files = files;
+    this.bytes = bytes;
+    this.finished = finished;
+  }
+
+  @Override
+  public String getResourceIdentifier() {
+    return "extracting " + archive;
+  }
+
+  @Override
+  public String getProgress() {
+    return String.format("%,d files, %,db", files, bytes);
+  }
+
+  @Override
+  public boolean isFinished() {
+    return finished;
+  }
+
+  public long getFiles() {
+    return files;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+}
@@ -20,6 +20,7 @@ import com.google.devtools.build.lib.cmdline.RepositoryName;
 import com.google.devtools.build.lib.util.OptionsUtils;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converter;
+import com.google.devtools.common.options.Converters;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
 import com.google.devtools.common.options.OptionEffectTag;
@@ -56,6 +57,31 @@ public class RepositoryOptions extends OptionsBase {
               + " cache hit, rather than copying. This is inteded to save disk space.")
   public boolean useHardlinks;
 
+  @Option(
+      name = "experimental_repository_cache_max_size_mb",
+      defaultValue = "0",
+      converter = CacheSizeMbConverter.class,
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If positive, the size in megabytes beyond which the least recently used entries of"
+              + " the repository cache are evicted. 0 means no limit.")
+  public long repositoryCacheMaxSizeMb;
+
+  @Option(
+      name = "experimental_repository_download_connections",
+      defaultValue = "1",
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "The number of connections over which a single file is downloaded from a server that"
+              + " supports range requests. Partial downloads are kept in the repository cache and"
+              + " resumed by the next download of the same file. 1 downloads every file over a"
+              + " single connection.")
+  public int repositoryDownloadConnections;
+
   @Option(
       name = "distdir",
       oldName = "experimental_distdir",
@@ -134,6 +160,27 @@ public class RepositoryOptions extends OptionsBase {
     }
   }
 
+  /** Converts a size in megabytes that is neither negative nor too large to count in bytes. */
+  public static class CacheSizeMbConverter extends Converters.LongConverter {
+    private static final long MAX_VALUE = Long.MAX_VALUE / (1024 * 1024);
+
+    @Override
+    public Long convert(String input) throws OptionsParsingException {
+      long value = super.convert(input);
+      if (value < 0) {
+        throw new OptionsParsingException("'" + input + "' should be >= 0");
+      } else if (value > MAX_VALUE) {
+        throw new OptionsParsingException("'" + input + "' should be <= " + MAX_VALUE);
+      }
+      return value;
+    }
+
+    @Override
+    public String getTypeDescription() {
+      return "a long integer, >= 0";
+    }
+  }
+
   /**
    * A repository override, represented by a name and an absolute path to a repository.
    */
@@ -25,12 +25,9 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.zip.ZipFileEntry;
 import com.google.devtools.build.zip.ZipReader;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -73,11 +70,15 @@ public class ZipDecompressor implements Decompressor {
    */
   @Override
   @Nullable
-  public Path decompress(DecompressorDescriptor descriptor) throws RepositoryFunctionException {
+  public Path decompress(DecompressorDescriptor descriptor)
+      throws RepositoryFunctionException, InterruptedException {
     Path destinationDirectory = descriptor.archivePath().getParentDirectory();
     Optional<String> prefix = descriptor.prefix();
     boolean foundPrefix = false;
-    try (ZipReader reader = new ZipReader(descriptor.archivePath().getPathFile())) {
+    try (ZipReader reader = new ZipReader(descriptor.archivePath().getPathFile());
+        ArchiveEntryWriter writer =
+            new ArchiveEntryWriter(
+                descriptor.archivePath().getBaseName(), descriptor.eventHandler())) {
       Collection<ZipFileEntry> entries = reader.entries();
       // Store link, target info of symlinks, we create them after regular files are extracted.
       Map<Path, PathFragment> symlinks = new HashMap<>();
@@ -87,8 +88,10 @@ public class ZipDecompressor implements Decompressor {
         if (entryPath.skip()) {
           continue;
         }
-        extractZipEntry(reader, entry, destinationDirectory, entryPath.getPathFragment(), symlinks);
+        extractZipEntry(
+            reader, writer, entry, destinationDirectory, entryPath.getPathFragment(), symlinks);
       }
+      writer.finish();
       for (Map.Entry<Path, PathFragment> symlink : symlinks.entrySet()) {
         symlink.getKey().createSymbolicLink(symlink.getValue());
       }
@@ -110,11 +113,12 @@ public class ZipDecompressor implements Decompressor {
 
   private static void extractZipEntry(
       ZipReader reader,
+      ArchiveEntryWriter writer,
       ZipFileEntry entry,
       Path destinationDirectory,
       PathFragment strippedRelativePath,
       Map<Path, PathFragment> symlinks)
-      throws IOException {
+      throws IOException, InterruptedException {
     if (strippedRelativePath.isAbsolute()) {
       throw new IOException(
           String.format(
@@ -126,7 +130,7 @@ public class ZipDecompressor implements Decompressor {
     boolean isDirectory = (permissions & S_IFDIR) == S_IFDIR;
     boolean isSymlink = (permissions & S_IFLNK) == S_IFLNK;
     if (isDirectory) {
-      FileSystemUtils.createDirectoryAndParents(outputPath);
+      writer.createDirectory(outputPath);
     } else if (isSymlink) {
       Preconditions.checkState(entry.getSize() < MAX_PATH_LENGTH);
       byte[] buffer = new byte[(int) entry.getSize()];
@@ -152,12 +156,9 @@ public class ZipDecompressor implements Decompressor {
       // this delete+rewrite is required or the build will error out if outputPath exists here.
       // The zip file is not re-unzipped when the WORKSPACE file is changed (because it is assumed
       // to be immutable) but is on server restart (which is a bug).
-      File outputFile = outputPath.getPathFile();
       try (InputStream input = reader.getInputStream(entry)) {
-        Files.copy(input, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        writer.writeFile(outputPath, input, entry.getSize(), permissions, entry.getTime());
       }
-      outputPath.chmod(permissions);
-      outputPath.setLastModifiedTime(entry.getTime());
     }
   }
 
@@ -14,21 +14,57 @@
 
 package com.google.devtools.build.lib.bazel.repository.cache;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.KeyedLocker;
+import com.google.devtools.build.lib.concurrent.KeyedLocker.AutoUnlocker;
+import com.google.devtools.build.lib.concurrent.StripedKeyedLocker;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
-/** The cache implementation to store download artifacts from external repositories.
- *  TODO(jingwen): Implement file locking for concurrent cache accesses.
+/**
+ * The cache implementation to store download artifacts from external repositories.
+ *
+ * <p>Entries are locked individually (by stripe), so fetches of different repositories don't wait
+ * for each other. New entries are written to a temporary file and renamed into place, so that
+ * readers, including other servers sharing the cache, never see a partially written entry. The
+ * cache remembers which entries it has hashed, so an entry is only re-hashed on lookup if it
+ * changed on disk since. If a maximum size is set, least recently used entries are evicted in the
+ * background once the cache grows beyond it.
  */
+@ThreadSafe
 public class RepositoryCache {
+  private static final Logger logger = Logger.getLogger(RepositoryCache.class.getName());
 
   /** The types of cache keys used. */
   public enum KeyType {
@@ -68,26 +104,128 @@ public class RepositoryCache {
 
   private static final int BUFFER_SIZE = 32 * 1024;
 
+  /** Number of lock stripes; concurrent accesses to different keys rarely share one. */
+  private static final int LOCK_STRIPES = 64;
+
+  /** Once eviction kicks in, entries are deleted until the size drops below this fraction. */
+  private static final double EVICTION_LOW_WATERMARK = 0.9;
+
+  /**
+   * Temporary files that weren't modified for this long are left over from interrupted writes, and
+   * deleted when the cache is opened.
+   */
+  private static final long MAX_TEMP_FILE_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
   // Repository cache subdirectories
   private static final String CAS_DIR = "content_addressable";
+  private static final String TMP_DIR = "tmp";
 
   // Rename cached files to this value to simplify lookup.
   public static final String DEFAULT_CACHE_FILENAME = "file";
 
-  @Nullable private Path repositoryCachePath;
-  @Nullable private Path contentAddressablePath;
-  private boolean useHardlinks;
+  @Nullable private volatile Path repositoryCachePath;
+  @Nullable private volatile Path contentAddressablePath;
+  private volatile boolean useHardlinks;
+  private volatile long maxSizeBytes;
+
+  private final KeyedLocker<String> locker = new StripedKeyedLocker<>(LOCK_STRIPES);
+
+  /**
+   * The status of the cache values whose checksum was verified, as of the verification. A value
+   * whose status is unchanged does not have to be hashed again.
+   */
+  private final Map<Path, FileStatusFingerprint> verifiedValues = new ConcurrentHashMap<>();
+
+  /** Index of all entries for eviction; only maintained if {@link #maxSizeBytes} is positive. */
+  private final Map<Path, Entry> index = new ConcurrentHashMap<>();
+
+  private final AtomicLong totalSizeBytes = new AtomicLong();
+  private final AtomicLong accessClock = new AtomicLong();
+  private final AtomicBoolean indexLoaded = new AtomicBoolean();
+  private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+  private final ExecutorService evictionExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("repository-cache-eviction-%d")
+              .setDaemon(true)
+              .build());
+
+  /** The identity of a file's contents as far as the file system tells. */
+  private static final class FileStatusFingerprint {
+    private final long size;
+    private final long lastModifiedTime;
+    private final long nodeId;
+
+    FileStatusFingerprint(FileStatus status) throws IOException {
+      this.size = status.getSize();
+      this.lastModifiedTime = status.getLastModifiedTime();
+      this.nodeId = status.getNodeId();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof FileStatusFingerprint)) {
+        return false;
+      }
+      FileStatusFingerprint that = (FileStatusFingerprint) o;
+      return size == that.size
+          && lastModifiedTime == that.lastModifiedTime
+          && nodeId == that.nodeId;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(size, lastModifiedTime, nodeId);
+    }
+  }
+
+  /** Size and logical last access time of a single cache value. */
+  private static final class Entry {
+    private final KeyType keyType;
+    private final String cacheKey;
+    private final long size;
+    private volatile long lastAccess;
+
+    private Entry(KeyType keyType, String cacheKey, long size, long lastAccess) {
+      this.keyType = keyType;
+      this.cacheKey = cacheKey;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
 
   public void setRepositoryCachePath(@Nullable Path repositoryCachePath) {
+    if (Objects.equals(repositoryCachePath, this.repositoryCachePath)) {
+      return;
+    }
     this.repositoryCachePath = repositoryCachePath;
     this.contentAddressablePath = (repositoryCachePath != null)
         ? repositoryCachePath.getRelative(CAS_DIR) : null;
+    resetIndex();
+    if (repositoryCachePath != null) {
+      evictionExecutor.execute(() -> deleteStaleTempFiles(repositoryCachePath.getChild(TMP_DIR)));
+    }
   }
 
   public void setHardlink(boolean useHardlinks) {
     this.useHardlinks = useHardlinks;
   }
 
+  /**
+   * Sets the size in bytes beyond which least recently used entries are evicted. A value of {@code
+   * 0} disables eviction.
+   */
+  public void setMaxSize(long maxSizeBytes) {
+    Preconditions.checkArgument(maxSizeBytes >= 0, "maxSizeBytes must not be negative");
+    long previous = this.maxSizeBytes;
+    this.maxSizeBytes = maxSizeBytes;
+    if (previous == 0 && maxSizeBytes > 0) {
+      resetIndex();
+    } else {
+      maybeScheduleEviction();
+    }
+  }
+
   /**
    * @return true iff the cache path is set.
    */
@@ -104,7 +242,7 @@ public class RepositoryCache {
    */
   public boolean exists(String cacheKey, KeyType keyType) {
     Preconditions.checkState(isEnabled());
-    return keyType.getCachePath(contentAddressablePath).getChild(cacheKey).exists();
+    return getCacheValue(cacheKey, keyType).exists();
   }
 
   /**
@@ -122,35 +260,79 @@ public class RepositoryCache {
    * @throws IOException
    */
   @Nullable
-  public synchronized Path get(String cacheKey, Path targetPath, KeyType keyType)
-      throws IOException {
+  public Path get(String cacheKey, Path targetPath, KeyType keyType) throws IOException {
     Preconditions.checkState(isEnabled());
 
     assertKeyIsValid(cacheKey, keyType);
-    if (!exists(cacheKey, keyType)) {
-      return null;
+    Path cacheValue = getCacheValue(cacheKey, keyType);
+    try (AutoUnlocker unlocker = locker.readLock(lockKey(cacheKey, keyType))) {
+      if (!verify(cacheKey, cacheValue, keyType)) {
+        return null;
+      }
+      FileSystemUtils.createDirectoryAndParents(targetPath.getParentDirectory());
+      if (useHardlinks) {
+        FileSystemUtils.createHardLink(targetPath, cacheValue);
+      } else {
+        FileSystemUtils.copyFile(cacheValue, targetPath);
+      }
+      recordUse(cacheKey, cacheValue, keyType);
     }
 
-    Path cacheEntry = keyType.getCachePath(contentAddressablePath).getRelative(cacheKey);
-    Path cacheValue = cacheEntry.getRelative(DEFAULT_CACHE_FILENAME);
+    return targetPath;
+  }
 
-    try {
-      assertFileChecksum(cacheKey, cacheValue, keyType);
-    } catch (IOException e) {
-      // New lines because this error message gets large printing multiple absolute filepaths.
-      throw new IOException(e.getMessage() + "\n\n"
-          + "Please delete the directory " + cacheEntry + " and try again.");
+  /**
+   * Opens a cached value for reading, if it exists. The value is verified like by {@link #get}.
+   *
+   * @param cacheKey The string key to cache the value by.
+   * @param keyType The type of key used. See: KeyType
+   * @return A stream of the cache value, or null if it does not exist.
+   */
+  @Nullable
+  public InputStream getInputStream(String cacheKey, KeyType keyType) throws IOException {
+    Preconditions.checkState(isEnabled());
+
+    assertKeyIsValid(cacheKey, keyType);
+    Path cacheValue = getCacheValue(cacheKey, keyType);
+    try (AutoUnlocker unlocker = locker.readLock(lockKey(cacheKey, keyType))) {
+      if (!verify(cacheKey, cacheValue, keyType)) {
+        return null;
+      }
+      // Once open, the value can be read even if it is evicted.
+      InputStream in = cacheValue.getInputStream();
+      recordUse(cacheKey, cacheValue, keyType);
+      return in;
     }
+  }
 
-    FileSystemUtils.createDirectoryAndParents(targetPath.getParentDirectory());
-    if (useHardlinks) {
-      FileSystemUtils.createHardLink(targetPath, cacheValue);
-    } else {
-      FileSystemUtils.copyFile(cacheValue, targetPath);
+  /**
+   * Returns whether the value exists, after checking that it has the checksum {@code cacheKey}
+   * unless it was verified before and did not change since. Must be called with a lock held.
+   */
+  private boolean verify(String cacheKey, Path cacheValue, KeyType keyType) throws IOException {
+    FileStatus status = cacheValue.statIfFound();
+    if (status == null) {
+      return false;
     }
-    FileSystemUtils.touchFile(cacheValue);
+    if (!new FileStatusFingerprint(status).equals(verifiedValues.get(cacheValue))) {
+      try {
+        assertFileChecksum(cacheKey, cacheValue, keyType);
+      } catch (IOException e) {
+        // New lines because this error message gets large printing multiple absolute filepaths.
+        throw new IOException(e.getMessage() + "\n\n"
+            + "Please delete the directory " + cacheValue.getParentDirectory()
+            + " and try again.");
+      }
+    }
+    return true;
+  }
 
-    return targetPath;
+  /** Records a read of a verified value. Must be called with a lock held. */
+  private void recordUse(String cacheKey, Path cacheValue, KeyType keyType) throws IOException {
+    // Touching the value records the access on disk, which orders eviction after a restart.
+    FileSystemUtils.touchFile(cacheValue);
+    recordVerified(cacheValue);
+    recordAccess(keyType, cacheKey, cacheValue);
   }
 
   /**
@@ -159,19 +341,17 @@ public class RepositoryCache {
    * @param cacheKey The string key to cache the value by.
    * @param sourcePath The path of the value to be cached.
    * @param keyType The type of key used. See: KeyType
-   * @throws IOException
+   * @throws IOException if the value could not be copied, or does not have the checksum {@code
+   *     cacheKey}
    */
-  public synchronized void put(String cacheKey, Path sourcePath, KeyType keyType)
-    throws IOException {
+  public void put(String cacheKey, Path sourcePath, KeyType keyType) throws IOException {
     Preconditions.checkState(isEnabled());
 
     assertKeyIsValid(cacheKey, keyType);
-    ensureCacheDirectoryExists(keyType);
-
-    Path cacheEntry = keyType.getCachePath(contentAddressablePath).getRelative(cacheKey);
-    Path cacheValue = cacheEntry.getRelative(DEFAULT_CACHE_FILENAME);
-    FileSystemUtils.createDirectoryAndParents(cacheEntry);
-    FileSystemUtils.copyFile(sourcePath, cacheValue);
+    try (ValueOutputStream out = newValueOutputStream(keyType)) {
+      copy(sourcePath, out);
+      out.commit(cacheKey);
+    }
   }
 
   /**
@@ -182,19 +362,148 @@ public class RepositoryCache {
    * @throws IOException
    * @return The key for the cached entry.
    */
-  public synchronized String put(Path sourcePath, KeyType keyType) throws IOException {
-    String cacheKey = getChecksum(keyType, sourcePath);
-    put(cacheKey, sourcePath, keyType);
-    return cacheKey;
+  public String put(Path sourcePath, KeyType keyType) throws IOException {
+    Preconditions.checkState(isEnabled());
+
+    try (ValueOutputStream out = newValueOutputStream(keyType)) {
+      copy(sourcePath, out);
+      return out.commit(null);
+    }
+  }
+
+  /**
+   * Starts a new cache value whose contents are written to the returned stream. The value is added
+   * to the cache by {@link ValueOutputStream#commit}; closing the stream without committing
+   * discards it.
+   *
+   * @param keyType The type of key to be used.
+   * @throws IOException
+   */
+  public ValueOutputStream newValueOutputStream(KeyType keyType) throws IOException {
+    Preconditions.checkState(isEnabled());
+    return new ValueOutputStream(keyType, newTempFile());
+  }
+
+  /**
+   * A stream that writes a new cache value to a temporary file, hashing it on the way.
+   *
+   * <p>This class is not thread safe.
+   */
+  public final class ValueOutputStream extends OutputStream {
+    private final KeyType keyType;
+    private final Path temp;
+    private final OutputStream out;
+    private final Hasher hasher;
+
+    private ValueOutputStream(KeyType keyType, Path temp) throws IOException {
+      this.keyType = keyType;
+      this.temp = temp;
+      this.out = temp.getOutputStream();
+      this.hasher = keyType.newHasher();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      hasher.putByte((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      hasher.putBytes(b, off, len);
+    }
+
+    /**
+     * Adds the bytes written so far to the cache.
+     *
+     * @param expectedKey The key the value is expected to have, or null to accept any value.
+     * @throws IOException if the value could not be stored or does not have the expected key
+     * @return The key for the cached entry.
+     */
+    public String commit(@Nullable String expectedKey) throws IOException {
+      out.close();
+      String cacheKey = hasher.hash().toString();
+      if (expectedKey != null && !cacheKey.equalsIgnoreCase(expectedKey)) {
+        throw new IOException(
+            "Value has " + keyType + " of " + cacheKey + ", does not match expected " + keyType
+                + " (" + expectedKey + ")");
+      }
+      publish(cacheKey, temp, keyType);
+      return cacheKey;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        out.close();
+      } finally {
+        // Nothing to delete if the value was committed.
+        temp.delete();
+      }
+    }
+  }
+
+  private Path getCacheValue(String cacheKey, KeyType keyType) {
+    return keyType
+        .getCachePath(contentAddressablePath)
+        .getChild(cacheKey)
+        .getChild(DEFAULT_CACHE_FILENAME);
+  }
+
+  private static String lockKey(String cacheKey, KeyType keyType) {
+    return keyType.hashName + "/" + cacheKey;
   }
 
-  private void ensureCacheDirectoryExists(KeyType keyType) throws IOException {
-    Path directoryPath = keyType.getCachePath(contentAddressablePath);
-    if (!directoryPath.exists()) {
-      FileSystemUtils.createDirectoryAndParents(directoryPath);
+  /** Returns a fresh path in the cache's temporary directory, on the same file system. */
+  private Path newTempFile() throws IOException {
+    Path tmpDir = repositoryCachePath.getChild(TMP_DIR);
+    tmpDir.createDirectoryAndParents();
+    return tmpDir.getChild(UUID.randomUUID().toString());
+  }
+
+  /** Deletes the files of interrupted writes, which other servers sharing the cache don't own. */
+  private static void deleteStaleTempFiles(Path tmpDir) {
+    long now = System.currentTimeMillis();
+    try {
+      if (!tmpDir.isDirectory()) {
+        return;
+      }
+      for (Path file : tmpDir.getDirectoryEntries()) {
+        if (now - file.getLastModifiedTime() > MAX_TEMP_FILE_AGE_MS) {
+          file.delete();
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to clean up repository cache directory " + tmpDir, e);
+    }
+  }
+
+  private static void copy(Path source, OutputStream out) throws IOException {
+    byte[] byteBuffer = new byte[BUFFER_SIZE];
+    try (InputStream in = source.getInputStream()) {
+      int numBytesRead;
+      while ((numBytesRead = in.read(byteBuffer)) != -1) {
+        out.write(byteBuffer, 0, numBytesRead);
+      }
     }
   }
 
+  /** Moves the verified file {@code temp} into place as the value for {@code cacheKey}. */
+  private void publish(String cacheKey, Path temp, KeyType keyType) throws IOException {
+    Path cacheValue = getCacheValue(cacheKey, keyType);
+    try (AutoUnlocker unlocker = locker.writeLock(lockKey(cacheKey, keyType))) {
+      cacheValue.getParentDirectory().createDirectoryAndParents();
+      temp.renameTo(cacheValue);
+      recordVerified(cacheValue);
+      recordInsertion(keyType, cacheKey, cacheValue);
+    }
+  }
+
+  private void recordVerified(Path cacheValue) throws IOException {
+    verifiedValues.put(cacheValue, new FileStatusFingerprint(cacheValue.stat()));
+  }
+
   /**
    * Assert that a file has an expected checksum.
    *
@@ -259,4 +568,165 @@ public class RepositoryCache {
   public Path getContentAddressableCachePath() {
     return contentAddressablePath;
   }
+
+  /** Returns the total size of all entries known to the eviction index. */
+  @VisibleForTesting
+  long getIndexedSizeBytes() {
+    return totalSizeBytes.get();
+  }
+
+  /** Blocks until all pending index loading and eviction work is done. */
+  @VisibleForTesting
+  void awaitEviction() throws InterruptedException {
+    // The executor is single-threaded, so a task runs after all previously queued work, and sees
+    // whether that work scheduled more while no other task is running.
+    boolean scheduled;
+    do {
+      SettableFuture<Boolean> done = SettableFuture.create();
+      evictionExecutor.execute(() -> done.set(evictionScheduled.get()));
+      try {
+        scheduled = done.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e);
+      }
+    } while (scheduled);
+  }
+
+  /** Forgets everything known about the entries, and reloads the index if it is needed. */
+  private void resetIndex() {
+    verifiedValues.clear();
+    index.clear();
+    totalSizeBytes.set(0);
+    indexLoaded.set(false);
+    Path casPath = contentAddressablePath;
+    if (casPath == null || maxSizeBytes == 0) {
+      return;
+    }
+    evictionScheduled.set(true);
+    evictionExecutor.execute(
+        () -> {
+          if (casPath.equals(contentAddressablePath)) {
+            loadIndex(casPath);
+            indexLoaded.set(true);
+          }
+          evictionScheduled.set(false);
+          maybeScheduleEviction();
+        });
+  }
+
+  private void recordAccess(KeyType keyType, String cacheKey, Path cacheValue) {
+    if (maxSizeBytes == 0) {
+      return;
+    }
+    Entry entry = index.get(cacheValue);
+    if (entry == null) {
+      recordInsertion(keyType, cacheKey, cacheValue);
+      return;
+    }
+    entry.lastAccess = accessClock.incrementAndGet();
+  }
+
+  private void recordInsertion(KeyType keyType, String cacheKey, Path cacheValue) {
+    if (maxSizeBytes == 0) {
+      return;
+    }
+    long size;
+    try {
+      size = cacheValue.getFileSize();
+    } catch (IOException e) {
+      // Evicted concurrently.
+      return;
+    }
+    Entry entry = new Entry(keyType, cacheKey, size, accessClock.incrementAndGet());
+    Entry previous = index.put(cacheValue, entry);
+    totalSizeBytes.addAndGet(size - (previous == null ? 0 : previous.size));
+    maybeScheduleEviction();
+  }
+
+  private void maybeScheduleEviction() {
+    long maxSizeBytes = this.maxSizeBytes;
+    if (maxSizeBytes > 0
+        && indexLoaded.get()
+        && totalSizeBytes.get() > maxSizeBytes
+        && evictionScheduled.compareAndSet(false, true)) {
+      evictionExecutor.execute(
+          () -> {
+            evictionScheduled.set(false);
+            evict();
+          });
+    }
+  }
+
+  /** Deletes least recently used entries until the cache is below its low watermark. */
+  private void evict() {
+    long target = (long) (maxSizeBytes * EVICTION_LOW_WATERMARK);
+    if (totalSizeBytes.get() <= target) {
+      return;
+    }
+    List<Map.Entry<Path, Entry>> entries = new ArrayList<>(index.entrySet());
+    entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+    for (Map.Entry<Path, Entry> e : entries) {
+      if (totalSizeBytes.get() <= target || Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      Path cacheValue = e.getKey();
+      Entry entry = e.getValue();
+      // Wait for readers of the entry, so that we don't delete it while it is being copied.
+      try (AutoUnlocker unlocker = locker.writeLock(lockKey(entry.cacheKey, entry.keyType))) {
+        if (index.get(cacheValue) != entry) {
+          // Accessed or replaced since we made the list.
+          continue;
+        }
+        FileSystemUtils.deleteTree(cacheValue.getParentDirectory());
+        index.remove(cacheValue);
+        verifiedValues.remove(cacheValue);
+        totalSizeBytes.addAndGet(-entry.size);
+      } catch (IOException ex) {
+        logger.log(Level.WARNING, "Failed to evict " + cacheValue + " from the repository cache",
+            ex);
+      }
+    }
+  }
+
+  /**
+   * Populates the index from the entries on disk, using their modification time as the initial
+   * access order.
+   */
+  private void loadIndex(Path casPath) {
+    List<Map.Entry<Path, Entry>> entries = new ArrayList<>();
+    for (KeyType keyType : KeyType.values()) {
+      Path dir = keyType.getCachePath(casPath);
+      try {
+        if (!dir.isDirectory()) {
+          continue;
+        }
+        for (Dirent entryDir : dir.readdir(Symlinks.NOFOLLOW)) {
+          if (entryDir.getType() != Dirent.Type.DIRECTORY) {
+            continue;
+          }
+          Path cacheValue = dir.getChild(entryDir.getName()).getChild(DEFAULT_CACHE_FILENAME);
+          FileStatus stat = cacheValue.statIfFound(Symlinks.NOFOLLOW);
+          if (stat != null && stat.isFile()) {
+            entries.add(
+                new AbstractMap.SimpleImmutableEntry<>(
+                    cacheValue,
+                    new Entry(
+                        keyType, entryDir.getName(), stat.getSize(), stat.getLastModifiedTime())));
+          }
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to index repository cache directory " + dir, e);
+      }
+    }
+    // Translate modification times into the logical clock, preserving their order. Entries found
+    // on disk are older than anything accessed since the index was reset.
+    entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i).getValue();
+      entry.lastAccess = i - entries.size();
+      if (index.putIfAbsent(entries.get(i).getKey(), entry) == null) {
+        totalSizeBytes.addAndGet(entry.size);
+      }
+    }
+  }
 }
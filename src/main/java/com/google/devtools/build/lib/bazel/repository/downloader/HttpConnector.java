@@ -75,6 +75,17 @@ class HttpConnector {
   URLConnection connect(
       URL originalUrl, ImmutableMap<String, String> requestHeaders)
           throws IOException {
+    return connect(originalUrl, requestHeaders, MAX_RETRIES);
+  }
+
+  /**
+   * Connects like {@link #connect(URL, ImmutableMap)}, but gives up after {@code maxAttempts}
+   * failed attempts. A single attempt fails within {@value #MIN_CONNECT_TIMEOUT_MS}ms if the server
+   * can't be reached.
+   */
+  URLConnection connect(
+      URL originalUrl, ImmutableMap<String, String> requestHeaders, int maxAttempts)
+          throws IOException {
     if (Thread.interrupted()) {
       throw new InterruptedIOException();
     }
@@ -190,7 +201,7 @@ class HttpConnector {
           // Please note that SocketTimeoutException is a subtype of InterruptedIOException.
           throw e;
         }
-        if (++retries == MAX_RETRIES) {
+        if (++retries >= maxAttempts) {
           if (!(e instanceof SocketTimeoutException)) {
             eventHandler
                 .handle(Event.progress(format("Error connecting to %s: %s", url, e.getMessage())));
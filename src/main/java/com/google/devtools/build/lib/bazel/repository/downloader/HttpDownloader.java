@@ -14,13 +14,20 @@
 
 package com.google.devtools.build.lib.bazel.repository.downloader;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.ValueOutputStream;
 import com.google.devtools.build.lib.buildeventstream.FetchEvent;
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.clock.JavaClock;
@@ -37,16 +44,24 @@ import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import javax.annotation.Nullable;
 
 /**
  * Bazel file downloader.
@@ -57,10 +72,12 @@ import java.util.concurrent.Semaphore;
 public class HttpDownloader {
 
   private static final int MAX_PARALLEL_DOWNLOADS = 8;
+  private static final String PARTIAL_DOWNLOADS_DIR = "partial";
   private static final Semaphore semaphore = new Semaphore(MAX_PARALLEL_DOWNLOADS, true);
 
   protected final RepositoryCache repositoryCache;
   private List<Path> distdir = ImmutableList.of();
+  private int connectionsPerDownload = 1;
 
   public HttpDownloader(RepositoryCache repositoryCache) {
     this.repositoryCache = repositoryCache;
@@ -70,6 +87,14 @@ public class HttpDownloader {
     this.distdir = ImmutableList.copyOf(distdir);
   }
 
+  /**
+   * Sets the number of connections over which a single file is downloaded from servers that
+   * support range requests. Only used with a repository cache, where partial downloads are kept.
+   */
+  public void setConnectionsPerDownload(int connectionsPerDownload) {
+    this.connectionsPerDownload = connectionsPerDownload;
+  }
+
   /** Validates native repository rule attributes and calls the other download method. */
   public Path download(
       Rule rule,
@@ -78,44 +103,11 @@ public class HttpDownloader {
       Map<String, String> clientEnv)
       throws RepositoryFunctionException, InterruptedException {
     WorkspaceAttributeMapper mapper = WorkspaceAttributeMapper.of(rule);
-    List<URL> urls = new ArrayList<>();
+    List<URL> urls;
     String sha256;
     String type;
     try {
-      String urlString = Strings.nullToEmpty(mapper.get("url", Type.STRING));
-      if (!urlString.isEmpty()) {
-        try {
-          URL url = new URL(urlString);
-          if (!HttpUtils.isUrlSupportedByDownloader(url)) {
-            throw new EvalException(
-                rule.getAttributeLocation("url"), "Unsupported protocol: " + url.getProtocol());
-          }
-          urls.add(url);
-        } catch (MalformedURLException e) {
-          throw new EvalException(rule.getAttributeLocation("url"), e.toString());
-        }
-      }
-      List<String> urlStrings =
-          MoreObjects.firstNonNull(
-              mapper.get("urls", Type.STRING_LIST),
-              ImmutableList.<String>of());
-      if (!urlStrings.isEmpty()) {
-        if (!urls.isEmpty()) {
-          throw new EvalException(rule.getAttributeLocation("url"), "Don't set url if urls is set");
-        }
-        try {
-          for (String urlString2 : urlStrings) {
-            URL url = new URL(urlString2);
-            if (!HttpUtils.isUrlSupportedByDownloader(url)) {
-              throw new EvalException(
-                  rule.getAttributeLocation("urls"), "Unsupported protocol: " + url.getProtocol());
-            }
-            urls.add(url);
-          }
-        } catch (MalformedURLException e) {
-          throw new EvalException(rule.getAttributeLocation("urls"), e.toString());
-        }
-      }
+      urls = getUrls(rule, mapper);
       if (urls.isEmpty()) {
         throw new EvalException(rule.getLocation(), "urls attribute not set");
       }
@@ -134,6 +126,92 @@ public class HttpDownloader {
     }
   }
 
+  /**
+   * Downloads the files of all {@code rules} that specify a SHA-256 checksum into the repository
+   * cache, several at a time, so that fetching their repositories only has to take them from the
+   * cache.
+   *
+   * <p>Rules with invalid attributes and failed downloads are skipped: they are reported when the
+   * repository itself is fetched.
+   */
+  public void prefetch(
+      Iterable<Rule> rules, ExtendedEventHandler eventHandler, Map<String, String> clientEnv)
+      throws InterruptedException {
+    if (!repositoryCache.isEnabled()) {
+      return;
+    }
+    Map<String, List<URL>> files = new LinkedHashMap<>();
+    for (Rule rule : rules) {
+      WorkspaceAttributeMapper mapper = WorkspaceAttributeMapper.of(rule);
+      try {
+        String sha256 = Strings.nullToEmpty(mapper.get("sha256", Type.STRING));
+        if (!KeyType.SHA256.isValid(sha256)
+            || files.containsKey(sha256)
+            || repositoryCache.exists(sha256, KeyType.SHA256)) {
+          continue;
+        }
+        List<URL> urls = getUrls(rule, mapper);
+        if (!urls.isEmpty()) {
+          files.put(sha256, urls);
+        }
+      } catch (EvalException e) {
+        // Reported when the repository is fetched.
+      }
+    }
+    if (!files.isEmpty()) {
+      prefetch(files, eventHandler, clientEnv);
+    }
+  }
+
+  /** Downloads the files with the given SHA-256 checksums from their URLs into the cache. */
+  @VisibleForTesting
+  void prefetch(
+      Map<String, List<URL>> files,
+      ExtendedEventHandler eventHandler,
+      Map<String, String> clientEnv)
+      throws InterruptedException {
+    Path prefetchDir =
+        repositoryCache.getRootPath().getChild("prefetch").getChild(UUID.randomUUID().toString());
+    List<Callable<Void>> downloads = new ArrayList<>();
+    for (Map.Entry<String, List<URL>> file : files.entrySet()) {
+      downloads.add(
+          () -> {
+            String sha256 = file.getKey();
+            Path output = prefetchDir.getChild(sha256);
+            try {
+              download(
+                  file.getValue(), sha256, Optional.absent(), output, eventHandler, clientEnv);
+            } catch (IOException e) {
+              eventHandler.handle(
+                  Event.debug("Failed to prefetch " + file.getValue() + ": " + e.getMessage()));
+            } finally {
+              output.delete();
+            }
+            return null;
+          });
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            Math.min(downloads.size(), MAX_PARALLEL_DOWNLOADS),
+            new ThreadFactoryBuilder()
+                .setNameFormat("repository-prefetch-%d")
+                .setDaemon(true)
+                .build());
+    try {
+      prefetchDir.createDirectoryAndParents();
+      executor.invokeAll(downloads);
+    } catch (IOException e) {
+      eventHandler.handle(Event.debug("Failed to prefetch: " + e.getMessage()));
+    } finally {
+      executor.shutdownNow();
+      try {
+        FileSystemUtils.deleteTree(prefetchDir);
+      } catch (IOException e) {
+        // Leftovers are harmless, the directory is not used again.
+      }
+    }
+  }
+
   /**
    * Downloads file to disk and returns path.
    *
@@ -208,21 +286,10 @@ public class HttpDownloader {
       }
     }
 
-    Clock clock = new JavaClock();
-    Sleeper sleeper = new JavaSleeper();
-    Locale locale = Locale.getDefault();
-    ProxyHelper proxyHelper = new ProxyHelper(clientEnv);
-    HttpConnector connector = new HttpConnector(locale, eventHandler, proxyHelper, sleeper);
-    ProgressInputStream.Factory progressInputStreamFactory =
-        new ProgressInputStream.Factory(locale, clock, eventHandler);
-    HttpStream.Factory httpStreamFactory = new HttpStream.Factory(progressInputStreamFactory);
-    HttpConnectorMultiplexer multiplexer =
-        new HttpConnectorMultiplexer(eventHandler, connector, httpStreamFactory, clock, sleeper);
-
     // Connect to the best mirror and download the file, while reporting progress to the CLI.
     semaphore.acquire();
     boolean success = false;
-    try (HttpStream payload = multiplexer.connect(urls, sha256);
+    try (InputStream payload = connect(urls, sha256, eventHandler, clientEnv);
         OutputStream out = destination.getOutputStream()) {
       ByteStreams.copy(payload, out);
       success = true;
@@ -246,7 +313,254 @@ public class HttpDownloader {
     return destination;
   }
 
-  private Path getDownloadDestination(URL url, Optional<String> type, Path output) {
+  /** Receives the contents of a file while it is downloaded. */
+  public interface ContentConsumer<E extends Exception> {
+    /**
+     * Reads the contents of the file, or a prefix of them. The consumer must not close the stream;
+     * whatever it leaves unread is read and verified after it returns.
+     */
+    void accept(InputStream contents) throws E, IOException, InterruptedException;
+  }
+
+  /**
+   * Downloads a file like {@link #download(List, String, Optional, Path, ExtendedEventHandler,
+   * Map)}, but passes its contents to {@code consumer} instead of leaving them at the destination.
+   *
+   * <p>If {@code sha256} is given, the consumer only ever sees contents with that checksum: it
+   * reads the file from the repository cache or a distdir, and a file that has to be downloaded is
+   * verified in full before the consumer is called. It is downloaded into the repository cache if
+   * that is enabled, and to the destination otherwise, which is deleted afterwards. Without a
+   * checksum there is nothing to verify, so the consumer reads the file from the network while it
+   * is added to the repository cache.
+   *
+   * @param output the destination the file would be downloaded to, see {@link #download(List,
+   *     String, Optional, Path, ExtendedEventHandler, Map)}
+   * @throws E if the consumer fails
+   * @throws IOException if download was attempted and ended up failing
+   * @throws InterruptedException if this thread is being cast into oblivion
+   */
+  public <E extends Exception> void download(
+      List<URL> urls,
+      String sha256,
+      Optional<String> type,
+      Path output,
+      ExtendedEventHandler eventHandler,
+      Map<String, String> clientEnv,
+      ContentConsumer<E> consumer)
+      throws E, IOException, InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+
+    if (!sha256.isEmpty()) {
+      if (repositoryCache.isEnabled()) {
+        InputStream cached = null;
+        try {
+          cached = repositoryCache.getInputStream(sha256, KeyType.SHA256);
+        } catch (IOException e) {
+          // Ignore error trying to get. We'll just download again.
+        }
+        if (cached != null) {
+          // Cache hit!
+          try (InputStream in = cached) {
+            consumer.accept(new ConsumerInputStream(in, null));
+          }
+          return;
+        }
+      }
+
+      String baseName = getDownloadDestination(urls.get(0), type, output).getBaseName();
+      for (Path dir : distdir) {
+        Path candidate = dir.getRelative(baseName);
+        if (candidate.exists()
+            && RepositoryCache.getChecksum(KeyType.SHA256, candidate).equals(sha256)) {
+          // Found the archive in one of the distdirs, no need to download.
+          if (repositoryCache.isEnabled()) {
+            repositoryCache.put(sha256, candidate, KeyType.SHA256);
+          }
+          try (InputStream in = candidate.getInputStream()) {
+            consumer.accept(new ConsumerInputStream(in, null));
+          }
+          return;
+        }
+      }
+
+      // Nothing may be extracted from a file before its checksum is verified, so it is downloaded
+      // in full before the consumer sees it.
+      if (repositoryCache.isEnabled()) {
+        download(urls, sha256, eventHandler, clientEnv, contents -> {});
+        InputStream verified = repositoryCache.getInputStream(sha256, KeyType.SHA256);
+        if (verified != null) {
+          try (InputStream in = verified) {
+            consumer.accept(new ConsumerInputStream(in, null));
+          }
+          return;
+        }
+        // The cache dropped the file right away, e.g. because it is larger than the cache.
+      }
+      Path destination = download(urls, sha256, type, output, eventHandler, clientEnv);
+      try (InputStream in = destination.getInputStream()) {
+        consumer.accept(new ConsumerInputStream(in, null));
+      } finally {
+        destination.delete();
+      }
+      return;
+    }
+
+    download(urls, sha256, eventHandler, clientEnv, consumer);
+  }
+
+  /**
+   * Passes the contents of a file to {@code consumer} while it is downloaded from the best mirror,
+   * and adds it to the repository cache if that is enabled. The checksum of the file is only
+   * verified once the consumer returns.
+   */
+  private <E extends Exception> void download(
+      List<URL> urls,
+      String sha256,
+      ExtendedEventHandler eventHandler,
+      Map<String, String> clientEnv,
+      ContentConsumer<E> consumer)
+      throws E, IOException, InterruptedException {
+    semaphore.acquire();
+    boolean success = false;
+    String newSha256 = null;
+    try (InputStream payload = connect(urls, sha256, eventHandler, clientEnv);
+        ValueOutputStream cacheValue =
+            repositoryCache.isEnabled()
+                ? repositoryCache.newValueOutputStream(KeyType.SHA256)
+                : null) {
+      InputStream contents = new ConsumerInputStream(payload, cacheValue);
+      consumer.accept(contents);
+      // Verifies the checksum, which the payload does at its end, and completes the cache value.
+      ByteStreams.exhaust(contents);
+      if (cacheValue != null) {
+        newSha256 = cacheValue.commit(Strings.emptyToNull(sha256));
+      }
+      success = true;
+    } catch (InterruptedIOException e) {
+      throw new InterruptedException();
+    } catch (IOException e) {
+      throw new IOException("Error downloading " + urls + ": " + e.getMessage(), e);
+    } finally {
+      semaphore.release();
+      eventHandler.post(new FetchEvent(urls.get(0).toString(), success));
+    }
+
+    if (sha256.isEmpty() && newSha256 != null) {
+      eventHandler.handle(Event.info("SHA256 (" + urls.get(0) + ") = " + newSha256));
+    }
+  }
+
+  /**
+   * Connects to a mirror and returns the contents of the file, which are checked against {@code
+   * sha256} when they are read to the end.
+   *
+   * <p>If enabled, the file is first requested from the first mirror as a {@link
+   * SegmentedDownload}, which is kept in the repository cache until it is complete. If that mirror
+   * can't be reached at the first attempt or doesn't serve byte ranges, the file is downloaded over
+   * a single connection to the best mirror.
+   */
+  private InputStream connect(
+      List<URL> urls,
+      String sha256,
+      ExtendedEventHandler eventHandler,
+      Map<String, String> clientEnv)
+      throws IOException {
+    Clock clock = new JavaClock();
+    Sleeper sleeper = new JavaSleeper();
+    Locale locale = Locale.getDefault();
+    ProxyHelper proxyHelper = new ProxyHelper(clientEnv);
+    HttpConnector connector = new HttpConnector(locale, eventHandler, proxyHelper, sleeper);
+
+    URL url = urls.get(0);
+    if (connectionsPerDownload > 1
+        && repositoryCache.isEnabled()
+        && (HttpUtils.isProtocol(url, "http") || HttpUtils.isProtocol(url, "https"))) {
+      // Downloads of the same file, even from other mirrors, continue each other if it has a
+      // checksum. Otherwise, only downloads of the same URL do.
+      String partialName =
+          sha256.isEmpty() ? "url-" + Hashing.sha256().hashString(url.toString(), UTF_8) : sha256;
+      Path partialFile =
+          repositoryCache.getRootPath().getChild(PARTIAL_DOWNLOADS_DIR).getChild(partialName);
+      SegmentedDownload download = null;
+      try {
+        download =
+            SegmentedDownload.start(
+                connector,
+                url,
+                partialFile,
+                !sha256.isEmpty(),
+                connectionsPerDownload,
+                eventHandler,
+                clock,
+                locale);
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        // The other mirrors are tried below, which reports the error if they fail too.
+      }
+      if (download != null) {
+        return sha256.isEmpty()
+            ? download
+            : new HashInputStream(download, Hashing.sha256(), HashCode.fromString(sha256));
+      }
+    }
+
+    ProgressInputStream.Factory progressInputStreamFactory =
+        new ProgressInputStream.Factory(locale, clock, eventHandler);
+    HttpStream.Factory httpStreamFactory = new HttpStream.Factory(progressInputStreamFactory);
+    HttpConnectorMultiplexer multiplexer =
+        new HttpConnectorMultiplexer(eventHandler, connector, httpStreamFactory, clock, sleeper);
+    return multiplexer.connect(urls, sha256);
+  }
+
+  /** Returns the URLs given by the {@code url} and {@code urls} attributes of a rule. */
+  private static List<URL> getUrls(Rule rule, WorkspaceAttributeMapper mapper)
+      throws EvalException {
+    List<URL> urls = new ArrayList<>();
+    String urlString = Strings.nullToEmpty(mapper.get("url", Type.STRING));
+    if (!urlString.isEmpty()) {
+      try {
+        URL url = new URL(urlString);
+        if (!HttpUtils.isUrlSupportedByDownloader(url)) {
+          throw new EvalException(
+              rule.getAttributeLocation("url"), "Unsupported protocol: " + url.getProtocol());
+        }
+        urls.add(url);
+      } catch (MalformedURLException e) {
+        throw new EvalException(rule.getAttributeLocation("url"), e.toString());
+      }
+    }
+    List<String> urlStrings =
+        MoreObjects.firstNonNull(
+            mapper.get("urls", Type.STRING_LIST),
+            ImmutableList.<String>of());
+    if (!urlStrings.isEmpty()) {
+      if (!urls.isEmpty()) {
+        throw new EvalException(rule.getAttributeLocation("url"), "Don't set url if urls is set");
+      }
+      try {
+        for (String urlString2 : urlStrings) {
+          URL url = new URL(urlString2);
+          if (!HttpUtils.isUrlSupportedByDownloader(url)) {
+            throw new EvalException(
+                rule.getAttributeLocation("urls"), "Unsupported protocol: " + url.getProtocol());
+          }
+          urls.add(url);
+        }
+      } catch (MalformedURLException e) {
+        throw new EvalException(rule.getAttributeLocation("urls"), e.toString());
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * Returns the path a file is downloaded to by {@link #download(List, String, Optional, Path,
+   * ExtendedEventHandler, Map)}.
+   */
+  public static Path getDownloadDestination(URL url, Optional<String> type, Path output) {
     if (!type.isPresent()) {
       return output;
     }
@@ -262,4 +576,59 @@ public class HttpDownloader {
     }
     return output.getRelative(basename);
   }
+
+  /**
+   * The stream passed to a {@link ContentConsumer}. It copies whatever is read to {@code copy}, if
+   * set, and ignores {@link #close} so that the rest of the contents can be read afterwards.
+   */
+  private static final class ConsumerInputStream extends FilterInputStream {
+    @Nullable private final OutputStream copy;
+
+    ConsumerInputStream(InputStream in, @Nullable OutputStream copy) {
+      super(in);
+      this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1 && copy != null) {
+        copy.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n > 0 && copy != null) {
+        copy.write(b, off, n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes still have to be copied.
+      byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {}
+
+    @Override
+    public void reset() throws IOException {
+      throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() {}
+  }
 }
@@ -0,0 +1,690 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Input stream of a file that is downloaded over several HTTP connections at once, each of which
+ * fetches a different byte range of it.
+ *
+ * <p>The file is split into segments, which a pool of connections downloads in ascending order
+ * into a partial file of the final size. This stream returns the contents as soon as a contiguous
+ * prefix of them is complete, so that they are verified and consumed while the rest of the file is
+ * still downloading.
+ *
+ * <p>The complete segments are recorded in a state file next to the partial file. If the download
+ * doesn't finish, the next download to the same partial file, possibly by another Bazel server,
+ * continues where it left off, provided the server still reports the same size and validator (ETag
+ * or Last-Modified) for the file. Once all segments are complete, closing this stream deletes the
+ * partial file, whether or not its contents turn out to match the expected checksum.
+ *
+ * <p>This class is not thread safe, but it is safe to message pass its objects between threads.
+ */
+@ThreadCompatible
+final class SegmentedDownload extends InputStream {
+
+  private static final Logger logger = Logger.getLogger(SegmentedDownload.class.getName());
+
+  private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+  private static final int MAX_SEGMENT_ATTEMPTS = 3;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long PROGRESS_INTERVAL_MS = 200;
+  private static final long MAX_PARTIAL_FILE_AGE_MS = TimeUnit.DAYS.toMillis(7);
+  private static final String STATE_SUFFIX = ".segments";
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+  private static final ImmutableMap<String, String> REQUEST_HEADERS =
+      ImmutableMap.of(
+          // Byte ranges of an encoded response are ranges of the encoding, not of the file.
+          "Accept-Encoding",
+          "identity",
+          "User-Agent",
+          "Bazel/" + BlazeVersionInfo.instance().getReleaseName());
+
+  private final HttpConnector connector;
+  private final ExtendedEventHandler eventHandler;
+  private final Clock clock;
+  private final Locale locale;
+  private final URL originalUrl;
+  private final URL url;
+  private final long size;
+  @Nullable private final String validator;
+  private final boolean resumable;
+  private final int segmentSize;
+  private final int segmentCount;
+  private final int connections;
+  private final Path partialFile;
+  private final Path stateFile;
+  private final FileChannel channel;
+  private final ExecutorService executor;
+  private final Set<HttpURLConnection> activeConnections = ConcurrentHashMap.newKeySet();
+  private final AtomicLong downloaded = new AtomicLong();
+  private final AtomicLong nextEvent;
+
+  @GuardedBy("this")
+  private final BitSet completed;
+  /** The lowest segment that no connection has started downloading. */
+  @GuardedBy("this")
+  private int nextSegment;
+  @GuardedBy("this")
+  @Nullable
+  private IOException failure;
+
+  /** The position of the next byte returned by this stream. */
+  private long position;
+  /** The end of the complete prefix of the file, as last seen by this stream. */
+  private long available;
+  private volatile boolean closed;
+
+  private SegmentedDownload(
+      HttpConnector connector,
+      ExtendedEventHandler eventHandler,
+      Clock clock,
+      Locale locale,
+      URL originalUrl,
+      URL url,
+      long size,
+      @Nullable String validator,
+      boolean resumable,
+      int segmentSize,
+      int connections,
+      Path partialFile,
+      FileChannel channel,
+      BitSet completed) {
+    this.connector = connector;
+    this.eventHandler = eventHandler;
+    this.clock = clock;
+    this.locale = locale;
+    this.originalUrl = originalUrl;
+    this.url = url;
+    this.size = size;
+    this.validator = validator;
+    this.resumable = resumable;
+    this.segmentSize = segmentSize;
+    this.segmentCount = (int) ((size + segmentSize - 1) / segmentSize);
+    this.connections = Math.min(connections, segmentCount - completed.cardinality());
+    this.partialFile = partialFile;
+    this.stateFile = getStateFile(partialFile);
+    this.channel = channel;
+    this.completed = completed;
+    this.executor =
+        Executors.newFixedThreadPool(
+            Math.max(this.connections, 1),
+            new ThreadFactoryBuilder()
+                .setNameFormat("segmented-download-%d")
+                .setDaemon(true)
+                .build());
+    for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+      downloaded.addAndGet(segmentEnd(i) - segmentStart(i));
+    }
+    this.nextEvent = new AtomicLong(clock.currentTimeMillis() + PROGRESS_INTERVAL_MS);
+    eventHandler.post(new DownloadProgressEvent(originalUrl, url, downloaded.get(), false));
+  }
+
+  /**
+   * Starts downloading the file at {@code url} into {@code partialFile} over up to {@code
+   * connections} connections.
+   *
+   * <p>The first segment of the file is requested right away. If the server doesn't answer with
+   * that byte range, because it doesn't support range requests or the file is empty, this returns
+   * null and the file has to be downloaded over a single connection.
+   *
+   * @param checksummed whether the contents are verified against a checksum when they are read, in
+   *     which case a partial download is resumed even if the server reports no validator for it
+   * @throws IOException if the server can't be reached at the first attempt or the partial file
+   *     can't be created
+   */
+  @Nullable
+  static SegmentedDownload start(
+      HttpConnector connector,
+      URL url,
+      Path partialFile,
+      boolean checksummed,
+      int connections,
+      ExtendedEventHandler eventHandler,
+      Clock clock,
+      Locale locale)
+      throws IOException {
+    return start(
+        connector,
+        url,
+        partialFile,
+        checksummed,
+        connections,
+        SEGMENT_SIZE,
+        eventHandler,
+        clock,
+        locale);
+  }
+
+  @VisibleForTesting
+  @Nullable
+  static SegmentedDownload start(
+      HttpConnector connector,
+      URL url,
+      Path partialFile,
+      boolean checksummed,
+      int connections,
+      int segmentSize,
+      ExtendedEventHandler eventHandler,
+      Clock clock,
+      Locale locale)
+      throws IOException {
+    Preconditions.checkArgument(connections > 0, connections);
+    Preconditions.checkArgument(segmentSize > 0, segmentSize);
+    // Tries the server only once, as the caller falls back to other mirrors if it is down.
+    URLConnection probe =
+        connector.connect(
+            url,
+            ImmutableMap.<String, String>builder()
+                .putAll(REQUEST_HEADERS)
+                .put("Range", "bytes=0-" + (segmentSize - 1))
+                .build(),
+            /*maxAttempts=*/ 1);
+    if (!(probe instanceof HttpURLConnection)) {
+      probe.getInputStream().close();
+      return null;
+    }
+    HttpURLConnection connection = (HttpURLConnection) probe;
+    long[] range = parseContentRange(connection);
+    if (connection.getResponseCode() != 206
+        || range == null
+        || range[0] != 0
+        || range[2] <= 0
+        || !isIdentityEncoded(connection)) {
+      // Don't download a whole file that didn't come in segments just to throw it away.
+      connection.disconnect();
+      return null;
+    }
+    long size = range[2];
+    String validator = getValidator(connection);
+    boolean resumable = checksummed || validator != null;
+
+    FileChannel channel = null;
+    FileLock lock = null;
+    try {
+      Path dir = partialFile.getParentDirectory();
+      dir.createDirectoryAndParents();
+      deleteStalePartialFiles(dir, clock.currentTimeMillis());
+      channel = new RandomAccessFile(partialFile.getPathFile(), "rw").getChannel();
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        // Locked by this server.
+      }
+      if (lock == null) {
+        // The same file is already being downloaded to this partial file.
+        channel.close();
+        connection.disconnect();
+        return null;
+      }
+      BitSet completed = new BitSet();
+      if (resumable && channel.size() == size) {
+        completed = loadState(getStateFile(partialFile), size, validator, checksummed);
+      }
+      // Sizes the file up front, so that segments can be written at any offset.
+      channel.truncate(size);
+      if (channel.size() < size) {
+        channel.write(ByteBuffer.allocate(1), size - 1);
+      }
+
+      SegmentedDownload download =
+          new SegmentedDownload(
+              connector,
+              eventHandler,
+              clock,
+              locale,
+              url,
+              connection.getURL(),
+              size,
+              validator,
+              resumable,
+              segmentSize,
+              connections,
+              partialFile,
+              channel,
+              completed);
+      download.startConnections(connection);
+      return download;
+    } catch (IOException | RuntimeException e) {
+      connection.disconnect();
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e2) {
+          e.addSuppressed(e2);
+        }
+      }
+      throw e;
+    }
+  }
+
+  private void startConnections(HttpURLConnection probe) {
+    int first;
+    synchronized (this) {
+      first = claimSegment();
+    }
+    if (first == 0) {
+      // The response to the probe is the first segment.
+      executor.execute(() -> downloadSegments(0, probe));
+    } else {
+      probe.disconnect();
+      if (first != -1) {
+        executor.execute(() -> downloadSegments(first, null));
+      }
+    }
+    for (int i = 1; i < connections; i++) {
+      executor.execute(() -> downloadSegments(-1, null));
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int amount = read(buffer, 0, 1);
+    return amount == -1 ? -1 : buffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    Preconditions.checkState(!closed);
+    if (position == size) {
+      return -1;
+    }
+    if (length == 0) {
+      return 0;
+    }
+    if (position == available) {
+      awaitAvailable();
+    }
+    ByteBuffer target =
+        ByteBuffer.wrap(buffer, offset, (int) Math.min(length, available - position));
+    int amount = channel.read(target, position);
+    if (amount == -1) {
+      throw new IOException("Unexpected end of " + partialFile);
+    }
+    position += amount;
+    return amount;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(available - position, Integer.MAX_VALUE);
+  }
+
+  /** Waits until there are complete segments after {@link #position}. */
+  private synchronized void awaitAvailable() throws IOException {
+    while (true) {
+      long end = Math.min((long) completed.nextClearBit(0) * segmentSize, size);
+      if (end > position) {
+        available = end;
+        return;
+      }
+      if (failure != null) {
+        throw new IOException(failure.getMessage(), failure);
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /**
+   * Stops the download. If it is complete, or can't be resumed, the partial file is deleted.
+   *
+   * <p>The connections are closed without waiting for them: once the partial file is closed, they
+   * can neither write to it nor record segments as complete.
+   */
+  @Override
+  public void close() throws IOException {
+    boolean complete;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      complete = completed.cardinality() == segmentCount;
+    }
+    executor.shutdownNow();
+    for (HttpURLConnection connection : activeConnections) {
+      // Reading from an HTTP connection is not interruptible, but disconnecting ends it.
+      connection.disconnect();
+    }
+    try {
+      // Also releases the lock on the file.
+      channel.close();
+    } finally {
+      if (complete || !resumable) {
+        partialFile.delete();
+        stateFile.delete();
+      }
+      eventHandler.post(new DownloadProgressEvent(originalUrl, url, downloaded.get(), true));
+    }
+  }
+
+  /**
+   * Downloads segments until there are none left or one fails.
+   *
+   * @param first the segment to start with, or -1 to claim one
+   * @param connection the response for the first segment, or null to request it
+   */
+  private void downloadSegments(int first, @Nullable HttpURLConnection connection) {
+    int segment = first;
+    while (true) {
+      if (segment == -1) {
+        synchronized (this) {
+          segment = claimSegment();
+        }
+        if (segment == -1) {
+          return;
+        }
+      }
+      IOException error = null;
+      for (int attempt = 0; attempt < MAX_SEGMENT_ATTEMPTS; attempt++) {
+        try {
+          if (connection == null) {
+            connection = connectSegment(segment);
+          }
+          downloadSegment(segment, connection);
+          error = null;
+          break;
+        } catch (UnrecoverableHttpException | InterruptedIOException e) {
+          error = e;
+          break;
+        } catch (IOException e) {
+          if (error != null) {
+            e.addSuppressed(error);
+          }
+          error = e;
+        } finally {
+          connection = null;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+          break;
+        }
+      }
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        if (error != null) {
+          if (failure == null) {
+            failure = error;
+          }
+          notifyAll();
+          return;
+        }
+        completed.set(segment);
+        saveState();
+        notifyAll();
+      }
+      segment = -1;
+    }
+  }
+
+  /** Returns the lowest segment that is neither complete nor downloading, or -1. */
+  @GuardedBy("this")
+  private int claimSegment() {
+    int segment = completed.nextClearBit(nextSegment);
+    if (segment >= segmentCount || failure != null || closed) {
+      return -1;
+    }
+    nextSegment = segment + 1;
+    return segment;
+  }
+
+  private HttpURLConnection connectSegment(int segment) throws IOException {
+    ImmutableMap.Builder<String, String> headers =
+        ImmutableMap.<String, String>builder()
+            .putAll(REQUEST_HEADERS)
+            .put("Range", "bytes=" + segmentStart(segment) + "-" + (segmentEnd(segment) - 1));
+    if (validator != null) {
+      // Makes the server send the whole file, which is rejected below, if it has changed.
+      headers.put("If-Range", validator);
+    }
+    return (HttpURLConnection) connector.connect(url, headers.build());
+  }
+
+  private void downloadSegment(int segment, HttpURLConnection connection) throws IOException {
+    long start = segmentStart(segment);
+    long end = segmentEnd(segment);
+    long written = start;
+    activeConnections.add(connection);
+    try (InputStream in = new InterruptibleInputStream(connection.getInputStream())) {
+      long[] range = parseContentRange(connection);
+      if (connection.getResponseCode() != 206
+          || range == null
+          || range[0] != start
+          || range[1] != end - 1
+          || range[2] != size
+          || !isIdentityEncoded(connection)) {
+        throw new UnrecoverableHttpException(
+            String.format(
+                "%s changed during the download or stopped serving byte ranges: %d %s",
+                url, connection.getResponseCode(), connection.getHeaderField("Content-Range")));
+      }
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (written < end) {
+        int amount = in.read(buffer, 0, (int) Math.min(buffer.length, end - written));
+        if (amount == -1) {
+          throw new IOException(
+              String.format(
+                  locale,
+                  "Connection to %s closed after %,d of %,d bytes",
+                  url,
+                  written - start,
+                  end - start));
+        }
+        ByteBuffer source = ByteBuffer.wrap(buffer, 0, amount);
+        while (source.hasRemaining()) {
+          written += channel.write(source, written);
+        }
+        reportProgress(downloaded.addAndGet(amount));
+      }
+    } catch (IOException e) {
+      downloaded.addAndGet(start - written);
+      connection.disconnect();
+      throw e;
+    } finally {
+      activeConnections.remove(connection);
+    }
+  }
+
+  private long segmentStart(int segment) {
+    return (long) segment * segmentSize;
+  }
+
+  private long segmentEnd(int segment) {
+    return Math.min(segmentStart(segment) + segmentSize, size);
+  }
+
+  private void reportProgress(long bytesRead) {
+    long now = clock.currentTimeMillis();
+    long next = nextEvent.get();
+    if (now < next || !nextEvent.compareAndSet(next, now + PROGRESS_INTERVAL_MS)) {
+      return;
+    }
+    eventHandler.post(new DownloadProgressEvent(originalUrl, url, bytesRead, false));
+    eventHandler.handle(
+        Event.progress(
+            String.format(
+                locale,
+                "Downloading %s: %,d of %,d bytes over %d connections",
+                originalUrl,
+                bytesRead,
+                size,
+                connections)));
+  }
+
+  /**
+   * Records the complete segments. The segments are written to the partial file before they are
+   * recorded, and the file is verified against its checksum at the end, so the state is not
+   * synced to disk.
+   */
+  @GuardedBy("this")
+  private void saveState() {
+    if (!resumable) {
+      return;
+    }
+    StringBuilder state = new StringBuilder();
+    state.append(size).append('\n').append(Strings.nullToEmpty(validator)).append('\n');
+    for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+      state.append(i).append(' ');
+    }
+    Path tmp = stateFile.getParentDirectory().getChild(stateFile.getBaseName() + ".tmp");
+    try {
+      FileSystemUtils.writeContent(tmp, ISO_8859_1, state.toString());
+      tmp.renameTo(stateFile);
+    } catch (IOException e) {
+      // The download works without it, it just can't be resumed.
+      logger.log(Level.WARNING, "Failed to save the state of the download of " + originalUrl, e);
+    }
+  }
+
+  /**
+   * Returns the segments that an earlier download of the same file completed, or none if it was a
+   * download of a different file.
+   */
+  private static BitSet loadState(
+      Path stateFile, long size, @Nullable String validator, boolean checksummed) {
+    BitSet completed = new BitSet();
+    try {
+      if (!stateFile.exists()) {
+        return completed;
+      }
+      List<String> lines =
+          Splitter.on('\n').splitToList(FileSystemUtils.readContent(stateFile, ISO_8859_1));
+      if (lines.size() < 3 || Long.parseLong(lines.get(0)) != size) {
+        return completed;
+      }
+      String savedValidator = Strings.emptyToNull(lines.get(1));
+      boolean sameFile =
+          validator == null
+              ? savedValidator == null && checksummed
+              : validator.equals(savedValidator);
+      if (!sameFile) {
+        return completed;
+      }
+      for (String segment : Splitter.on(' ').omitEmptyStrings().split(lines.get(2))) {
+        completed.set(Integer.parseInt(segment));
+      }
+    } catch (IOException | NumberFormatException e) {
+      completed.clear();
+    }
+    return completed;
+  }
+
+  private static Path getStateFile(Path partialFile) {
+    return partialFile.getParentDirectory().getChild(partialFile.getBaseName() + STATE_SUFFIX);
+  }
+
+  /** Deletes the files of downloads that were abandoned long ago. */
+  private static void deleteStalePartialFiles(Path dir, long now) {
+    try {
+      for (Path file : dir.getDirectoryEntries()) {
+        if (now - file.getLastModifiedTime() > MAX_PARTIAL_FILE_AGE_MS) {
+          file.delete();
+        }
+      }
+    } catch (IOException e) {
+      // Only wastes space.
+    }
+  }
+
+  /**
+   * Returns the first and last byte and the size of the file given by the Content-Range header of
+   * a response, with a size of -1 if it is unknown, or null if there is no such header.
+   */
+  @Nullable
+  private static long[] parseContentRange(URLConnection connection) {
+    String header = connection.getHeaderField("Content-Range");
+    if (header == null) {
+      return null;
+    }
+    Matcher matcher = CONTENT_RANGE.matcher(header.trim());
+    if (!matcher.matches()) {
+      return null;
+    }
+    try {
+      return new long[] {
+        Long.parseLong(matcher.group(1)),
+        Long.parseLong(matcher.group(2)),
+        matcher.group(3).equals("*") ? -1 : Long.parseLong(matcher.group(3))
+      };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static boolean isIdentityEncoded(URLConnection connection) {
+    String encoding = connection.getContentEncoding();
+    return encoding == null || encoding.equalsIgnoreCase("identity");
+  }
+
+  /**
+   * Returns a strong validator of the file, which changes whenever the file does. See RFC7232 §
+   * 2.1.
+   */
+  @Nullable
+  private static String getValidator(URLConnection connection) {
+    String etag = connection.getHeaderField("ETag");
+    if (etag != null && !etag.startsWith("W/")) {
+      return etag;
+    }
+    return connection.getHeaderField("Last-Modified");
+  }
+}
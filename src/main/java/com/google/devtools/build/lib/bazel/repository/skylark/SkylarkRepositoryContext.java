@@ -22,6 +22,8 @@ import com.google.devtools.build.lib.actions.FileValue;
 import com.google.devtools.build.lib.bazel.debug.WorkspaceRuleEvent;
 import com.google.devtools.build.lib.bazel.repository.DecompressorDescriptor;
 import com.google.devtools.build.lib.bazel.repository.DecompressorValue;
+import com.google.devtools.build.lib.bazel.repository.DecompressorValue.Decompressor;
+import com.google.devtools.build.lib.bazel.repository.DecompressorValue.StreamingDecompressor;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
 import com.google.devtools.build.lib.bazel.repository.downloader.HttpDownloader;
 import com.google.devtools.build.lib.bazel.repository.downloader.HttpUtils;
@@ -373,11 +375,46 @@ public class SkylarkRepositoryContext
             location);
     env.getListener().post(w);
 
-    // Download to outputDirectory and delete it after extraction
     SkylarkPath outputPath = getPath("download_and_extract()", output);
     checkInOutputDirectory(outputPath);
     createDirectory(outputPath.getPath());
 
+    DecompressorDescriptor.Builder descriptor =
+        DecompressorDescriptor.builder()
+            .setTargetKind(rule.getTargetKind())
+            .setTargetName(rule.getName())
+            .setRepositoryPath(outputPath.getPath())
+            .setPrefix(stripPrefix)
+            .setEventHandler(env.getListener());
+    Path archivePath =
+        HttpDownloader.getDownloadDestination(urls.get(0), Optional.of(type), outputPath.getPath());
+    Decompressor decompressor = DecompressorValue.getDecompressor(archivePath);
+    if (decompressor instanceof StreamingDecompressor) {
+      // Extract the archive from the repository cache, or while it is downloaded if it has no
+      // checksum, instead of writing it to the output directory first. An archive with a checksum
+      // is verified before anything is extracted from it.
+      StreamingDecompressor streamingDecompressor = (StreamingDecompressor) decompressor;
+      DecompressorDescriptor streamingDescriptor =
+          descriptor.setArchivePath(archivePath).setDecompressor(decompressor).build();
+      try {
+        httpDownloader.download(
+            urls,
+            sha256,
+            Optional.of(type),
+            outputPath.getPath(),
+            env.getListener(),
+            osObject.getEnvironmentVariables(),
+            archiveStream -> streamingDecompressor.decompress(streamingDescriptor, archiveStream));
+      } catch (InterruptedException e) {
+        throw new RepositoryFunctionException(
+            new IOException("thread interrupted"), Transience.TRANSIENT);
+      } catch (IOException e) {
+        throw new RepositoryFunctionException(e, Transience.TRANSIENT);
+      }
+      return;
+    }
+
+    // Download to outputDirectory and delete it after extraction
     Path downloadedPath;
     try {
       downloadedPath =
@@ -395,13 +432,7 @@ public class SkylarkRepositoryContext
       throw new RepositoryFunctionException(e, Transience.TRANSIENT);
     }
     DecompressorValue.decompress(
-        DecompressorDescriptor.builder()
-            .setTargetKind(rule.getTargetKind())
-            .setTargetName(rule.getName())
-            .setArchivePath(downloadedPath)
-            .setRepositoryPath(outputPath.getPath())
-            .setPrefix(stripPrefix)
-            .build());
+        descriptor.setArchivePath(downloadedPath).setDecompressor(decompressor).build());
     try {
       if (downloadedPath.exists()) {
         downloadedPath.delete();
@@ -0,0 +1,244 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventservice;
+
+import static java.lang.String.format;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Holds the messages of a stream until they are acknowledged, keeping at most a window of bytes of
+ * them in memory.
+ *
+ * <p>Messages that don't fit into the window when they are appended are spilled to an append-only
+ * file, and read back every time they are sent. The messages that were sent but not acknowledged
+ * are sent again after {@link #rewind}, which is how a stream is resumed after it failed.
+ *
+ * <p>Messages that were sent but not acknowledged count against the window as well, and {@link
+ * #next} waits while the window is full of them. This way about twice the window is held in memory
+ * at most, both by this class and by the stream it feeds.
+ */
+@ThreadSafe
+final class BuildEventServiceJournal<T extends MessageLite> implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(BuildEventServiceJournal.class.getName());
+
+  private final Path file;
+  private final long window;
+  private final Parser<T> parser;
+
+  /** Messages that were sent but not acknowledged, in order. */
+  private final ArrayDeque<Entry<T>> inFlight = new ArrayDeque<>();
+  /** Messages that were not sent yet, in order. */
+  private final ArrayDeque<Entry<T>> unsent = new ArrayDeque<>();
+
+  private long bytesInMemory;
+  private long bytesInFlight;
+  private boolean finished;
+  private boolean closed;
+
+  @Nullable private FileChannel channel;
+  private long fileSize;
+  private int spilled;
+
+  BuildEventServiceJournal(Path file, long window, Parser<T> parser) {
+    Preconditions.checkArgument(window > 0, window);
+    this.file = file;
+    this.window = window;
+    this.parser = parser;
+  }
+
+  /**
+   * Appends the message with the given sequence number. Sequence numbers must be appended in
+   * increasing order.
+   */
+  synchronized void append(long sequenceNumber, T message) throws IOException {
+    Preconditions.checkState(!finished, "The journal is finished");
+    checkOpen();
+    Entry<T> entry = new Entry<>(sequenceNumber, message.getSerializedSize());
+    if (bytesInMemory + entry.size <= window) {
+      entry.message = message;
+      bytesInMemory += entry.size;
+    } else {
+      entry.offset = spill(message);
+    }
+    unsent.add(entry);
+    notifyAll();
+  }
+
+  /** Declares that no more messages will be appended. */
+  synchronized void finish() {
+    finished = true;
+    notifyAll();
+  }
+
+  /** Returns whether all messages were appended and sent, although they may not be acknowledged. */
+  synchronized boolean allSent() {
+    return finished && unsent.isEmpty();
+  }
+
+  /** Returns whether all messages were appended and acknowledged. */
+  synchronized boolean isComplete() {
+    return finished && unsent.isEmpty() && inFlight.isEmpty();
+  }
+
+  /**
+   * Returns the oldest message that was not sent, and marks it as sent.
+   *
+   * <p>Waits for at most the given time while there is no such message, or while the window is
+   * full of messages that were sent but not acknowledged. Returns null if there is nothing to send
+   * after that.
+   */
+  @Nullable
+  T next(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+    Entry<T> entry;
+    synchronized (this) {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (!closed
+          && (unsent.isEmpty()
+              || (!inFlight.isEmpty() && bytesInFlight + unsent.getFirst().size > window))) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return null;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      checkOpen();
+      entry = unsent.removeFirst();
+      inFlight.add(entry);
+      bytesInFlight += entry.size;
+      if (entry.message != null) {
+        return entry.message;
+      }
+    }
+    // Positional reads don't interfere with appends, so the file is read without the lock.
+    return parser.parseFrom(read(entry));
+  }
+
+  /** Returns the sequence number of the oldest message that was sent but not acknowledged. */
+  synchronized long firstUnacknowledged() {
+    return inFlight.isEmpty() ? -1 : inFlight.getFirst().sequenceNumber;
+  }
+
+  /**
+   * Acknowledges the oldest message that was sent, if it has the given sequence number. Returns
+   * whether it had.
+   */
+  synchronized boolean acknowledge(long sequenceNumber) {
+    if (inFlight.isEmpty() || inFlight.getFirst().sequenceNumber != sequenceNumber) {
+      return false;
+    }
+    Entry<T> entry = inFlight.removeFirst();
+    bytesInFlight -= entry.size;
+    if (entry.message != null) {
+      bytesInMemory -= entry.size;
+    }
+    notifyAll();
+    return true;
+  }
+
+  /** Marks the messages that were sent but not acknowledged as not sent, keeping their order. */
+  synchronized void rewind() {
+    for (Iterator<Entry<T>> it = inFlight.descendingIterator(); it.hasNext(); ) {
+      unsent.addFirst(it.next());
+    }
+    inFlight.clear();
+    bytesInFlight = 0;
+    notifyAll();
+  }
+
+  /** Returns the number of messages that were spilled to the file. */
+  synchronized int getSpilledCount() {
+    return spilled;
+  }
+
+  /** Drops all messages and deletes the file. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    unsent.clear();
+    inFlight.clear();
+    bytesInMemory = 0;
+    bytesInFlight = 0;
+    notifyAll();
+    if (channel != null) {
+      logger.info(
+          format("Spilled %d build events (%d bytes) to %s", spilled, fileSize, file));
+      channel.close();
+      file.delete();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException(format("The journal %s is closed", file));
+    }
+  }
+
+  private long spill(T message) throws IOException {
+    if (channel == null) {
+      RandomAccessFile raf = new RandomAccessFile(file.getPathFile(), "rw");
+      raf.setLength(0);
+      channel = raf.getChannel();
+    }
+    long offset = fileSize;
+    ByteBuffer buffer = ByteBuffer.wrap(message.toByteArray());
+    while (buffer.hasRemaining()) {
+      fileSize += channel.write(buffer, fileSize);
+    }
+    spilled++;
+    return offset;
+  }
+
+  private byte[] read(Entry<T> entry) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(entry.size);
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, entry.offset + buffer.position());
+      if (n < 0) {
+        throw new EOFException(format("The journal %s is truncated", file));
+      }
+    }
+    return buffer.array();
+  }
+
+  private static final class Entry<T> {
+    final long sequenceNumber;
+    final int size;
+    /** The message if it is held in memory, or null if it was spilled to {@link #offset}. */
+    @Nullable T message;
+    long offset;
+
+    Entry(long sequenceNumber, int size) {
+      this.sequenceNumber = sequenceNumber;
+      this.size = size;
+    }
+  }
+}
@@ -24,6 +24,8 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
+import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
+import com.google.devtools.build.lib.analysis.ServerDirectories;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.buildeventservice.client.BuildEventServiceClient;
 import com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader;
@@ -43,11 +45,17 @@ import com.google.devtools.build.lib.runtime.SynchronizedOutputStream;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamRequest;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsParsingException;
 import com.google.devtools.common.options.OptionsParsingResult;
 import java.io.IOException;
 import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -60,10 +68,15 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
 
   private static final Logger logger = Logger.getLogger(BuildEventServiceModule.class.getName());
 
+  private static final String JOURNAL_DIRECTORY = "bes_journal";
+
   private OutErr outErr;
 
   private Set<BuildEventTransport> transports = ImmutableSet.of();
 
+  /** Where build events are spilled to when {@code --experimental_bes_memory_window} is set. */
+  @Nullable private Path journalDirectory;
+
   /** Whether an error in the Build Event Service upload causes the build to fail. */
   protected boolean errorsShouldFailTheBuild() {
     return true;
@@ -87,6 +100,30 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
         BuildEventProtocolOptions.class);
   }
 
+  @Override
+  public void blazeStartup(
+      OptionsParsingResult startupOptions,
+      BlazeVersionInfo versionInfo,
+      UUID instanceId,
+      FileSystem fileSystem,
+      ServerDirectories directories,
+      Clock clock) {
+    deleteStaleJournals(directories.getOutputBase().getRelative(JOURNAL_DIRECTORY));
+  }
+
+  /**
+   * Deletes the journals left behind by a server that was killed before its uploads ended. They
+   * are of no use, as uploads aren't resumed after a restart.
+   */
+  @VisibleForTesting
+  static void deleteStaleJournals(Path journalDirectory) {
+    try {
+      FileSystemUtils.deleteTree(journalDirectory);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to delete stale journals in " + journalDirectory, e);
+    }
+  }
+
   @Override
   public void beforeCommand(CommandEnvironment commandEnvironment) {
     // Reset to null in case afterCommand was not called.
@@ -94,6 +131,7 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
     if (!whitelistedCommands().contains(commandEnvironment.getCommandName())) {
       return;
     }
+    this.journalDirectory = commandEnvironment.getOutputBase().getRelative(JOURNAL_DIRECTORY);
 
     BuildEventStreamer streamer =
         tryCreateStreamer(
@@ -285,12 +323,26 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
               besResultsUrl,
               artifactUploader,
               errorsShouldFailTheBuild(),
-              internalEventBus);
+              internalEventBus,
+              createJournal(besOptions, invocationId));
       logger.fine("BuildEventServiceTransport was created successfully");
       return besTransport;
     }
   }
 
+  @Nullable
+  private BuildEventServiceJournal<PublishBuildToolEventStreamRequest> createJournal(
+      T besOptions, String invocationId) throws IOException {
+    if (besOptions.besMemoryWindow <= 0 || journalDirectory == null) {
+      return null;
+    }
+    journalDirectory.createDirectoryAndParents();
+    return new BuildEventServiceJournal<>(
+        journalDirectory.getChild(invocationId),
+        besOptions.besMemoryWindow,
+        PublishBuildToolEventStreamRequest.parser());
+  }
+
   @Override
   public void blazeShutdown() {
     for (BuildEventTransport transport : transports) {
@@ -107,6 +107,18 @@ public class BuildEventServiceOptions extends OptionsBase {
   )
   public long besOuterrBufferSize;
 
+  @Option(
+      name = "experimental_bes_memory_window",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+      help =
+          "If positive, build events that wait to be uploaded to the BES backend are kept in "
+              + "memory up to about this many bytes, and the others are spilled to a file in the "
+              + "output base. In this mode, commands don't wait for the upload to finish: it "
+              + "continues in the background, for at most --bes_timeout if that is set.")
+  public long besMemoryWindow;
+
   @Option(
       name = "bes_results_url",
       defaultValue = "",
@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.buildeventservice;
 
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static com.google.devtools.build.lib.events.EventKind.INFO;
 import static com.google.devtools.build.v1.BuildStatus.Result.COMMAND_FAILED;
@@ -63,6 +64,7 @@ import com.google.protobuf.util.Timestamps;
 import io.grpc.Status;
 import io.grpc.Status.Code;
 import io.grpc.StatusException;
+import java.io.IOException;
 import java.time.Duration;
 import java.util.Collection;
 import java.util.Deque;
@@ -119,6 +121,15 @@ public class BuildEventServiceTransport implements BuildEventTransport {
   private ConcurrentLinkedDeque<InternalOrderedBuildEvent> pendingAck;
   /** Contains all events should be sent ordered by sequence number. */
   private final BlockingDeque<InternalOrderedBuildEvent> pendingSend;
+  /**
+   * If not null, events are serialized into this journal as soon as their local files are
+   * uploaded, instead of being held in {@link #pendingSend} and {@link #pendingAck} until they are
+   * acknowledged, and the upload continues after the transport is closed.
+   */
+  @Nullable
+  private final BuildEventServiceJournal<PublishBuildToolEventStreamRequest> journal;
+  /** Completes once all events are in the {@link #journal}. */
+  private ListenableFuture<?> journaled;
   /** Holds the result status of the BuildEventStreamProtos BuildFinished event. */
   private volatile Result invocationResult;
   /** Used to block until all events have been uploaded. */
@@ -157,7 +168,8 @@ public class BuildEventServiceTransport implements BuildEventTransport {
       @Nullable String besResultsUrl,
       BuildEventArtifactUploader artifactUploader,
       boolean errorsShouldFailTheBuild,
-      EventBus internalEventBus) {
+      EventBus internalEventBus,
+      @Nullable BuildEventServiceJournal<PublishBuildToolEventStreamRequest> journal) {
     this(
         besClient,
         uploadTimeout,
@@ -175,7 +187,8 @@ public class BuildEventServiceTransport implements BuildEventTransport {
         artifactUploader,
         new JavaSleeper(),
         errorsShouldFailTheBuild,
-        internalEventBus);
+        internalEventBus,
+        journal);
   }
 
   @VisibleForTesting
@@ -196,7 +209,8 @@ public class BuildEventServiceTransport implements BuildEventTransport {
       BuildEventArtifactUploader artifactUploader,
       Sleeper sleeper,
       boolean errorsShouldFailTheBuild,
-      EventBus internalEventBus) {
+      EventBus internalEventBus,
+      @Nullable BuildEventServiceJournal<PublishBuildToolEventStreamRequest> journal) {
     this.besClient = besClient;
     this.besProtoUtil =
         new BuildEventServiceProtoUtil(
@@ -206,15 +220,17 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     this.commandLineReporter = commandLineReporter;
     this.pendingAck = new ConcurrentLinkedDeque<>();
     this.pendingSend = new LinkedBlockingDeque<>();
+    this.journal = journal;
     // Setting the thread count to 2 instead of 1 is a hack, but necessary as publishEventStream
     // blocks one thread permanently and thus we can't do any other work on the executor. A proper
     // fix would be to remove the spinning loop from publishEventStream and instead implement the
-    // loop by publishEventStream re-submitting itself to the executor.
+    // loop by publishEventStream re-submitting itself to the executor. Writing the journal blocks
+    // a third thread.
     // TODO(buchgr): Fix it.
     this.uploaderExecutorService =
         listeningDecorator(
             Executors.newFixedThreadPool(
-                2,
+                journal != null ? 3 : 2,
                 new ThreadFactory() {
 
                   private final AtomicInteger count = new AtomicInteger();
@@ -286,6 +302,11 @@ public class BuildEventServiceTransport implements BuildEventTransport {
               return;
             }
 
+            if (journal != null) {
+              finishUploadInBackground();
+              return;
+            }
+
             report(INFO, "Waiting for Build Event Protocol upload to finish.");
             try {
               if (uploadTimeout.isZero()) {
@@ -316,6 +337,39 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     return shutdownFuture;
   }
 
+  /**
+   * Completes the {@link #shutdownFuture} as soon as all events are in the journal, and then waits
+   * for the upload to finish. Errors after that can no longer fail the build and are only logged.
+   */
+  private void finishUploadInBackground() {
+    try {
+      journaled.get();
+    } catch (Exception e) {
+      // The journal is cancelled if the upload fails before all events are journaled.
+      Throwable uploadError = fromFuture(uploadComplete);
+      uploadComplete.cancel(true);
+      reportErrorAndFailBuild(uploadError != null ? uploadError : e);
+      return;
+    }
+    report(INFO, "Build Event Protocol upload continues in the background.");
+    if (!Strings.isNullOrEmpty(besResultsUrl)) {
+      report(INFO, "Build Event Protocol results will be available at " + besResultsUrl);
+    }
+    shutdownFuture.set(null);
+
+    try {
+      if (uploadTimeout.isZero()) {
+        uploadComplete.get();
+      } else {
+        uploadComplete.get(uploadTimeout.toMillis(), MILLISECONDS);
+      }
+      logger.log(Level.INFO, UPLOAD_SUCCEEDED_MESSAGE);
+    } catch (Exception e) {
+      uploadComplete.cancel(true);
+      logger.log(Level.WARNING, errorMessageFromException(e), e);
+    }
+  }
+
   private void cancelUpload() {
     if (!uploaderExecutorService.isShutdown()) {
       logger.log(Level.INFO, "Forcefully closing the build event service transport.");
@@ -428,10 +482,32 @@ public class BuildEventServiceTransport implements BuildEventTransport {
 
     pendingSend.add(evtAndNamer);
     if (uploadComplete == null) {
+      if (journal != null) {
+        journaled = uploaderExecutorService.submit(this::journalEvents);
+      }
       uploadComplete = uploaderExecutorService.submit(new BuildEventServiceUpload());
+      if (journal != null) {
+        // Nothing reads the journal anymore once the upload is done.
+        uploadComplete.addListener(() -> journaled.cancel(true), directExecutor());
+      }
     }
   }
 
+  /**
+   * Serializes the events into the {@link #journal} in order, as soon as their local files are
+   * uploaded, so that they don't have to be held in memory until they are acknowledged.
+   */
+  private Void journalEvents() throws Exception {
+    InternalOrderedBuildEvent event;
+    do {
+      event = pendingSend.takeFirst();
+      PathConverter pathConverter = waitForLocalFileUploads(event);
+      journal.append(event.getSequenceNumber(), event.serialize(pathConverter));
+    } while (!event.isLastEvent());
+    journal.finish();
+    return null;
+  }
+
   private Result getInvocationResult() {
     return invocationResult;
   }
@@ -455,6 +531,9 @@ public class BuildEventServiceTransport implements BuildEventTransport {
           besClient.shutdown();
         } finally {
           artifactUploader.shutdown();
+          if (journal != null) {
+            journal.close();
+          }
         }
       }
       return null;
@@ -473,7 +552,13 @@ public class BuildEventServiceTransport implements BuildEventTransport {
    * of the pendingSend queue), but that is intended behavior.
    */
   private void publishEventStream()
-      throws StatusException, LocalFileUploadException, InterruptedException {
+      throws StatusException, LocalFileUploadException, InterruptedException, IOException {
+    if (journal != null) {
+      // Replays the unacked messages from the journal.
+      journal.rewind();
+      publishEventStream(pendingAck, pendingSend, besClient);
+      return;
+    }
     // Reschedule unacked messages if required, keeping its original order.
     InternalOrderedBuildEvent unacked;
     while ((unacked = pendingAck.pollLast()) != null) {
@@ -488,31 +573,20 @@ public class BuildEventServiceTransport implements BuildEventTransport {
       final ConcurrentLinkedDeque<InternalOrderedBuildEvent> pendingAck,
       final BlockingDeque<InternalOrderedBuildEvent> pendingSend,
       final BuildEventServiceClient besClient)
-      throws StatusException, LocalFileUploadException, InterruptedException {
-    ListenableFuture<Status> stream = besClient.openStream(ackCallback(pendingAck, besClient));
+      throws StatusException, LocalFileUploadException, InterruptedException, IOException {
+    ListenableFuture<Status> stream =
+        besClient.openStream(
+            journal != null ? journalAckCallback(besClient) : ackCallback(pendingAck, besClient));
     logger.log(
         Level.INFO,
         String.format(
             "Started PublishBuildToolEventStream RPC (pendingSendCount=%s)", pendingSend.size()));
     try {
-      @Nullable InternalOrderedBuildEvent orderedBuildEvent;
-      do {
-        orderedBuildEvent = pendingSend.pollFirst(STREAMING_RPC_POLL_IN_SECS, TimeUnit.SECONDS);
-        if (orderedBuildEvent != null) {
-          pendingAck.add(orderedBuildEvent);
-          PathConverter pathConverter = waitForLocalFileUploads(orderedBuildEvent);
-          besClient.sendOverStream(orderedBuildEvent.serialize(pathConverter));
-        }
-        Status streamStatus = getFromStreamFuture(stream);
-        if (streamStatus != null) {
-          throw streamStatus.augmentDescription("Stream closed prematurely").asException();
-        }
-      } while (orderedBuildEvent == null || !orderedBuildEvent.isLastEvent());
-      logger.log(
-          Level.INFO,
-          String.format(
-              "Will end publishEventStream() isLastEvent: %s isStreamActive: %s",
-              orderedBuildEvent.isLastEvent(), besClient.isStreamActive()));
+      if (journal != null) {
+        sendJournaledEvents(stream, besClient);
+      } else {
+        sendPendingEvents(stream, pendingAck, pendingSend, besClient);
+      }
     } catch (InterruptedException e) {
       // By convention the interrupted flag should have been cleared,
       // but just to be sure clear it.
@@ -526,6 +600,10 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     } catch (LocalFileUploadException e) {
       besClient.abortStream(Status.INTERNAL.augmentDescription("Local file upload failed."));
       throw e;
+    } catch (IOException e) {
+      besClient.abortStream(
+          Status.INTERNAL.augmentDescription("Reading the build event journal failed."));
+      throw e;
     }
 
     try {
@@ -553,6 +631,63 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     }
   }
 
+  private void sendPendingEvents(
+      ListenableFuture<Status> stream,
+      ConcurrentLinkedDeque<InternalOrderedBuildEvent> pendingAck,
+      BlockingDeque<InternalOrderedBuildEvent> pendingSend,
+      BuildEventServiceClient besClient)
+      throws StatusException, LocalFileUploadException, InterruptedException {
+    @Nullable InternalOrderedBuildEvent orderedBuildEvent;
+    do {
+      orderedBuildEvent = pendingSend.pollFirst(STREAMING_RPC_POLL_IN_SECS, TimeUnit.SECONDS);
+      if (orderedBuildEvent != null) {
+        pendingAck.add(orderedBuildEvent);
+        PathConverter pathConverter = waitForLocalFileUploads(orderedBuildEvent);
+        besClient.sendOverStream(orderedBuildEvent.serialize(pathConverter));
+      }
+      Status streamStatus = getFromStreamFuture(stream);
+      if (streamStatus != null) {
+        throw streamStatus.augmentDescription("Stream closed prematurely").asException();
+      }
+    } while (orderedBuildEvent == null || !orderedBuildEvent.isLastEvent());
+    logger.log(
+        Level.INFO,
+        String.format(
+            "Will end publishEventStream() isLastEvent: %s isStreamActive: %s",
+            orderedBuildEvent.isLastEvent(), besClient.isStreamActive()));
+  }
+
+  private void sendJournaledEvents(
+      ListenableFuture<Status> stream, BuildEventServiceClient besClient)
+      throws StatusException, LocalFileUploadException, InterruptedException, IOException {
+    while (!journal.allSent()) {
+      PublishBuildToolEventStreamRequest request =
+          journal.next(STREAMING_RPC_POLL_IN_SECS, TimeUnit.SECONDS);
+      if (request != null) {
+        besClient.sendOverStream(request);
+      } else {
+        // An event may never make it into the journal, usually because its local files failed to
+        // upload.
+        Throwable journalError = fromFuture(journaled);
+        if (journalError != null) {
+          if (journalError.getCause() instanceof LocalFileUploadException) {
+            throw (LocalFileUploadException) journalError.getCause();
+          }
+          throw new LocalFileUploadException(journalError);
+        }
+      }
+      Status streamStatus = getFromStreamFuture(stream);
+      if (streamStatus != null) {
+        throw streamStatus.augmentDescription("Stream closed prematurely").asException();
+      }
+    }
+    logger.log(
+        Level.INFO,
+        String.format(
+            "Will end publishEventStream() spilledCount: %s isStreamActive: %s",
+            journal.getSpilledCount(), besClient.isStreamActive()));
+  }
+
   @Nullable
   private Status getFromStreamFuture(ListenableFuture<Status> stream) throws InterruptedException {
     if (stream.isDone()) {
@@ -610,6 +745,26 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     };
   }
 
+  private Function<PublishBuildToolEventStreamResponse, Void> journalAckCallback(
+      final BuildEventServiceClient besClient) {
+    return ack -> {
+      Preconditions.checkNotNull(ack);
+      long ackSeq = ack.getSequenceNumber();
+      if (!journal.acknowledge(ackSeq)) {
+        besClient.abortStream(
+            Status.INTERNAL.augmentDescription(
+                format("Expected ACK %s but was %s.", journal.firstUnacknowledged(), ackSeq)));
+        return null;
+      }
+      if (journal.isComplete()) {
+        logger.log(Level.INFO, "Last ACK received.");
+        besClient.closeStream();
+      }
+      acksReceivedSinceLastRetry.incrementAndGet();
+      return null;
+    };
+  }
+
   /** Executes a {@link Callable} retrying on exception thrown. */
   private void retryOnException(EventUploadCallable c) throws Exception {
     final int maxRetries = 5;
@@ -797,6 +952,6 @@ public class BuildEventServiceTransport implements BuildEventTransport {
   }
 
   private interface EventUploadCallable {
-    void call() throws StatusException, LocalFileUploadException, InterruptedException;
+    void call() throws StatusException, LocalFileUploadException, InterruptedException, IOException;
   }
 }
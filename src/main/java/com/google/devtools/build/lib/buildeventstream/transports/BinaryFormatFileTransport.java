@@ -37,7 +37,23 @@ public final class BinaryFormatFileTransport extends FileTransport {
       BuildEventArtifactUploader uploader,
       Consumer<AbruptExitException> exitFunc)
       throws IOException {
-    super(path, options, uploader, exitFunc);
+    this(path, options, uploader, exitFunc, /* compress= */ false);
+  }
+
+  BinaryFormatFileTransport(
+      String path,
+      BuildEventProtocolOptions options,
+      BuildEventArtifactUploader uploader,
+      Consumer<AbruptExitException> exitFunc,
+      boolean compress)
+      throws IOException {
+    super(
+        BinaryFormatFileTransport.class.getSimpleName(),
+        path,
+        options,
+        uploader,
+        exitFunc,
+        compress);
   }
 
   @Override
@@ -85,6 +85,16 @@ public class BuildEventStreamOptions extends OptionsBase {
           + "always be used")
   public boolean buildEventJsonFilePathConversion;
 
+  @Option(
+      name = "experimental_build_event_file_compression",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+      help =
+          "If enabled, the build event text, binary and json files are compressed with gzip. "
+              + "The files are flushed regularly, so they can be read while they are written.")
+  public boolean buildEventFileCompression;
+
   @Option(
       name = "build_event_publish_all_actions",
       defaultValue = "false",
@@ -131,4 +141,8 @@ public class BuildEventStreamOptions extends OptionsBase {
   public boolean getBuildEventJsonFilePathConversion() {
     return buildEventJsonFilePathConversion;
   }
+
+  public boolean getBuildEventFileCompression() {
+    return buildEventFileCompression;
+  }
 }
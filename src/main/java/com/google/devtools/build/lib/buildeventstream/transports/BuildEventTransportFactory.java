@@ -43,7 +43,11 @@ public enum BuildEventTransportFactory {
         Consumer<AbruptExitException> exitFunc)
         throws IOException {
       return new TextFormatFileTransport(
-          options.getBuildEventTextFile(), protocolOptions, uploader, exitFunc);
+          options.getBuildEventTextFile(),
+          protocolOptions,
+          uploader,
+          exitFunc,
+          options.getBuildEventFileCompression());
     }
 
     @Override
@@ -66,7 +70,11 @@ public enum BuildEventTransportFactory {
         Consumer<AbruptExitException> exitFunc)
         throws IOException {
       return new BinaryFormatFileTransport(
-          options.getBuildEventBinaryFile(), protocolOptions, uploader, exitFunc);
+          options.getBuildEventBinaryFile(),
+          protocolOptions,
+          uploader,
+          exitFunc,
+          options.getBuildEventFileCompression());
     }
 
     @Override
@@ -89,7 +97,11 @@ public enum BuildEventTransportFactory {
         Consumer<AbruptExitException> exitFunc)
         throws IOException {
       return new JsonFormatFileTransport(
-          options.getBuildEventJsonFile(), protocolOptions, uploader, exitFunc);
+          options.getBuildEventJsonFile(),
+          protocolOptions,
+          uploader,
+          exitFunc,
+          options.getBuildEventFileCompression());
     }
 
     @Override
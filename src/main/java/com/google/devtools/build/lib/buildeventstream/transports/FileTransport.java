@@ -23,8 +23,10 @@ import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
 import com.google.devtools.build.lib.buildeventstream.BuildEvent;
 import com.google.devtools.build.lib.buildeventstream.BuildEvent.LocalFile;
@@ -36,11 +38,9 @@ import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.devtools.build.lib.buildeventstream.PathConverter;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
-import com.google.devtools.build.lib.util.io.AsynchronousFileOutputStream;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -50,19 +50,23 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * Non-blocking file transport.
  *
- * <p>Implementors of this class need to implement {@code #sendBuildEvent(BuildEvent)} which
- * serializes the build event and writes it to file using {@link
- * AsynchronousFileOutputStream#write}.
+ * <p>Implementors of this class need to implement {@link #serializeEvent}, which is called for
+ * several events at once on a pool of threads. The serialized events are written to the file in
+ * the order in which they were sent by a single thread.
  */
 abstract class FileTransport implements BuildEventTransport {
   private static final Logger logger = Logger.getLogger(FileTransport.class.getName());
@@ -72,23 +76,36 @@ abstract class FileTransport implements BuildEventTransport {
   private final Consumer<AbruptExitException> exitFunc;
   @VisibleForTesting final SequentialWriter writer;
 
+  /** @param name the name of the transport in log messages, as returned by {@link #name} */
   FileTransport(
+      String name,
       String path,
       BuildEventProtocolOptions options,
       BuildEventArtifactUploader uploader,
-      Consumer<AbruptExitException> exitFunc) {
+      Consumer<AbruptExitException> exitFunc,
+      boolean compress) {
     this.uploader = uploader;
     this.options = options;
     this.exitFunc = exitFunc;
-    this.writer = new SequentialWriter(path, this::serializeEvent, exitFunc, uploader);
+    this.writer =
+        new SequentialWriter(path, compress, this::serializeEvent, exitFunc, uploader, name);
   }
 
+  /**
+   * Writes serialized events to a file in the order in which they were added, while they are
+   * serialized on a pool of threads.
+   *
+   * <p>At most {@value #MAX_PENDING_WRITES} events may wait to be written; adding more events
+   * blocks until the writer catches up. This bounds the memory held by events that can't be written
+   * yet, for example because the files they reference are still being uploaded.
+   */
   @ThreadSafe
   @VisibleForTesting
   static final class SequentialWriter implements Runnable {
     private static final Logger logger = Logger.getLogger(SequentialWriter.class.getName());
-    private static final ListenableFuture<BuildEventStreamProtos.BuildEvent> CLOSE =
-        Futures.immediateCancelledFuture();
+    private static final ListenableFuture<byte[]> CLOSE = Futures.immediateCancelledFuture();
+    @VisibleForTesting static final int MAX_PENDING_WRITES = 4096;
+    private static final int BUFFER_SIZE = 256 * 1024;
 
     private final Thread writerThread;
     @VisibleForTesting OutputStream out;
@@ -96,21 +113,37 @@ abstract class FileTransport implements BuildEventTransport {
     private final Function<BuildEventStreamProtos.BuildEvent, byte[]> serializeFunc;
     private final Consumer<AbruptExitException> exitFunc;
     private final BuildEventArtifactUploader uploader;
+    private final ListeningExecutorService serializer;
+    private final String name;
 
     @VisibleForTesting
-    final BlockingQueue<ListenableFuture<BuildEventStreamProtos.BuildEvent>> pendingWrites =
-        new LinkedBlockingDeque<>();
+    final BlockingQueue<ListenableFuture<byte[]>> pendingWrites =
+        new LinkedBlockingDeque<>(MAX_PENDING_WRITES);
 
     private final SettableFuture<Void> closeFuture = SettableFuture.create();
 
+    // Statistics, logged when the writer is closed.
+    private final AtomicLong eventsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicInteger maxPendingWrites = new AtomicInteger();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+
     SequentialWriter(
         String path,
+        boolean compress,
         Function<BuildEventStreamProtos.BuildEvent, byte[]> serializeFunc,
         Consumer<AbruptExitException> exitFunc,
-        BuildEventArtifactUploader uploader) {
+        BuildEventArtifactUploader uploader,
+        String name) {
       try {
-        this.out = new BufferedOutputStream(new FileOutputStream(path));
-      } catch (FileNotFoundException e) {
+        OutputStream file = new FileOutputStream(path);
+        if (compress) {
+          // Flushes reach the file, so that the stream can be followed while it is written.
+          file = new GZIPOutputStream(file, BUFFER_SIZE, /* syncFlush= */ true);
+        }
+        this.out = new BufferedOutputStream(file, BUFFER_SIZE);
+      } catch (IOException e) {
         this.out = new ByteArrayOutputStream(0);
         closeNow();
         exitFunc.accept(
@@ -123,20 +156,72 @@ abstract class FileTransport implements BuildEventTransport {
       this.serializeFunc = serializeFunc;
       this.exitFunc = exitFunc;
       this.uploader = uploader;
+      this.name = name;
+      this.serializer =
+          MoreExecutors.listeningDecorator(
+              Executors.newFixedThreadPool(
+                  Runtime.getRuntime().availableProcessors(),
+                  new ThreadFactoryBuilder()
+                      .setNameFormat("build-event-file-serializer-%d")
+                      .setDaemon(true)
+                      .build()));
       writerThread.start();
     }
 
+    /**
+     * Serializes an event once it is converted and queues it to be written. Blocks while too many
+     * events are waiting to be written.
+     */
+    void write(ListenableFuture<BuildEventStreamProtos.BuildEvent> buildEventF) {
+      ListenableFuture<byte[]> serialized =
+          Futures.transform(buildEventF, serializeFunc, serializer);
+      if (!enqueue(serialized)) {
+        logger.log(Level.SEVERE, "Failed to add BEP event to the write queue");
+      }
+      maxPendingWrites.accumulateAndGet(pendingWrites.size(), Math::max);
+    }
+
+    /**
+     * Adds to the queue, waiting for space as long as the writer runs. Returns whether the element
+     * was added.
+     */
+    private boolean enqueue(ListenableFuture<byte[]> element) {
+      if (pendingWrites.offer(element)) {
+        return true;
+      }
+      long start = System.nanoTime();
+      try {
+        while (!closeFuture.isDone()) {
+          if (pendingWrites.offer(element, FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)) {
+            return true;
+          }
+        }
+        return false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        blockedNanos.addAndGet(System.nanoTime() - start);
+      }
+    }
+
+    boolean isClosed() {
+      return closeFuture.isDone();
+    }
+
     @Override
     public void run() {
-      ListenableFuture<BuildEventStreamProtos.BuildEvent> buildEventF;
+      ListenableFuture<byte[]> buildEventF;
       try {
         Instant prevFlush = Instant.now();
         while ((buildEventF = pendingWrites.poll(FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS))
             != CLOSE) {
           if (buildEventF != null) {
-            BuildEventStreamProtos.BuildEvent buildEvent = buildEventF.get();
-            byte[] serialized = serializeFunc.apply(buildEvent);
+            // Waits for the next event in order; the ones after it are serialized meanwhile.
+            byte[] serialized = buildEventF.get();
             out.write(serialized);
+            eventsWritten.incrementAndGet();
+            bytesWritten.addAndGet(serialized.length);
           }
           Instant now = Instant.now();
           if (buildEventF == null || now.compareTo(prevFlush.plus(FLUSH_INTERVAL)) > 0) {
@@ -152,6 +237,7 @@ abstract class FileTransport implements BuildEventTransport {
         pendingWrites.clear();
         logger.log(Level.SEVERE, "Failed to write BEP events to file.", e);
       } finally {
+        serializer.shutdownNow();
         try {
           try {
             out.flush();
@@ -162,19 +248,33 @@ abstract class FileTransport implements BuildEventTransport {
         } catch (IOException e) {
           logger.log(Level.SEVERE, "Failed to close BEP file output stream.", e);
         }
+        logStats();
         closeFuture.set(null);
       }
     }
 
+    private void logStats() {
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+      logger.info(
+          format(
+              "%s wrote %,d events (%,d bytes) in %,dms, %,d KB/s; at most %,d events waited to"
+                  + " be written, and senders waited %,dms for the queue",
+              name,
+              eventsWritten.get(),
+              bytesWritten.get(),
+              elapsedMillis,
+              bytesWritten.get() / Math.max(elapsedMillis, 1),
+              maxPendingWrites.get(),
+              TimeUnit.NANOSECONDS.toMillis(blockedNanos.get())));
+    }
+
     public void closeNow() {
       if (closeFuture.isDone()) {
         return;
       }
-      try {
-        pendingWrites.clear();
-        pendingWrites.put(CLOSE);
-      } catch (InterruptedException e) {
-        logger.log(Level.SEVERE, "Failed to immediately close the sequential writer.", e);
+      pendingWrites.clear();
+      if (!enqueue(CLOSE)) {
+        logger.log(Level.SEVERE, "Failed to immediately close the sequential writer.");
       }
     }
 
@@ -182,11 +282,9 @@ abstract class FileTransport implements BuildEventTransport {
       if (closeFuture.isDone()) {
         return closeFuture;
       }
-      try {
-        pendingWrites.put(CLOSE);
-      } catch (InterruptedException e) {
+      if (!enqueue(CLOSE)) {
         closeNow();
-        logger.log(Level.SEVERE, "Failed to close the sequential writer.", e);
+        logger.log(Level.SEVERE, "Failed to close the sequential writer.");
         closeFuture.set(null);
       }
       return closeFuture;
@@ -195,12 +293,10 @@ abstract class FileTransport implements BuildEventTransport {
 
   @Override
   public void sendBuildEvent(BuildEvent event, ArtifactGroupNamer namer) {
-    if (writer.closeFuture.isDone()) {
+    if (writer.isClosed()) {
       return;
     }
-    if (!writer.pendingWrites.add(asStreamProto(event, namer))) {
-      logger.log(Level.SEVERE, "Failed to add BEP event to the write queue");
-    }
+    writer.write(asStreamProto(event, namer));
   }
 
   protected abstract byte[] serializeEvent(BuildEventStreamProtos.BuildEvent buildEvent);
@@ -36,7 +36,18 @@ public final class JsonFormatFileTransport extends FileTransport {
       BuildEventArtifactUploader uploader,
       Consumer<AbruptExitException> exitFunc)
       throws IOException {
-    super(path, options, uploader, exitFunc);
+    this(path, options, uploader, exitFunc, /* compress= */ false);
+  }
+
+  JsonFormatFileTransport(
+      String path,
+      BuildEventProtocolOptions options,
+      BuildEventArtifactUploader uploader,
+      Consumer<AbruptExitException> exitFunc,
+      boolean compress)
+      throws IOException {
+    super(
+        JsonFormatFileTransport.class.getSimpleName(), path, options, uploader, exitFunc, compress);
   }
 
   @Override
@@ -37,7 +37,18 @@ public final class TextFormatFileTransport extends FileTransport {
       BuildEventArtifactUploader uploader,
       Consumer<AbruptExitException> exitFunc)
       throws IOException {
-    super(path, options, uploader, exitFunc);
+    this(path, options, uploader, exitFunc, /* compress= */ false);
+  }
+
+  TextFormatFileTransport(
+      String path,
+      BuildEventProtocolOptions options,
+      BuildEventArtifactUploader uploader,
+      Consumer<AbruptExitException> exitFunc,
+      boolean compress)
+      throws IOException {
+    super(
+        TextFormatFileTransport.class.getSimpleName(), path, options, uploader, exitFunc, compress);
   }
 
   @Override
@@ -393,6 +393,20 @@ public class BuildRequestOptions extends OptionsBase {
   )
   public boolean useActionCache;
 
+  @Option(
+    name = "experimental_append_only_action_cache",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {
+      OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION,
+      OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS
+    },
+    help =
+        "If enabled, the action cache is kept in an append-only log that is indexed rather than "
+            + "loaded into memory, which makes loading and saving it independent of its size."
+  )
+  public boolean appendOnlyActionCache;
+
   @Option(
       name = "discard_actions_after_execution",
       defaultValue = "true",
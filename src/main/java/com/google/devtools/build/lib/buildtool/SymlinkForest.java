@@ -24,10 +24,14 @@ import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.ParallelFileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Root;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -85,6 +89,7 @@ class SymlinkForest {
   @VisibleForTesting
   @ThreadSafety.ThreadSafe
   static void deleteTreesBelowNotPrefixed(Path dir, String[] prefixes) throws IOException {
+    List<Path> toDelete = new ArrayList<>();
     dirloop:
     for (Path p : dir.getDirectoryEntries()) {
       String name = p.getBaseName();
@@ -93,8 +98,9 @@ class SymlinkForest {
           continue dirloop;
         }
       }
-      FileSystemUtils.deleteTree(p);
+      toDelete.add(p);
     }
+    ParallelFileSystemUtils.deleteTrees(toDelete);
   }
 
   void plantSymlinkForest() throws IOException {
@@ -109,7 +115,7 @@ class SymlinkForest {
     Path realWorkspaceDir = execroot.getParentDirectory().getRelative(workspaceName);
     if (!workspaceName.equals(execroot.getBaseName()) && realWorkspaceDir.exists()
         && !realWorkspaceDir.isSymbolicLink()) {
-      FileSystemUtils.deleteTree(realWorkspaceDir);
+      ParallelFileSystemUtils.deleteTree(realWorkspaceDir);
     }
 
     // Create a sorted map of all dirs (packages and their ancestors) to sets of their roots.
@@ -179,7 +185,9 @@ class SymlinkForest {
             .createSymbolicLink(root.getRelative(dir.getSourceRoot()));
       }
     }
-    // Make links for dirs within packages, skip parent-only dirs.
+    // Make links for dirs within packages, skip parent-only dirs. There may be many of them, so
+    // collect them first and create them in parallel.
+    Map<Path, Path> linksInPackages = new HashMap<>();
     for (Map.Entry<PackageIdentifier, Set<Root>> entry : dirRootsMap.entrySet()) {
       PackageIdentifier dir = entry.getKey();
       if (entry.getValue().size() > 1) {
@@ -198,7 +206,7 @@ class SymlinkForest {
                 PathFragment p = root.relativize(target);
                 if (!dirRootsMap.containsKey(createInRepo(pkgId, p))) {
                   //LOG.finest("ln -s " + target + " " + linkRoot.getRelative(p));
-                  execroot.getRelative(p).createSymbolicLink(target);
+                  linksInPackages.put(execroot.getRelative(p), target);
                 }
               }
             } else {
@@ -211,6 +219,12 @@ class SymlinkForest {
         }
       }
     }
+    try {
+      ParallelFileSystemUtils.createSymbolicLinks(linksInPackages);
+    } catch (IOException e) {
+      // A link that can't be created doesn't fail the build, but shouldn't go unnoticed either.
+      logger.log(Level.WARNING, "Failed to create symlinks to package contents", e);
+    }
 
     for (Map.Entry<PackageIdentifier, Root> entry : packageRoots.entrySet()) {
       PackageIdentifier pkgId = entry.getKey();
@@ -20,6 +20,7 @@ import com.google.devtools.build.lib.vfs.DigestHashFunction.DigestLength;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.StampedLock;
+import javax.annotation.Nullable;
 
 /**
  * Map of key -> [digest bytes].
@@ -77,6 +78,11 @@ final class DigestMap {
     return false;
   }
 
+  /** Returns whether a digest has been inserted for the key. */
+  boolean containsKey(Object key) {
+    return findKey(this.table, key) >= 0;
+  }
+
   private static int findKey(Table table, Object key) {
     int hash = hash(key);
     int index = hash & (table.tableSize - 1);
@@ -91,6 +97,16 @@ final class DigestMap {
     }
   }
 
+  /**
+   * Inserts a digest for the corresponding key, unless there already is one.
+   *
+   * @param key The key to insert.
+   * @param digest The fingerprint to insert. This will reset the fingerprint instance.
+   */
+  void insertDigest(Object key, Fingerprint digest) {
+    insertAndReadDigest(key, digest, /*readTo=*/ null);
+  }
+
   /**
    * Inserts a digest for the corresponding key, then immediately reads it into another fingerprint.
    *
@@ -100,9 +116,9 @@ final class DigestMap {
    *
    * @param key The key to insert.
    * @param digest The fingerprint to insert. This will reset the fingerprint instance.
-   * @param readTo A fingerprint to read the just-added fingerprint into.
+   * @param readTo A fingerprint to read the just-added fingerprint into, or null.
    */
-  void insertAndReadDigest(Object key, Fingerprint digest, Fingerprint readTo) {
+  void insertAndReadDigest(Object key, Fingerprint digest, @Nullable Fingerprint readTo) {
     // Check if we have to resize the table first and do that under write lock
     // We assume that we are going to insert an item. If we do not do this, multiple
     // threads could race and all think they do not need to resize, then some get stuck
@@ -127,6 +143,9 @@ final class DigestMap {
     } finally {
       readWriteLock.unlockRead(stamp);
     }
+    if (readTo == null) {
+      return;
+    }
     // This can be done outside of the read lock since the slot is immutable once inserted
     int offset = index * this.digestLength.getDigestMaximumLength();
     int digestLength = this.digestLength.getDigestLength(table.bytes, offset);
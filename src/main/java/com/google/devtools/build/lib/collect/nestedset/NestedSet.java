@@ -381,7 +381,7 @@ public final class NestedSet<E> implements Iterable<E> {
     }
     Object[] children = (Object[]) this.getChildren();
     CompactHashSet<E> members = CompactHashSet.createWithExpectedSize(128);
-    CompactHashSet<Object> sets = CompactHashSet.createWithExpectedSize(128);
+    ArraySet sets = new ArraySet();
     sets.add(children);
     memo = new byte[Math.min((children.length + 7) / 8, 8)];
     int pos = walk(sets, members, children, 0);
@@ -401,8 +401,7 @@ public final class NestedSet<E> implements Iterable<E> {
    *
    * <p>Returns the final value of {@code pos}.
    */
-  private int walk(
-      CompactHashSet<Object> sets, CompactHashSet<E> members, Object[] children, int pos) {
+  private int walk(ArraySet sets, CompactHashSet<E> members, Object[] children, int pos) {
     for (Object child : children) {
       if ((pos >> 3) >= memo.length) {
         memo = Arrays.copyOf(memo, memo.length * 2);
@@ -433,6 +432,48 @@ public final class NestedSet<E> implements Iterable<E> {
     return pos;
   }
 
+  /**
+   * A set of the child arrays visited by {@link #walk}, compared by identity. Arrays don't override
+   * {@code equals}, so this behaves like a hash set of them, but it keeps them in a single
+   * open-addressing table instead of allocating entries, and doesn't call {@code hashCode} on them.
+   */
+  private static final class ArraySet {
+    private Object[][] table = new Object[256][];
+    private int size;
+
+    /** Adds the array and returns true, unless it is already in the set. */
+    boolean add(Object array) {
+      int mask = table.length - 1;
+      int i = System.identityHashCode(array) & mask;
+      for (Object[] entry = table[i]; entry != null; entry = table[i]) {
+        if (entry == array) {
+          return false;
+        }
+        i = (i + 1) & mask;
+      }
+      table[i] = (Object[]) array;
+      if (++size > (table.length >> 1)) {
+        resize();
+      }
+      return true;
+    }
+
+    private void resize() {
+      Object[][] oldTable = table;
+      table = new Object[oldTable.length * 2][];
+      int mask = table.length - 1;
+      for (Object[] entry : oldTable) {
+        if (entry != null) {
+          int i = System.identityHashCode(entry) & mask;
+          while (table[i] != null) {
+            i = (i + 1) & mask;
+          }
+          table[i] = entry;
+        }
+      }
+    }
+  }
+
   /**
    * Repeat a previous traversal of {@code children} performed by {@link #walk} and recorded in
    * {@code memo}, appending leaves to {@code output}.
@@ -16,26 +16,55 @@ package com.google.devtools.build.lib.collect.nestedset;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multiset;
 import com.google.devtools.build.lib.actions.CommandLineItem;
 import com.google.devtools.build.lib.actions.CommandLineItem.MapFn;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
 import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.annotation.Nullable;
 
 /** Computes fingerprints for nested sets, reusing sub-computations from children. */
 public class NestedSetFingerprintCache {
   private static final int EMPTY_SET_DIGEST = 104_395_303;
 
+  /**
+   * The minimum number of child sets without a digest a set must have for them to be digested in
+   * parallel. Below that, the cost of forking tasks outweighs what is gained.
+   */
+  private static final int MIN_PARALLEL_CHILDREN = 8;
+
+  private static final ForkJoinPool DEFAULT_POOL =
+      NamedForkJoinPool.newNamedPool(
+          "nested-set-fingerprint", Runtime.getRuntime().availableProcessors());
+
+  /** Digests large fan-outs of child sets in parallel, or null to digest everything serially. */
+  @Nullable private final ForkJoinPool pool;
+
   /** Memoize the subresults. We have to have one cache per type of command item map function. */
   private Map<CommandLineItem.MapFn<?>, DigestMap> mapFnToDigestMap = createMap();
 
   private final Set<Class<?>> seenMapFns = new HashSet<>();
   private final Multiset<Class<?>> seenParametrizedMapFns = HashMultiset.create();
 
+  public NestedSetFingerprintCache() {
+    this(DEFAULT_POOL);
+  }
+
+  @VisibleForTesting
+  NestedSetFingerprintCache(@Nullable ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
   public <T> void addNestedSetToFingerprint(Fingerprint fingerprint, NestedSet<T> nestedSet) {
     addNestedSetToFingerprint(CommandLineItem.MapFn.DEFAULT, fingerprint, nestedSet);
   }
@@ -54,9 +83,71 @@ public class NestedSetFingerprintCache {
     DigestMap digestMap = mapFnToDigestMap.computeIfAbsent(mapFn, this::newDigestMap);
     fingerprint.addInt(nestedSet.getOrder().ordinal());
     Object children = nestedSet.getChildren();
+    if (pool != null && children instanceof Object[] && !digestMap.containsKey(children)) {
+      List<Object[]> uncached = getUncachedChildSets(digestMap, (Object[]) children);
+      if (uncached.size() >= MIN_PARALLEL_CHILDREN) {
+        pool.invoke(new DigestChildSetsTask<>(mapFn, digestMap, uncached));
+      }
+    }
     addToFingerprint(mapFn, fingerprint, digestMap, children);
   }
 
+  private static List<Object[]> getUncachedChildSets(DigestMap digestMap, Object[] children) {
+    List<Object[]> uncached = new ArrayList<>();
+    for (Object child : children) {
+      if (child instanceof Object[] && !digestMap.containsKey(child)) {
+        uncached.add((Object[]) child);
+      }
+    }
+    return uncached;
+  }
+
+  /**
+   * Computes and caches the digests of the given sets, forking a task per set. Every task first
+   * digests the child sets of its set in the same way if there are enough of them, so that the
+   * digest of its own set is then computed from cached digests only.
+   *
+   * <p>Two tasks may reach a shared child set at the same time and both digest it, which is
+   * harmless since {@link DigestMap} keeps the first digest inserted.
+   */
+  private final class DigestChildSetsTask<T> extends RecursiveAction {
+    private final CommandLineItem.MapFn<? super T> mapFn;
+    private final DigestMap digestMap;
+    private final List<Object[]> sets;
+
+    DigestChildSetsTask(
+        CommandLineItem.MapFn<? super T> mapFn, DigestMap digestMap, List<Object[]> sets) {
+      this.mapFn = mapFn;
+      this.digestMap = digestMap;
+      this.sets = sets;
+    }
+
+    @Override
+    protected void compute() {
+      if (sets.size() > 1) {
+        List<DigestChildSetsTask<T>> tasks = new ArrayList<>(sets.size());
+        for (Object[] set : sets) {
+          tasks.add(new DigestChildSetsTask<>(mapFn, digestMap, ImmutableList.of(set)));
+        }
+        invokeAll(tasks);
+        return;
+      }
+      Object[] set = sets.get(0);
+      if (digestMap.containsKey(set)) {
+        return;
+      }
+      List<Object[]> uncached = getUncachedChildSets(digestMap, set);
+      if (uncached.size() >= MIN_PARALLEL_CHILDREN) {
+        new DigestChildSetsTask<>(mapFn, digestMap, uncached).invoke();
+      }
+      Fingerprint setFingerprint = new Fingerprint();
+      for (Object child : set) {
+        addToFingerprint(mapFn, setFingerprint, digestMap, child);
+      }
+      digestMap.insertDigest(set, setFingerprint);
+    }
+  }
+
   private <T> void addNestedSetToFingerprintSlow(
       MapFn<? super T> mapFn, Fingerprint fingerprint, NestedSet<T> nestedSet) {
     for (T object : nestedSet) {
@@ -287,6 +287,18 @@ public class ExecutionOptions extends OptionsBase {
               + "number of file digests to be cached.")
   public long cacheSizeForComputedFileDigests;
 
+  @Option(
+      name = "experimental_persistent_file_digest_cache_size",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If greater than 0, configures Bazel to also keep computed file digests on disk in the "
+              + "output base, so that they survive server restarts. Entries are keyed by the path, "
+              + "inode, size, modification and change time of the file. The number indicates the "
+              + "size of the cache as the number of file digests to be kept.")
+  public int persistentFileDigestCacheSize;
+
   @Option(
     name = "experimental_enable_critical_path_profiling",
     defaultValue = "true",
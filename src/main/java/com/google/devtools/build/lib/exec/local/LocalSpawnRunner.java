@@ -126,7 +126,8 @@ public class LocalSpawnRunner implements SpawnRunner {
     ActionExecutionMetadata owner = spawn.getResourceOwner();
     context.report(ProgressStatus.SCHEDULING, getName());
     try (ResourceHandle handle =
-        resourceManager.acquireResources(owner, spawn.getLocalResources())) {
+        resourceManager.acquireResources(
+            owner, spawn.getLocalResources(), ResourceManager.getPriority(spawn))) {
       context.report(ProgressStatus.EXECUTING, getName());
       context.lockOutputFiles();
       return new SubprocessHandler(spawn, context).run();
@@ -18,23 +18,32 @@ import com.google.devtools.build.lib.analysis.AnalysisPhaseCompleteEvent;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.ActionSummary;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.MemoryMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.SkyframeMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.SkyframeMetrics.FunctionMetrics;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.metrics.MetricsModule.Options;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics.FunctionStats;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 class MetricsCollector {
 
   private final CommandEnvironment env;
   private final boolean bepPublishUsedHeapSizePostBuild;
 
+  private final Map<String, FunctionStats> skyFunctionStatsAtStart;
+
   private int actionsConstructed;
 
   MetricsCollector(CommandEnvironment env) {
     this.env = env;
     this.bepPublishUsedHeapSizePostBuild =
         env.getOptions().getOptions(Options.class).bepPublishUsedHeapSizePostBuild;
+    this.skyFunctionStatsAtStart = SkyFunctionMetrics.instance().snapshot();
     env.getEventBus().register(this);
   }
 
@@ -56,6 +65,7 @@ class MetricsCollector {
     BuildMetrics.Builder metrics = BuildMetrics.newBuilder();
     metrics.setActionSummary(createActionSummary());
     metrics.setMemoryMetrics(createMemoryMetrics());
+    metrics.setSkyframeMetrics(createSkyframeMetrics());
     return metrics.build();
   }
 
@@ -72,4 +82,27 @@ class MetricsCollector {
     }
     return memoryMetrics.build();
   }
+
+  private SkyframeMetrics createSkyframeMetrics() {
+    SkyframeMetrics.Builder skyframeMetrics = SkyframeMetrics.newBuilder();
+    Map<String, FunctionStats> statsDuringBuild =
+        SkyFunctionMetrics.difference(
+            SkyFunctionMetrics.instance().snapshot(), skyFunctionStatsAtStart);
+    for (Map.Entry<String, FunctionStats> entry : statsDuringBuild.entrySet()) {
+      FunctionStats stats = entry.getValue();
+      skyframeMetrics.addFunctionMetrics(
+          FunctionMetrics.newBuilder()
+              .setFunctionName(entry.getKey())
+              .setEvaluations(stats.getEvaluations())
+              .setRestarts(stats.getRestarts())
+              .setResumed(stats.getResumed())
+              .setWallTimeInMs(TimeUnit.NANOSECONDS.toMillis(stats.getWallTimeNanos()))
+              .setCpuTimeInMs(TimeUnit.NANOSECONDS.toMillis(stats.getCpuTimeNanos()))
+              .setDepsRequested(stats.getDepsRequested())
+              .setDirtied(stats.getDirtied())
+              .setChanged(stats.getChanged())
+              .setClean(stats.getClean()));
+    }
+    return skyframeMetrics.build();
+  }
 }
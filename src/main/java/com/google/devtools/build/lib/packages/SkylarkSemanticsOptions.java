@@ -70,6 +70,17 @@ public class SkylarkSemanticsOptions extends OptionsBase implements Serializable
               + "we will be making breaking changes.")
   public List<String> experimentalCcSkylarkApiEnabledPackages;
 
+  @Option(
+      name = "experimental_compile_skylark_functions",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = OptionEffectTag.LOADING_AND_ANALYSIS,
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If set to true, the bodies of Skylark functions are compiled to a bytecode with "
+              + "resolved local variables before they are executed.")
+  public boolean experimentalCompileSkylarkFunctions;
+
   @Option(
       name = "experimental_enable_repo_mapping",
       defaultValue = "false",
@@ -416,6 +427,7 @@ public class SkylarkSemanticsOptions extends OptionsBase implements Serializable
     return SkylarkSemantics.builder()
         // <== Add new options here in alphabetic order ==>
         .experimentalCcSkylarkApiEnabledPackages(experimentalCcSkylarkApiEnabledPackages)
+        .experimentalCompileSkylarkFunctions(experimentalCompileSkylarkFunctions)
         .experimentalEnableRepoMapping(experimentalEnableRepoMapping)
         .experimentalRemapMainRepo(experimentalRemapMainRepo)
         .incompatibleBzlDisallowLoadAfterStatement(incompatibleBzlDisallowLoadAfterStatement)
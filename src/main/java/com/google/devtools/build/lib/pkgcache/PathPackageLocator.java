@@ -24,12 +24,18 @@ import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.packages.BuildFileName;
 import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
+import com.google.devtools.build.lib.skyframe.serialization.DeserializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodec;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
 import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.lib.vfs.UnixGlob;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -289,4 +295,33 @@ public class PathPackageLocator implements Serializable {
   public Path getOutputBase() {
     return outputBase;
   }
+
+  /**
+   * Codec that keeps the output base, which Java serialization leaves out, so that a deserialized
+   * locator is equal to the original one.
+   */
+  private static class PathPackageLocatorCodec implements ObjectCodec<PathPackageLocator> {
+    @Override
+    public Class<PathPackageLocator> getEncodedClass() {
+      return PathPackageLocator.class;
+    }
+
+    @Override
+    public void serialize(
+        SerializationContext context, PathPackageLocator input, CodedOutputStream codedOut)
+        throws SerializationException, IOException {
+      context.serialize(input.outputBase, codedOut);
+      context.serialize(input.pathEntries, codedOut);
+      context.serialize(input.buildFilesByPriority, codedOut);
+    }
+
+    @Override
+    public PathPackageLocator deserialize(DeserializationContext context, CodedInputStream codedIn)
+        throws SerializationException, IOException {
+      Path outputBase = context.deserialize(codedIn);
+      ImmutableList<Root> pathEntries = context.deserialize(codedIn);
+      ImmutableList<BuildFileName> buildFilesByPriority = context.deserialize(codedIn);
+      return new PathPackageLocator(outputBase, pathEntries, buildFilesByPriority);
+    }
+  }
 }
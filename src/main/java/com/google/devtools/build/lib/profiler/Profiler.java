@@ -38,18 +38,21 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
 
 /**
  * Blaze internal profiler. Provides facility to report various Blaze tasks and store them
@@ -58,7 +61,9 @@ import java.util.zip.GZIPOutputStream;
  * <p>Implemented as singleton so any caller should use Profiler.instance() to obtain reference.
  *
  * <p>Internally, profiler uses two data structures - ThreadLocal task stack to track nested tasks
- * and single ConcurrentLinkedQueue to gather all completed tasks.
+ * and a bounded {@link TaskRingBuffer} per thread to hand completed tasks to the writer thread.
+ * Recording a task neither locks nor allocates; a thread whose buffer is full waits for the writer
+ * to catch up, so that a slow disk cannot make the profiler use unbounded memory.
  *
  * <p>Also, due to the nature of the provided functionality (instrumentation of all Blaze
  * components), build.lib.profiler package will be used by almost every other Blaze package, so
@@ -140,8 +145,6 @@ public final class Profiler {
 
   private static final int HISTOGRAM_BUCKETS = 20;
 
-  private static final TaskData POISON_PILL = new TaskData(0, 0, null, null, "poison pill");
-
   /** File format enum. */
   public enum Format {
     BINARY_BAZEL_FORMAT,
@@ -155,10 +158,10 @@ public final class Profiler {
     final String description;
     final ProfilerTask type;
 
-    private SlowTask(TaskData taskData) {
-      this.durationNanos = taskData.duration;
-      this.description = taskData.description;
-      this.type = taskData.type;
+    private SlowTask(long durationNanos, String description, ProfilerTask type) {
+      this.durationNanos = durationNanos;
+      this.description = description;
+      this.type = type;
     }
 
     @Override
@@ -188,7 +191,8 @@ public final class Profiler {
 
   /**
    * Container for the single task record.
-   * Should never be instantiated directly - use TaskStack.create() instead.
+   * Should never be instantiated directly - use TaskStack.push() instead, which reuses the
+   * instances of completed tasks.
    *
    * Class itself is not thread safe, but all access to it from Profiler
    * methods is.
@@ -196,24 +200,31 @@ public final class Profiler {
   @ThreadCompatible
   private static final class TaskData {
     final long threadId;
-    final long startTimeNanos;
-    final int id;
-    final int parentId;
-    final ProfilerTask type;
-    final String description;
+    long startTimeNanos;
+    int id;
+    int parentId;
+    ProfilerTask type;
+    String description;
 
     long duration;
     int[] counts; // number of invocations per ProfilerTask type
     long[] durations; // time spend in the task per ProfilerTask type
 
-    TaskData(
+    TaskData() {
+      this.threadId = Thread.currentThread().getId();
+    }
+
+    void init(
         int id, long startTimeNanos, TaskData parent, ProfilerTask eventType, String description) {
       this.id = id;
-      this.threadId = Thread.currentThread().getId();
       this.parentId = (parent == null  ? 0 : parent.id);
       this.startTimeNanos = startTimeNanos;
       this.type = eventType;
       this.description = Preconditions.checkNotNull(description);
+      // The arrays may still be referenced by the record of the previous task, so don't reuse them.
+      this.duration = 0;
+      this.counts = null;
+      this.durations = null;
     }
 
     /** Aggregates information about an *immediate* subtask. */
@@ -234,54 +245,72 @@ public final class Profiler {
     }
   }
 
+  /**
+   * The open tasks of a single thread, innermost last. The {@link TaskData} instances beyond
+   * {@link #size} belong to completed tasks and are reused for the next tasks of the thread.
+   */
+  @ThreadCompatible
+  private static final class OpenTasks {
+    final List<TaskData> tasks = new ArrayList<>();
+    int size;
+  }
+
   /**
    * Tracks nested tasks for each thread.
    *
-   * java.util.ArrayDeque is the most efficient stack implementation in the
-   * Java Collections Framework (java.util.Stack class is older synchronized
-   * alternative). It is, however, used here strictly for LIFO operations.
-   * However, ArrayDeque is 1.6 only. For 1.5 best approach would be to utilize
-   * ArrayList and emulate stack using it.
+   * <p>The stack is an ArrayList of reusable {@link TaskData} instances rather than a
+   * java.util.ArrayDeque, so that nested tasks can be profiled without allocating.
    */
   @ThreadSafe
-  private final class TaskStack extends ThreadLocal<List<TaskData>> {
+  private final class TaskStack extends ThreadLocal<OpenTasks> {
     @Override
-    public List<TaskData> initialValue() {
-      return new ArrayList<>();
+    public OpenTasks initialValue() {
+      return new OpenTasks();
     }
 
     public TaskData peek() {
-      List<TaskData> list = get();
-      if (list.isEmpty()) {
+      OpenTasks open = get();
+      if (open.size == 0) {
         return null;
       }
-      return list.get(list.size() - 1);
+      return open.tasks.get(open.size - 1);
     }
 
+    /**
+     * Removes the innermost task. The returned instance is reused by the next {@link #push} on this
+     * thread.
+     */
     public TaskData pop() {
-      List<TaskData> list = get();
-      return list.remove(list.size() - 1);
+      OpenTasks open = get();
+      Preconditions.checkState(open.size > 0, "No open task");
+      return open.tasks.get(--open.size);
     }
 
     public boolean isEmpty() {
-      return get().isEmpty();
+      return get().size == 0;
     }
 
     public void push(ProfilerTask eventType, String description) {
-      get().add(create(clock.nanoTime(), eventType, description));
-    }
-
-    public TaskData create(long startTimeNanos, ProfilerTask eventType, String description) {
-      return new TaskData(taskId.incrementAndGet(), startTimeNanos, peek(), eventType, description);
+      OpenTasks open = get();
+      TaskData parent = open.size == 0 ? null : open.tasks.get(open.size - 1);
+      TaskData data;
+      if (open.size == open.tasks.size()) {
+        data = new TaskData();
+        open.tasks.add(data);
+      } else {
+        data = open.tasks.get(open.size);
+      }
+      open.size++;
+      data.init(taskId.incrementAndGet(), clock.nanoTime(), parent, eventType, description);
     }
 
     @Override
     public String toString() {
       StringBuilder builder = new StringBuilder(
           "Current task stack for thread " + Thread.currentThread().getName() + ":\n");
-      List<TaskData> list = get();
-      for (int i = list.size() - 1; i >= 0; i--) {
-        builder.append(list.get(i));
+      OpenTasks open = get();
+      for (int i = open.size - 1; i >= 0; i--) {
+        builder.append(open.tasks.get(i));
         builder.append("\n");
       }
       return builder.toString();
@@ -289,12 +318,13 @@ public final class Profiler {
   }
 
   /**
-   * Implements datastore for object description indices. Intended to be used only by the
-   * Profiler.save() method.
+   * Implements the string table of the binary format: assigns an index to every distinct
+   * description, so that each one is written to the file only once. Intended to be used only by
+   * the {@link BinaryFormatWriter}.
    */
   @ThreadCompatible
   private static final class ObjectDescriber {
-    private Map<Object, Integer> descMap = new IdentityHashMap<>(2000);
+    private Map<String, Integer> descMap = new HashMap<>(2000);
     private int indexCounter = 0;
 
     ObjectDescriber() { }
@@ -352,11 +382,11 @@ public final class Profiler {
     }
 
     // @ThreadSafe
-    void add(TaskData taskData) {
+    void add(long durationNanos, String description, ProfilerTask type) {
       Extrema<SlowTask> extrema =
           extremaAggregators[(int) (Thread.currentThread().getId() % SHARDS)];
       synchronized (extrema) {
-        extrema.aggregate(new SlowTask(taskData));
+        extrema.aggregate(new SlowTask(durationNanos, description, type));
       }
     }
 
@@ -474,6 +504,11 @@ public final class Profiler {
 
   private final StatRecorder[] tasksHistograms = new StatRecorder[ProfilerTask.values().length];
 
+  /**
+   * The closeables returned by {@link #profile}, one per task type, so that it does not allocate.
+   */
+  private final SilentCloseable[] taskCompleters = new SilentCloseable[TASK_COUNT];
+
   /** Thread that collects local cpu usage data (if enabled). */
   private CollectLocalCpuUsage cpuUsageThread;
 
@@ -483,6 +518,7 @@ public final class Profiler {
       if (task.slowestInstancesCount != 0) {
         slowestTasks[task.ordinal()] = new SlowestTaskAggregator(task.slowestInstancesCount);
       }
+      taskCompleters[task.ordinal()] = () -> completeTask(task);
     }
   }
 
@@ -674,7 +710,7 @@ public final class Profiler {
   }
 
   /**
-   * Adds task directly to the main queue bypassing task stack. Used for simple tasks that are known
+   * Adds task directly to the writer bypassing task stack. Used for simple tasks that are known
    * to not have any subtasks.
    *
    * @param startTimeNanos task start time (obtained through {@link Profiler#nanoTimeMaybe()})
@@ -707,16 +743,16 @@ public final class Profiler {
       parent.aggregateChild(type, duration);
     }
     if (wasTaskSlowEnoughToRecord(type, duration)) {
-      TaskData data = localStack.create(startTimeNanos, type, description);
-      data.duration = duration;
+      int id = taskId.incrementAndGet();
       if (currentWriter != null) {
-        currentWriter.enqueue(data);
+        currentWriter.enqueue(
+            id, parent == null ? 0 : parent.id, startTimeNanos, duration, type, description);
       }
 
       SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
 
       if (aggregator != null) {
-        aggregator.add(data);
+        aggregator.add(duration, description, type);
       }
     }
   }
@@ -814,7 +850,7 @@ public final class Profiler {
     Preconditions.checkNotNull(description);
     if (isActive() && isProfiling(type)) {
       taskStack.push(type, description);
-      return () -> completeTask(type);
+      return taskCompleters[type.ordinal()];
     } else {
       return () -> {};
     }
@@ -876,7 +912,7 @@ public final class Profiler {
       if (shouldRecordTask) {
         SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
         if (aggregator != null) {
-          aggregator.add(data);
+          aggregator.add(data.duration, data.description, type);
         }
       }
     }
@@ -891,19 +927,42 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Writes completed tasks to the profile on a separate thread.
+   *
+   * <p>Every recording thread gets its own {@link TaskRingBuffer}, which the writer thread drains.
+   * If a buffer is full, the recording thread waits until the writer thread has made room.
+   */
   private abstract static class FileWriter implements Runnable {
-    protected final BlockingQueue<TaskData> queue;
+    /** The number of tasks a recording thread can publish before it has to wait for the writer. */
+    private static final int BUFFER_CAPACITY = 1024;
+
+    /** How long the writer thread sleeps when there is nothing to write. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /** How long a recording thread sleeps before retrying when its buffer is full. */
+    private static final long FULL_BUFFER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
     protected final Thread thread;
     protected IOException savedException;
 
+    private final ThreadLocal<TaskRingBuffer> localBuffer =
+        ThreadLocal.withInitial(this::registerBuffer);
+    /** Buffers of threads that recorded their first task since the last drain. */
+    private final Queue<TaskRingBuffer> newBuffers = new ConcurrentLinkedQueue<>();
+    /** Buffers of threads that may have recorded tasks. Only used by the writer thread. */
+    private final List<TaskRingBuffer> buffers = new ArrayList<>();
+
+    private volatile boolean stopped;
+
     FileWriter() {
-      this.queue = new LinkedBlockingDeque<>();
       this.thread = new Thread(this);
     }
 
     public void shutdown() throws IOException {
-      // Add poison pill to queue and then wait for writer thread to shut down.
-      queue.add(POISON_PILL);
+      // Ask the writer thread to write the remaining tasks and then wait for it to shut down.
+      stopped = true;
+      LockSupport.unpark(thread);
       try {
         thread.join();
       } catch (InterruptedException e) {
@@ -919,28 +978,175 @@ public final class Profiler {
       thread.start();
     }
 
+    /** Records a task that was completed on the current thread. */
     public void enqueue(TaskData data) {
-      queue.add(data);
+      TaskRingBuffer buffer = localBuffer.get();
+      TaskRingBuffer.Slot slot = claim(buffer);
+      if (slot != null) {
+        slot.id = data.id;
+        slot.parentId = data.parentId;
+        slot.startTimeNanos = data.startTimeNanos;
+        slot.duration = data.duration;
+        slot.type = data.type;
+        slot.description = data.description;
+        slot.counts = data.counts;
+        slot.durations = data.durations;
+        buffer.publish();
+      }
+    }
+
+    /** Records a task without subtasks that was completed on the current thread. */
+    public void enqueue(
+        int id,
+        int parentId,
+        long startTimeNanos,
+        long duration,
+        ProfilerTask type,
+        String description) {
+      TaskRingBuffer buffer = localBuffer.get();
+      TaskRingBuffer.Slot slot = claim(buffer);
+      if (slot != null) {
+        slot.id = id;
+        slot.parentId = parentId;
+        slot.startTimeNanos = startTimeNanos;
+        slot.duration = duration;
+        slot.type = type;
+        slot.description = description;
+        buffer.publish();
+      }
+    }
+
+    private TaskRingBuffer registerBuffer() {
+      TaskRingBuffer buffer = new TaskRingBuffer(Thread.currentThread(), BUFFER_CAPACITY);
+      newBuffers.add(buffer);
+      return buffer;
+    }
+
+    /**
+     * Returns a free slot of the buffer, waiting for the writer thread if necessary, or null if the
+     * task should be dropped because nothing drains the buffer anymore.
+     */
+    @Nullable
+    private TaskRingBuffer.Slot claim(TaskRingBuffer buffer) {
+      TaskRingBuffer.Slot slot;
+      while ((slot = buffer.claim()) == null) {
+        if (stopped || Thread.currentThread() == thread) {
+          return null;
+        }
+        LockSupport.unpark(thread);
+        LockSupport.parkNanos(this, FULL_BUFFER_PARK_NANOS);
+      }
+      return slot;
+    }
+
+    /** Writes everything that precedes the tasks. */
+    protected abstract void writeHeader() throws IOException;
+
+    /** Writes everything that has to precede the tasks of a thread. */
+    protected void writeThread(TaskRingBuffer buffer) throws IOException {}
+
+    /** Writes a task recorded by the owner of the buffer. */
+    protected abstract void writeTask(TaskRingBuffer buffer, TaskRingBuffer.Slot task)
+        throws IOException;
+
+    /** Writes everything that follows the tasks and closes the output. */
+    protected abstract void writeTrailerAndClose(boolean failed) throws IOException;
+
+    @Override
+    public void run() {
+      try {
+        writeHeader();
+      } catch (IOException e) {
+        savedException = e;
+      }
+      boolean done;
+      do {
+        // Read the flag before draining, so that the last drain sees all tasks published before
+        // the shutdown.
+        done = stopped;
+        if (drain() == 0 && !done) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+      } while (!done);
+      try {
+        writeTrailerAndClose(savedException != null);
+      } catch (IOException e) {
+        if (savedException == null) {
+          savedException = e;
+        }
+      }
+    }
+
+    /**
+     * Writes all published tasks and returns their number. After a failure, tasks are still
+     * released so that the recording threads don't wait, but they are no longer written.
+     */
+    private int drain() {
+      TaskRingBuffer buffer;
+      while ((buffer = newBuffers.poll()) != null) {
+        buffers.add(buffer);
+        if (savedException == null) {
+          try {
+            writeThread(buffer);
+          } catch (IOException e) {
+            savedException = e;
+          }
+        }
+      }
+      int drained = 0;
+      for (Iterator<TaskRingBuffer> it = buffers.iterator(); it.hasNext(); ) {
+        buffer = it.next();
+        // Check this before draining, so that a dead thread's buffer is known to be empty after.
+        boolean ownerAlive = buffer.isOwnerAlive();
+        TaskRingBuffer.Slot task;
+        while ((task = buffer.poll()) != null) {
+          if (savedException == null) {
+            try {
+              writeTask(buffer, task);
+            } catch (IOException e) {
+              savedException = e;
+            }
+          }
+          buffer.release(task);
+          drained++;
+        }
+        if (!ownerAlive) {
+          it.remove();
+        }
+      }
+      return drained;
     }
   }
 
   /** Writes the profile in the binary Bazel profile format. */
   private static class BinaryFormatWriter extends FileWriter {
-    private final OutputStream outStream;
+    private final DataOutputStream out;
     private final long profileStartTime;
     private final String comment;
+    // Allocate the sink once to avoid GC
+    private final ByteBuffer sink = ByteBuffer.allocate(1024);
+    private final ObjectDescriber describer = new ObjectDescriber();
 
     BinaryFormatWriter(OutputStream outStream, long profileStartTime, String comment) {
       // Wrapping deflater stream in the buffered stream proved to reduce CPU consumption caused by
       // the write() method. Values for buffer sizes were chosen by running small amount of tests
       // and identifying point of diminishing returns - but I have not really tried to optimize
       // them.
-      this.outStream = outStream;
+      this.out =
+          new DataOutputStream(
+              new BufferedOutputStream(
+                  new DeflaterOutputStream(
+                      // the DeflaterOutputStream has its own output buffer of 65k, chosen at
+                      // random
+                      outStream, new Deflater(Deflater.BEST_SPEED, false), 65536),
+                  // buffer size, basically chosen at random
+                  262144));
       this.profileStartTime = profileStartTime;
       this.comment = comment;
     }
 
-    private static void writeHeader(DataOutputStream out, String comment) throws IOException {
+    @Override
+    protected void writeHeader() throws IOException {
       out.writeInt(MAGIC); // magic
       out.writeInt(VERSION); // protocol_version
       out.writeUTF(comment);
@@ -952,213 +1158,148 @@ public final class Profiler {
       }
     }
 
-    /**
-     * Saves all gathered information from taskQueue queue to the file.
-     * Method is invoked internally by the Timer-based thread and at the end of
-     * profiling session.
-     */
     @Override
-    public void run() {
-      try {
-        boolean receivedPoisonPill = false;
-        try (DataOutputStream out =
-            new DataOutputStream(
-                new BufferedOutputStream(
-                    new DeflaterOutputStream(
-                        // the DeflaterOutputStream has its own output buffer of 65k, chosen at
-                        // random
-                        outStream, new Deflater(Deflater.BEST_SPEED, false), 65536),
-                    // buffer size, basically chosen at random
-                    262144))) {
-          writeHeader(out, comment);
-          // Allocate the sink once to avoid GC
-          ByteBuffer sink = ByteBuffer.allocate(1024);
-          ObjectDescriber describer = new ObjectDescriber();
-          TaskData data;
-          while ((data = queue.take()) != POISON_PILL) {
-            ((Buffer) sink).clear();
-
-            VarInt.putVarLong(data.threadId, sink);
-            VarInt.putVarInt(data.id, sink);
-            VarInt.putVarInt(data.parentId, sink);
-            VarInt.putVarLong(data.startTimeNanos - profileStartTime, sink);
-            VarInt.putVarLong(data.duration, sink);
-
-            // To save space (and improve performance), convert all description
-            // strings to the canonical object and use IdentityHashMap to assign
-            // unique numbers for each string.
-            int descIndex = describer.getDescriptionIndex(data.description);
-            VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
-
-            // Save types using their ordinal() value
-            sink.put((byte) data.type.ordinal());
-
-            // Save aggregated data stats.
-            if (data.counts != null) {
-              for (int i = 0; i < TASK_COUNT; i++) {
-                if (data.counts[i] > 0) {
-                  sink.put((byte) i); // aggregated type ordinal value
-                  VarInt.putVarInt(data.counts[i], sink);
-                  VarInt.putVarLong(data.durations[i], sink);
-                }
-              }
-            }
-
-            out.writeInt(sink.position());
-            out.write(sink.array(), 0, sink.position());
-            if (describer.isUnassigned(descIndex)) {
-              out.writeUTF(describer.memoizeDescription(data.description));
-            }
+    protected void writeTask(TaskRingBuffer buffer, TaskRingBuffer.Slot data) throws IOException {
+      ((Buffer) sink).clear();
+
+      VarInt.putVarLong(buffer.getThreadId(), sink);
+      VarInt.putVarInt(data.id, sink);
+      VarInt.putVarInt(data.parentId, sink);
+      VarInt.putVarLong(data.startTimeNanos - profileStartTime, sink);
+      VarInt.putVarLong(data.duration, sink);
+
+      // To save space (and improve performance), every distinct description string is written
+      // only once and then referred to by its index in the string table.
+      int descIndex = describer.getDescriptionIndex(data.description);
+      VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
+
+      // Save types using their ordinal() value
+      sink.put((byte) data.type.ordinal());
+
+      // Save aggregated data stats.
+      if (data.counts != null) {
+        for (int i = 0; i < TASK_COUNT; i++) {
+          if (data.counts[i] > 0) {
+            sink.put((byte) i); // aggregated type ordinal value
+            VarInt.putVarInt(data.counts[i], sink);
+            VarInt.putVarLong(data.durations[i], sink);
           }
-          receivedPoisonPill = true;
+        }
+      }
+
+      out.writeInt(sink.position());
+      out.write(sink.array(), 0, sink.position());
+      if (describer.isUnassigned(descIndex)) {
+        out.writeUTF(describer.memoizeDescription(data.description));
+      }
+    }
+
+    @Override
+    protected void writeTrailerAndClose(boolean failed) throws IOException {
+      try (DataOutputStream out = this.out) {
+        if (!failed) {
           out.writeInt(EOF_MARKER);
-        } catch (IOException e) {
-          this.savedException = e;
-          if (!receivedPoisonPill) {
-            while (queue.take() != POISON_PILL) {
-              // We keep emptying the queue, but we can't write anything.
-            }
-          }
         }
-      } catch (InterruptedException e) {
-        // Exit silently.
       }
     }
   }
 
   /** Writes the profile in Json Trace file format. */
   private static class JsonTraceFileWriter extends FileWriter {
-    private final OutputStream outStream;
+    private final JsonWriter writer;
     private final long profileStartTimeNanos;
-    private final ThreadLocal<Boolean> metadataPosted =
-        ThreadLocal.withInitial(() -> Boolean.FALSE);
     // The JDK never returns 0 as thread id so we use that as fake thread id for the critical path.
     private static final long CRITICAL_PATH_THREAD_ID = 0;
 
     JsonTraceFileWriter(OutputStream outStream, long profileStartTimeNanos) {
-      this.outStream = outStream;
+      this.writer =
+          new JsonWriter(
+              // The buffer size of 262144 is chosen at random.
+              new OutputStreamWriter(
+                  new BufferedOutputStream(outStream, 262144), StandardCharsets.UTF_8));
       this.profileStartTimeNanos = profileStartTimeNanos;
     }
 
     @Override
-    public void enqueue(TaskData data) {
-      if (!metadataPosted.get().booleanValue()) {
-        metadataPosted.set(Boolean.TRUE);
-        // Create a TaskData object that is special-cased below.
-        queue.add(
-            new TaskData(
-                /* id= */ 0,
-                /* startTimeNanos= */ -1,
-                /* parent= */ null,
-                ProfilerTask.THREAD_NAME,
-                Thread.currentThread().getName()));
+    protected void writeHeader() throws IOException {
+      writer.beginArray();
+
+      // Generate metadata event for the critical path as thread 0 in disguise.
+      writeThreadName(CRITICAL_PATH_THREAD_ID, "Critical Path");
+    }
+
+    @Override
+    protected void writeThread(TaskRingBuffer buffer) throws IOException {
+      writeThreadName(buffer.getThreadId(), buffer.getThreadName());
+    }
+
+    private void writeThreadName(long threadId, String name) throws IOException {
+      writer.setIndent("  ");
+      writer.beginObject();
+      writer.setIndent("");
+      writer.name("name").value("thread_name");
+      writer.name("ph").value("M");
+      writer.name("pid").value(1);
+      writer.name("tid").value(threadId);
+      writer.name("args");
+
+      writer.beginObject();
+      writer.name("name").value(name);
+      writer.endObject();
+
+      writer.endObject();
+    }
+
+    @Override
+    protected void writeTask(TaskRingBuffer buffer, TaskRingBuffer.Slot data) throws IOException {
+      if (data.type == ProfilerTask.LOCAL_CPU_USAGE) {
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.setIndent("");
+        writer.name("name").value(data.type.description);
+        writer.name("ph").value("C");
+        writer
+            .name("ts")
+            .value(TimeUnit.NANOSECONDS.toMicros(data.startTimeNanos - profileStartTimeNanos));
+        writer.name("pid").value(1);
+        writer.name("tid").value(buffer.getThreadId());
+        writer.name("args");
+
+        writer.beginObject();
+        writer.name("cpu").value(data.description);
+        writer.endObject();
+
+        writer.endObject();
+        return;
       }
-      queue.add(data);
+      String eventType = data.duration == 0 ? "i" : "X";
+      writer.setIndent("  ");
+      writer.beginObject();
+      writer.setIndent("");
+      writer.name("cat").value(data.type.description);
+      writer.name("name").value(data.description);
+      writer.name("ph").value(eventType);
+      writer.name("ts")
+          .value(TimeUnit.NANOSECONDS.toMicros(data.startTimeNanos - profileStartTimeNanos));
+      if (data.duration != 0) {
+        writer.name("dur").value(TimeUnit.NANOSECONDS.toMicros(data.duration));
+      }
+      writer.name("pid").value(1);
+      long threadId =
+          data.type == ProfilerTask.CRITICAL_PATH_COMPONENT
+              ? CRITICAL_PATH_THREAD_ID
+              : buffer.getThreadId();
+      writer.name("tid").value(threadId);
+      writer.endObject();
     }
 
-    /**
-     * Saves all gathered information from taskQueue queue to the file.
-     * Method is invoked internally by the Timer-based thread and at the end of
-     * profiling session.
-     */
     @Override
-    public void run() {
-      try {
-        boolean receivedPoisonPill = false;
-        try (JsonWriter writer =
-            new JsonWriter(
-                // The buffer size of 262144 is chosen at random.
-                new OutputStreamWriter(
-                    new BufferedOutputStream(outStream, 262144), StandardCharsets.UTF_8))) {
-          writer.beginArray();
-          TaskData data;
-
-          // Generate metadata event for the critical path as thread 0 in disguise.
-          writer.setIndent("  ");
-          writer.beginObject();
-          writer.setIndent("");
-          writer.name("name").value("thread_name");
-          writer.name("ph").value("M");
-          writer.name("pid").value(1);
-          writer.name("tid").value(CRITICAL_PATH_THREAD_ID);
-          writer.name("args");
-          writer.beginObject();
-          writer.name("name").value("Critical Path");
-          writer.endObject();
-          writer.endObject();
-
-          while ((data = queue.take()) != POISON_PILL) {
-            if (data.type == ProfilerTask.THREAD_NAME) {
-              writer.setIndent("  ");
-              writer.beginObject();
-              writer.setIndent("");
-              writer.name("name").value("thread_name");
-              writer.name("ph").value("M");
-              writer.name("pid").value(1);
-              writer.name("tid").value(data.threadId);
-              writer.name("args");
-
-              writer.beginObject();
-              writer.name("name").value(data.description);
-              writer.endObject();
-
-              writer.endObject();
-              continue;
-            }
-            if (data.type == ProfilerTask.LOCAL_CPU_USAGE) {
-              writer.setIndent("  ");
-              writer.beginObject();
-              writer.setIndent("");
-              writer.name("name").value(data.type.description);
-              writer.name("ph").value("C");
-              writer
-                  .name("ts")
-                  .value(
-                      TimeUnit.NANOSECONDS.toMicros(data.startTimeNanos - profileStartTimeNanos));
-              writer.name("pid").value(1);
-              writer.name("tid").value(data.threadId);
-              writer.name("args");
-
-              writer.beginObject();
-              writer.name("cpu").value(data.description);
-              writer.endObject();
-
-              writer.endObject();
-              continue;
-            }
-            String eventType = data.duration == 0 ? "i" : "X";
-            writer.setIndent("  ");
-            writer.beginObject();
-            writer.setIndent("");
-            writer.name("cat").value(data.type.description);
-            writer.name("name").value(data.description);
-            writer.name("ph").value(eventType);
-            writer.name("ts")
-                .value(TimeUnit.NANOSECONDS.toMicros(data.startTimeNanos - profileStartTimeNanos));
-            if (data.duration != 0) {
-              writer.name("dur").value(TimeUnit.NANOSECONDS.toMicros(data.duration));
-            }
-            writer.name("pid").value(1);
-            long threadId =
-                data.type == ProfilerTask.CRITICAL_PATH_COMPONENT
-                    ? CRITICAL_PATH_THREAD_ID
-                    : data.threadId;
-            writer.name("tid").value(threadId);
-            writer.endObject();
-          }
-          receivedPoisonPill = true;
+    protected void writeTrailerAndClose(boolean failed) throws IOException {
+      try (JsonWriter writer = this.writer) {
+        if (!failed) {
           writer.setIndent("  ");
           writer.endArray();
-        } catch (IOException e) {
-          this.savedException = e;
-          if (!receivedPoisonPill) {
-            while (queue.take() != POISON_PILL) {
-              // We keep emptying the queue, but we can't write anything.
-            }
-          }
         }
-      } catch (InterruptedException e) {
-        // Exit silently.
       }
     }
   }
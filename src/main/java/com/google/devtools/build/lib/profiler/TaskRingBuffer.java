@@ -0,0 +1,137 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded queue of completed tasks with a single producer, the thread that recorded them, and a
+ * single consumer, the thread that writes the profile.
+ *
+ * <p>Neither side locks or allocates: all slots are allocated up front and reused. The producer
+ * fills in the next free slot and publishes it by advancing the tail, and the consumer reads the
+ * published slots in order and hands them back by advancing the head.
+ */
+@ThreadSafe
+final class TaskRingBuffer {
+  /**
+   * A completed task. The producer may only modify a slot between {@link #claim} and {@link
+   * #publish}, and the consumer may only read it between {@link #poll} and {@link #release}.
+   */
+  static final class Slot {
+    int id;
+    int parentId;
+    long startTimeNanos;
+    long duration;
+    ProfilerTask type;
+    String description;
+    @Nullable int[] counts; // number of invocations per ProfilerTask type
+    @Nullable long[] durations; // time spend in the task per ProfilerTask type
+  }
+
+  private final Thread owner;
+  private final String threadName;
+  private final Slot[] slots;
+  private final int mask;
+
+  /** The position of the next slot to read. Only advanced by the consumer. */
+  private final AtomicLong head = new AtomicLong();
+  /** The position of the next slot to write. Only advanced by the producer. */
+  private final AtomicLong tail = new AtomicLong();
+
+  /** The last value of {@link #head} seen by the producer. */
+  private long producerHead;
+  /** The last value of {@link #tail} seen by the consumer. */
+  private long consumerTail;
+
+  /** Creates a buffer for tasks recorded by {@code owner}, which must be a power of two. */
+  TaskRingBuffer(Thread owner, int capacity) {
+    Preconditions.checkArgument(
+        capacity > 0 && Integer.bitCount(capacity) == 1,
+        "capacity must be a power of two: %s",
+        capacity);
+    this.owner = owner;
+    this.threadName = owner.getName();
+    this.slots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+    }
+    this.mask = capacity - 1;
+  }
+
+  long getThreadId() {
+    return owner.getId();
+  }
+
+  /** Returns the name of the recording thread at the time this buffer was created. */
+  String getThreadName() {
+    return threadName;
+  }
+
+  /**
+   * Returns whether the recording thread may still publish tasks. Once this returns false, all
+   * tasks it published are visible to {@link #poll}.
+   */
+  boolean isOwnerAlive() {
+    return owner.isAlive();
+  }
+
+  int capacity() {
+    return slots.length;
+  }
+
+  /** Returns the next free slot, or null if the buffer is full. Producer only. */
+  @Nullable
+  Slot claim() {
+    long position = tail.get();
+    if (position - producerHead == slots.length) {
+      producerHead = head.get();
+      if (position - producerHead == slots.length) {
+        return null;
+      }
+    }
+    return slots[(int) position & mask];
+  }
+
+  /** Makes the slot returned by the last {@link #claim} visible to the consumer. Producer only. */
+  void publish() {
+    tail.lazySet(tail.get() + 1);
+  }
+
+  /** Returns the oldest published slot, or null if there is none. Consumer only. */
+  @Nullable
+  Slot poll() {
+    long position = head.get();
+    if (position == consumerTail) {
+      consumerTail = tail.get();
+      if (position == consumerTail) {
+        return null;
+      }
+    }
+    return slots[(int) position & mask];
+  }
+
+  /** Hands the slot returned by the last {@link #poll} back to the producer. Consumer only. */
+  void release(Slot slot) {
+    // Do not keep descriptions and aggregated stats alive until the slot is reused.
+    slot.type = null;
+    slot.description = null;
+    slot.counts = null;
+    slot.durations = null;
+    head.lazySet(head.get() + 1);
+  }
+}
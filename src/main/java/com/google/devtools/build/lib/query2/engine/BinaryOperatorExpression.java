@@ -16,13 +16,10 @@ package com.google.devtools.build.lib.query2.engine;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryTaskCallable;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryTaskFuture;
-import com.google.devtools.build.lib.query2.engine.QueryEnvironment.ThreadSafeMutableSet;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 /**
  * A binary algebraic set operation.
@@ -94,39 +91,26 @@ public class BinaryOperatorExpression extends QueryExpression {
   /**
    * Evaluates an expression of the form "e1 - e2 - ... - eK" by noting its equivalence to "e1 - (e2
    * + ... + eK)" and evaluating the subexpressions on the right-hand-side separately.
+   *
+   * <p>The right-hand side is collected into a {@link Uniquifier}, which only has to remember the
+   * identity of its elements, and e1 is then streamed through it without being collected at all.
    */
   private static <T> QueryTaskFuture<Void> evalMinus(
       final ImmutableList<QueryExpression> operands,
       final QueryEnvironment<T> env,
       final QueryExpressionContext<T> context,
       final Callback<T> callback) {
-    QueryTaskFuture<ThreadSafeMutableSet<T>> lhsValueFuture =
-        QueryUtil.evalAll(env, context, operands.get(0));
-    Function<ThreadSafeMutableSet<T>, QueryTaskFuture<Void>> subtractAsyncFunction =
-        lhsValue -> {
-          final Set<T> threadSafeLhsValue = lhsValue;
-          Callback<T> subtractionCallback =
-              new Callback<T>() {
-                @Override
-                public void process(Iterable<T> partialResult) {
-                  for (T target : partialResult) {
-                    threadSafeLhsValue.remove(target);
-                  }
-                }
-              };
-          QueryTaskFuture<Void> rhsEvaluatedFuture =
-              evalPlus(operands.subList(1, operands.size()), env, context, subtractionCallback);
-          return env.whenSucceedsCall(
-              rhsEvaluatedFuture,
-              new QueryTaskCallable<Void>() {
-                @Override
-                public Void call() throws QueryException, InterruptedException {
-                  callback.process(threadSafeLhsValue);
-                  return null;
-                }
-              });
-        };
-    return env.transformAsync(lhsValueFuture, subtractAsyncFunction);
+    Uniquifier<T> rhsValue = env.createUniquifier();
+    QueryTaskFuture<Void> rhsEvaluatedFuture =
+        evalPlus(
+            operands.subList(1, operands.size()), env, context, newCollectingCallback(rhsValue));
+    Function<Void, QueryTaskFuture<Void>> evalLhsAsyncFunction =
+        unused ->
+            env.eval(
+                operands.get(0),
+                context,
+                newFilteringCallback(ImmutableList.of(rhsValue), /*keepSeen=*/ false, callback));
+    return env.transformAsync(rhsEvaluatedFuture, evalLhsAsyncFunction);
   }
 
   private <T> QueryTaskFuture<Void> evalIntersect(
@@ -134,45 +118,80 @@ public class BinaryOperatorExpression extends QueryExpression {
       final QueryExpressionContext<T> context,
       final Callback<T> callback) {
     // For each right-hand side operand, intersection cannot be performed in a streaming manner; the
-    // entire result of that operand is needed. So, in order to avoid pinning too much in memory at
-    // once, we process each right-hand side operand one at a time and throw away that operand's
-    // result.
-    // TODO(bazel-team): Consider keeping just the name / label of the right-hand side results
-    // instead of the potentially heavy-weight instances of type T. This would let us process all
-    // right-hand side operands in parallel without worrying about memory usage.
-    QueryTaskFuture<ThreadSafeMutableSet<T>> rollingResultFuture =
-        QueryUtil.evalAll(env, context, operands.get(0));
+    // entire result of that operand is needed. So we collect the right-hand side operands into
+    // Uniquifiers, which only remember the identity of their elements and are cheap enough to be
+    // evaluated all in parallel, and then stream the left-hand side operand through them.
+    ImmutableList.Builder<Uniquifier<T>> rhsValuesBuilder = ImmutableList.builder();
+    ArrayList<QueryTaskFuture<Void>> rhsEvaluatedFutures = new ArrayList<>(operands.size() - 1);
     for (int i = 1; i < operands.size(); i++) {
-      final int index = i;
-      Function<ThreadSafeMutableSet<T>, QueryTaskFuture<ThreadSafeMutableSet<T>>>
-          evalOperandAndIntersectAsyncFunction =
-              rollingResult -> {
-                final QueryTaskFuture<ThreadSafeMutableSet<T>> rhsOperandValueFuture =
-                    QueryUtil.evalAll(env, context, operands.get(index));
-                return env.whenSucceedsCall(
-                    rhsOperandValueFuture,
-                    new QueryTaskCallable<ThreadSafeMutableSet<T>>() {
-                      @Override
-                      public ThreadSafeMutableSet<T> call()
-                          throws QueryException, InterruptedException {
-                        rollingResult.retainAll(rhsOperandValueFuture.getIfSuccessful());
-                        return rollingResult;
-                      }
-                    });
-              };
-      rollingResultFuture =
-          env.transformAsync(rollingResultFuture, evalOperandAndIntersectAsyncFunction);
+      Uniquifier<T> rhsValue = env.createUniquifier();
+      rhsValuesBuilder.add(rhsValue);
+      rhsEvaluatedFutures.add(
+          env.eval(operands.get(i), context, newCollectingCallback(rhsValue)));
     }
-    final QueryTaskFuture<ThreadSafeMutableSet<T>> resultFuture = rollingResultFuture;
-    return env.whenSucceedsCall(
-        resultFuture,
-        new QueryTaskCallable<Void>() {
-          @Override
-          public Void call() throws QueryException, InterruptedException {
-            callback.process(resultFuture.getIfSuccessful());
-            return null;
+    ImmutableList<Uniquifier<T>> rhsValues = rhsValuesBuilder.build();
+    Function<Void, QueryTaskFuture<Void>> evalLhsAsyncFunction =
+        unused ->
+            env.eval(
+                operands.get(0),
+                context,
+                newFilteringCallback(rhsValues, /*keepSeen=*/ true, callback));
+    return env.transformAsync(env.whenAllSucceed(rhsEvaluatedFutures), evalLhsAsyncFunction);
+  }
+
+  /**
+   * Returns a {@link Callback} that marks all the elements it is given as seen by {@code value}.
+   */
+  private static <T> Callback<T> newCollectingCallback(Uniquifier<T> value) {
+    return new Callback<T>() {
+      @Override
+      public void process(Iterable<T> partialResult) throws QueryException {
+        for (T target : partialResult) {
+          value.unique(target);
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a {@link Callback} that passes on to {@code callback} the elements that were seen by
+   * all of {@code values} if {@code keepSeen}, or by none of them otherwise.
+   *
+   * <p>The {@code values} must not change anymore, which is what makes their {@link
+   * Uniquifier#uniquePure} safe to use.
+   */
+  private static <T> Callback<T> newFilteringCallback(
+      ImmutableList<Uniquifier<T>> values, boolean keepSeen, Callback<T> callback) {
+    return new Callback<T>() {
+      @Override
+      public void process(Iterable<T> partialResult) throws QueryException, InterruptedException {
+        ImmutableList.Builder<T> result = ImmutableList.builder();
+        for (T target : partialResult) {
+          if (keepSeen ? seenByAll(target) : seenByNone(target)) {
+            result.add(target);
+          }
+        }
+        callback.process(result.build());
+      }
+
+      private boolean seenByAll(T target) {
+        for (Uniquifier<T> value : values) {
+          if (value.uniquePure(target)) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      private boolean seenByNone(T target) {
+        for (Uniquifier<T> value : values) {
+          if (!value.uniquePure(target)) {
+            return false;
           }
-        });
+        }
+        return true;
+      }
+    };
   }
 
   @Override
@@ -0,0 +1,61 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of the non-negative ids of an {@link IdInterner}, stored as bits.
+ *
+ * <p>Like a roaring bitmap, the ids are split into fixed-size ranges and the bits of a range are
+ * only allocated once an id in it is added. Adding is lock-free apart from the first add to a
+ * range.
+ */
+@ThreadSafe
+final class ConcurrentIdBitSet {
+  private static final int ID_BITS_PER_BLOCK = 12;
+  private static final int WORDS_PER_BLOCK = (1 << ID_BITS_PER_BLOCK) / Long.SIZE;
+
+  private final IdBlocks<AtomicLongArray> blocks =
+      new IdBlocks<>(() -> new AtomicLongArray(WORDS_PER_BLOCK));
+
+  /** Adds {@code id} and returns whether it wasn't already in the set. */
+  boolean add(int id) {
+    AtomicLongArray block = blocks.getOrCreate(id >>> ID_BITS_PER_BLOCK);
+    int word = wordInBlock(id);
+    long mask = 1L << id;
+    while (true) {
+      long bits = block.get(word);
+      if ((bits & mask) != 0) {
+        return false;
+      }
+      if (block.compareAndSet(word, bits, bits | mask)) {
+        return true;
+      }
+    }
+  }
+
+  boolean contains(int id) {
+    if (id < 0) {
+      return false;
+    }
+    AtomicLongArray block = blocks.get(id >>> ID_BITS_PER_BLOCK);
+    return block != null && (block.get(wordInBlock(id)) & (1L << id)) != 0;
+  }
+
+  private static int wordInBlock(int id) {
+    return (id >>> 6) & (WORDS_PER_BLOCK - 1);
+  }
+}
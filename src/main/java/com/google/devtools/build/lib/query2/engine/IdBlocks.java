@@ -0,0 +1,67 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * A growable directory of fixed-size blocks, such that structures indexed by the ids of an {@link
+ * IdInterner} only allocate memory for the ranges of ids they actually use.
+ */
+@ThreadSafe
+final class IdBlocks<B> {
+  private final Supplier<B> newBlock;
+  // Only replaced, and only written to, while holding the lock of this object. Readers that miss a
+  // block take the lock before creating it.
+  private volatile AtomicReferenceArray<B> blocks = new AtomicReferenceArray<>(0);
+
+  IdBlocks(Supplier<B> newBlock) {
+    this.newBlock = newBlock;
+  }
+
+  /** Returns the block at {@code index}, or null if it was never created. */
+  @Nullable
+  B get(int index) {
+    AtomicReferenceArray<B> current = blocks;
+    return index < current.length() ? current.get(index) : null;
+  }
+
+  /** Returns the block at {@code index}, creating it if needed. */
+  B getOrCreate(int index) {
+    B block = get(index);
+    return block != null ? block : create(index);
+  }
+
+  private synchronized B create(int index) {
+    AtomicReferenceArray<B> current = blocks;
+    if (index >= current.length()) {
+      AtomicReferenceArray<B> grown =
+          new AtomicReferenceArray<>(Math.max(index + 1, 2 * current.length()));
+      for (int i = 0; i < current.length(); i++) {
+        grown.set(i, current.get(i));
+      }
+      blocks = grown;
+      current = grown;
+    }
+    B block = current.get(index);
+    if (block == null) {
+      block = newBlock.get();
+      current.set(index, block);
+    }
+    return block;
+  }
+}
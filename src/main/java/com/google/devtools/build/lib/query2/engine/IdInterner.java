@@ -0,0 +1,56 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns dense int ids to keys, so that sets of keys can be represented by bits (see {@link
+ * QueryUtil.IdUniquifierImpl}) instead of hash sets of objects.
+ *
+ * <p>An interner is meant to be shared by all the structures of a single query evaluation, which
+ * together only pay once for each key of the universe they visit.
+ */
+@ThreadSafe
+public final class IdInterner<K> {
+  private final ConcurrentHashMap<K, Integer> ids;
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  public IdInterner(int concurrencyLevel) {
+    this.ids =
+        new ConcurrentHashMap<>(/*initialCapacity=*/ 16, /*loadFactor=*/ 0.75f, concurrencyLevel);
+  }
+
+  /** Returns the id of {@code key}, assigning it the next free id if it doesn't have one yet. */
+  public int intern(K key) {
+    Integer id = ids.get(key);
+    if (id == null) {
+      id = ids.computeIfAbsent(key, k -> nextId.getAndIncrement());
+    }
+    return id;
+  }
+
+  /** Returns the id of {@code key}, or -1 if it was never interned. */
+  public int getId(K key) {
+    Integer id = ids.get(key);
+    return id != null ? id : -1;
+  }
+
+  /** Returns the number of interned keys. */
+  public int size() {
+    return ids.size();
+  }
+}
@@ -30,6 +30,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import javax.annotation.Nullable;
 
 /** Several query utilities to make easier to work with query callbacks and uniquifiers. */
@@ -301,4 +302,99 @@ public final class QueryUtil {
           : true;
     }
   }
+
+  /**
+   * A {@link Uniquifier} that remembers the elements it has seen as the bits of their ids in an
+   * {@link IdInterner}, which makes it much smaller than {@link UniquifierImpl} for large results.
+   */
+  public static class IdUniquifierImpl<T, K> implements Uniquifier<T> {
+    private final KeyExtractor<T, K> extractor;
+    private final IdInterner<K> interner;
+    private final ConcurrentIdBitSet alreadySeen = new ConcurrentIdBitSet();
+
+    public IdUniquifierImpl(KeyExtractor<T, K> extractor, IdInterner<K> interner) {
+      this.extractor = extractor;
+      this.interner = interner;
+    }
+
+    @Override
+    public boolean uniquePure(T element) {
+      return !alreadySeen.contains(interner.getId(extractor.extractKey(element)));
+    }
+
+    @Override
+    public boolean unique(T element) {
+      return alreadySeen.add(interner.intern(extractor.extractKey(element)));
+    }
+
+    @Override
+    public ImmutableList<T> unique(Iterable<T> newElements) {
+      ImmutableList.Builder<T> result = ImmutableList.builder();
+      for (T element : newElements) {
+        if (unique(element)) {
+          result.add(element);
+        }
+      }
+      return result.build();
+    }
+  }
+
+  /**
+   * A {@link MinDepthUniquifier} that keeps the minimum depths in arrays indexed by the ids of an
+   * {@link IdInterner}, instead of in a map.
+   */
+  public static class IdMinDepthUniquifierImpl<T, K> implements MinDepthUniquifier<T> {
+    private static final int ID_BITS_PER_BLOCK = 12;
+
+    private final KeyExtractor<T, K> extractor;
+    private final IdInterner<K> interner;
+    // The minimum depth at which each element was seen, plus one, so that 0 means never.
+    private final IdBlocks<AtomicIntegerArray> depthsPlusOne =
+        new IdBlocks<>(() -> new AtomicIntegerArray(1 << ID_BITS_PER_BLOCK));
+
+    public IdMinDepthUniquifierImpl(KeyExtractor<T, K> extractor, IdInterner<K> interner) {
+      this.extractor = extractor;
+      this.interner = interner;
+    }
+
+    @Override
+    public final ImmutableList<T> uniqueAtDepthLessThanOrEqualTo(
+        Iterable<T> newElements, int depth) {
+      ImmutableList.Builder<T> resultBuilder = ImmutableList.builder();
+      for (T newElement : newElements) {
+        if (uniqueAtDepthLessThanOrEqualTo(newElement, depth)) {
+          resultBuilder.add(newElement);
+        }
+      }
+      return resultBuilder.build();
+    }
+
+    @Override
+    public boolean uniqueAtDepthLessThanOrEqualTo(T newElement, int depth) {
+      int id = interner.intern(extractor.extractKey(newElement));
+      AtomicIntegerArray block = depthsPlusOne.getOrCreate(id >>> ID_BITS_PER_BLOCK);
+      int index = id & ((1 << ID_BITS_PER_BLOCK) - 1);
+      while (true) {
+        int previousDepthPlusOne = block.get(index);
+        if (previousDepthPlusOne != 0 && depth >= previousDepthPlusOne - 1) {
+          return false;
+        }
+        // We've never seen the element at a depth this shallow.
+        if (block.compareAndSet(index, previousDepthPlusOne, depth + 1)) {
+          return true;
+        }
+      }
+    }
+
+    @Override
+    public boolean uniqueAtDepthLessThanOrEqualToPure(T newElement, int depth) {
+      int id = interner.getId(extractor.extractKey(newElement));
+      AtomicIntegerArray block = id >= 0 ? depthsPlusOne.get(id >>> ID_BITS_PER_BLOCK) : null;
+      if (block == null) {
+        return true;
+      }
+      int previousDepthPlusOne = block.get(id & ((1 << ID_BITS_PER_BLOCK) - 1));
+      return previousDepthPlusOne == 0 || depth < previousDepthPlusOne - 1;
+    }
+  }
 }
@@ -0,0 +1,166 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link OutputFormatterCallback} that serializes targets on a pool of threads and writes them
+ * in the order in which they were processed.
+ *
+ * <p>Targets are grouped into chunks, each of which is serialized into a byte array by a single
+ * thread. Serialized chunks wait in a bounded reorder buffer until all the chunks before them are
+ * written, and processing blocks while the buffer is full, so the memory used by the output does
+ * not grow with the size of the query result.
+ */
+abstract class ParallelFormattingCallback extends OutputFormatterCallback<Target> {
+  /** The number of targets serialized by a single task. */
+  private static final int TARGETS_PER_CHUNK = 64;
+
+  private final OutputStream out;
+  private final int parallelism;
+  private final int maxPendingChunks;
+  /** Chunks that are being serialized or wait to be written, oldest first. */
+  private final ArrayDeque<Future<ByteArrayOutputStream>> pendingChunks = new ArrayDeque<>();
+
+  private List<Target> currentChunk = new ArrayList<>(TARGETS_PER_CHUNK);
+  @Nullable private ExecutorService executor;
+
+  ParallelFormattingCallback(OutputStream out) {
+    this(out, Runtime.getRuntime().availableProcessors());
+  }
+
+  @VisibleForTesting
+  ParallelFormattingCallback(OutputStream out, int parallelism) {
+    Preconditions.checkArgument(parallelism > 0, parallelism);
+    this.out = out;
+    this.parallelism = parallelism;
+    this.maxPendingChunks = 2 * parallelism;
+  }
+
+  /** Writes what precedes the targets. Called on the thread that processes the result. */
+  protected void writeHeader(OutputStream out) throws IOException {}
+
+  /**
+   * Serializes a single target. Called concurrently for different targets, unless the callback runs
+   * with a parallelism of one.
+   */
+  protected abstract void writeTarget(Target target, OutputStream out)
+      throws IOException, InterruptedException;
+
+  /** Writes what follows the targets. Called on the thread that processes the result. */
+  protected void writeFooter(OutputStream out) throws IOException {}
+
+  @Override
+  public void start() throws IOException {
+    if (parallelism > 1) {
+      executor =
+          Executors.newFixedThreadPool(
+              parallelism,
+              new ThreadFactoryBuilder()
+                  .setNameFormat("query-output-formatter %d")
+                  .setDaemon(true)
+                  .build());
+    }
+    writeHeader(out);
+  }
+
+  @Override
+  public void processOutput(Iterable<Target> partialResult)
+      throws IOException, InterruptedException {
+    if (executor == null) {
+      // Nothing to overlap with: serialize straight into the output.
+      for (Target target : partialResult) {
+        writeTarget(target, out);
+      }
+      return;
+    }
+    for (Target target : partialResult) {
+      currentChunk.add(target);
+      if (currentChunk.size() == TARGETS_PER_CHUNK) {
+        submitCurrentChunk();
+      }
+    }
+  }
+
+  private void submitCurrentChunk() throws IOException, InterruptedException {
+    while (pendingChunks.size() >= maxPendingChunks) {
+      writeOldestChunk();
+    }
+    List<Target> chunk = currentChunk;
+    currentChunk = new ArrayList<>(TARGETS_PER_CHUNK);
+    pendingChunks.add(executor.submit(() -> serialize(chunk)));
+  }
+
+  private ByteArrayOutputStream serialize(List<Target> chunk)
+      throws IOException, InterruptedException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (Target target : chunk) {
+      writeTarget(target, bytes);
+    }
+    return bytes;
+  }
+
+  private void writeOldestChunk() throws IOException, InterruptedException {
+    ByteArrayOutputStream bytes;
+    try {
+      bytes = pendingChunks.removeFirst().get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.propagateIfPossible(cause, IOException.class, InterruptedException.class);
+      throw new IllegalStateException(cause);
+    }
+    bytes.writeTo(out);
+  }
+
+  @Override
+  public void close(boolean failFast) throws InterruptedException, IOException {
+    try {
+      if (!failFast) {
+        if (!currentChunk.isEmpty()) {
+          submitCurrentChunk();
+        }
+        while (!pendingChunks.isEmpty()) {
+          writeOldestChunk();
+        }
+        writeFooter(out);
+      }
+    } finally {
+      currentChunk.clear();
+      for (Future<?> chunk : pendingChunks) {
+        chunk.cancel(true);
+      }
+      pendingChunks.clear();
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+}
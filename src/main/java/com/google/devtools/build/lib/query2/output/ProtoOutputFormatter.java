@@ -54,6 +54,7 @@ import com.google.devtools.build.lib.query2.proto.proto2api.Build.GeneratedFile;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.QueryResult;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.SourceFile;
 import com.google.devtools.build.lib.syntax.Type;
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -70,6 +71,9 @@ import javax.annotation.Nullable;
  * of a query result and outputs the proto bytes to the output print stream.
  * By taking the bytes and calling {@code mergeFrom()} on a
  * {@code Build.QueryResult} object the full result can be reconstructed.
+ *
+ * <p>Targets are converted in parallel and streamed out as they are processed; see {@link
+ * ParallelFormattingCallback}.
  */
 public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
   /**
@@ -122,33 +126,30 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
   @Override
   public OutputFormatterCallback<Target> createPostFactoStreamCallback(
       final OutputStream out, final QueryOptions options) {
-    return new OutputFormatterCallback<Target>() {
-
-      private QueryResult.Builder queryResult;
-
-      @Override
-      public void start() {
-        queryResult = Build.QueryResult.newBuilder();
-      }
-
+    return new ParallelFormattingCallback(out) {
       @Override
-      public void processOutput(Iterable<Target> partialResult)
+      protected void writeTarget(Target target, OutputStream out)
           throws IOException, InterruptedException {
-
-        for (Target target : partialResult) {
-          queryResult.addTarget(toTargetProtoBuffer(target));
-        }
-      }
-
-      @Override
-      public void close(boolean failFast) throws IOException {
-        if (!failFast) {
-          queryResult.build().writeTo(out);
-        }
+        ProtoOutputFormatter.this.writeTarget(toTargetProtoBuffer(target), out);
       }
     };
   }
 
+  /**
+   * Writes a single target of the result.
+   *
+   * <p>The targets are written as consecutive {@code target} fields of a {@link QueryResult}, so
+   * that the output can be parsed as one without ever holding the whole result in memory.
+   */
+  protected void writeTarget(Build.Target targetPb, OutputStream out) throws IOException {
+    CodedOutputStream codedOut =
+        CodedOutputStream.newInstance(
+            out,
+            CodedOutputStream.computeMessageSize(QueryResult.TARGET_FIELD_NUMBER, targetPb));
+    codedOut.writeMessage(QueryResult.TARGET_FIELD_NUMBER, targetPb);
+    codedOut.flush();
+  }
+
   @Override
   public ThreadSafeOutputFormatterCallback<Target> createStreamCallback(
       OutputStream out, QueryOptions options, QueryEnvironment<?> env) {
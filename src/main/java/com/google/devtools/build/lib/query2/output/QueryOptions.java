@@ -38,7 +38,8 @@ public class QueryOptions extends CommonQueryOptions {
       effectTags = {OptionEffectTag.TERMINAL_OUTPUT},
       help =
           "The format in which the query results should be printed. Allowed values for query are: "
-              + "build, graph, label, label_kind, locations, maxrank, minrank, package, proto, xml."
+              + "build, graph, label, label_kind, locations, maxrank, minrank, package, proto, "
+              + "streamed_proto, xml."
   )
   public String outputFormat;
 
@@ -0,0 +1,35 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output formatter that outputs each target of a query result as a length-delimited {@link
+ * Build.Target} protocol buffer, so that consumers can read the targets one at a time with {@code
+ * Build.Target.parseDelimitedFrom()}.
+ */
+public class StreamedProtoOutputFormatter extends ProtoOutputFormatter {
+  @Override
+  public String getName() {
+    return "streamed_proto";
+  }
+
+  @Override
+  protected void writeTarget(Build.Target targetPb, OutputStream out) throws IOException {
+    targetPb.writeDelimitedTo(out);
+  }
+}
@@ -13,6 +13,8 @@
 // limitations under the License.
 package com.google.devtools.build.lib.query2.output;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -59,6 +61,11 @@ import org.w3c.dom.Element;
  */
 class XmlOutputFormatter extends AbstractUnorderedFormatter {
 
+  private static final byte[] HEADER =
+      "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>\n<query version=\"2\">\n"
+          .getBytes(UTF_8);
+  private static final byte[] FOOTER = "</query>\n".getBytes(UTF_8);
+
   // AbstractUnorderedFormatter also has an options field it's of type CommonQueryOptions, a
   // superclass of QueryOptions. Store this here to ensure correct type is passed to this class.
   private QueryOptions queryOptions;
@@ -86,50 +93,65 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
   @Override
   public OutputFormatterCallback<Target> createPostFactoStreamCallback(
       final OutputStream out, final QueryOptions options) {
-    return new OutputFormatterCallback<Target>() {
+    return new ParallelFormattingCallback(out) {
 
-      private Document doc;
-      private Element queryElem;
+      // Each thread creates the elements of its targets in a document of its own.
+      private final ThreadLocal<ElementWriter> elementWriter =
+          ThreadLocal.withInitial(ElementWriter::new);
 
       @Override
-      public void start() {
-        try {
-          DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-          doc = factory.newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException e) {
-          // This shouldn't be possible: all the configuration is hard-coded.
-          throw new IllegalStateException("XML output failed", e);
-        }
-        doc.setXmlVersion("1.1");
-        queryElem = doc.createElement("query");
-        queryElem.setAttribute("version", "2");
-        doc.appendChild(queryElem);
+      protected void writeHeader(OutputStream out) throws IOException {
+        out.write(HEADER);
       }
 
       @Override
-      public void processOutput(Iterable<Target> partialResult)
+      protected void writeTarget(Target target, OutputStream out)
           throws IOException, InterruptedException {
-        for (Target target : partialResult) {
-          queryElem.appendChild(createTargetElement(doc, target));
-        }
+        ElementWriter writer = elementWriter.get();
+        writer.write(createTargetElement(writer.doc, target), out);
       }
 
       @Override
-      public void close(boolean failFast) throws IOException {
-        if (!failFast) {
-          try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(new DOMSource(doc), new StreamResult(out));
-          } catch (TransformerFactoryConfigurationError | TransformerException e) {
-            // This shouldn't be possible: all the configuration is hard-coded.
-            throw new IllegalStateException("XML output failed", e);
-          }
-        }
+      protected void writeFooter(OutputStream out) throws IOException {
+        out.write(FOOTER);
       }
     };
   }
 
+  /**
+   * A document to create the elements of targets in and a transformer that writes them out without
+   * the document, so that they can be streamed between {@link #HEADER} and {@link #FOOTER}.
+   */
+  private static class ElementWriter {
+    private final Document doc;
+    private final Transformer transformer;
+
+    ElementWriter() {
+      try {
+        doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        doc.setXmlVersion("1.1");
+        transformer = TransformerFactory.newInstance().newTransformer();
+      } catch (ParserConfigurationException
+          | TransformerFactoryConfigurationError
+          | TransformerException e) {
+        // This shouldn't be possible: all the configuration is hard-coded.
+        throw new IllegalStateException("XML output failed", e);
+      }
+      transformer.setOutputProperty(OutputKeys.VERSION, "1.1");
+      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    }
+
+    void write(Element elem, OutputStream out) {
+      try {
+        transformer.transform(new DOMSource(elem), new StreamResult(out));
+      } catch (TransformerException e) {
+        // This shouldn't be possible: all the configuration is hard-coded.
+        throw new IllegalStateException("XML output failed", e);
+      }
+    }
+  }
+
   /**
    * Creates and returns a new DOM tree for the specified build target.
    *
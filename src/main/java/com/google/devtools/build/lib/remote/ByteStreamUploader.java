@@ -47,6 +47,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -65,16 +66,29 @@ import javax.annotation.concurrent.GuardedBy;
  * different lifecyles. After instantiation the reference coune is {@code 1}.
  *
  * See {@link ReferenceCounted} for more information on reference counting.
+ *
+ * <p>An upload reads a {@link Chunker.Chunk} only while its call is ready, so the chunks it has
+ * buffered but not yet sent never exceed gRPC's ready threshold plus one chunk. The uploader
+ * accounts every running upload with that bound, and queues new uploads while the sum would exceed
+ * the configured maximum bytes in flight. This also bounds the number of files that are open for
+ * uploads at the same time.
  */
 class ByteStreamUploader extends AbstractReferenceCounted {
 
   private static final Logger logger = Logger.getLogger(ByteStreamUploader.class.getName());
 
+  /**
+   * The number of queued bytes up to which gRPC reports a call as ready, see {@link
+   * ClientCall#isReady}.
+   */
+  private static final long GRPC_ON_READY_THRESHOLD = 32 * 1024;
+
   private final String instanceName;
   private final ReferenceCountedChannel channel;
   private final CallCredentials callCredentials;
   private final long callTimeoutSecs;
   private final RemoteRetrier retrier;
+  private final long maxBytesInFlight;
 
   private final Object lock = new Object();
 
@@ -85,6 +99,13 @@ class ByteStreamUploader extends AbstractReferenceCounted {
   @GuardedBy("lock")
   private final Map<Digest, ListenableFuture<Void>> uploadsInProgress = new HashMap<>();
 
+  /** Uploads that wait for room, in the order in which they were requested. */
+  @GuardedBy("lock")
+  private final Set<PendingUpload> pendingUploads = new LinkedHashSet<>();
+
+  @GuardedBy("lock")
+  private long bytesInFlight;
+
   @GuardedBy("lock")
   private boolean isShutdown;
 
@@ -106,13 +127,39 @@ class ByteStreamUploader extends AbstractReferenceCounted {
       @Nullable CallCredentials callCredentials,
       long callTimeoutSecs,
       RemoteRetrier retrier) {
+    this(instanceName, channel, callCredentials, callTimeoutSecs, retrier, Long.MAX_VALUE);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param instanceName the instance name to be prepended to resource name of the {@code Write}
+   *     call. See the {@code ByteStream} service definition for details
+   * @param channel the {@link io.grpc.Channel} to use for calls
+   * @param callCredentials the credentials to use for authentication. May be {@code null}, in which
+   *     case no authentication is performed
+   * @param callTimeoutSecs the timeout in seconds after which a {@code Write} gRPC call must be
+   *     complete. The timeout resets between retries
+   * @param retrier the {@link RemoteRetrier} whose backoff strategy to use for retry timings.
+   * @param maxBytesInFlight the maximum number of bytes that running uploads may buffer. A single
+   *     upload always runs, even if it may buffer more
+   */
+  public ByteStreamUploader(
+      @Nullable String instanceName,
+      ReferenceCountedChannel channel,
+      @Nullable CallCredentials callCredentials,
+      long callTimeoutSecs,
+      RemoteRetrier retrier,
+      long maxBytesInFlight) {
     checkArgument(callTimeoutSecs > 0, "callTimeoutSecs must be gt 0.");
+    checkArgument(maxBytesInFlight > 0, "maxBytesInFlight must be gt 0.");
 
     this.instanceName = instanceName;
     this.channel = channel;
     this.callCredentials = callCredentials;
     this.callTimeoutSecs = callTimeoutSecs;
     this.retrier = retrier;
+    this.maxBytesInFlight = maxBytesInFlight;
   }
 
   /**
@@ -236,22 +283,51 @@ class ByteStreamUploader extends AbstractReferenceCounted {
       }
 
       final SettableFuture<Void> uploadResult = SettableFuture.create();
+      Context ctx = Context.current();
+      PendingUpload pendingUpload =
+          new PendingUpload(
+              Math.min(
+                  digest.getSizeBytes(), chunker.getChunkSize() + GRPC_ON_READY_THRESHOLD),
+              () ->
+                  retrier.executeAsync(
+                      () -> ctx.call(() -> startAsyncUpload(chunker, uploadResult)),
+                      uploadResult));
       uploadResult.addListener(
           () -> {
             synchronized (lock) {
               uploadsInProgress.remove(digest);
               uploadedBlobs.add(hash);
+              // Uploads that are cancelled before they started were never accounted for.
+              if (!pendingUploads.remove(pendingUpload)) {
+                bytesInFlight -= pendingUpload.bytes;
+                startPendingUploads();
+              }
             }
           },
           MoreExecutors.directExecutor());
-      Context ctx = Context.current();
-      retrier.executeAsync(
-          () -> ctx.call(() -> startAsyncUpload(chunker, uploadResult)), uploadResult);
       uploadsInProgress.put(digest, uploadResult);
+      pendingUploads.add(pendingUpload);
+      startPendingUploads();
       return uploadResult;
     }
   }
 
+  /** Starts queued uploads in order for as long as they fit into {@link #maxBytesInFlight}. */
+  @GuardedBy("lock")
+  private void startPendingUploads() {
+    while (!isShutdown && !pendingUploads.isEmpty()) {
+      // Starting an upload may re-enter this method, so no iterator is kept across iterations.
+      PendingUpload next = pendingUploads.iterator().next();
+      if (bytesInFlight > 0 && bytesInFlight + next.bytes > maxBytesInFlight) {
+        return;
+      }
+      pendingUploads.remove(next);
+      // Account for the upload before starting it, as it may complete right away and re-enter.
+      bytesInFlight += next.bytes;
+      next.start.run();
+    }
+  }
+
   @VisibleForTesting
   boolean uploadsInProgress() {
     synchronized (lock) {
@@ -259,6 +335,13 @@ class ByteStreamUploader extends AbstractReferenceCounted {
     }
   }
 
+  @VisibleForTesting
+  long bytesInFlight() {
+    synchronized (lock) {
+      return bytesInFlight;
+    }
+  }
+
   /**
    * Starts a file upload an returns a future representing the upload. The {@code
    * overallUploadResult} future propagates cancellations from the caller to the upload.
@@ -308,6 +391,17 @@ class ByteStreamUploader extends AbstractReferenceCounted {
     return this;
   }
 
+  /** An upload that waits for other uploads to finish before it starts. */
+  private static final class PendingUpload {
+    private final long bytes;
+    private final Runnable start;
+
+    PendingUpload(long bytes, Runnable start) {
+      this.bytes = bytes;
+      this.start = start;
+    }
+  }
+
   private static class AsyncUpload {
 
     private final Channel channel;
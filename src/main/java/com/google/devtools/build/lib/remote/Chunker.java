@@ -27,6 +27,7 @@ import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
@@ -42,6 +43,8 @@ import java.util.function.Supplier;
  * {@code false}, the chunker closes the underlying data source (i.e. file) itself. However, in
  * case of error or when a data source does not get fully consumed, a user must call
  * {@link #reset()} manually.
+ *
+ * <p>Every chunk is read into a buffer of its own, which is handed out without copying.
  */
 public final class Chunker {
 
@@ -109,7 +112,6 @@ public final class Chunker {
 
   private InputStream data;
   private long offset;
-  private byte[] chunkCache;
 
   // Set to true on the first call to next(). This is so that the Chunker can open its data source
   // lazily on the first call to next(), as opposed to opening it in the constructor or on reset().
@@ -126,6 +128,11 @@ public final class Chunker {
     return digest;
   }
 
+  /** Returns the maximum number of bytes in a {@link Chunk}. */
+  int getChunkSize() {
+    return chunkSize;
+  }
+
   /**
    * Reset the {@link Chunker} state to when it was newly constructed.
    *
@@ -138,7 +145,6 @@ public final class Chunker {
     data = null;
     offset = 0;
     initialized = false;
-    chunkCache = null;
   }
 
   /**
@@ -172,37 +178,28 @@ public final class Chunker {
     // The cast to int is safe, because the return value is capped at chunkSize.
     int bytesToRead = (int) Math.min(bytesLeft(), chunkSize);
     if (bytesToRead == 0) {
-      chunkCache = null;
       data = null;
       throw new NoSuchElementException();
     }
 
-    if (chunkCache == null) {
-      // Lazily allocate it in order to save memory on small data.
-      // 1) bytesToRead < chunkSize: There will only ever be one next() call.
-      // 2) bytesToRead == chunkSize: chunkCache will be set to its biggest possible value.
-      // 3) bytestoRead > chunkSize: Not possible, due to Math.min above.
-      chunkCache = new byte[bytesToRead];
-    }
-
+    // The chunk is handed out without copying, so every chunk gets its own buffer. Unlike a
+    // memory mapping, it stays valid if the file is truncated while the chunk is being sent.
+    byte[] chunk = new byte[bytesToRead];
     long offsetBefore = offset;
     try {
-      ByteStreams.readFully(data, chunkCache, 0, bytesToRead);
+      ByteStreams.readFully(data, chunk, 0, bytesToRead);
     } catch (EOFException e) {
       throw new IllegalStateException("Reached EOF, but expected "
           + bytesToRead + " bytes.", e);
     }
     offset += bytesToRead;
 
-    ByteString blob = ByteString.copyFrom(chunkCache, 0, bytesToRead);
-
     if (bytesLeft() == 0) {
       data.close();
       data = null;
-      chunkCache = null;
     }
 
-    return new Chunk(digest, blob, offsetBefore);
+    return new Chunk(digest, UnsafeByteOperations.unsafeWrap(chunk), offsetBefore);
   }
 
   private long bytesLeft() {
@@ -215,7 +212,6 @@ public final class Chunker {
     }
     checkState(data == null);
     checkState(offset == 0);
-    checkState(chunkCache == null);
     try {
       data = dataSupplier.get();
     } catch (RuntimeException e) {
@@ -63,14 +63,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
 
 /** A RemoteActionCache implementation that uses gRPC calls to a remote cache server. */
 @ThreadSafe
 public class GrpcRemoteCache extends AbstractRemoteActionCache {
+  private static final Logger logger = Logger.getLogger(GrpcRemoteCache.class.getName());
+
+  // Keeps FindMissingBlobs requests well below the default gRPC message size limit of 4MB.
+  private static final int MAX_FIND_MISSING_BLOBS_BATCH_SIZE = 10000;
+
   private final CallCredentials credentials;
   private final ReferenceCountedChannel channel;
   private final RemoteRetrier retrier;
   private final ByteStreamUploader uploader;
+  private final MissingDigestsFinder missingDigestsFinder;
 
   private AtomicBoolean closed = new AtomicBoolean();
 
@@ -87,6 +94,11 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
     this.channel = channel;
     this.retrier = retrier;
     this.uploader = uploader;
+    this.missingDigestsFinder =
+        new MissingDigestsFinder(
+            this::getMissingDigests,
+            options.remoteFindMissingBlobsBatchWindowMillis,
+            MAX_FIND_MISSING_BLOBS_BATCH_SIZE);
   }
 
   private ContentAddressableStorageBlockingStub casBlockingStub() {
@@ -115,6 +127,7 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
     if (closed.getAndSet(true)) {
       return;
     }
+    logger.info(missingDigestsFinder.getStatsSummary());
     uploader.release();
     channel.release();
   }
@@ -148,11 +161,13 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
     repository.computeMerkleDigests(root);
     Digest actionDigest = digestUtil.compute(action);
     Digest commandDigest = digestUtil.compute(command);
-    // TODO(olaola): avoid querying all the digests, only ask for novel subtrees.
+    // Subtrees that were uploaded for earlier actions of this build are not queried again, and
+    // queries of concurrent actions are merged.
     ImmutableSet<Digest> missingDigests =
-        getMissingDigests(
+        missingDigestsFinder.getMissingDigests(
             Iterables.concat(
-                repository.getAllDigests(root), ImmutableList.of(actionDigest, commandDigest)));
+                repository.getDigestsNotUploaded(root),
+                ImmutableList.of(actionDigest, commandDigest)));
 
     List<Chunker> toUpload = new ArrayList<>();
     // Only upload data that was missing from the cache.
@@ -185,7 +200,11 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
         toUpload.add(Chunker.builder(digestUtil).setInput(digest, actionInput, execRoot).build());
       }
     }
-    uploader.uploadBlobs(toUpload, true);
+    // Actions that were told about the same missing blob concurrently share its upload, and the
+    // uploader skips blobs that finished uploading in the meantime.
+    uploader.uploadBlobs(toUpload, /*forceUpload=*/ false);
+    missingDigestsFinder.markPresent(missingDigests);
+    repository.markUploaded(root);
   }
 
   @Override
@@ -327,6 +346,8 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
     if (!filesToUpload.isEmpty()) {
       uploader.uploadBlobs(filesToUpload, /*forceUpload=*/true);
     }
+    // Outputs are often inputs of later actions, which then need not query them.
+    missingDigestsFinder.markPresent(digests);
 
     // TODO(olaola): inline small stdout/stderr here.
     if (outErr.getErrorPath().exists()) {
@@ -0,0 +1,125 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Interner;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * The state that the {@link TreeNodeRepository}s of the spawns of one build share, so that input
+ * trees that many spawns have in common, such as toolchains, are only turned into {@link Directory}
+ * messages, digested and uploaded once per build.
+ *
+ * <p>Directory {@link TreeNode}s are interned across spawns, and the directory messages and digests
+ * of up to {@code maxDirectories} of them are kept. The cache assumes that the metadata of an
+ * input does not change during a build, so it must not outlive one.
+ */
+@ThreadSafe
+public final class MerkleTreeCache {
+
+  /** A directory message and its digest. */
+  static final class CachedDirectory {
+    final Directory directory;
+    final Digest digest;
+
+    CachedDirectory(Directory directory, Digest digest) {
+      this.directory = directory;
+      this.digest = digest;
+    }
+  }
+
+  private final Interner<TreeNode> interner = BlazeInterners.newWeakInterner();
+  // Holds on to the cached nodes, which keeps them in the interner, so that parents that are
+  // built later compare equal to the cached ones.
+  private final Cache<TreeNode, CachedDirectory> directories;
+  // Digests of directories whose whole subtree is known to be in the remote cache.
+  private final Cache<Digest, Boolean> uploadedDirectories;
+
+  private final AtomicLong spawns = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong missNanos = new AtomicLong();
+  private final AtomicLong uploadedSubtreeHits = new AtomicLong();
+
+  public MerkleTreeCache(long maxDirectories) {
+    this.directories = CacheBuilder.newBuilder().maximumSize(maxDirectories).build();
+    this.uploadedDirectories = CacheBuilder.newBuilder().maximumSize(maxDirectories).build();
+  }
+
+  Interner<TreeNode> getInterner() {
+    return interner;
+  }
+
+  void noteSpawn() {
+    spawns.incrementAndGet();
+  }
+
+  @Nullable
+  CachedDirectory getDirectory(TreeNode node) {
+    CachedDirectory directory = directories.getIfPresent(node);
+    if (directory != null) {
+      hits.incrementAndGet();
+    }
+    return directory;
+  }
+
+  void putDirectory(TreeNode node, CachedDirectory directory, long nanos) {
+    misses.incrementAndGet();
+    missNanos.addAndGet(nanos);
+    directories.put(node, directory);
+  }
+
+  boolean isUploaded(Digest directoryDigest) {
+    if (uploadedDirectories.getIfPresent(directoryDigest) != null) {
+      uploadedSubtreeHits.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  void markUploaded(Digest directoryDigest) {
+    uploadedDirectories.put(directoryDigest, Boolean.TRUE);
+  }
+
+  /**
+   * Returns a summary of how well the cache worked. The time saved is estimated from the average
+   * time it took to build and digest a directory that was not cached.
+   */
+  public String getStatsSummary() {
+    long spawns = this.spawns.get();
+    long hits = this.hits.get();
+    long misses = this.misses.get();
+    long lookups = hits + misses;
+    long savedNanos = misses == 0 ? 0 : hits * (missNanos.get() / misses);
+    return String.format(
+        "Merkle tree cache: %d spawns, %d of %d directories reused (%.1f%%), %d uploaded subtrees"
+            + " skipped, %.3f ms saved per spawn",
+        spawns,
+        hits,
+        lookups,
+        lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+        uploadedSubtreeHits.get(),
+        spawns == 0 ? 0.0 : (double) TimeUnit.NANOSECONDS.toMicros(savedNanos) / 1000 / spawns);
+  }
+}
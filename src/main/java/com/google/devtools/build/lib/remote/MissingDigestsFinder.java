@@ -0,0 +1,261 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Finds the digests that are missing from the remote cache on behalf of all the actions of a build,
+ * so that actions that become ready at the same time share {@code FindMissingBlobs} calls.
+ *
+ * <p>A batch is sent by the thread that opened it. If no call is in progress, it is sent right
+ * away, so a lone request is not delayed. Otherwise digests are collected into it until a call
+ * completes, the batch is full, or {@code batchWindowMillis} have passed, whichever comes first.
+ * Digests that are already part of a pending batch are not requested again, and digests that the
+ * server reported as present, or that were uploaded by this build, are not requested at all. The
+ * finder assumes that blobs are not evicted from the remote cache during a build, so it must not
+ * outlive one.
+ */
+@ThreadSafe
+final class MissingDigestsFinder {
+
+  /** Makes the actual {@code FindMissingBlobs} call. */
+  @FunctionalInterface
+  interface FindMissingBlobs {
+    ImmutableSet<Digest> findMissing(Iterable<Digest> digests)
+        throws IOException, InterruptedException;
+  }
+
+  /** Digests to be sent in one call, and the digests that call found missing. */
+  private static final class Batch {
+    final Set<Digest> digests = new LinkedHashSet<>();
+    final SettableFuture<ImmutableSet<Digest>> missing = SettableFuture.create();
+  }
+
+  private final FindMissingBlobs findMissingBlobs;
+  private final long batchWindowMillis;
+  private final int maxBatchSize;
+
+  private final Set<Digest> knownPresent = ConcurrentHashMap.newKeySet();
+
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private Batch openBatch;
+
+  @GuardedBy("lock")
+  private final Map<Digest, Batch> pendingDigests = new HashMap<>();
+
+  /** The number of batches that are being sent. Waited for on {@link #lock}. */
+  @GuardedBy("lock")
+  private int callsInProgress;
+
+  private final AtomicLong requestedDigests = new AtomicLong();
+  private final AtomicLong sentDigests = new AtomicLong();
+  private final AtomicLong calls = new AtomicLong();
+
+  /**
+   * @param batchWindowMillis how long to wait at most for more digests before sending a batch
+   *     while other calls are in progress. 0 sends every batch right away, so that only digests
+   *     that are requested while a call is in progress are deduplicated
+   * @param maxBatchSize the maximum number of digests in a single call
+   */
+  MissingDigestsFinder(
+      FindMissingBlobs findMissingBlobs, long batchWindowMillis, int maxBatchSize) {
+    checkArgument(batchWindowMillis >= 0, "batchWindowMillis must be ge 0.");
+    checkArgument(maxBatchSize > 0, "maxBatchSize must be gt 0.");
+    this.findMissingBlobs = findMissingBlobs;
+    this.batchWindowMillis = batchWindowMillis;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Returns the subset of {@code digests} that is missing from the remote cache. Blocks until all
+   * the batches that the digests were added to have been sent.
+   */
+  ImmutableSet<Digest> getMissingDigests(Iterable<Digest> digests)
+      throws IOException, InterruptedException {
+    // The batches this call waits for, with the digests it requested from each.
+    Map<Batch, List<Digest>> batches = new IdentityHashMap<>();
+    // The batches this call opened, and therefore has to send.
+    List<Batch> batchesToSend = new ArrayList<>();
+    synchronized (lock) {
+      for (Digest digest : digests) {
+        requestedDigests.incrementAndGet();
+        if (knownPresent.contains(digest)) {
+          continue;
+        }
+        Batch batch = pendingDigests.get(digest);
+        if (batch == null) {
+          if (openBatch == null || openBatch.digests.size() >= maxBatchSize) {
+            openBatch = new Batch();
+            batchesToSend.add(openBatch);
+          }
+          batch = openBatch;
+          batch.digests.add(digest);
+          pendingDigests.put(digest, batch);
+          if (batch.digests.size() == maxBatchSize) {
+            // Wake up the thread that waits to send the batch.
+            lock.notifyAll();
+          }
+        }
+        batches.computeIfAbsent(batch, b -> new ArrayList<>()).add(digest);
+      }
+    }
+    if (!batchesToSend.isEmpty()) {
+      // Send before waiting for batches of other threads, which may in turn wait for ours.
+      sendBatches(batchesToSend);
+    }
+
+    ImmutableSet.Builder<Digest> missing = ImmutableSet.builder();
+    for (Map.Entry<Batch, List<Digest>> entry : batches.entrySet()) {
+      ImmutableSet<Digest> missingFromBatch;
+      try {
+        missingFromBatch = entry.getKey().missing.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof InterruptedException) {
+          // The thread that sent the batch was interrupted, which is no reason to fail this one.
+          missing.addAll(findMissingBlobs.findMissing(entry.getValue()));
+          continue;
+        }
+        Throwables.propagateIfPossible(cause, IOException.class);
+        throw new IOException(cause);
+      }
+      for (Digest digest : entry.getValue()) {
+        if (missingFromBatch.contains(digest)) {
+          missing.add(digest);
+        }
+      }
+    }
+    return missing.build();
+  }
+
+  /**
+   * Records that the given blobs are present in the remote cache, because they were uploaded or
+   * the server reported them in some other way.
+   */
+  void markPresent(Iterable<Digest> digests) {
+    for (Digest digest : digests) {
+      knownPresent.add(digest);
+    }
+  }
+
+  private void sendBatches(List<Batch> batchesToSend) throws IOException, InterruptedException {
+    int sent = 0;
+    try {
+      // Only the last batch can still be open, all others are full.
+      Batch last = batchesToSend.get(batchesToSend.size() - 1);
+      synchronized (lock) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+        while (openBatch == last && callsInProgress > 0 && last.digests.size() < maxBatchSize) {
+          long remainingNanos = deadline - System.nanoTime();
+          if (remainingNanos <= 0) {
+            break;
+          }
+          TimeUnit.NANOSECONDS.timedWait(lock, remainingNanos);
+        }
+        // Later requests start a new batch.
+        if (openBatch == last) {
+          openBatch = null;
+        }
+      }
+      for (Batch batch : batchesToSend) {
+        sendBatch(batch);
+        sent++;
+      }
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      for (Batch batch : batchesToSend.subList(sent, batchesToSend.size())) {
+        fail(batch, e);
+      }
+      throw e;
+    }
+  }
+
+  private void sendBatch(Batch batch) throws IOException, InterruptedException {
+    calls.incrementAndGet();
+    sentDigests.addAndGet(batch.digests.size());
+    synchronized (lock) {
+      callsInProgress++;
+    }
+    ImmutableSet<Digest> missing;
+    try {
+      missing = findMissingBlobs.findMissing(batch.digests);
+    } finally {
+      synchronized (lock) {
+        callsInProgress--;
+        // Batches that were collected during this call are sent now.
+        lock.notifyAll();
+      }
+    }
+    synchronized (lock) {
+      for (Digest digest : batch.digests) {
+        pendingDigests.remove(digest);
+      }
+      knownPresent.addAll(Sets.difference(batch.digests, missing));
+    }
+    batch.missing.set(missing);
+  }
+
+  private void fail(Batch batch, Exception e) {
+    synchronized (lock) {
+      if (openBatch == batch) {
+        openBatch = null;
+      }
+      for (Digest digest : batch.digests) {
+        pendingDigests.remove(digest);
+      }
+    }
+    batch.missing.setException(e);
+  }
+
+  /** Returns how many digests were requested, how many of them were sent, and in how many calls. */
+  String getStatsSummary() {
+    return String.format(
+        "FindMissingBlobs: %d digests requested, %d sent in %d calls",
+        requestedDigests.get(), sentDigests.get(), calls.get());
+  }
+
+  @VisibleForTesting
+  long getCalls() {
+    return calls.get();
+  }
+
+  @VisibleForTesting
+  long getRequestedDigests() {
+    return requestedDigests.get();
+  }
+}
@@ -33,12 +33,16 @@ import java.util.Collections;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 /**
  * Provide a remote execution context.
  */
 final class RemoteActionContextProvider extends ActionContextProvider {
+  private static final Logger logger =
+      Logger.getLogger(RemoteActionContextProvider.class.getName());
+
   private final CommandEnvironment env;
   @Nullable private final AbstractRemoteActionCache cache;
   @Nullable private final GrpcRemoteExecutor executor;
@@ -46,6 +50,7 @@ final class RemoteActionContextProvider extends ActionContextProvider {
   private final DigestUtil digestUtil;
   private final Path logDir;
   private final AtomicReference<SpawnRunner> fallbackRunner = new AtomicReference<>();
+  private final MerkleTreeCache merkleTreeCache;
 
   RemoteActionContextProvider(
       CommandEnvironment env,
@@ -60,6 +65,10 @@ final class RemoteActionContextProvider extends ActionContextProvider {
     this.retrier = retrier;
     this.digestUtil = digestUtil;
     this.logDir = logDir;
+    this.merkleTreeCache =
+        new MerkleTreeCache(
+            checkNotNull(env.getOptions().getOptions(RemoteOptions.class))
+                .remoteMerkleTreeCacheSize);
   }
 
   @Override
@@ -79,7 +88,8 @@ final class RemoteActionContextProvider extends ActionContextProvider {
               buildRequestId,
               commandId,
               env.getReporter(),
-              digestUtil);
+              digestUtil,
+              merkleTreeCache);
       return ImmutableList.of(spawnCache);
     } else {
       RemoteSpawnRunner spawnRunner =
@@ -96,6 +106,7 @@ final class RemoteActionContextProvider extends ActionContextProvider {
               executor,
               retrier,
               digestUtil,
+              merkleTreeCache,
               logDir);
       return ImmutableList.of(new RemoteSpawnStrategy(env.getExecRoot(), spawnRunner));
     }
@@ -142,6 +153,7 @@ final class RemoteActionContextProvider extends ActionContextProvider {
 
   @Override
   public void executionPhaseEnding() {
+    logger.info(merkleTreeCache.getStatsSummary());
     if (cache != null) {
       cache.close();
     }
@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
@@ -152,6 +153,7 @@ public final class RemoteModule extends BlazeModule {
           "Cannot combine gRPC based remote execution with local disk or HTTP-based caching",
           ExitCode.COMMAND_LINE_ERROR);
     }
+    checkDigestFunction(remoteOptions, hashFn);
 
     try {
       List<ClientInterceptor> interceptors = new ArrayList<>();
@@ -202,7 +204,10 @@ public final class RemoteModule extends BlazeModule {
                 channel.retain(),
                 credentials,
                 remoteOptions.remoteTimeout,
-                rpcRetrier);
+                rpcRetrier,
+                remoteOptions.remoteMaxUploadBytesInFlight > 0
+                    ? remoteOptions.remoteMaxUploadBytesInFlight
+                    : Long.MAX_VALUE);
         cache =
             new GrpcRemoteCache(
                 channel.retain(),
@@ -283,6 +288,26 @@ public final class RemoteModule extends BlazeModule {
         : ImmutableList.of();
   }
 
+  /**
+   * Rejects digest functions that remote caches and executors don't understand. Only the local
+   * disk cache can be used with {@link DigestHashFunction#SHA256_TREE}, as its digests would be
+   * sent to remote servers as SHA-256 digests.
+   */
+  @VisibleForTesting
+  static void checkDigestFunction(RemoteOptions options, DigestHashFunction hashFn)
+      throws AbruptExitException {
+    if (hashFn != DigestHashFunction.SHA256_TREE) {
+      return;
+    }
+    if (SimpleBlobStoreFactory.isRestUrlOptions(options)
+        || GrpcRemoteCache.isRemoteCacheOptions(options)
+        || options.remoteExecutor != null) {
+      throw new AbruptExitException(
+          "Remote caching and execution are not supported with --digest_function=" + hashFn,
+          ExitCode.COMMAND_LINE_ERROR);
+    }
+  }
+
   static RemoteRetrier createExecuteRetrier(
       RemoteOptions options, ListeningScheduledExecutorService retryService) {
     return new RemoteRetrier(
@@ -84,6 +84,42 @@ public final class RemoteOptions extends OptionsBase {
   )
   public int remoteTimeout;
 
+  @Option(
+      name = "experimental_remote_max_upload_bytes_in_flight",
+      defaultValue = "67108864",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS},
+      help =
+          "The maximum number of bytes that concurrent uploads to the remote cache may hold in "
+              + "memory. Every upload counts with the most it may buffer, which is a chunk plus "
+              + "32 KiB, or the blob if it is smaller. Uploads beyond the limit wait for earlier "
+              + "ones to finish. 0 means no limit.")
+  public long remoteMaxUploadBytesInFlight;
+
+  @Option(
+      name = "experimental_remote_find_missing_blobs_batch_window_millis",
+      defaultValue = "5",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS},
+      help =
+          "How long at most to collect the inputs of concurrent actions before asking the "
+              + "remote cache which of them are missing in a single call. Inputs are only "
+              + "collected while another such call is in progress, and sent as soon as it "
+              + "completes. 0 sends every request right away, but still does not ask about inputs "
+              + "that are part of a call in progress.")
+  public long remoteFindMissingBlobsBatchWindowMillis;
+
+  @Option(
+      name = "experimental_remote_merkle_tree_cache_size",
+      defaultValue = "50000",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS},
+      help =
+          "The number of input directories whose digests are kept for the duration of a build, so "
+              + "that input trees shared by many actions are only digested and uploaded once. 0 "
+              + "disables the cache.")
+  public long remoteMerkleTreeCacheSize;
+
   @Option(
     name = "remote_accept_cached",
     defaultValue = "true",
@@ -206,6 +242,17 @@ public final class RemoteOptions extends OptionsBase {
   )
   public PathFragment diskCache;
 
+  @Option(
+    name = "experimental_disk_cache_max_size_mb",
+    defaultValue = "0",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If positive, the maximum size in megabytes of the --disk_cache directory. Least recently "
+            + "used entries are evicted in the background once the cache grows beyond this size."
+  )
+  public long diskCacheMaxSizeMb;
+
   @Option(
     name = "experimental_guard_against_concurrent_changes",
     defaultValue = "false",
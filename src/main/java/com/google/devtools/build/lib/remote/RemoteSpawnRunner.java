@@ -93,6 +93,7 @@ class RemoteSpawnRunner implements SpawnRunner {
   private final String buildRequestId;
   private final String commandId;
   private final DigestUtil digestUtil;
+  private final MerkleTreeCache merkleTreeCache;
   private final Path logDir;
 
   // Used to ensure that a warning is reported only once.
@@ -111,6 +112,7 @@ class RemoteSpawnRunner implements SpawnRunner {
       @Nullable GrpcRemoteExecutor remoteExecutor,
       @Nullable RemoteRetrier retrier,
       DigestUtil digestUtil,
+      MerkleTreeCache merkleTreeCache,
       Path logDir) {
     this.execRoot = execRoot;
     this.remoteOptions = remoteOptions;
@@ -124,6 +126,7 @@ class RemoteSpawnRunner implements SpawnRunner {
     this.commandId = commandId;
     this.retrier = retrier;
     this.digestUtil = digestUtil;
+    this.merkleTreeCache = merkleTreeCache;
     this.logDir = logDir;
   }
 
@@ -142,7 +145,8 @@ class RemoteSpawnRunner implements SpawnRunner {
     context.report(ProgressStatus.EXECUTING, getName());
     // Temporary hack: the TreeNodeRepository should be created and maintained upstream!
     MetadataProvider inputFileCache = context.getMetadataProvider();
-    TreeNodeRepository repository = new TreeNodeRepository(execRoot, inputFileCache, digestUtil);
+    TreeNodeRepository repository =
+        new TreeNodeRepository(execRoot, inputFileCache, digestUtil, merkleTreeCache);
     SortedMap<PathFragment, ActionInput> inputMap = context.getInputMapping();
     TreeNode inputRoot = repository.buildFromActionInputs(inputMap);
     repository.computeMerkleDigests(inputRoot);
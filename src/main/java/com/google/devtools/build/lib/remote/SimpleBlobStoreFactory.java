@@ -57,13 +57,13 @@ public final class SimpleBlobStoreFactory {
     }
   }
 
-  public static SimpleBlobStore createDiskCache(Path workingDirectory, PathFragment diskCachePath)
-      throws IOException {
+  public static SimpleBlobStore createDiskCache(
+      Path workingDirectory, PathFragment diskCachePath, long maxSizeMb) throws IOException {
     Path cacheDir = workingDirectory.getRelative(checkNotNull(diskCachePath));
     if (!cacheDir.exists()) {
       cacheDir.createDirectoryAndParents();
     }
-    return new OnDiskBlobStore(cacheDir);
+    return new OnDiskBlobStore(cacheDir, maxSizeMb * 1024 * 1024);
   }
 
   public static SimpleBlobStore create(
@@ -73,7 +73,7 @@ public final class SimpleBlobStoreFactory {
       return createRest(options, creds);
     }
     if (workingDirectory != null && isDiskCache(options)) {
-      return createDiskCache(workingDirectory, options.diskCache);
+      return createDiskCache(workingDirectory, options.diskCache, options.diskCacheMaxSizeMb);
     }
     throw new IllegalArgumentException(
         "Unrecognized concurrent map RemoteOptions: must specify "
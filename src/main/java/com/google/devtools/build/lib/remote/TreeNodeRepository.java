@@ -33,7 +33,6 @@ import com.google.devtools.build.lib.actions.DigestOfDirectoryException;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
-import com.google.devtools.build.lib.concurrent.BlazeInterners;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -58,6 +57,9 @@ import javax.annotation.Nullable;
 /**
  * A factory and repository for {@link TreeNode} objects. Provides directory structure traversals,
  * computing and caching Merkle hashes on all objects.
+ *
+ * <p>A repository is meant for the input tree of a single spawn. Repositories that share a {@link
+ * MerkleTreeCache} reuse each other's directory nodes and digests.
  */
 @ThreadSafe
 public final class TreeNodeRepository {
@@ -218,8 +220,9 @@ public final class TreeNodeRepository {
   private static final TreeNode EMPTY_NODE =
       new TreeNode(ImmutableList.<TreeNode.ChildEntry>of(), null);
 
+  private final MerkleTreeCache merkleTreeCache;
   // Keep only one canonical instance of every TreeNode in the repository.
-  private final Interner<TreeNode> interner = BlazeInterners.newWeakInterner();
+  private final Interner<TreeNode> interner;
   // Merkle hashes are computed and cached by the repository, therefore execRoot must
   // be part of the state.
   private final Path execRoot;
@@ -235,9 +238,20 @@ public final class TreeNodeRepository {
   private final DigestUtil digestUtil;
 
   public TreeNodeRepository(Path execRoot, MetadataProvider inputFileCache, DigestUtil digestUtil) {
+    this(execRoot, inputFileCache, digestUtil, new MerkleTreeCache(/*maxDirectories=*/ 0));
+  }
+
+  public TreeNodeRepository(
+      Path execRoot,
+      MetadataProvider inputFileCache,
+      DigestUtil digestUtil,
+      MerkleTreeCache merkleTreeCache) {
     this.execRoot = execRoot;
     this.inputFileCache = inputFileCache;
     this.digestUtil = digestUtil;
+    this.merkleTreeCache = merkleTreeCache;
+    this.interner = merkleTreeCache.getInterner();
+    merkleTreeCache.noteSpawn();
   }
 
   public MetadataProvider getInputFileCache() {
@@ -360,7 +374,12 @@ public final class TreeNodeRepository {
     // Assumes all child digests have already been computed!
     Preconditions.checkArgument(!node.isLeaf());
     Directory directory = directoryCache.get(node);
-    if (directory == null) {
+    if (directory != null) {
+      return directory;
+    }
+    MerkleTreeCache.CachedDirectory cached = merkleTreeCache.getDirectory(node);
+    if (cached == null) {
+      long startTime = System.nanoTime();
       Directory.Builder b = Directory.newBuilder();
       for (TreeNode.ChildEntry entry : node.getChildEntries()) {
         TreeNode child = entry.getChild();
@@ -368,35 +387,45 @@ public final class TreeNodeRepository {
           ActionInput input = child.getActionInput();
           final Digest digest;
           if (input instanceof VirtualActionInput) {
-            VirtualActionInput virtualInput = (VirtualActionInput) input;
-            digest = digestUtil.compute(virtualInput);
-            virtualInputDigestCache.put(virtualInput, digest);
-            // There may be multiple inputs with the same digest. In that case, we don't care which
-            // one we get back from the digestVirtualInputCache later.
-            digestVirtualInputCache.put(digest, virtualInput);
+            digest = getOrComputeVirtualInputDigest((VirtualActionInput) input);
           } else {
             digest = DigestUtil.getFromInputCache(input, inputFileCache);
           }
           b.addFilesBuilder().setName(entry.getSegment()).setDigest(digest).setIsExecutable(true);
         } else {
           Digest childDigest = Preconditions.checkNotNull(treeNodeDigestCache.get(child));
-          if (child.getActionInput() != null) {
-            inputDirectoryDigestCache.put(child.getActionInput(), childDigest);
-          }
           b.addDirectoriesBuilder().setName(entry.getSegment()).setDigest(childDigest);
         }
       }
       directory = b.build();
-      directoryCache.put(node, directory);
-      Digest digest = digestUtil.compute(directory);
-      treeNodeDigestCache.put(node, digest);
-      digestTreeNodeCache.put(digest, node);
+      cached = new MerkleTreeCache.CachedDirectory(directory, digestUtil.compute(directory));
+      merkleTreeCache.putDirectory(node, cached, System.nanoTime() - startTime);
+    }
+    directoryCache.put(node, cached.directory);
+    treeNodeDigestCache.put(node, cached.digest);
+    digestTreeNodeCache.put(cached.digest, node);
+    if (node.getActionInput() != null) {
+      inputDirectoryDigestCache.put(node.getActionInput(), cached.digest);
+    }
+    return cached.directory;
+  }
+
+  private synchronized Digest getOrComputeVirtualInputDigest(VirtualActionInput input)
+      throws IOException {
+    Digest digest = virtualInputDigestCache.get(input);
+    if (digest == null) {
+      digest = digestUtil.compute(input);
+      virtualInputDigestCache.put(input, digest);
+      // There may be multiple inputs with the same digest. In that case, we don't care which
+      // one we get back from the digestVirtualInputCache later.
+      digestVirtualInputCache.put(digest, input);
     }
-    return directory;
+    return digest;
   }
 
   // Recursively traverses the tree, expanding and computing Merkle digests for nodes for which
-  // they have not yet been computed and cached.
+  // they have not yet been computed and cached. Nodes found in the MerkleTreeCache are not
+  // recomputed, but their children are still visited to record their digests in this repository.
   public void computeMerkleDigests(TreeNode root) throws IOException {
     synchronized (this) {
       if (directoryCache.get(root) != null) {
@@ -427,8 +456,51 @@ public final class TreeNodeRepository {
    * computeMerkleDigests has been called on one of the node ancestors.
    */
   public ImmutableCollection<Digest> getAllDigests(TreeNode root) throws IOException {
+    return getDigests(descendants(root));
+  }
+
+  /**
+   * Like {@link #getAllDigests}, but leaves out the subtrees that were passed to {@link
+   * #markUploaded} by any repository that shares the {@link MerkleTreeCache} of this one.
+   */
+  public ImmutableCollection<Digest> getDigestsNotUploaded(TreeNode root) throws IOException {
+    return getDigests(descendantsNotUploaded(root));
+  }
+
+  /**
+   * Records that the whole tree under {@code root} is in the remote cache, so that its subtrees are
+   * left out of {@link #getDigestsNotUploaded} for the rest of the build. Should only be used after
+   * computeMerkleDigests has been called on one of the node ancestors.
+   */
+  public void markUploaded(TreeNode root) {
+    for (TreeNode node : descendantsNotUploaded(root)) {
+      if (!node.isLeaf()) {
+        merkleTreeCache.markUploaded(Preconditions.checkNotNull(treeNodeDigestCache.get(node)));
+      }
+    }
+  }
+
+  /** Pre-order tree traversal that skips subtrees that are known to be uploaded. */
+  private List<TreeNode> descendantsNotUploaded(TreeNode root) {
+    List<TreeNode> nodes = new ArrayList<>();
+    addDescendantsNotUploaded(root, nodes);
+    return nodes;
+  }
+
+  private void addDescendantsNotUploaded(TreeNode node, List<TreeNode> nodes) {
+    if (!node.isLeaf()
+        && merkleTreeCache.isUploaded(Preconditions.checkNotNull(treeNodeDigestCache.get(node)))) {
+      return;
+    }
+    nodes.add(node);
+    for (TreeNode child : children(node)) {
+      addDescendantsNotUploaded(child, nodes);
+    }
+  }
+
+  private ImmutableCollection<Digest> getDigests(Iterable<TreeNode> nodes) throws IOException {
     ImmutableSet.Builder<Digest> digests = ImmutableSet.builder();
-    for (TreeNode node : descendants(root)) {
+    for (TreeNode node : nodes) {
       digests.add(
           node.isLeaf()
               ? actionInputToDigest(node.getActionInput())
@@ -439,7 +511,7 @@ public final class TreeNodeRepository {
 
   private Digest actionInputToDigest(ActionInput input) throws IOException {
     if (input instanceof VirtualActionInput) {
-      return Preconditions.checkNotNull(virtualInputDigestCache.get(input));
+      return getOrComputeVirtualInputDigest((VirtualActionInput) input);
     }
     FileArtifactValue metadata = getInputMetadata(input);
     byte[] digest = metadata.getDigest();
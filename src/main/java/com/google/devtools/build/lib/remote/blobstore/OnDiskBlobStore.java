@@ -13,30 +13,153 @@
 // limitations under the License.
 package com.google.devtools.build.lib.remote.blobstore;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.devtools.build.lib.remote.util.Utils.getFromFuture;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-/** A on-disk store for the remote action cache. */
+/**
+ * A on-disk store for the remote action cache.
+ *
+ * <p>Blobs are spread over fan-out directories named after the first characters of their key, so
+ * that no single directory grows to millions of entries. Action cache entries and CAS blobs are
+ * kept in separate subtrees. If a maximum size is given, the store keeps an in-memory index of the
+ * size and last access of every entry and evicts least recently used entries in the background
+ * whenever the total size exceeds that maximum.
+ *
+ * <p>Entries left in the root directory by the flat layout of earlier versions are moved into
+ * their fan-out directories in the background after the store is created. That takes a rename per
+ * entry, so on a large cache it may take a while, and entries that have not been moved yet are
+ * cache misses until then. Temporary files left behind by writes that were interrupted, for
+ * example by a crash, are deleted in the background as well once they are old enough that no
+ * other server can still be writing them.
+ */
 public final class OnDiskBlobStore implements SimpleBlobStore {
-  private final Path root;
+  private static final Logger logger = Logger.getLogger(OnDiskBlobStore.class.getName());
+
   static final String ACTION_KEY_PREFIX = "ac_";
 
+  private static final String AC_DIRECTORY = "ac";
+  private static final String CAS_DIRECTORY = "cas";
+  private static final String TMP_DIRECTORY = "tmp";
+
+  /** Number of leading key characters used to name the fan-out directory of a blob. */
+  private static final int SHARD_PREFIX_LENGTH = 2;
+
+  /** Once eviction kicks in, entries are deleted until the size drops below this fraction. */
+  private static final double EVICTION_LOW_WATERMARK = 0.9;
+
+  private static final int LOCK_STRIPES = 64;
+
+  /** Temporary files that were last modified longer ago than this are considered abandoned. */
+  private static final long MAX_TEMP_FILE_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
+  private final Path root;
+  private final long maxSizeBytes;
+
+  /** Index of all entries in the store; only maintained if {@link #maxSizeBytes} is positive. */
+  private final Map<String, Entry> index = new ConcurrentHashMap<>();
+
+  private final AtomicLong totalSizeBytes = new AtomicLong();
+  private final AtomicLong accessClock = new AtomicLong();
+  private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+
+  /**
+   * Runs the migration of the flat layout, the cleanup of temporary files, the loading of the index
+   * and evictions, one at a time.
+   */
+  private final ExecutorService backgroundExecutor;
+
+  /**
+   * Locks guarding the file of a key together with its index entry, so that an eviction can't
+   * delete a file that a concurrent {@link #put} has just renamed into place and indexed.
+   */
+  private final Striped<Lock> keyLocks = Striped.lock(LOCK_STRIPES);
+
+  /** Size and logical last access time of a single blob in the store. */
+  private static final class Entry {
+    private final String key;
+    private final long size;
+    private volatile long lastAccess;
+
+    private Entry(String key, long size, long lastAccess) {
+      this.key = key;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  /** Creates an on-disk store that never evicts. */
   public OnDiskBlobStore(Path root) {
+    this(root, /* maxSizeBytes= */ 0);
+  }
+
+  /**
+   * Creates an on-disk store that evicts least recently used entries once its total size exceeds
+   * {@code maxSizeBytes}. A value of {@code 0} disables eviction.
+   */
+  public OnDiskBlobStore(Path root, long maxSizeBytes) {
+    checkArgument(maxSizeBytes >= 0, "maxSizeBytes must not be negative");
     this.root = root;
+    this.maxSizeBytes = maxSizeBytes;
+    this.backgroundExecutor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("disk-cache-%d").setDaemon(true).build());
+    // Eviction has to wait for the index, so it counts as scheduled until the index is loaded.
+    evictionScheduled.set(maxSizeBytes > 0);
+    backgroundExecutor.execute(
+        () -> {
+          migrateFlatLayout();
+          deleteStaleTempFiles();
+          if (maxSizeBytes > 0) {
+            loadIndex();
+            evictionScheduled.set(false);
+            maybeScheduleEviction();
+          }
+        });
   }
 
   @Override
   public boolean containsKey(String key) {
-    return toPath(key).exists();
+    Path p = toPath(key);
+    if (!p.exists()) {
+      return false;
+    }
+    recordAccess(key, p);
+    return true;
   }
 
   @Override
@@ -47,7 +170,8 @@ public final class OnDiskBlobStore implements SimpleBlobStore {
       f.set(false);
     } else {
       try (InputStream in = p.getInputStream()) {
-        ByteStreams.copy(in, out);
+        copy(in, out);
+        recordAccess(key, p);
         f.set(true);
       } catch (IOException e) {
         f.setException(e);
@@ -66,17 +190,31 @@ public final class OnDiskBlobStore implements SimpleBlobStore {
   public void put(String key, long length, InputStream in) throws IOException {
     Path target = toPath(key);
     if (target.exists()) {
+      recordAccess(key, target);
       return;
     }
 
     // Write a temporary file first, and then rename, to avoid data corruption in case of a crash.
-    Path temp = toPath(UUID.randomUUID().toString());
+    Path tmpDir = root.getChild(TMP_DIRECTORY);
+    tmpDir.createDirectoryAndParents();
+    Path temp = tmpDir.getChild(UUID.randomUUID().toString());
     try (OutputStream out = temp.getOutputStream()) {
       ByteStreams.copy(in, out);
+      // Fsync temp before we rename it to avoid data loss in the case of machine crashes (the OS
+      // may reorder the writes and the rename).
+      if (out instanceof FileOutputStream) {
+        ((FileOutputStream) out).getFD().sync();
+      }
+    }
+    target.getParentDirectory().createDirectoryAndParents();
+    Lock lock = keyLocks.get(key);
+    lock.lock();
+    try {
+      temp.renameTo(target);
+      recordInsertion(key, target);
+    } finally {
+      lock.unlock();
     }
-    // TODO(ulfjack): Fsync temp here before we rename it to avoid data loss in the case of machine
-    // crashes (the OS may reorder the writes and the rename).
-    temp.renameTo(target);
   }
 
   @Override
@@ -85,9 +223,252 @@ public final class OnDiskBlobStore implements SimpleBlobStore {
   }
 
   @Override
-  public void close() {}
+  public void close() {
+    backgroundExecutor.shutdownNow();
+  }
+
+  /** Returns the total size of all entries known to the index. */
+  @VisibleForTesting
+  long getIndexedSizeBytes() {
+    return totalSizeBytes.get();
+  }
+
+  /** Blocks until all pending migration, cleanup, index loading and eviction work is done. */
+  @VisibleForTesting
+  void awaitBackgroundWork() throws InterruptedException {
+    // The executor is single-threaded, so a task runs after all previously queued work, and sees
+    // whether that work scheduled more while no other task is running.
+    boolean scheduled;
+    do {
+      SettableFuture<Boolean> done = SettableFuture.create();
+      backgroundExecutor.execute(() -> done.set(evictionScheduled.get()));
+      try {
+        scheduled = done.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e);
+      }
+    } while (scheduled);
+  }
+
+  @VisibleForTesting
+  Path toPath(String key) {
+    String directory;
+    String name;
+    if (key.startsWith(ACTION_KEY_PREFIX)) {
+      directory = AC_DIRECTORY;
+      name = key.substring(ACTION_KEY_PREFIX.length());
+    } else {
+      directory = CAS_DIRECTORY;
+      name = key;
+    }
+    String shard =
+        name.length() > SHARD_PREFIX_LENGTH ? name.substring(0, SHARD_PREFIX_LENGTH) : "_";
+    return root.getChild(directory).getChild(shard).getChild(name);
+  }
+
+  /**
+   * Copies {@code in} to {@code out}. If both ends are backed by file descriptors the kernel
+   * transfers the bytes directly, and otherwise only the user-space copy into {@code out} is made.
+   */
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    if (!(in instanceof FileInputStream)) {
+      ByteStreams.copy(in, out);
+      return;
+    }
+    FileChannel src = ((FileInputStream) in).getChannel();
+    WritableByteChannel dst =
+        out instanceof FileOutputStream
+            ? ((FileOutputStream) out).getChannel()
+            : Channels.newChannel(out);
+    long size = src.size();
+    long position = 0;
+    while (position < size) {
+      position += src.transferTo(position, size - position, dst);
+    }
+  }
 
-  private Path toPath(String key) {
-    return root.getChild(key);
+  private void recordAccess(String key, Path path) {
+    if (maxSizeBytes == 0) {
+      return;
+    }
+    Entry entry = index.get(key);
+    if (entry == null) {
+      recordInsertion(key, path);
+      return;
+    }
+    entry.lastAccess = accessClock.incrementAndGet();
+    try {
+      // Persist the access so that the LRU order survives a restart of the server.
+      path.setLastModifiedTime(-1L);
+    } catch (IOException e) {
+      // The entry may have been evicted concurrently, which is harmless.
+    }
+  }
+
+  private void recordInsertion(String key, Path path) {
+    if (maxSizeBytes == 0) {
+      return;
+    }
+    long size;
+    try {
+      size = path.getFileSize();
+    } catch (IOException e) {
+      // Evicted concurrently.
+      return;
+    }
+    Entry entry = new Entry(key, size, accessClock.incrementAndGet());
+    if (index.putIfAbsent(key, entry) == null) {
+      totalSizeBytes.addAndGet(size);
+      maybeScheduleEviction();
+    }
+  }
+
+  private void maybeScheduleEviction() {
+    if (totalSizeBytes.get() > maxSizeBytes && evictionScheduled.compareAndSet(false, true)) {
+      try {
+        backgroundExecutor.execute(
+            () -> {
+              evictionScheduled.set(false);
+              evict();
+            });
+      } catch (RuntimeException e) {
+        // The store has been closed.
+        evictionScheduled.set(false);
+      }
+    }
+  }
+
+  /** Deletes least recently used entries until the store is below its low watermark. */
+  private void evict() {
+    long target = (long) (maxSizeBytes * EVICTION_LOW_WATERMARK);
+    if (totalSizeBytes.get() <= target) {
+      return;
+    }
+    List<Entry> entries = new ArrayList<>(index.values());
+    entries.sort(Comparator.comparingLong(e -> e.lastAccess));
+    for (Entry entry : entries) {
+      if (totalSizeBytes.get() <= target || Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      Lock lock = keyLocks.get(entry.key);
+      lock.lock();
+      try {
+        if (index.get(entry.key) != entry) {
+          // Evicted already, or replaced by a concurrent put.
+          continue;
+        }
+        toPath(entry.key).delete();
+        index.remove(entry.key);
+        totalSizeBytes.addAndGet(-entry.size);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to evict " + entry.key + " from the disk cache", e);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Moves the entries of the flat layout, which kept every blob directly in {@link #root}, into
+   * their fan-out directories. Temporary files of that layout, named after random UUIDs, are
+   * deleted. An entry that was written to its fan-out directory in the meantime is kept.
+   */
+  private void migrateFlatLayout() {
+    try {
+      for (Dirent dirent : root.readdir(Symlinks.NOFOLLOW)) {
+        if (Thread.currentThread().isInterrupted()) {
+          // The store has been closed; the next one continues the migration.
+          return;
+        }
+        if (dirent.getType() != Dirent.Type.FILE) {
+          continue;
+        }
+        String key = dirent.getName();
+        Path source = root.getChild(key);
+        // Blob names are hex digests, which never contain a dash, unlike UUIDs.
+        if (key.contains("-")) {
+          source.delete();
+          continue;
+        }
+        Path target = toPath(key);
+        target.getParentDirectory().createDirectoryAndParents();
+        Lock lock = keyLocks.get(key);
+        lock.lock();
+        try {
+          if (target.exists()) {
+            source.delete();
+          } else {
+            source.renameTo(target);
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to migrate the disk cache at " + root, e);
+    }
+  }
+
+  /**
+   * Deletes the temporary files of writes that were interrupted. Recent ones are kept, as another
+   * server sharing the cache may still be writing them.
+   */
+  private void deleteStaleTempFiles() {
+    Path tmpDir = root.getChild(TMP_DIRECTORY);
+    long now = System.currentTimeMillis();
+    try {
+      if (!tmpDir.isDirectory()) {
+        return;
+      }
+      for (Path file : tmpDir.getDirectoryEntries()) {
+        if (now - file.getLastModifiedTime() > MAX_TEMP_FILE_AGE_MS) {
+          file.delete();
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to clean up disk cache directory " + tmpDir, e);
+    }
+  }
+
+  /**
+   * Populates the index from the entries on disk, using their modification time as the initial
+   * access order.
+   */
+  private void loadIndex() {
+    List<Entry> entries = new ArrayList<>();
+    for (String directory : new String[] {AC_DIRECTORY, CAS_DIRECTORY}) {
+      String keyPrefix = directory.equals(AC_DIRECTORY) ? ACTION_KEY_PREFIX : "";
+      Path dir = root.getChild(directory);
+      try {
+        if (!dir.isDirectory()) {
+          continue;
+        }
+        for (Dirent shard : dir.readdir(Symlinks.NOFOLLOW)) {
+          if (shard.getType() != Dirent.Type.DIRECTORY) {
+            continue;
+          }
+          Path shardDir = dir.getChild(shard.getName());
+          for (Dirent blob : shardDir.readdir(Symlinks.NOFOLLOW)) {
+            FileStatus stat = shardDir.getChild(blob.getName()).statIfFound(Symlinks.NOFOLLOW);
+            if (stat != null && stat.isFile()) {
+              String key = keyPrefix + blob.getName();
+              entries.add(new Entry(key, stat.getSize(), stat.getLastModifiedTime()));
+            }
+          }
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to index disk cache directory " + dir, e);
+      }
+    }
+    // Translate modification times into the logical clock, preserving their order. Entries found
+    // on disk are older than anything accessed since the store was created.
+    entries.sort(Comparator.comparingLong(e -> e.lastAccess));
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      entry.lastAccess = i - entries.size();
+      if (index.putIfAbsent(entry.key, entry) == null) {
+        totalSizeBytes.addAndGet(entry.size);
+      }
+    }
   }
 }
@@ -569,8 +569,14 @@ public final class BlazeRuntime {
     return commandMap;
   }
 
-  /** Invokes {@link BlazeModule#blazeShutdown()} on all registered modules. */
+  /**
+   * Invokes {@link BlazeModule#blazeShutdown()} on all registered modules, after saving the state
+   * that outlives the server.
+   */
   public void shutdown() {
+    if (workspace != null) {
+      workspace.saveGraphSnapshot();
+    }
     for (BlazeModule module : blazeModules) {
       module.blazeShutdown();
     }
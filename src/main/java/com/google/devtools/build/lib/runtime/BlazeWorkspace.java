@@ -20,7 +20,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Range;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionHandler;
+import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
+import com.google.devtools.build.lib.actions.cache.AppendOnlyActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
@@ -35,7 +37,12 @@ import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsParsingResult;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -51,6 +58,7 @@ import javax.annotation.Nullable;
  */
 public final class BlazeWorkspace {
   public static final String DO_NOT_BUILD_FILE_NAME = "DO_NOT_BUILD_HERE";
+  private static final String GRAPH_SNAPSHOT_FILE_NAME = "skyframe_graph_snapshot";
 
   private static final Logger logger = Logger.getLogger(BlazeRuntime.class.getName());
 
@@ -66,6 +74,8 @@ public final class BlazeWorkspace {
   private ActionCache actionCache;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable private Range<Long> lastExecutionRange = null;
+  /** Whether a command of this server asked for the Skyframe graph snapshot. */
+  private boolean graphSnapshotEnabled = false;
 
   private final String outputBaseFilesystemTypeName;
 
@@ -228,6 +238,7 @@ public final class BlazeWorkspace {
   public void clearCaches() throws IOException {
     if (actionCache != null) {
       actionCache.clear();
+      closeActionCache();
     }
     actionCache = null;
     FileSystemUtils.deleteTree(getCacheDirectory());
@@ -239,10 +250,25 @@ public final class BlazeWorkspace {
    * requests, so return value should not be cached.
    */
   public ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
+    return getPersistentActionCache(reporter, /* appendOnly= */ false);
+  }
+
+  /**
+   * Like {@link #getPersistentActionCache(Reporter)}, but selects the implementation: an {@link
+   * AppendOnlyActionCache} if {@code appendOnly} is set and a {@link CompactPersistentActionCache}
+   * otherwise. A cache of the other kind loaded by a previous command is saved and dropped.
+   */
+  public ActionCache getPersistentActionCache(Reporter reporter, boolean appendOnly)
+      throws IOException {
+    if (actionCache != null && (actionCache instanceof AppendOnlyActionCache) != appendOnly) {
+      actionCache.save();
+      closeActionCache();
+      actionCache = null;
+    }
     if (actionCache == null) {
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, logger)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = createActionCache(appendOnly);
         } catch (IOException e) {
           logger.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
           LoggingUtil.logToRemote(
@@ -255,13 +281,97 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Bazel will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = createActionCache(appendOnly);
         }
       }
     }
     return actionCache;
   }
 
+  private void closeActionCache() throws IOException {
+    if (actionCache instanceof AppendOnlyActionCache) {
+      ((AppendOnlyActionCache) actionCache).close();
+    }
+  }
+
+  /**
+   * Restores the Skyframe graph snapshot written by the previous server, if {@code enabled} and
+   * this server has not evaluated anything yet. Failures are logged and otherwise ignored, since
+   * the snapshot only saves work.
+   */
+  void maybeRestoreGraphSnapshot(boolean enabled) {
+    graphSnapshotEnabled = enabled;
+    Path snapshotFile = getGraphSnapshotFile();
+    if (!enabled || !snapshotFile.exists()) {
+      return;
+    }
+    try (AutoProfiler p =
+            profiledAndLogged("Restoring Skyframe graph snapshot", ProfilerTask.INFO, logger);
+        InputStream in = new BufferedInputStream(snapshotFile.getInputStream())) {
+      // The codecs of the nodes are specific to a binary, so a snapshot written by another one
+      // cannot be read.
+      byte[] binary = getGraphSnapshotBinaryTag();
+      byte[] snapshotBinary = new byte[binary.length];
+      if (ByteStreams.read(in, snapshotBinary, 0, binary.length) != binary.length
+          || !Arrays.equals(binary, snapshotBinary)) {
+        throw new IOException("Snapshot was written by a different binary");
+      }
+      int restored = skyframeExecutor.restoreGraphSnapshot(in);
+      logger.info("Restored " + restored + " Skyframe nodes from " + snapshotFile);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to restore Skyframe graph snapshot: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // A snapshot is only restored once; the graph is written anew when this server shuts down.
+    try {
+      snapshotFile.delete();
+    } catch (IOException e) {
+      logger.warning("Failed to delete Skyframe graph snapshot: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Writes the Skyframe graph snapshot for the next server if the last command asked for it, and
+   * deletes any stale snapshot otherwise.
+   */
+  void saveGraphSnapshot() {
+    Path snapshotFile = getGraphSnapshotFile();
+    try {
+      snapshotFile.delete();
+      if (!graphSnapshotEnabled) {
+        return;
+      }
+      Path tmpFile = getOutputBase().getRelative(GRAPH_SNAPSHOT_FILE_NAME + ".tmp");
+      try (AutoProfiler p =
+              profiledAndLogged("Writing Skyframe graph snapshot", ProfilerTask.INFO, logger);
+          OutputStream out = new BufferedOutputStream(tmpFile.getOutputStream())) {
+        out.write(getGraphSnapshotBinaryTag());
+        int written = skyframeExecutor.writeGraphSnapshot(out);
+        logger.info("Wrote " + written + " Skyframe nodes to " + snapshotFile);
+      }
+      tmpFile.renameTo(snapshotFile);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write Skyframe graph snapshot: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private byte[] getGraphSnapshotBinaryTag() {
+    return String.valueOf(directories.getServerDirectories().getInstallMD5()).getBytes(ISO_8859_1);
+  }
+
+  private Path getGraphSnapshotFile() {
+    return getOutputBase().getRelative(GRAPH_SNAPSHOT_FILE_NAME);
+  }
+
+  private ActionCache createActionCache(boolean appendOnly) throws IOException {
+    return appendOnly
+        ? new AppendOnlyActionCache(getCacheDirectory(), runtime.getClock())
+        : new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+  }
+
   /**
    * Generates a README file in the output base directory. This README file
    * contains the name of the workspace directory, so that users can figure out
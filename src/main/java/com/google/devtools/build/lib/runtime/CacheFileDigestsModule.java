@@ -17,9 +17,14 @@ package com.google.devtools.build.lib.runtime;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheStats;
 import com.google.devtools.build.lib.actions.cache.DigestUtils;
+import com.google.devtools.build.lib.actions.cache.PersistentFileDigestCache;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.ParallelTreeDigester;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
 import java.util.logging.Logger;
 
 /** Enables the caching of file digests in {@link DigestUtils}. */
@@ -36,6 +41,15 @@ public class CacheFileDigestsModule extends BlazeModule {
    */
   private Long lastKnownCacheSize;
 
+  /** The cache of file digests on disk, or null if it is disabled. */
+  private PersistentFileDigestCache persistentCache;
+
+  /** Last known size of the cache on disk. Changes to this value cause it to be recreated. */
+  private int lastKnownPersistentCacheSize;
+
+  /** Whether files are digested with {@link ParallelTreeDigester}, whose stats are logged. */
+  private boolean treeDigests;
+
   public CacheFileDigestsModule() {}
 
   /**
@@ -74,6 +88,29 @@ public class CacheFileDigestsModule extends BlazeModule {
       stats = DigestUtils.getCacheStats();
       logStats("Accumulated cache stats before command", stats);
     }
+
+    treeDigests =
+        env.getRuntime().getFileSystem().getDigestFunction() == DigestHashFunction.SHA256_TREE;
+
+    Path persistentCacheDirectory = env.getOutputBase().getChild("file_digest_cache");
+    if (options.persistentFileDigestCacheSize != lastKnownPersistentCacheSize
+        || (persistentCache != null
+            && !persistentCache.getCacheDirectory().equals(persistentCacheDirectory))) {
+      if (options.persistentFileDigestCacheSize == 0) {
+        logger.info("Disabled persistent cache");
+        persistentCache = null;
+      } else {
+        logger.info(
+            "Reconfiguring persistent cache with size=" + options.persistentFileDigestCacheSize);
+        persistentCache =
+            new PersistentFileDigestCache(
+                persistentCacheDirectory,
+                options.persistentFileDigestCacheSize,
+                env.getRuntime().getClock());
+      }
+      DigestUtils.configurePersistentCache(persistentCache);
+      lastKnownPersistentCacheSize = options.persistentFileDigestCacheSize;
+    }
   }
 
   @Override
@@ -87,5 +124,23 @@ public class CacheFileDigestsModule extends BlazeModule {
       logStats("Cache stats for finished command", newStats.minus(stats));
       stats = null; // Silence stats until next command that uses the executor.
     }
+
+    if (treeDigests) {
+      logger.info("Accumulated tree digest stats: " + ParallelTreeDigester.getStatsSummary());
+    }
+
+    if (persistentCache != null) {
+      logger.info(
+          "Accumulated persistent cache stats after command: hit count="
+              + persistentCache.getHitCount()
+              + ", miss count="
+              + persistentCache.getMissCount());
+      try {
+        persistentCache.save();
+      } catch (IOException e) {
+        // The digests are recomputed after the next restart, which is only slower.
+        logger.warning("Failed to save file digest cache: " + e);
+      }
+    }
   }
 }
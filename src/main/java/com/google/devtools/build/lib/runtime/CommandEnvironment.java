@@ -24,6 +24,7 @@ import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.SkyframePackageRootResolver;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.analysis.config.DefaultsPackage;
+import com.google.devtools.build.lib.buildtool.BuildRequestOptions;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.packages.NoSuchThingException;
@@ -428,7 +429,9 @@ public final class CommandEnvironment {
   }
 
   public ActionCache getPersistentActionCache() throws IOException {
-    return workspace.getPersistentActionCache(reporter);
+    BuildRequestOptions buildRequestOptions = options.getOptions(BuildRequestOptions.class);
+    return workspace.getPersistentActionCache(
+        reporter, buildRequestOptions != null && buildRequestOptions.appendOnlyActionCache);
   }
 
   /**
@@ -614,6 +617,8 @@ public final class CommandEnvironment {
         commonOptions.keepStateAfterBuild, commonOptions.trackIncrementalState,
         viewOptions != null && viewOptions.discardAnalysisCache,
         reporter);
+    skyframeExecutor.setCompactGraphEdges(commonOptions.compactSkyframeEdges);
+    this.workspace.maybeRestoreGraphSnapshot(commonOptions.skyframeGraphSnapshot);
 
     // Start the performance and memory profilers.
     runtime.beforeCommand(this, commonOptions);
@@ -415,4 +415,30 @@ public class CommonCommandOptions extends OptionsBase {
               + "one."
   )
   public boolean keepStateAfterBuild;
+
+  @Option(
+      name = "experimental_compact_skyframe_edges",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.BUILD_TIME_OPTIMIZATION,
+      effectTags = {OptionEffectTag.LOSES_INCREMENTAL_STATE},
+      help =
+          "If true, the Skyframe graph stores the dependency edges of evaluated nodes as "
+              + "compactly encoded integers instead of references, reducing memory use on large "
+              + "builds at some CPU cost. Changing this option discards the inmemory state."
+  )
+  public boolean compactSkyframeEdges;
+
+  @Option(
+      name = "experimental_skyframe_graph_snapshot",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.BUILD_TIME_OPTIMIZATION,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If true, the file system state and the package lookups known to the server are "
+              + "written to the output base when the server shuts down and restored by the next "
+              + "server on its first command, so that it only has to check files for changes "
+              + "instead of reading them afresh. Loaded packages and analysis results are not "
+              + "restored."
+  )
+  public boolean skyframeGraphSnapshot;
 }
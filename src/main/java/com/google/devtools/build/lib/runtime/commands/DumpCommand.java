@@ -35,6 +35,8 @@ import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor.RuleStat;
 import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics.FunctionStats;
 import com.google.devtools.common.options.Converters.CommaSeparatedOptionListConverter;
 import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
@@ -53,6 +55,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /** Implementation of the dump command. */
 @Command(
@@ -160,7 +163,9 @@ public class DumpCommand implements BlazeCommand {
       converter = SkyframeDumpEnumConverter.class,
       documentationCategory = OptionDocumentationCategory.OUTPUT_SELECTION,
       effectTags = {OptionEffectTag.BAZEL_MONITORING},
-      help = "Dump Skyframe graph: 'off', 'summary', or 'detailed'."
+      help =
+          "Dump Skyframe graph: 'off', 'summary', or 'detailed'. 'functions' dumps, per "
+              + "SkyFunction, the evaluation counts and times recorded since the server started."
     )
     public SkyframeDumpOption dumpSkyframe;
   }
@@ -171,7 +176,8 @@ public class DumpCommand implements BlazeCommand {
   public enum SkyframeDumpOption {
     OFF,
     SUMMARY,
-    DETAILED;
+    DETAILED,
+    FUNCTIONS;
   }
 
   /**
@@ -268,7 +274,10 @@ public class DumpCommand implements BlazeCommand {
         }
       }
 
-      if (dumpOptions.dumpSkyframe != SkyframeDumpOption.OFF) {
+      if (dumpOptions.dumpSkyframe == SkyframeDumpOption.FUNCTIONS) {
+        dumpSkyFunctionMetrics(out);
+        out.println();
+      } else if (dumpOptions.dumpSkyframe != SkyframeDumpOption.OFF) {
         success &= dumpSkyframe(
             env.getSkyframeExecutor(),
             dumpOptions.dumpSkyframe == SkyframeDumpOption.SUMMARY,
@@ -314,6 +323,55 @@ public class DumpCommand implements BlazeCommand {
     return true;
   }
 
+  private static void dumpSkyFunctionMetrics(PrintStream out) {
+    Map<String, FunctionStats> metrics = SkyFunctionMetrics.instance().snapshot();
+    if (metrics.isEmpty()) {
+      out.print("No SkyFunction evaluations in Bazel server, please run a build command first.");
+      return;
+    }
+    List<Map.Entry<String, FunctionStats>> entries = new ArrayList<>(metrics.entrySet());
+    entries.sort(Map.Entry.comparingByValue(FunctionStats.BY_WALL_TIME));
+    int nameColumnWidth =
+        Math.min(
+            entries.stream().map(e -> e.getKey().length()).max(Integer::compareTo).get(), 30);
+    int numberColumnWidth = 12;
+    printWithPadding(out, "FUNCTION", nameColumnWidth);
+    for (String column :
+        new String[] {
+          "EVALUATIONS",
+          "RESTARTS",
+          "RESUMED",
+          "WALL_MS",
+          "CPU_MS",
+          "DEPS",
+          "DIRTIED",
+          "CHANGED",
+          "CLEAN"
+        }) {
+      printWithPaddingBefore(out, column, numberColumnWidth);
+    }
+    out.println();
+    for (Map.Entry<String, FunctionStats> entry : entries) {
+      FunctionStats stats = entry.getValue();
+      printWithPadding(out, entry.getKey(), nameColumnWidth);
+      for (long value :
+          new long[] {
+            stats.getEvaluations(),
+            stats.getRestarts(),
+            stats.getResumed(),
+            TimeUnit.NANOSECONDS.toMillis(stats.getWallTimeNanos()),
+            TimeUnit.NANOSECONDS.toMillis(stats.getCpuTimeNanos()),
+            stats.getDepsRequested(),
+            stats.getDirtied(),
+            stats.getChanged(),
+            stats.getClean()
+          }) {
+        printWithPaddingBefore(out, formatLong(value), numberColumnWidth);
+      }
+      out.println();
+    }
+  }
+
   private void dumpRuleClasses(BlazeRuntime runtime, PrintStream out) {
     PackageFactory factory = runtime.getPackageFactory();
     List<String> ruleClassNames = new ArrayList<>(factory.getRuleClassNames());
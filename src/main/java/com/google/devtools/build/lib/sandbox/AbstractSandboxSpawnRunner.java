@@ -67,7 +67,9 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
     ActionExecutionMetadata owner = spawn.getResourceOwner();
     context.report(ProgressStatus.SCHEDULING, getName());
     try (ResourceHandle ignored =
-        ResourceManager.instance().acquireResources(owner, spawn.getLocalResources())) {
+        ResourceManager.instance()
+            .acquireResources(
+                owner, spawn.getLocalResources(), ResourceManager.getPriority(spawn))) {
       context.report(ProgressStatus.EXECUTING, getName());
       return actuallyExec(spawn, context);
     } catch (IOException e) {
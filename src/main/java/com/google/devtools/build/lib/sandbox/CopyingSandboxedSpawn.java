@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.sandbox;
 
 import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.ParallelFileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Symlinks;
@@ -48,7 +49,7 @@ public class CopyingSandboxedSpawn extends AbstractContainerizingSandboxedSpawn
       FileSystemUtils.copyFile(source, target);
     } else if (stat.isDirectory()) {
       target.createDirectory();
-      FileSystemUtils.copyTreesBelow(source, target, Symlinks.NOFOLLOW);
+      ParallelFileSystemUtils.copyTreesBelow(source, target, Symlinks.NOFOLLOW);
     }
   }
 }
@@ -96,6 +96,7 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   private final LocalEnvProvider localEnvProvider;
   private final Duration timeoutKillDelay;
   private final @Nullable SandboxfsProcess sandboxfsProcess;
+  private final @Nullable SandboxDirectoryPool directoryPool;
 
   /**
    * Creates a sandboxed spawn runner that uses the {@code linux-sandbox} tool.
@@ -107,6 +108,8 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
    * @param timeoutKillDelay an additional grace period before killing timing out commands
    * @param sandboxfsProcess instance of the sandboxfs process to use; may be null for none, in
    *     which case the runner uses a symlinked sandbox
+   * @param directoryPool pool of sandbox directories to reuse for symlinked sandboxes; may be null
+   *     to create a new directory for each spawn
    */
   LinuxSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
@@ -114,7 +117,8 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
       Path inaccessibleHelperFile,
       Path inaccessibleHelperDir,
       Duration timeoutKillDelay,
-      @Nullable SandboxfsProcess sandboxfsProcess) {
+      @Nullable SandboxfsProcess sandboxfsProcess,
+      @Nullable SandboxDirectoryPool directoryPool) {
     super(cmdEnv);
     this.fileSystem = cmdEnv.getRuntime().getFileSystem();
     this.blazeDirs = cmdEnv.getDirectories();
@@ -126,6 +130,7 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
     this.inaccessibleHelperDir = inaccessibleHelperDir;
     this.timeoutKillDelay = timeoutKillDelay;
     this.sandboxfsProcess = sandboxfsProcess;
+    this.directoryPool = sandboxfsProcess == null ? directoryPool : null;
     this.localEnvProvider = new PosixLocalEnvProvider(cmdEnv.getClientEnv());
   }
 
@@ -135,10 +140,16 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
     // Each invocation of "exec" gets its own sandbox base.
     // Note that the value returned by context.getId() is only unique inside one given SpawnRunner,
     // so we have to prefix our name to turn it into a globally unique value.
-    Path sandboxPath =
-        sandboxBase.getRelative(getName()).getRelative(Integer.toString(context.getId()));
-    sandboxPath.getParentDirectory().createDirectory();
-    sandboxPath.createDirectory();
+    // With a directory pool, the sandbox base may instead be one that an earlier spawn left behind.
+    Path sandboxPath;
+    if (directoryPool != null) {
+      sandboxPath = directoryPool.acquire(spawn.getMnemonic());
+    } else {
+      sandboxPath =
+          sandboxBase.getRelative(getName()).getRelative(Integer.toString(context.getId()));
+      sandboxPath.getParentDirectory().createDirectory();
+      sandboxPath.createDirectory();
+    }
 
     // b/64689608: The execroot of the sandboxed process must end with the workspace name, just like
     // the normal execroot does.
@@ -179,6 +190,8 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
     Path statisticsPath = null;
     if (getSandboxOptions().collectLocalSandboxExecutionStatistics) {
       statisticsPath = sandboxPath.getRelative("stats.out");
+      // Don't report the statistics of an earlier spawn if this one fails to write its own.
+      statisticsPath.delete();
       commandLineBuilder.setStatisticsPath(statisticsPath);
     }
 
@@ -193,6 +206,18 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
               SandboxHelpers.processInputFiles(spawn, context, execRoot),
               outputs,
               ImmutableSet.of());
+    } else if (directoryPool != null) {
+      sandbox =
+          new PooledSymlinkedSandboxedSpawn(
+              directoryPool,
+              spawn.getMnemonic(),
+              sandboxPath,
+              sandboxExecRoot,
+              commandLineBuilder.build(),
+              environment,
+              SandboxHelpers.processInputFiles(spawn, context, execRoot),
+              outputs,
+              writableDirs);
     } else {
       sandbox =
           new SymlinkedSandboxedSpawn(
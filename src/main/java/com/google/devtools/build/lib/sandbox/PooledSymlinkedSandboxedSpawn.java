@@ -0,0 +1,133 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link SymlinkedSandboxedSpawn} whose sandbox directory comes from a {@link
+ * SandboxDirectoryPool} and is returned to it instead of being deleted.
+ *
+ * <p>Before the spawn runs, everything left in the execroot by an earlier spawn is removed, except
+ * for the directories and input symlinks that this spawn needs, so only the inputs that differ
+ * have to be created.
+ */
+final class PooledSymlinkedSandboxedSpawn extends SymlinkedSandboxedSpawn {
+  private final SandboxDirectoryPool pool;
+  private final String mnemonic;
+  private final Path sandboxPath;
+  private final Path sandboxExecRoot;
+  private final Map<PathFragment, Path> inputs;
+  private final Collection<PathFragment> outputs;
+
+  /** The inputs that were left over from an earlier spawn and don't have to be created. */
+  private final Set<PathFragment> keptInputs = new HashSet<>();
+
+  private int deletedEntries;
+
+  PooledSymlinkedSandboxedSpawn(
+      SandboxDirectoryPool pool,
+      String mnemonic,
+      Path sandboxPath,
+      Path sandboxExecRoot,
+      List<String> arguments,
+      Map<String, String> environment,
+      Map<PathFragment, Path> inputs,
+      Collection<PathFragment> outputs,
+      Set<Path> writableDirs) {
+    super(sandboxPath, sandboxExecRoot, arguments, environment, inputs, outputs, writableDirs);
+    this.pool = pool;
+    this.mnemonic = mnemonic;
+    this.sandboxPath = sandboxPath;
+    this.sandboxExecRoot = sandboxExecRoot;
+    this.inputs = inputs;
+    this.outputs = outputs;
+  }
+
+  @Override
+  public void createFileSystem() throws IOException {
+    long startTime = System.nanoTime();
+    sandboxExecRoot.createDirectoryAndParents();
+    Set<PathFragment> neededDirs = new HashSet<>();
+    for (PathFragment path : Iterables.concat(inputs.keySet(), outputs)) {
+      for (int i = 1; i < path.segmentCount(); i++) {
+        neededDirs.add(path.subFragment(0, i));
+      }
+    }
+    try {
+      deleteStaleEntries(sandboxExecRoot, PathFragment.EMPTY_FRAGMENT, neededDirs);
+    } catch (IOException e) {
+      // The previous spawn may have left something behind that we cannot clean up in place, e.g.
+      // a directory without write permissions. Move the whole execroot out of the way instead.
+      keptInputs.clear();
+      pool.getTreeDeleter().deleteTree(sandboxExecRoot);
+      sandboxExecRoot.createDirectoryAndParents();
+    }
+    long pruneTime = System.nanoTime();
+    super.createFileSystem();
+    pool.recordSetup(
+        keptInputs.size(),
+        inputs.size() - keptInputs.size(),
+        deletedEntries,
+        pruneTime - startTime,
+        System.nanoTime() - pruneTime);
+  }
+
+  private void deleteStaleEntries(Path dir, PathFragment relativeDir, Set<PathFragment> neededDirs)
+      throws IOException {
+    for (Dirent dirent : dir.readdir(Symlinks.NOFOLLOW)) {
+      PathFragment relative = relativeDir.getRelative(dirent.getName());
+      Path path = dir.getRelative(dirent.getName());
+      if (dirent.getType() == Dirent.Type.DIRECTORY) {
+        if (neededDirs.contains(relative)) {
+          deleteStaleEntries(path, relative, neededDirs);
+          continue;
+        }
+        pool.getTreeDeleter().deleteTree(path);
+      } else {
+        if (dirent.getType() == Dirent.Type.SYMLINK) {
+          Path source = inputs.get(relative);
+          if (source != null && path.readSymbolicLink().equals(source.asFragment())) {
+            keptInputs.add(relative);
+            continue;
+          }
+        }
+        path.delete();
+      }
+      deletedEntries++;
+    }
+  }
+
+  @Override
+  protected void createInputs(Map<PathFragment, Path> inputs) throws IOException {
+    super.createInputs(
+        keptInputs.isEmpty() ? inputs : Maps.filterKeys(inputs, k -> !keptInputs.contains(k)));
+  }
+
+  @Override
+  public void delete() {
+    pool.release(mnemonic, sandboxPath);
+  }
+}
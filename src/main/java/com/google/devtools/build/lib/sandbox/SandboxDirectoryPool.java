@@ -0,0 +1,127 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.AsynchronousTreeDeleter;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of sandbox directories whose contents are kept after a spawn finished, so that the next
+ * spawn with the same mnemonic only has to adjust the symlinks that differ instead of creating its
+ * execroot from scratch.
+ *
+ * <p>Directories are handed out most recently released first and live until the end of the
+ * command, when the whole sandbox base is deleted.
+ */
+@ThreadSafe
+final class SandboxDirectoryPool {
+  private final Path baseDir;
+  private final AsynchronousTreeDeleter treeDeleter;
+  private final ConcurrentHashMap<String, Deque<Path>> idleDirs = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  private final LongAdder spawns = new LongAdder();
+  private final LongAdder reusedDirs = new LongAdder();
+  private final LongAdder keptInputs = new LongAdder();
+  private final LongAdder createdInputs = new LongAdder();
+  private final LongAdder deletedEntries = new LongAdder();
+  private final LongAdder setupNanos = new LongAdder();
+  private final LongAdder createNanos = new LongAdder();
+
+  /**
+   * Creates a pool of directories below {@code baseDir}, which is created if needed.
+   *
+   * @param treeDeleter used to delete the directories that a spawn does not need any more
+   */
+  SandboxDirectoryPool(Path baseDir, AsynchronousTreeDeleter treeDeleter) throws IOException {
+    this.baseDir = baseDir;
+    this.treeDeleter = treeDeleter;
+    baseDir.createDirectoryAndParents();
+  }
+
+  AsynchronousTreeDeleter getTreeDeleter() {
+    return treeDeleter;
+  }
+
+  /**
+   * Returns a directory for a spawn with the given mnemonic, either one released by an earlier
+   * spawn or a new, empty one. The directory belongs to the caller until it is {@link #release}d.
+   */
+  Path acquire(String mnemonic) throws IOException {
+    spawns.increment();
+    Deque<Path> idle = idleDirs.get(mnemonic);
+    Path dir = idle == null ? null : idle.pollFirst();
+    if (dir != null) {
+      reusedDirs.increment();
+      return dir;
+    }
+    dir = baseDir.getRelative(Integer.toString(nextId.incrementAndGet()));
+    dir.createDirectory();
+    return dir;
+  }
+
+  /** Makes a directory returned by {@link #acquire} available to later spawns. */
+  void release(String mnemonic, Path dir) {
+    idleDirs.computeIfAbsent(mnemonic, k -> new ConcurrentLinkedDeque<>()).addFirst(dir);
+  }
+
+  /**
+   * Records how the execroot of a spawn was set up.
+   *
+   * @param kept the number of inputs that were left over from an earlier spawn
+   * @param created the number of inputs that had to be created
+   * @param deleted the number of stale files and directories that were removed
+   * @param pruneNanos the time spent finding and removing stale entries
+   * @param createNanos the time spent creating directories and inputs
+   */
+  void recordSetup(int kept, int created, int deleted, long pruneNanos, long createNanos) {
+    keptInputs.add(kept);
+    createdInputs.add(created);
+    deletedEntries.add(deleted);
+    setupNanos.add(pruneNanos + createNanos);
+    this.createNanos.add(createNanos);
+  }
+
+  /** Returns a one-line summary of the work this pool saved. */
+  String getSummary() {
+    long spawns = this.spawns.sum();
+    long kept = keptInputs.sum();
+    long created = createdInputs.sum();
+    long setupMillis = TimeUnit.NANOSECONDS.toMillis(setupNanos.sum());
+    // Estimate what creating the kept inputs would have cost from the inputs we did create.
+    long savedMillis =
+        created == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(createNanos.sum() * kept / created);
+    return String.format(
+        "Sandbox directory pool: %d spawns, %d reused directories, %d inputs kept, %d created, "
+            + "%d stale entries deleted; setup took %d ms (%.2f ms per spawn), "
+            + "an estimated %d ms (%.2f ms per spawn) were saved",
+        spawns,
+        reusedDirs.sum(),
+        kept,
+        created,
+        deletedEntries.sum(),
+        setupMillis,
+        spawns == 0 ? 0.0 : (double) setupMillis / spawns,
+        savedMillis,
+        spawns == 0 ? 0.0 : (double) savedMillis / spawns);
+  }
+}
@@ -43,20 +43,22 @@ import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.AsynchronousTreeDeleter;
 import com.google.devtools.build.lib.vfs.FileSystem;
-import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.OptionsBase;
 import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 /**
  * This module provides the Sandbox spawn strategy.
  */
 public final class SandboxModule extends BlazeModule {
+  private static final Logger logger = Logger.getLogger(SandboxModule.class.getName());
 
   /** Environment for the running command. */
   private @Nullable CommandEnvironment env;
@@ -67,6 +69,15 @@ public final class SandboxModule extends BlazeModule {
   /** Instance of the sandboxfs process in use, if enabled. */
   private @Nullable SandboxfsProcess sandboxfsProcess;
 
+  /**
+   * Deletes sandbox directories in the background. Kept across commands, so that deletions may
+   * continue after the command that started them finished.
+   */
+  private @Nullable AsynchronousTreeDeleter treeDeleter;
+
+  /** Pool of reusable sandbox directories, if enabled. */
+  private @Nullable SandboxDirectoryPool directoryPool;
+
   /**
    * Whether to remove the sandbox worker directories after a build or not. Useful for debugging
    * to inspect the state of files on failures.
@@ -106,6 +117,7 @@ public final class SandboxModule extends BlazeModule {
 
     // Don't attempt cleanup unless the executor is initialized.
     sandboxfsProcess = null;
+    directoryPool = null;
     shouldCleanupSandboxBase = false;
   }
 
@@ -125,11 +137,23 @@ public final class SandboxModule extends BlazeModule {
     SandboxOptions options = checkNotNull(env.getOptions().getOptions(SandboxOptions.class));
     sandboxBase = computeSandboxBase(options, env);
 
+    // The trash directory must be on the same file system as the sandbox base, so that moving
+    // sandboxes there is cheap.
+    Path trashBase =
+        sandboxBase.getParentDirectory().getRelative(sandboxBase.getBaseName() + "_trash");
+    if (treeDeleter == null || !treeDeleter.getTrashBase().equals(trashBase)) {
+      if (treeDeleter != null) {
+        treeDeleter.shutdown();
+      }
+      treeDeleter = new AsynchronousTreeDeleter(trashBase);
+    }
+
     // Ensure that each build starts with a clean sandbox base directory. Otherwise using the `id`
     // that is provided by SpawnExecutionPolicy#getId to compute a base directory for a sandbox
-    // might result in an already existing directory.
+    // might result in an already existing directory. Moving the old one out of the way is enough
+    // for that, so there is no need to wait until it is deleted.
     if (sandboxBase.exists()) {
-      FileSystemUtils.deleteTree(sandboxBase);
+      treeDeleter.deleteTree(sandboxBase);
     }
 
     sandboxBase.createDirectoryAndParents();
@@ -192,11 +216,15 @@ public final class SandboxModule extends BlazeModule {
 
     // This is the preferred sandboxing strategy on Linux.
     if (linuxSandboxSupported) {
+      if (options.reuseSandboxDirectories && sandboxfsProcess == null) {
+        directoryPool =
+            new SandboxDirectoryPool(sandboxBase.getRelative("pool"), treeDeleter);
+      }
       SpawnRunner spawnRunner =
           withFallback(
               cmdEnv,
               LinuxSandboxedStrategy.create(
-                  cmdEnv, sandboxBase, timeoutKillDelay, sandboxfsProcess));
+                  cmdEnv, sandboxBase, timeoutKillDelay, sandboxfsProcess, directoryPool));
       builder.addActionContext(new LinuxSandboxedStrategy(cmdEnv.getExecRoot(), spawnRunner));
     }
 
@@ -321,9 +349,14 @@ public final class SandboxModule extends BlazeModule {
   public void afterCommand() {
     checkNotNull(env, "env not initialized; was beforeCommand called?");
 
+    if (directoryPool != null) {
+      logger.info(directoryPool.getSummary());
+      directoryPool = null;
+    }
+
     if (shouldCleanupSandboxBase) {
       try {
-        FileSystemUtils.deleteTree(sandboxBase);
+        treeDeleter.deleteTree(sandboxBase);
       } catch (IOException e) {
         env.getReporter().handle(Event.warn("Failed to delete sandbox base " + sandboxBase
             + ": " + e));
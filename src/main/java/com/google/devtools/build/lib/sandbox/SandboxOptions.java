@@ -281,4 +281,16 @@ public class SandboxOptions extends OptionsBase {
       effectTags = {OptionEffectTag.UNKNOWN},
       help = "Allow network access by default for actions.")
   public boolean defaultSandboxAllowNetwork;
+
+  @Option(
+      name = "experimental_reuse_sandbox_directories",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If enabled, the linux-sandbox strategy keeps the sandbox directories of finished "
+              + "actions and reuses them for later actions with the same mnemonic, so that only "
+              + "the inputs that differ have to be symlinked. Stale directories are deleted in "
+              + "the background. Has no effect with --experimental_use_sandboxfs.")
+  public boolean reuseSandboxDirectories;
 }
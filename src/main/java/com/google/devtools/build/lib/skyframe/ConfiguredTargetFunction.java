@@ -74,6 +74,7 @@ import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.util.OrderedSetMultimap;
 import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunction.Environment.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
@@ -125,6 +126,36 @@ public final class ConfiguredTargetFunction implements SkyFunction {
     }
   }
 
+  /**
+   * The steps of {@link #compute} that completed in an earlier call for the same key. The
+   * dependency resolution they did is not repeated after a restart, which matters for targets with
+   * many deps that are restarted many times.
+   */
+  private static final class State implements SkyKeyComputeState {
+    /** Set once the config conditions and toolchains were computed without missing deps. */
+    @Nullable ImmutableMap<Label, ConfigMatchingProvider> configConditions;
+
+    @Nullable UnloadedToolchainContext unloadedToolchainContext;
+
+    /** Set once the deps of the target were resolved without missing deps. */
+    @Nullable OrderedSetMultimap<Attribute, Dependency> depValueNames;
+
+    /** The packages and root causes collected by the completed steps. */
+    @Nullable NestedSet<Package> transitivePackagesForPackageRootResolution;
+
+    @Nullable NestedSet<Cause> transitiveRootCauses;
+
+    void saveProgress(
+        @Nullable NestedSetBuilder<Package> transitivePackagesForPackageRootResolution,
+        NestedSetBuilder<Cause> transitiveRootCauses) {
+      this.transitivePackagesForPackageRootResolution =
+          transitivePackagesForPackageRootResolution == null
+              ? null
+              : transitivePackagesForPackageRootResolution.build();
+      this.transitiveRootCauses = transitiveRootCauses.build();
+    }
+  }
+
   private final BuildViewProvider buildViewProvider;
   private final RuleClassProvider ruleClassProvider;
   private final Semaphore cpuBoundSemaphore;
@@ -164,6 +195,7 @@ public final class ConfiguredTargetFunction implements SkyFunction {
               /*preFetch=*/ cpuBoundSemaphore::release,
               /*postFetch=*/ cpuBoundSemaphore::acquire);
     }
+    State state = env.getState(State::new);
     SkyframeBuildView view = buildViewProvider.getSkyframeBuildView();
     NestedSetBuilder<Package> transitivePackagesForPackageRootResolution =
         storeTransitivePackagesForPackageRootResolution ? NestedSetBuilder.stableOrder() : null;
@@ -232,7 +264,17 @@ public final class ConfiguredTargetFunction implements SkyFunction {
 
     SkyframeDependencyResolver resolver = view.createDependencyResolver(env);
 
-    UnloadedToolchainContext unloadedToolchainContext = null;
+    if (state.transitiveRootCauses != null) {
+      // An earlier call got further than the steps above, so continue from where it stopped. What
+      // it collected includes what this call collected so far.
+      transitiveRootCauses = NestedSetBuilder.fromNestedSet(state.transitiveRootCauses);
+      if (transitivePackagesForPackageRootResolution != null) {
+        transitivePackagesForPackageRootResolution =
+            NestedSetBuilder.fromNestedSet(state.transitivePackagesForPackageRootResolution);
+      }
+    }
+
+    UnloadedToolchainContext unloadedToolchainContext = state.unloadedToolchainContext;
 
     // TODO(janakr): this acquire() call may tie up this thread indefinitely, reducing the
     // parallelism of Skyframe. This is a strict improvement over the prior state of the code, in
@@ -240,69 +282,91 @@ public final class ConfiguredTargetFunction implements SkyFunction {
     // failed, would exit this SkyFunction and restart it when permits were available.
     cpuBoundSemaphore.acquire();
     try {
-      // Get the configuration targets that trigger this rule's configurable attributes.
-      ImmutableMap<Label, ConfigMatchingProvider> configConditions =
-          getConfigConditions(
-              ctgValue.getTarget(),
-              env,
-              resolver,
-              ctgValue,
-              transitivePackagesForPackageRootResolution,
-              transitiveRootCauses,
-              ((ConfiguredRuleClassProvider) ruleClassProvider).getTrimmingTransitionFactory());
-      if (env.valuesMissing()) {
-        return null;
-      }
-      // TODO(ulfjack): ConfiguredAttributeMapper (indirectly used from computeDependencies) isn't
-      // safe to use if there are missing config conditions, so we stop here, but only if there are
-      // config conditions - though note that we can't check if configConditions is non-empty - it
-      // may be empty for other reasons. It would be better to continue here so that we can collect
-      // more root causes during computeDependencies.
-      // Note that this doesn't apply to AspectFunction, because aspects can't have configurable
-      // attributes.
-      if (!transitiveRootCauses.isEmpty() && configConditions != NO_CONFIG_CONDITIONS) {
-        throw new ConfiguredTargetFunctionException(
-            new ConfiguredValueCreationException(
-                "Cannot compute config conditions", configuration, transitiveRootCauses.build()));
-      }
+      ImmutableMap<Label, ConfigMatchingProvider> configConditions = state.configConditions;
+      if (configConditions == null) {
+        // Get the configuration targets that trigger this rule's configurable attributes.
+        configConditions =
+            getConfigConditions(
+                ctgValue.getTarget(),
+                env,
+                resolver,
+                ctgValue,
+                transitivePackagesForPackageRootResolution,
+                transitiveRootCauses,
+                ((ConfiguredRuleClassProvider) ruleClassProvider).getTrimmingTransitionFactory());
+        if (env.valuesMissing()) {
+          return null;
+        }
+        // TODO(ulfjack): ConfiguredAttributeMapper (indirectly used from computeDependencies)
+        // isn't safe to use if there are missing config conditions, so we stop here, but only if
+        // there are config conditions - though note that we can't check if configConditions is
+        // non-empty - it may be empty for other reasons. It would be better to continue here so
+        // that we can collect more root causes during computeDependencies.
+        // Note that this doesn't apply to AspectFunction, because aspects can't have configurable
+        // attributes.
+        if (!transitiveRootCauses.isEmpty() && configConditions != NO_CONFIG_CONDITIONS) {
+          throw new ConfiguredTargetFunctionException(
+              new ConfiguredValueCreationException(
+                  "Cannot compute config conditions",
+                  configuration,
+                  transitiveRootCauses.build()));
+        }
+
+        // Determine what toolchains are needed by this target.
+        if (target instanceof Rule) {
+          Rule rule = ((Rule) target);
+          if (rule.getRuleClassObject().supportsPlatforms()) {
+            ImmutableSet<Label> requiredToolchains =
+                rule.getRuleClassObject().getRequiredToolchains();
 
-      // Determine what toolchains are needed by this target.
-      if (target instanceof Rule) {
-        Rule rule = ((Rule) target);
-        if (rule.getRuleClassObject().supportsPlatforms()) {
-          ImmutableSet<Label> requiredToolchains =
-              rule.getRuleClassObject().getRequiredToolchains();
-
-          // Collect local (target, rule) constraints for filtering out execution platforms.
-          ImmutableSet<Label> execConstraintLabels = getExecutionPlatformConstraints(rule);
-          unloadedToolchainContext =
-              new ToolchainResolver(env, configuredTargetKey.getConfigurationKey())
-                  .setTargetDescription(rule.toString())
-                  .setRequiredToolchainTypes(requiredToolchains)
-                  .setExecConstraintLabels(execConstraintLabels)
-                  .resolve();
-          if (env.valuesMissing()) {
-            return null;
+            // Collect local (target, rule) constraints for filtering out execution platforms.
+            ImmutableSet<Label> execConstraintLabels = getExecutionPlatformConstraints(rule);
+            unloadedToolchainContext =
+                new ToolchainResolver(env, configuredTargetKey.getConfigurationKey())
+                    .setTargetDescription(rule.toString())
+                    .setRequiredToolchainTypes(requiredToolchains)
+                    .setExecConstraintLabels(execConstraintLabels)
+                    .resolve();
+            if (env.valuesMissing()) {
+              return null;
+            }
           }
         }
+        state.configConditions = configConditions;
+        state.unloadedToolchainContext = unloadedToolchainContext;
+        state.saveProgress(transitivePackagesForPackageRootResolution, transitiveRootCauses);
       }
 
       // Calculate the dependencies of this target.
+      OrderedSetMultimap<Attribute, Dependency> depValueNames = state.depValueNames;
+      if (depValueNames == null) {
+        depValueNames =
+            resolveDependencies(
+                env,
+                resolver,
+                ctgValue,
+                ImmutableList.<Aspect>of(),
+                configConditions,
+                unloadedToolchainContext == null
+                    ? ImmutableSet.of()
+                    : unloadedToolchainContext.resolvedToolchainLabels(),
+                ruleClassProvider,
+                view.getHostConfiguration(configuration),
+                transitiveRootCauses,
+                defaultBuildOptions);
+        if (depValueNames == null) {
+          return null;
+        }
+        state.depValueNames = depValueNames;
+        state.saveProgress(transitivePackagesForPackageRootResolution, transitiveRootCauses);
+      }
       OrderedSetMultimap<Attribute, ConfiguredTargetAndData> depValueMap =
-          computeDependencies(
+          getDependencyValues(
               env,
-              resolver,
               ctgValue,
-              ImmutableList.<Aspect>of(),
-              configConditions,
-              unloadedToolchainContext == null
-                  ? ImmutableSet.of()
-                  : unloadedToolchainContext.resolvedToolchainLabels(),
-              ruleClassProvider,
-              view.getHostConfiguration(configuration),
+              depValueNames,
               transitivePackagesForPackageRootResolution,
-              transitiveRootCauses,
-              defaultBuildOptions);
+              transitiveRootCauses);
       if (env.valuesMissing()) {
         return null;
       }
@@ -454,6 +518,48 @@ public final class ConfiguredTargetFunction implements SkyFunction {
       BuildOptions defaultBuildOptions)
       throws DependencyEvaluationException, ConfiguredTargetFunctionException,
           AspectCreationException, InterruptedException {
+    OrderedSetMultimap<Attribute, Dependency> depValueNames =
+        resolveDependencies(
+            env,
+            resolver,
+            ctgValue,
+            aspects,
+            configConditions,
+            toolchainLabels,
+            ruleClassProvider,
+            hostConfiguration,
+            transitiveRootCauses,
+            defaultBuildOptions);
+    if (depValueNames == null) {
+      return null;
+    }
+    return getDependencyValues(
+        env,
+        ctgValue,
+        depValueNames,
+        transitivePackagesForPackageRootResolution,
+        transitiveRootCauses);
+  }
+
+  /**
+   * Computes the (target, configuration) pairs that a node in the configured target graph depends
+   * on, the first half of {@link #computeDependencies}.
+   *
+   * <p>Returns null if Skyframe hasn't evaluated the required dependencies yet.
+   */
+  @Nullable
+  private static OrderedSetMultimap<Attribute, Dependency> resolveDependencies(
+      Environment env,
+      SkyframeDependencyResolver resolver,
+      TargetAndConfiguration ctgValue,
+      Iterable<Aspect> aspects,
+      ImmutableMap<Label, ConfigMatchingProvider> configConditions,
+      ImmutableSet<Label> toolchainLabels,
+      RuleClassProvider ruleClassProvider,
+      BuildConfiguration hostConfiguration,
+      NestedSetBuilder<Cause> transitiveRootCauses,
+      BuildOptions defaultBuildOptions)
+      throws DependencyEvaluationException, InterruptedException {
     // Create the map from attributes to set of (target, configuration) pairs.
     OrderedSetMultimap<Attribute, Dependency> depValueNames;
     try {
@@ -500,7 +606,24 @@ public final class ConfiguredTargetFunction implements SkyFunction {
     if (env.valuesMissing()) {
       return null;
     }
+    return depValueNames;
+  }
 
+  /**
+   * Looks up the configured targets and aspects of the dependencies resolved by {@link
+   * #resolveDependencies}, the second half of {@link #computeDependencies}.
+   *
+   * <p>Returns null if Skyframe hasn't evaluated the required dependencies yet.
+   */
+  @Nullable
+  private static OrderedSetMultimap<Attribute, ConfiguredTargetAndData> getDependencyValues(
+      Environment env,
+      TargetAndConfiguration ctgValue,
+      OrderedSetMultimap<Attribute, Dependency> depValueNames,
+      @Nullable NestedSetBuilder<Package> transitivePackagesForPackageRootResolution,
+      NestedSetBuilder<Cause> transitiveRootCauses)
+      throws DependencyEvaluationException, ConfiguredTargetFunctionException,
+          AspectCreationException, InterruptedException {
     // Resolve configured target dependencies and handle errors.
     Map<SkyKey, ConfiguredTargetAndData> depValues =
         resolveConfiguredTargetDependencies(
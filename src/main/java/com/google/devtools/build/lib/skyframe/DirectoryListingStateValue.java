@@ -17,6 +17,10 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Interner;
 import com.google.devtools.build.lib.concurrent.BlazeInterners;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.skyframe.serialization.DeserializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodec;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.RootedPath;
@@ -24,6 +28,8 @@ import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.AbstractSkyKey;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyValue;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
@@ -110,6 +116,42 @@ public final class DirectoryListingStateValue implements SkyValue {
     return compactSortedDirents.equals(other.compactSortedDirents);
   }
 
+  /** Codec that writes the names and types of the dirents, instead of their packed form. */
+  private static class DirectoryListingStateValueCodec
+      implements ObjectCodec<DirectoryListingStateValue> {
+    @Override
+    public Class<DirectoryListingStateValue> getEncodedClass() {
+      return DirectoryListingStateValue.class;
+    }
+
+    @Override
+    public void serialize(
+        SerializationContext context,
+        DirectoryListingStateValue input,
+        CodedOutputStream codedOut)
+        throws SerializationException, IOException {
+      Dirents dirents = input.getDirents();
+      codedOut.writeInt32NoTag(dirents.size());
+      for (Dirent dirent : dirents) {
+        context.serialize(dirent.getName(), codedOut);
+        codedOut.writeEnumNoTag(dirent.getType().ordinal());
+      }
+    }
+
+    @Override
+    public DirectoryListingStateValue deserialize(
+        DeserializationContext context, CodedInputStream codedIn)
+        throws SerializationException, IOException {
+      int size = codedIn.readInt32();
+      Dirent[] dirents = new Dirent[size];
+      for (int i = 0; i < size; i++) {
+        String name = context.deserialize(codedIn);
+        dirents[i] = new Dirent(name, Dirent.Type.values()[codedIn.readEnum()]);
+      }
+      return create(Arrays.asList(dirents));
+    }
+  }
+
   /** A space-efficient, sorted, immutable dirent structure. */
   private static class CompactSortedDirents implements Dirents, Serializable {
 
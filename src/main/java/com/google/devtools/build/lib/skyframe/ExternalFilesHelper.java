@@ -166,6 +166,16 @@ public class ExternalFilesHelper {
     anyNonOutputExternalFilesSeen = externalFilesKnowledge.anyNonOutputExternalFilesSeen;
   }
 
+  /**
+   * Notes that files of any type may be in the graph, e.g. after it was restored from a snapshot,
+   * so that the next graph scan checks all of them.
+   */
+  @ThreadCompatible
+  void noteAllFileTypesPossiblySeen() {
+    anyOutputFilesSeen = true;
+    anyNonOutputExternalFilesSeen = true;
+  }
+
   ExternalFilesHelper cloneWithFreshExternalFilesKnowledge() {
     return new ExternalFilesHelper(
         pkgLocator, externalFileAction, directories, maxNumExternalFilesToLog);
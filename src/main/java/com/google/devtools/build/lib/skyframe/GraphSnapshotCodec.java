@@ -0,0 +1,140 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.FileStateValue;
+import com.google.devtools.build.lib.actions.FileValue;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.skyframe.InMemoryGraphSnapshot;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * Encodes the nodes of a Skyframe graph snapshot with the registered {@link
+ * com.google.devtools.build.lib.skyframe.serialization.ObjectCodec}s.
+ *
+ * <p>Only the file system nodes and the package lookups on top of them are encoded, together with
+ * the package locator the lookups depend on. Their values are deserialized independently of each
+ * other, so these functions must not produce values whose users rely on reference equality.
+ * Packages and everything of the analysis and execution phases, such as configured targets,
+ * aspects and actions, are not part of the snapshot and are computed afresh by the next server.
+ */
+final class GraphSnapshotCodec implements InMemoryGraphSnapshot.NodeCodec {
+  /**
+   * The file system functions, whose restored nodes are checked against the file system before the
+   * first build of a server anyway.
+   */
+  static final ImmutableSet<SkyFunctionName> FILE_SYSTEM_FUNCTIONS =
+      ImmutableSet.of(
+          FileStateValue.FILE_STATE,
+          FileValue.FILE,
+          SkyFunctions.DIRECTORY_LISTING_STATE,
+          SkyFunctions.DIRECTORY_LISTING);
+
+  /**
+   * The functions above the file system layer. A package lookup that is restored is not
+   * re-evaluated unless the BUILD files it looked at, the blacklisted package prefixes or the
+   * package path changed.
+   */
+  static final ImmutableSet<SkyFunctionName> PACKAGE_LOOKUP_FUNCTIONS =
+      ImmutableSet.of(SkyFunctions.PACKAGE_LOOKUP, SkyFunctions.BLACKLISTED_PACKAGE_PREFIXES);
+
+  /**
+   * The injected values the package lookups depend on. The next server injects them anew, which
+   * invalidates the restored lookups only if they changed.
+   */
+  static final ImmutableSet<SkyKey> PRECOMPUTED_KEYS =
+      ImmutableSet.of(PrecomputedValue.PATH_PACKAGE_LOCATOR.getKey());
+
+  private final ObjectCodecs codecs;
+
+  /**
+   * Creates a codec for the nodes of a graph whose paths are on {@code fileSystem}, which is also
+   * the file system of the restored paths.
+   */
+  GraphSnapshotCodec(FileSystem fileSystem) {
+    // Paths refer to their file system, which is encoded as a reference to the one of this server.
+    this.codecs =
+        new ObjectCodecs(
+            AutoRegistry.get().getBuilder().addReferenceConstant(fileSystem).build(),
+            ImmutableMap.of(FileSystem.class, fileSystem));
+  }
+
+  private static boolean isPersisted(SkyKey key) {
+    return FILE_SYSTEM_FUNCTIONS.contains(key.functionName())
+        || PACKAGE_LOOKUP_FUNCTIONS.contains(key.functionName())
+        || PRECOMPUTED_KEYS.contains(key);
+  }
+
+  @Nullable
+  @Override
+  public byte[] encodeKey(SkyKey key) {
+    return isPersisted(key) ? encode(key) : null;
+  }
+
+  @Nullable
+  @Override
+  public byte[] encodeValue(SkyValue value) {
+    // Deleted packages are not tracked in the graph, and a new server only invalidates the lookups
+    // of the packages it deletes itself, so lookups of packages deleted before are not persisted.
+    // Packages below blacklisted prefixes share this value and are left out along with them.
+    if (value == PackageLookupValue.DELETED_PACKAGE_VALUE) {
+      return null;
+    }
+    return encode(value);
+  }
+
+  @Override
+  public SkyKey decodeKey(byte[] bytes) throws IOException {
+    return decode(bytes, SkyKey.class);
+  }
+
+  @Override
+  public SkyValue decodeValue(byte[] bytes) throws IOException {
+    return decode(bytes, SkyValue.class);
+  }
+
+  @Nullable
+  private byte[] encode(Object object) {
+    try {
+      return codecs.serialize(object).toByteArray();
+    } catch (SerializationException e) {
+      // Not every value of a function can be serialized, e.g. because it holds on to a class
+      // without a codec. Such nodes are left out of the snapshot.
+      return null;
+    }
+  }
+
+  private <T> T decode(byte[] bytes, Class<T> type) throws IOException {
+    Object object;
+    try {
+      object = codecs.deserialize(ByteString.copyFrom(bytes));
+    } catch (SerializationException e) {
+      throw new IOException("Failed to decode Skyframe graph snapshot node", e);
+    }
+    if (!type.isInstance(object)) {
+      throw new IOException("Expected " + type.getSimpleName() + " in snapshot, got " + object);
+    }
+    return type.cast(object);
+  }
+}
@@ -68,6 +68,7 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunction.Environment.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -207,6 +208,20 @@ public class PackageFunction implements SkyFunction {
     }
   }
 
+  /**
+   * The part of {@link #compute} kept across restarts that {@link #packageFunctionCache} and {@link
+   * #astCache} do not already cover.
+   */
+  private static final class State implements SkyKeyComputeState {
+    /**
+     * The values of the Skylark imports of the BUILD file that were already loaded. They are not
+     * requested again, so a BUILD file with many imports that become available one by one does
+     * not request all of them on every restart; with inlining, their transitive deps are not
+     * registered again either.
+     */
+    final Map<SkyKey, SkyValue> loadedImports = new HashMap<>();
+  }
+
   /** An entry in {@link PackageFunction} internal cache. */
   public static class LoadedPackageCacheEntry {
     private final Package.Builder builder;
@@ -599,6 +614,30 @@ public class PackageFunction implements SkyFunction {
       Environment env,
       SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining)
       throws NoSuchPackageException, InterruptedException {
+    return fetchImportsFromBuildFile(
+        buildFilePath,
+        packageId,
+        buildFileAST,
+        env,
+        skylarkImportLookupFunctionForInlining,
+        new HashMap<>());
+  }
+
+  /**
+   * Like {@link #fetchImportsFromBuildFile(Path, PackageIdentifier, BuildFileAST, Environment,
+   * SkylarkImportLookupFunction)}, but only fetches the imports that are not in {@code
+   * loadedImports}, the imports loaded by earlier calls for the same node, and adds the newly
+   * loaded ones to it.
+   */
+  @Nullable
+  private static SkylarkImportResult fetchImportsFromBuildFile(
+      Path buildFilePath,
+      PackageIdentifier packageId,
+      BuildFileAST buildFileAST,
+      Environment env,
+      SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
+      Map<SkyKey, SkyValue> loadedImports)
+      throws NoSuchPackageException, InterruptedException {
     Preconditions.checkArgument(!packageId.getRepository().isDefault());
 
     ImmutableList<SkylarkImport> imports = buildFileAST.getImports();
@@ -629,9 +668,11 @@ public class PackageFunction implements SkyFunction {
     List<SkyKey> importLookupKeys = Lists.newArrayListWithExpectedSize(importLabels.size());
     boolean inWorkspace = buildFilePath.getBaseName().endsWith("WORKSPACE");
     for (Label importLabel : importLabels) {
-      importLookupKeys.add(SkylarkImportLookupValue.key(importLabel, inWorkspace));
+      SkyKey importLookupKey = SkylarkImportLookupValue.key(importLabel, inWorkspace);
+      if (!loadedImports.containsKey(importLookupKey)) {
+        importLookupKeys.add(importLookupKey);
+      }
     }
-    Map<SkyKey, SkyValue> skylarkImportMap = Maps.newHashMapWithExpectedSize(importPathMap.size());
     boolean valuesMissing = false;
 
     try {
@@ -651,7 +692,10 @@ public class PackageFunction implements SkyFunction {
                   SkylarkImportFailedException,
                   InconsistentFilesystemException>> entry : skylarkLookupResults.entrySet()) {
           // Fetching the value will raise any deferred exceptions
-          skylarkImportMap.put(entry.getKey(), entry.getValue().get());
+          SkyValue skyValue = entry.getValue().get();
+          if (skyValue != null) {
+            loadedImports.put(entry.getKey(), skyValue);
+          }
         }
       } else {
         // Inlining calls to SkylarkImportLookupFunction
@@ -667,7 +711,7 @@ public class PackageFunction implements SkyFunction {
             // avoiding a quadratic number of restarts.
             valuesMissing = true;
           } else {
-            skylarkImportMap.put(importLookupKey, skyValue);
+            loadedImports.put(importLookupKey, skyValue);
           }
         }
 
@@ -689,7 +733,7 @@ public class PackageFunction implements SkyFunction {
       Label importLabel = importEntry.getValue();
       SkyKey keyForLabel = SkylarkImportLookupValue.key(importLabel, inWorkspace);
       SkylarkImportLookupValue importLookupValue =
-          (SkylarkImportLookupValue) skylarkImportMap.get(keyForLabel);
+          (SkylarkImportLookupValue) loadedImports.get(keyForLabel);
       importMap.put(importString, importLookupValue.getEnvironmentExtension());
       fileDependencies.add(importLookupValue.getDependency());
     }
@@ -1243,7 +1287,8 @@ public class PackageFunction implements SkyFunction {
                   packageId,
                   astParseResult.ast,
                   env,
-                  skylarkImportLookupFunctionForInlining);
+                  skylarkImportLookupFunctionForInlining,
+                  env.getState(State::new).loadedImports);
         } catch (NoSuchPackageException e) {
           throw new PackageFunctionException(e, Transience.PERSISTENT);
         } catch (InterruptedException e) {
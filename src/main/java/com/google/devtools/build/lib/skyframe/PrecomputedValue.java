@@ -165,6 +165,11 @@ public final class PrecomputedValue implements SkyValue {
       this.key = key;
     }
 
+    /** Returns the key of this variable in Skyframe. */
+    Key getKey() {
+      return key;
+    }
+
     @VisibleForTesting
     Key getKeyForTesting() {
       return key;
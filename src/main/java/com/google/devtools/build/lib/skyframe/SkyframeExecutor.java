@@ -162,6 +162,9 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 import com.google.devtools.common.options.OptionsProvider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -194,6 +197,8 @@ import javax.annotation.Nullable;
  */
 public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final EvaluatorSupplier evaluatorSupplier;
+  /** Whether the default in-memory evaluator should store graph edges compactly. */
+  private boolean compactGraphEdges = false;
   protected MemoizingEvaluator memoizingEvaluator;
   private final MemoizingEvaluator.EmittedEventState emittedEventState =
       new MemoizingEvaluator.EmittedEventState();
@@ -604,6 +609,46 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     memoizingEvaluator.dump(summarize, out);
   }
 
+  /**
+   * Writes the file system nodes and package lookups of the graph to {@code out}, to be restored by
+   * the next server with {@link #restoreGraphSnapshot}.
+   *
+   * @return the number of nodes written
+   */
+  public int writeGraphSnapshot(OutputStream out) throws IOException, InterruptedException {
+    if (!(memoizingEvaluator instanceof InMemoryMemoizingEvaluator)
+        || !tracksStateForIncrementality()) {
+      return 0;
+    }
+    return ((InMemoryMemoizingEvaluator) memoizingEvaluator)
+        .writeSnapshot(newGraphSnapshotCodec(), out);
+  }
+
+  /**
+   * Restores the nodes written by {@link #writeGraphSnapshot} if nothing was evaluated yet. The
+   * restored nodes are checked against the file system before the next build, since the first
+   * build of a server has no diff information.
+   *
+   * @return the number of nodes restored
+   */
+  public int restoreGraphSnapshot(InputStream in) throws IOException, InterruptedException {
+    if (!(memoizingEvaluator instanceof InMemoryMemoizingEvaluator)
+        || !((InMemoryMemoizingEvaluator) memoizingEvaluator).canRestoreSnapshot()) {
+      return 0;
+    }
+    int restored =
+        ((InMemoryMemoizingEvaluator) memoizingEvaluator)
+            .restoreSnapshot(newGraphSnapshotCodec(), in);
+    // The external files knowledge of the previous server is lost, so make sure the restored
+    // external and output files are checked as well.
+    externalFilesHelper.noteAllFileTypesPossiblySeen();
+    return restored;
+  }
+
+  private GraphSnapshotCodec newGraphSnapshotCodec() {
+    return new GraphSnapshotCodec(fileSystem);
+  }
+
   public abstract void dumpPackages(PrintStream out);
 
   public void setOutputService(OutputService outputService) {
@@ -672,8 +717,13 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   protected void init() {
     progressReceiver = newSkyframeProgressReceiver();
     ImmutableMap<SkyFunctionName, SkyFunction> skyFunctions = skyFunctions(pkgFactory);
+    // Only the default in-memory evaluator has a variant with compact edges.
+    EvaluatorSupplier supplier =
+        compactGraphEdges && evaluatorSupplier == InMemoryMemoizingEvaluator.SUPPLIER
+            ? InMemoryMemoizingEvaluator.COMPACT_EDGES_SUPPLIER
+            : evaluatorSupplier;
     memoizingEvaluator =
-        evaluatorSupplier.create(
+        supplier.create(
             skyFunctions,
             evaluatorDiffer(),
             progressReceiver,
@@ -721,6 +771,18 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return new SkyframeProgressReceiver();
   }
 
+  /**
+   * Sets whether the graph should store the edges of done nodes as compact ids, to save memory at
+   * the cost of some CPU time when edges are read. Changing it resets the evaluator.
+   */
+  public void setCompactGraphEdges(boolean compactGraphEdges) {
+    if (this.compactGraphEdges != compactGraphEdges) {
+      logger.info("Set compact graph edges to " + compactGraphEdges);
+      this.compactGraphEdges = compactGraphEdges;
+      resetEvaluator();
+    }
+  }
+
   /** Reinitializes the Skyframe evaluator, dropping all previously computed values. */
   public void resetEvaluator() {
     init();
@@ -24,6 +24,7 @@ import com.google.devtools.build.skyframe.ValueOrException3;
 import com.google.devtools.build.skyframe.ValueOrException4;
 import com.google.devtools.build.skyframe.ValueOrException5;
 import java.util.Map;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /** An environment that wraps each call to its delegate by informing injected {@link Informee}s. */
@@ -260,6 +261,11 @@ class StateInformingSkyFunctionEnvironment implements SkyFunction.Environment {
     return delegate.getTemporaryDirectDeps();
   }
 
+  @Override
+  public <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+    return delegate.getState(stateSupplier);
+  }
+
   interface Informee {
     void inform() throws InterruptedException;
   }
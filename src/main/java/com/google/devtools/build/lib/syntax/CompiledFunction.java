@@ -0,0 +1,760 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.Environment.GlobalFrame;
+import com.google.devtools.build.lib.syntax.Environment.LexicalFrame;
+import com.google.devtools.build.lib.syntax.Mutability.MutabilityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * The body of a {@link UserDefinedFunction}, compiled to a stack bytecode.
+ *
+ * <p>Local variables are resolved to slots of a {@link SlotFrame} at compile time, and global
+ * variables are looked up through inline caches. Statements and expressions that the compiler
+ * doesn't know about, e.g. function calls and comprehensions, are evaluated by the tree-walking
+ * interpreter, which sees the slots as ordinary bindings of the lexical frame.
+ *
+ * <p>Execution has the same semantics as {@link Eval}, including the error messages and the stack
+ * traces of {@link EvalException}s: every instruction knows the innermost syntax node it
+ * evaluates, which transforms the exceptions it throws as {@link Expression#eval} would.
+ */
+final class CompiledFunction {
+  // Each instruction is an opcode followed by an int argument.
+
+  /** Pushes {@code constants[arg]}. */
+  private static final int CONST = 0;
+  /** Pushes the value of slot {@code arg}, of a variable in the local scope. */
+  private static final int LOAD_LOCAL = 1;
+  /** Pushes the value of slot {@code arg}, or looks up the (unresolved) identifier otherwise. */
+  private static final int LOAD_NAME = 2;
+  /** Pushes the value of a global variable, cached in {@code globalCaches[arg]}. */
+  private static final int LOAD_GLOBAL = 3;
+  /** Pushes the value of the expression. */
+  private static final int EVAL = 4;
+  /** Pops two operands and pushes the result of the binary operator. */
+  private static final int BINARY = 5;
+  /** Pops two operands and pushes the result of the augmented assignment operator. */
+  private static final int AUGMENTED = 6;
+  /** Pops an operand and pushes the result of the unary operator. */
+  private static final int UNARY = 7;
+  /** Pops a value and binds it to slot {@code arg}. */
+  private static final int STORE_LOCAL = 8;
+  /** Pops a value and assigns it to the {@link LValue} {@code constants[arg]}. */
+  private static final int ASSIGN = 9;
+  /** Executes the statement. */
+  private static final int EXEC = 10;
+  /** Pops a value. */
+  private static final int POP = 11;
+  /** Jumps to instruction {@code arg}. */
+  private static final int JUMP = 12;
+  /** Pops a value and jumps to instruction {@code arg} if it is false. */
+  private static final int JUMP_IF_FALSE = 13;
+  /** Jumps to instruction {@code arg} if the top of the stack is false, pops it otherwise. */
+  private static final int JUMP_IF_FALSE_OR_POP = 14;
+  /** Jumps to instruction {@code arg} if the top of the stack is true, pops it otherwise. */
+  private static final int JUMP_IF_TRUE_OR_POP = 15;
+  /** Pops a collection and starts a loop over it. */
+  private static final int FOR_INIT = 16;
+  /** Pushes the next element of the innermost loop, or ends it and jumps to instruction arg. */
+  private static final int FOR_NEXT = 17;
+  /** Ends the innermost loop and jumps to instruction {@code arg}. */
+  private static final int BREAK = 18;
+  /** Pops a value and returns it. */
+  private static final int RETURN = 19;
+
+  private final int[] code;
+  /** The innermost syntax node of each instruction. */
+  private final ASTNode[] nodes;
+
+  private final Object[] constants;
+  private final String[] slotNames;
+  private final ImmutableMap<String, Integer> slotIndex;
+  private final int maxStack;
+  private final int maxLoopDepth;
+
+  /**
+   * Inline caches of the values of global variables. Entries are immutable, so racing updates are
+   * benign.
+   */
+  private final GlobalCacheEntry[] globalCaches;
+
+  private static final class GlobalCacheEntry {
+    private final GlobalFrame globals;
+    private final Object value;
+
+    private GlobalCacheEntry(GlobalFrame globals, Object value) {
+      this.globals = globals;
+      this.value = value;
+    }
+  }
+
+  private CompiledFunction(
+      int[] code,
+      ASTNode[] nodes,
+      Object[] constants,
+      String[] slotNames,
+      int globalCaches,
+      int maxStack,
+      int maxLoopDepth) {
+    this.code = code;
+    this.nodes = nodes;
+    this.constants = constants;
+    this.slotNames = slotNames;
+    ImmutableMap.Builder<String, Integer> slotIndex = ImmutableMap.builder();
+    for (int i = 0; i < slotNames.length; i++) {
+      slotIndex.put(slotNames[i], i);
+    }
+    this.slotIndex = slotIndex.build();
+    this.globalCaches = new GlobalCacheEntry[globalCaches];
+    this.maxStack = maxStack;
+    this.maxLoopDepth = maxLoopDepth;
+  }
+
+  /**
+   * Compiles the body of a function.
+   *
+   * @param parameterNames the names of the parameters, which are bound to the first slots
+   * @param statements the body of the function
+   */
+  static CompiledFunction compile(List<String> parameterNames, List<Statement> statements) {
+    Compiler compiler = new Compiler(parameterNames, statements);
+    compiler.compileStatements(statements);
+    compiler.emit(CONST, compiler.addConstant(Runtime.NONE), null, +1);
+    compiler.emit(RETURN, 0, null, -1);
+    return compiler.build();
+  }
+
+  /** Returns a new frame for the local variables of one call of the function. */
+  SlotFrame newFrame(Mutability mutability) {
+    return new SlotFrame(mutability, slotNames, slotIndex);
+  }
+
+  /** Executes the function body with the given frame, which must be the lexical frame of env. */
+  Object exec(Environment env, SlotFrame frame) throws EvalException, InterruptedException {
+    Object[] slots = frame.slots;
+    Object[] stack = new Object[maxStack];
+    Object[] loopCollections = new Object[maxLoopDepth];
+    Iterator<?>[] loopIterators = new Iterator<?>[maxLoopDepth];
+    Location[] loopLocations = new Location[maxLoopDepth];
+    int sp = 0;
+    int loops = 0;
+    int pc = 0;
+    Eval eval = null;
+    try {
+      while (true) {
+        int arg = code[2 * pc + 1];
+        switch (code[2 * pc]) {
+          case CONST:
+            stack[sp++] = constants[arg];
+            break;
+          case LOAD_LOCAL:
+            {
+              Object value = slots[arg];
+              if (value == null) {
+                throw ((Identifier) nodes[pc]).createReferencedBeforeAssignmentException();
+              }
+              stack[sp++] = value;
+              break;
+            }
+          case LOAD_NAME:
+            {
+              Object value = slots[arg];
+              stack[sp++] = value != null ? value : ((Identifier) nodes[pc]).eval(env);
+              break;
+            }
+          case LOAD_GLOBAL:
+            stack[sp++] = loadGlobal((Identifier) nodes[pc], arg, env);
+            break;
+          case EVAL:
+            stack[sp++] = ((Expression) nodes[pc]).eval(env);
+            break;
+          case BINARY:
+            {
+              BinaryOperatorExpression node = (BinaryOperatorExpression) nodes[pc];
+              Object rhs = stack[--sp];
+              Object lhs = stack[sp - 1];
+              stack[sp - 1] =
+                  BinaryOperatorExpression.evaluate(
+                      node.getOperator(), lhs, rhs, env, node.getLocation());
+              break;
+            }
+          case AUGMENTED:
+            {
+              AugmentedAssignmentStatement node = (AugmentedAssignmentStatement) nodes[pc];
+              Object rhs = stack[--sp];
+              Object lhs = stack[sp - 1];
+              stack[sp - 1] =
+                  BinaryOperatorExpression.evaluateAugmented(
+                      node.getOperator(), lhs, rhs, env, node.getLocation());
+              break;
+            }
+          case UNARY:
+            {
+              UnaryOperatorExpression node = (UnaryOperatorExpression) nodes[pc];
+              stack[sp - 1] =
+                  UnaryOperatorExpression.evaluate(
+                      node.getOperator(), stack[sp - 1], node.getLocation());
+              break;
+            }
+          case STORE_LOCAL:
+            {
+              String name = slotNames[arg];
+              LValue.checkNotKnownGlobal(name, env, nodes[pc].getLocation());
+              env.checkUpdatable(name);
+              frame.set(arg, stack[--sp]);
+              stack[sp] = null;
+              break;
+            }
+          case ASSIGN:
+            ((LValue) constants[arg]).assign(stack[--sp], env, nodes[pc].getLocation());
+            stack[sp] = null;
+            break;
+          case EXEC:
+            if (eval == null) {
+              eval = Eval.fromEnvironment(env);
+            }
+            eval.exec((Statement) nodes[pc]);
+            break;
+          case POP:
+            stack[--sp] = null;
+            break;
+          case JUMP:
+            pc = arg;
+            continue;
+          case JUMP_IF_FALSE:
+            {
+              boolean condition = EvalUtils.toBoolean(stack[--sp]);
+              stack[sp] = null;
+              if (!condition) {
+                pc = arg;
+                continue;
+              }
+              break;
+            }
+          case JUMP_IF_FALSE_OR_POP:
+            if (!EvalUtils.toBoolean(stack[sp - 1])) {
+              pc = arg;
+              continue;
+            }
+            stack[--sp] = null;
+            break;
+          case JUMP_IF_TRUE_OR_POP:
+            if (EvalUtils.toBoolean(stack[sp - 1])) {
+              pc = arg;
+              continue;
+            }
+            stack[--sp] = null;
+            break;
+          case FOR_INIT:
+            {
+              Location location = nodes[pc].getLocation();
+              Object collection = stack[--sp];
+              stack[sp] = null;
+              Iterable<?> iterable = EvalUtils.toIterable(collection, location, env);
+              EvalUtils.lock(collection, location);
+              loopCollections[loops] = collection;
+              loopLocations[loops] = location;
+              loopIterators[loops] = iterable.iterator();
+              loops++;
+              break;
+            }
+          case FOR_NEXT:
+            {
+              Iterator<?> iterator = loopIterators[loops - 1];
+              if (iterator.hasNext()) {
+                stack[sp++] = iterator.next();
+                break;
+              }
+            }
+            // fall through
+          case BREAK:
+            loops--;
+            EvalUtils.unlock(loopCollections[loops], loopLocations[loops]);
+            loopCollections[loops] = null;
+            loopIterators[loops] = null;
+            pc = arg;
+            continue;
+          case RETURN:
+            return stack[--sp];
+          default:
+            throw new IllegalStateException("Unknown opcode " + code[2 * pc]);
+        }
+        pc++;
+      }
+    } catch (EvalException e) {
+      int op = code[2 * pc];
+      if (op == EVAL || op == EXEC) {
+        // The node has transformed the exception already.
+        throw e;
+      }
+      throw nodes[pc].maybeTransformException(e);
+    } finally {
+      while (loops > 0) {
+        loops--;
+        EvalUtils.unlock(loopCollections[loops], loopLocations[loops]);
+      }
+    }
+  }
+
+  private Object loadGlobal(Identifier identifier, int cacheIndex, Environment env)
+      throws EvalException {
+    GlobalFrame globals = env.getGlobals();
+    GlobalCacheEntry entry = globalCaches[cacheIndex];
+    if (entry != null && entry.globals == globals) {
+      return entry.value;
+    }
+    Object value =
+        identifier.getScope() == ValidationEnvironment.Scope.Module
+            ? env.moduleLookup(identifier.getName())
+            : env.universeLookup(identifier.getName());
+    if (value == null) {
+      throw identifier.createReferencedBeforeAssignmentException();
+    }
+    if (isFrozen(globals)) {
+      // The bindings of a frozen frame never change.
+      globalCaches[cacheIndex] = new GlobalCacheEntry(globals, value);
+    }
+    return value;
+  }
+
+  private static boolean isFrozen(@Nullable GlobalFrame globals) {
+    for (GlobalFrame frame = globals; frame != null; frame = frame.getParent()) {
+      if (!frame.mutability().isFrozen()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The lexical frame of a compiled function. Variables that were resolved at compile time are
+   * stored in slots, any other variable (e.g. the loop variable of a comprehension) in a map.
+   */
+  static final class SlotFrame implements LexicalFrame {
+    private final Mutability mutability;
+    private final String[] slotNames;
+    private final ImmutableMap<String, Integer> slotIndex;
+    private final Object[] slots;
+    @Nullable private LinkedHashMap<String, Object> otherBindings;
+    /** The names of all bound variables, in order of creation. */
+    private final ArrayList<String> names;
+
+    private SlotFrame(
+        Mutability mutability, String[] slotNames, ImmutableMap<String, Integer> slotIndex) {
+      this.mutability = mutability;
+      this.slotNames = slotNames;
+      this.slotIndex = slotIndex;
+      this.slots = new Object[slotNames.length];
+      this.names = new ArrayList<>(slotNames.length);
+    }
+
+    @Override
+    public Mutability mutability() {
+      return mutability;
+    }
+
+    private void set(int slot, Object value) {
+      if (slots[slot] == null) {
+        names.add(slotNames[slot]);
+      }
+      slots[slot] = value;
+    }
+
+    @Nullable
+    @Override
+    public Object get(String varname) {
+      Integer slot = slotIndex.get(varname);
+      if (slot != null) {
+        return slots[slot];
+      }
+      return otherBindings == null ? null : otherBindings.get(varname);
+    }
+
+    @Override
+    public void put(Environment env, String varname, Object value) throws MutabilityException {
+      Mutability.checkMutable(this, env.mutability());
+      Integer slot = slotIndex.get(varname);
+      if (slot != null) {
+        set(slot, value);
+        return;
+      }
+      if (otherBindings == null) {
+        otherBindings = new LinkedHashMap<>();
+      }
+      if (otherBindings.put(varname, value) == null) {
+        names.add(varname);
+      }
+    }
+
+    @Override
+    public void remove(Environment env, String varname) throws MutabilityException {
+      Mutability.checkMutable(this, env.mutability());
+      Integer slot = slotIndex.get(varname);
+      Object previous;
+      if (slot != null) {
+        previous = slots[slot];
+        slots[slot] = null;
+      } else {
+        previous = otherBindings == null ? null : otherBindings.remove(varname);
+      }
+      if (previous != null) {
+        names.remove(varname);
+      }
+    }
+
+    @Override
+    public Map<String, Object> getTransitiveBindings() {
+      LinkedHashMap<String, Object> bindings = new LinkedHashMap<>();
+      for (String name : names) {
+        bindings.put(name, get(name));
+      }
+      return bindings;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("<SlotFrame%s>", mutability());
+    }
+  }
+
+  /** Translates statements and expressions to instructions. */
+  private static final class Compiler {
+    private int[] code = new int[64];
+    private final ArrayList<ASTNode> nodes = new ArrayList<>();
+    private final ArrayList<Object> constants = new ArrayList<>();
+    private final LinkedHashMap<String, Integer> slots = new LinkedHashMap<>();
+    private int globalCaches;
+    private int stackDepth;
+    private int maxStack;
+
+    /** The enclosing loops of the statement being compiled. */
+    private final ArrayList<Loop> loops = new ArrayList<>();
+    private int maxLoopDepth;
+
+    private static final class Loop {
+      /** The FOR_NEXT instruction, which is the target of {@code continue}. */
+      private final int next;
+      /** The instructions that jump to the end of the loop. */
+      private final List<Integer> exits = new ArrayList<>();
+
+      private Loop(int next) {
+        this.next = next;
+      }
+    }
+
+    private Compiler(List<String> parameterNames, List<Statement> statements) {
+      for (String name : parameterNames) {
+        addSlot(name);
+      }
+      addBoundSlots(statements);
+    }
+
+    private void addSlot(String name) {
+      slots.putIfAbsent(name, slots.size());
+    }
+
+    /** Allocates slots for the variables bound by the statements, in order of appearance. */
+    private void addBoundSlots(List<? extends Statement> statements) {
+      for (Statement stmt : statements) {
+        switch (stmt.kind()) {
+          case ASSIGNMENT:
+            addBoundSlots(((AssignmentStatement) stmt).getLValue());
+            break;
+          case AUGMENTED_ASSIGNMENT:
+            addBoundSlots(((AugmentedAssignmentStatement) stmt).getLValue());
+            break;
+          case FOR:
+            addBoundSlots(((ForStatement) stmt).getVariable());
+            addBoundSlots(((ForStatement) stmt).getBlock());
+            break;
+          case IF:
+            for (IfStatement.ConditionalStatements branch :
+                ((IfStatement) stmt).getThenBlocks()) {
+              addBoundSlots(branch.getStatements());
+            }
+            addBoundSlots(((IfStatement) stmt).getElseBlock());
+            break;
+          default:
+            break;
+        }
+      }
+    }
+
+    private void addBoundSlots(LValue lvalue) {
+      for (Identifier identifier : lvalue.boundIdentifiers()) {
+        addSlot(identifier.getName());
+      }
+    }
+
+    private int addConstant(Object value) {
+      constants.add(value);
+      return constants.size() - 1;
+    }
+
+    /** Appends an instruction and returns its index. */
+    private int emit(int op, int arg, @Nullable ASTNode node, int stackEffect) {
+      int pc = nodes.size();
+      if (2 * pc + 2 > code.length) {
+        code = Arrays.copyOf(code, 2 * code.length);
+      }
+      code[2 * pc] = op;
+      code[2 * pc + 1] = arg;
+      nodes.add(node);
+      stackDepth += stackEffect;
+      maxStack = Math.max(maxStack, stackDepth);
+      return pc;
+    }
+
+    /** Returns the index of the next instruction. */
+    private int here() {
+      return nodes.size();
+    }
+
+    /** Makes the jump at {@code pc} go to the next instruction. */
+    private void patch(int pc) {
+      code[2 * pc + 1] = here();
+    }
+
+    private void compileStatements(List<? extends Statement> statements) {
+      for (Statement stmt : statements) {
+        compileStatement(stmt);
+      }
+    }
+
+    private void compileStatement(Statement stmt) {
+      switch (stmt.kind()) {
+        case ASSIGNMENT:
+          {
+            AssignmentStatement assignment = (AssignmentStatement) stmt;
+            compileExpression(assignment.getExpression());
+            compileStore(assignment.getLValue(), assignment);
+            break;
+          }
+        case AUGMENTED_ASSIGNMENT:
+          compileAugmentedAssignment((AugmentedAssignmentStatement) stmt);
+          break;
+        case EXPRESSION:
+          compileExpression(((ExpressionStatement) stmt).getExpression());
+          emit(POP, 0, null, -1);
+          break;
+        case FLOW:
+          {
+            Loop loop = loops.get(loops.size() - 1);
+            if (((FlowStatement) stmt).getKind() == FlowStatement.Kind.BREAK) {
+              loop.exits.add(emit(BREAK, -1, stmt, 0));
+            } else {
+              emit(JUMP, loop.next, stmt, 0);
+            }
+            break;
+          }
+        case FOR:
+          compileFor((ForStatement) stmt);
+          break;
+        case IF:
+          compileIf((IfStatement) stmt);
+          break;
+        case PASS:
+          break;
+        case RETURN:
+          {
+            Expression result = ((ReturnStatement) stmt).getReturnExpression();
+            if (result == null) {
+              emit(CONST, addConstant(Runtime.NONE), stmt, +1);
+            } else {
+              compileExpression(result);
+            }
+            emit(RETURN, 0, stmt, -1);
+            break;
+          }
+        default:
+          // Function definitions, load statements (which are only allowed at the top level) and
+          // conditional statements (which only occur in if statements).
+          emit(EXEC, 0, stmt, 0);
+          break;
+      }
+    }
+
+    /** Pops a value and assigns it to lvalue, as statement {@code stmt} does. */
+    private void compileStore(LValue lvalue, Statement stmt) {
+      Expression target = lvalue.getExpression();
+      if (target instanceof Identifier && slots.containsKey(((Identifier) target).getName())) {
+        emit(STORE_LOCAL, slots.get(((Identifier) target).getName()), stmt, -1);
+      } else {
+        emit(ASSIGN, addConstant(lvalue), stmt, -1);
+      }
+    }
+
+    private void compileAugmentedAssignment(AugmentedAssignmentStatement stmt) {
+      Expression target = stmt.getLValue().getExpression();
+      if (!(target instanceof Identifier)) {
+        // The object and the key of an index expression must be evaluated only once.
+        emit(EXEC, 0, stmt, 0);
+        return;
+      }
+      compileExpression(target);
+      compileExpression(stmt.getExpression());
+      emit(AUGMENTED, 0, stmt, -1);
+      compileStore(stmt.getLValue(), stmt);
+    }
+
+    private void compileFor(ForStatement stmt) {
+      compileExpression(stmt.getCollection());
+      emit(FOR_INIT, 0, stmt, -1);
+      Loop loop = new Loop(here());
+      loops.add(loop);
+      maxLoopDepth = Math.max(maxLoopDepth, loops.size());
+      loop.exits.add(emit(FOR_NEXT, -1, stmt, +1));
+      compileStore(stmt.getVariable(), stmt);
+      compileStatements(stmt.getBlock());
+      emit(JUMP, loop.next, stmt, 0);
+      loops.remove(loops.size() - 1);
+      for (int exit : loop.exits) {
+        patch(exit);
+      }
+    }
+
+    private void compileIf(IfStatement stmt) {
+      List<Integer> exits = new ArrayList<>();
+      for (IfStatement.ConditionalStatements branch : stmt.getThenBlocks()) {
+        compileExpression(branch.getCondition());
+        int skip = emit(JUMP_IF_FALSE, -1, stmt, -1);
+        compileStatements(branch.getStatements());
+        exits.add(emit(JUMP, -1, stmt, 0));
+        patch(skip);
+      }
+      compileStatements(stmt.getElseBlock());
+      for (int exit : exits) {
+        patch(exit);
+      }
+    }
+
+    /** Compiles an expression, which pushes its value. */
+    private void compileExpression(Expression expr) {
+      switch (expr.kind()) {
+        case IDENTIFIER:
+          compileIdentifier((Identifier) expr);
+          break;
+        case INTEGER_LITERAL:
+          emit(CONST, addConstant(((IntegerLiteral) expr).getValue()), expr, +1);
+          break;
+        case STRING_LITERAL:
+          emit(CONST, addConstant(((StringLiteral) expr).getValue()), expr, +1);
+          break;
+        case BINARY_OPERATOR:
+          {
+            BinaryOperatorExpression binary = (BinaryOperatorExpression) expr;
+            compileExpression(binary.getLhs());
+            switch (binary.getOperator()) {
+              case AND:
+                {
+                  int jump = emit(JUMP_IF_FALSE_OR_POP, -1, binary, -1);
+                  compileExpression(binary.getRhs());
+                  patch(jump);
+                  break;
+                }
+              case OR:
+                {
+                  int jump = emit(JUMP_IF_TRUE_OR_POP, -1, binary, -1);
+                  compileExpression(binary.getRhs());
+                  patch(jump);
+                  break;
+                }
+              default:
+                compileExpression(binary.getRhs());
+                emit(BINARY, 0, binary, -1);
+                break;
+            }
+            break;
+          }
+        case UNARY_OPERATOR:
+          compileExpression(((UnaryOperatorExpression) expr).getOperand());
+          emit(UNARY, 0, expr, 0);
+          break;
+        case CONDITIONAL:
+          {
+            ConditionalExpression conditional = (ConditionalExpression) expr;
+            compileExpression(conditional.getCondition());
+            int skip = emit(JUMP_IF_FALSE, -1, conditional, -1);
+            compileExpression(conditional.getThenCase());
+            int exit = emit(JUMP, -1, conditional, 0);
+            // Only one of the cases is on the stack at run time.
+            stackDepth--;
+            patch(skip);
+            compileExpression(conditional.getElseCase());
+            patch(exit);
+            break;
+          }
+        default:
+          emit(EVAL, 0, expr, +1);
+          break;
+      }
+    }
+
+    private void compileIdentifier(Identifier identifier) {
+      Integer slot = slots.get(identifier.getName());
+      ValidationEnvironment.Scope scope = identifier.getScope();
+      if (scope == null) {
+        // The AST was not analysed, so the identifier may refer to any frame.
+        if (slot != null) {
+          emit(LOAD_NAME, slot, identifier, +1);
+        } else {
+          emit(EVAL, 0, identifier, +1);
+        }
+        return;
+      }
+      switch (scope) {
+        case Local:
+          if (slot != null) {
+            emit(LOAD_LOCAL, slot, identifier, +1);
+          } else {
+            emit(EVAL, 0, identifier, +1);
+          }
+          break;
+        case Module:
+        case Universe:
+          emit(LOAD_GLOBAL, globalCaches++, identifier, +1);
+          break;
+      }
+    }
+
+    private CompiledFunction build() {
+      Preconditions.checkState(stackDepth == 0, stackDepth);
+      return new CompiledFunction(
+          Arrays.copyOf(code, 2 * nodes.size()),
+          nodes.toArray(new ASTNode[0]),
+          constants.toArray(),
+          slots.keySet().toArray(new String[0]),
+          globalCaches,
+          maxStack,
+          maxLoopDepth);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "<CompiledFunction %d instructions, %d slots>", nodes.length, slotNames.length);
+  }
+}
@@ -13,11 +13,11 @@
 // limitations under the License.
 package com.google.devtools.build.lib.syntax;
 
-import com.google.common.collect.Streams;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.util.SpellChecker;
 import java.io.IOException;
-import java.util.Optional;
+import java.util.List;
+import javax.annotation.Nullable;
 
 /** Syntax node for a dot expression. e.g. obj.field, but not obj.method() */
 public final class DotExpression extends Expression {
@@ -26,6 +26,22 @@ public final class DotExpression extends Expression {
 
   private final Identifier field;
 
+  /**
+   * Inline cache of the struct field method of the receiver class last seen by this expression.
+   * Entries are immutable, so racing updates are benign.
+   */
+  @Nullable private volatile StructFieldCacheEntry lastStructField;
+
+  private static final class StructFieldCacheEntry {
+    private final Class<?> objClass;
+    @Nullable private final MethodDescriptor structField;
+
+    private StructFieldCacheEntry(Class<?> objClass, @Nullable MethodDescriptor structField) {
+      this.objClass = objClass;
+      this.structField = structField;
+    }
+  }
+
   public DotExpression(Expression object, Identifier field) {
     this.object = object;
     this.field = field;
@@ -50,7 +66,13 @@ public final class DotExpression extends Expression {
   Object doEval(Environment env) throws EvalException, InterruptedException {
     Object objValue = object.eval(env);
     String name = field.getName();
-    Object result = eval(objValue, name, getLocation(), env);
+    Class<?> objClass = receiverClass(objValue);
+    StructFieldCacheEntry entry = lastStructField;
+    if (entry == null || entry.objClass != objClass) {
+      entry = new StructFieldCacheEntry(objClass, findStructField(objClass, name));
+      lastStructField = entry;
+    }
+    Object result = eval(objValue, name, entry.structField, getLocation(), env);
     return checkResult(objValue, result, name, getLocation());
   }
 
@@ -117,26 +139,42 @@ public final class DotExpression extends Expression {
    */
   public static Object eval(Object objValue, String name,
       Location loc, Environment env) throws EvalException, InterruptedException {
+    return eval(objValue, name, findStructField(receiverClass(objValue), name), loc, env);
+  }
 
-    Iterable<MethodDescriptor> methods =
-        objValue instanceof Class<?>
-            ? FuncallExpression.getMethods((Class<?>) objValue, name)
-            : FuncallExpression.getMethods(objValue.getClass(), name);
+  private static Class<?> receiverClass(Object objValue) {
+    return objValue instanceof Class<?> ? (Class<?>) objValue : objValue.getClass();
+  }
 
+  /** Returns the Skylark callable struct field of the given name of objClass, if any. */
+  @Nullable
+  private static MethodDescriptor findStructField(Class<?> objClass, String name) {
+    List<MethodDescriptor> methods = FuncallExpression.getMethods(objClass, name);
     if (methods != null) {
-      Optional<MethodDescriptor> method =
-          Streams.stream(methods).filter(MethodDescriptor::isStructField).findFirst();
-      if (method.isPresent() && method.get().isStructField()) {
-        return method
-            .get()
-            .call(
-                objValue,
-                FuncallExpression.extraInterpreterArgs(method.get(), /* ast = */ null, loc, env)
-                    .toArray(),
-                loc,
-                env);
+      for (MethodDescriptor method : methods) {
+        if (method.isStructField()) {
+          return method;
+        }
       }
     }
+    return null;
+  }
+
+  private static Object eval(
+      Object objValue,
+      String name,
+      @Nullable MethodDescriptor structField,
+      Location loc,
+      Environment env)
+      throws EvalException, InterruptedException {
+    if (structField != null) {
+      return structField.call(
+          objValue,
+          FuncallExpression.extraInterpreterArgs(structField, /* ast = */ null, loc, env)
+              .toArray(),
+          loc,
+          env);
+    }
 
     if (objValue instanceof SkylarkClassObject) {
       try {
@@ -1019,15 +1019,7 @@ public final class Environment implements Freezable, Debuggable {
    */
   public Environment update(String varname, Object value) throws EvalException {
     Preconditions.checkNotNull(value, "update(value == null)");
-    // prevents clashes between static and dynamic variables.
-    if (dynamicFrame.get(varname) != null) {
-      throw new EvalException(
-          null, String.format("Trying to update special read-only global variable '%s'", varname));
-    }
-    if (isKnownGlobalVariable(varname)) {
-      throw new EvalException(
-          null, String.format("Trying to update read-only global variable '%s'", varname));
-    }
+    checkUpdatable(varname);
     try {
       lexicalFrame.put(this, varname, Preconditions.checkNotNull(value));
     } catch (MutabilityException e) {
@@ -1127,6 +1119,22 @@ public final class Environment implements Freezable, Debuggable {
     return dynamicValue;
   }
 
+  /**
+   * Checks that the given variable may be bound in the lexical frame, i.e. that it doesn't clash
+   * with a dynamic or read-only global variable.
+   */
+  void checkUpdatable(String varname) throws EvalException {
+    // prevents clashes between static and dynamic variables.
+    if (dynamicFrame.get(varname) != null) {
+      throw new EvalException(
+          null, String.format("Trying to update special read-only global variable '%s'", varname));
+    }
+    if (isKnownGlobalVariable(varname)) {
+      throw new EvalException(
+          null, String.format("Trying to update read-only global variable '%s'", varname));
+    }
+  }
+
   /**
    * Returns true if varname is a known global variable (i.e., it has been read in the context of
    * the current function).
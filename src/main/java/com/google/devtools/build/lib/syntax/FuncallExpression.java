@@ -211,6 +211,23 @@ public final class FuncallExpression extends Expression {
 
   private final int numPositionalArgs;
 
+  /**
+   * Inline cache of the Java methods of the receiver class last seen at this call site. Most call
+   * sites only ever see one receiver class, for which the lookup in {@link #methodCache} is then
+   * skipped. Entries are immutable, so racing updates are benign.
+   */
+  @Nullable private volatile MethodCacheEntry lastMethods;
+
+  private static final class MethodCacheEntry {
+    private final Class<?> objClass;
+    @Nullable private final List<MethodDescriptor> methods;
+
+    private MethodCacheEntry(Class<?> objClass, @Nullable List<MethodDescriptor> methods) {
+      this.objClass = objClass;
+      this.methods = methods;
+    }
+  }
+
   public FuncallExpression(Expression function, ImmutableList<Argument.Passed> arguments) {
     this.function = Preconditions.checkNotNull(function);
     this.arguments = Preconditions.checkNotNull(arguments);
@@ -396,6 +413,16 @@ public final class FuncallExpression extends Expression {
     return methodDescriptor.call(obj, new Object[0], Location.BUILTIN, null);
   }
 
+  @Nullable
+  private List<MethodDescriptor> getMethodsWithInlineCache(Class<?> objClass, String methodName) {
+    MethodCacheEntry entry = lastMethods;
+    if (entry == null || entry.objClass != objClass) {
+      entry = new MethodCacheEntry(objClass, getMethods(objClass, methodName));
+      lastMethods = entry;
+    }
+    return entry.methods;
+  }
+
   // TODO(bazel-team): If there's exactly one usable method, this works. If there are multiple
   // matching methods, it still can be a problem. Figure out how the Java compiler does it
   // exactly and copy that behaviour.
@@ -408,7 +435,7 @@ public final class FuncallExpression extends Expression {
       Environment environment)
       throws EvalException {
     Pair<MethodDescriptor, List<Object>> matchingMethod = null;
-    List<MethodDescriptor> methods = getMethods(objClass, methodName);
+    List<MethodDescriptor> methods = getMethodsWithInlineCache(objClass, methodName);
     ArgumentListConversionResult argumentListConversionResult = null;
     if (methods != null) {
       for (MethodDescriptor method : methods) {
@@ -78,6 +78,12 @@ public final class Identifier extends Expression {
     this.scope = scope;
   }
 
+  /** Returns the scope of the variable, or null if the AST was not analysed. */
+  @Nullable
+  ValidationEnvironment.Scope getScope() {
+    return scope;
+  }
+
   @Override
   Object doEval(Environment env) throws EvalException {
     Object result;
@@ -107,14 +113,18 @@ public final class Identifier extends Expression {
     if (result == null) {
       // Since Scope was set, we know that the variable is defined in the scope.
       // However, the assignment was not yet executed.
-      throw new EvalException(
-          getLocation(),
-          scope.getQualifier() + " variable '" + name + "' is referenced before assignment.");
+      throw createReferencedBeforeAssignmentException();
     }
 
     return result;
   }
 
+  EvalException createReferencedBeforeAssignmentException() {
+    return new EvalException(
+        getLocation(),
+        scope.getQualifier() + " variable '" + name + "' is referenced before assignment.");
+  }
+
   @Override
   public void accept(SyntaxTreeVisitor visitor) {
     visitor.visit(this);
@@ -97,16 +97,21 @@ public final class LValue extends ASTNode {
       Identifier ident, Object value, Environment env, Location loc)
       throws EvalException {
     Preconditions.checkNotNull(value, "trying to assign null to %s", ident);
+    checkNotKnownGlobal(ident.getName(), env, loc);
+    env.update(ident.getName(), value);
+  }
 
-    if (env.isKnownGlobalVariable(ident.getName())) {
+  /** Throws if the variable was already looked up as a global variable in this scope. */
+  static void checkNotKnownGlobal(String name, Environment env, Location loc)
+      throws EvalException {
+    if (env.isKnownGlobalVariable(name)) {
       throw new EvalException(
           loc,
           String.format(
               "Variable '%s' is referenced before assignment. "
                   + "The variable is defined in the global scope.",
-              ident.getName()));
+              name));
     }
-    env.update(ident.getName(), value);
   }
 
   /**
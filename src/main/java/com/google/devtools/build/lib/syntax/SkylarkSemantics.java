@@ -43,6 +43,8 @@ public abstract class SkylarkSemantics {
   // <== Add new options here in alphabetic order ==>
   public abstract List<String> experimentalCcSkylarkApiEnabledPackages();
 
+  public abstract boolean experimentalCompileSkylarkFunctions();
+
   public abstract boolean experimentalEnableRepoMapping();
 
   public abstract boolean experimentalRemapMainRepo();
@@ -109,6 +111,7 @@ public abstract class SkylarkSemantics {
       builder()
           // <== Add new options here in alphabetic order ==>
           .experimentalCcSkylarkApiEnabledPackages(ImmutableList.of())
+          .experimentalCompileSkylarkFunctions(false)
           .experimentalEnableRepoMapping(false)
           .experimentalRemapMainRepo(false)
           .incompatibleBzlDisallowLoadAfterStatement(false)
@@ -143,6 +146,8 @@ public abstract class SkylarkSemantics {
     // <== Add new options here in alphabetic order ==>
     public abstract Builder experimentalCcSkylarkApiEnabledPackages(List<String> value);
 
+    public abstract Builder experimentalCompileSkylarkFunctions(boolean value);
+
     public abstract Builder experimentalEnableRepoMapping(boolean value);
 
     public abstract Builder experimentalRemapMainRepo(boolean value);
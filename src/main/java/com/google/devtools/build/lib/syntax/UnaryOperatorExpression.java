@@ -57,7 +57,7 @@ public final class UnaryOperatorExpression extends Expression {
     return operator.toString() + operand;
   }
 
-  private static Object evaluate(
+  static Object evaluate(
       UnaryOperator operator,
       Object value,
       Location loc)
@@ -21,6 +21,7 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.profiler.SilentCloseable;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
 import com.google.devtools.build.lib.syntax.Environment.LexicalFrame;
+import javax.annotation.Nullable;
 
 /**
  * The actual function registered in the environment. This function is defined in the parsed code
@@ -33,6 +34,9 @@ public class UserDefinedFunction extends BaseFunction {
   // we close over the globals at the time of definition
   private final Environment.GlobalFrame definitionGlobals;
 
+  // the compiled statements, if --experimental_compile_skylark_functions is set
+  @Nullable private volatile CompiledFunction compiledFunction;
+
   public UserDefinedFunction(
       String name,
       Location location,
@@ -65,7 +69,13 @@ public class UserDefinedFunction extends BaseFunction {
     }
 
     ImmutableList<String> names = signature.getSignature().getNames();
-    LexicalFrame lexicalFrame = LexicalFrame.create(env.mutability(), /*numArgs=*/ names.size());
+    CompiledFunction compiled = getCompiledFunction(env);
+    CompiledFunction.SlotFrame slotFrame =
+        compiled != null ? compiled.newFrame(env.mutability()) : null;
+    LexicalFrame lexicalFrame =
+        slotFrame != null
+            ? slotFrame
+            : LexicalFrame.create(env.mutability(), /*numArgs=*/ names.size());
     try (SilentCloseable c = Profiler.instance().profile(ProfilerTask.SKYLARK_USER_FN, getName())) {
       env.enterScope(this, lexicalFrame, ast, definitionGlobals);
 
@@ -75,6 +85,10 @@ public class UserDefinedFunction extends BaseFunction {
         env.update(names.get(i), arguments[i]);
       }
 
+      if (compiled != null) {
+        return compiled.exec(env, slotFrame);
+      }
+
       Eval eval = Eval.fromEnvironment(env);
       try {
         for (Statement stmt : statements) {
@@ -99,6 +113,28 @@ public class UserDefinedFunction extends BaseFunction {
     }
   }
 
+  /**
+   * Returns the compiled statements of the function, compiling them on first use, or null if the
+   * statements should be interpreted.
+   *
+   * <p>The compiled statements are not used when the call stack is recorded or when a custom
+   * {@link Eval} (e.g. of the debugger) is installed, since both observe every evaluated node.
+   */
+  @Nullable
+  private CompiledFunction getCompiledFunction(Environment env) {
+    if (!env.getSemantics().experimentalCompileSkylarkFunctions()
+        || Callstack.enabled
+        || Eval.hasCustomEval()) {
+      return null;
+    }
+    CompiledFunction compiled = compiledFunction;
+    if (compiled == null) {
+      compiled = CompiledFunction.compile(signature.getSignature().getNames(), statements);
+      compiledFunction = compiled;
+    }
+    return compiled;
+  }
+
   @Override
   public void repr(SkylarkPrinter printer) {
     Label label = this.definitionGlobals.getTransitiveLabel();
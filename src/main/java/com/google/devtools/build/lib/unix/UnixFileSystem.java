@@ -26,9 +26,11 @@ import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.DigestHashFunction.DefaultHashFunctionNotSetException;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.ParallelTreeDigester;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -406,6 +408,9 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
       if (getDigestFunction() == DigestHashFunction.MD5) {
         return NativePosixFiles.md5sum(name).asBytes();
       }
+      if (getDigestFunction() == DigestHashFunction.SHA256_TREE) {
+        return ParallelTreeDigester.digest(Paths.get(name));
+      }
       return super.getDigest(path);
     } finally {
       profiler.logSimpleTask(startTime, ProfilerTask.VFS_MD5, name);
@@ -532,6 +532,11 @@ public class GroupedList<T> implements Iterable<Collection<T>> {
       return elements.iterator();
     }
 
+    /** Returns the number of elements added to this list, including duplicates. */
+    public int numElements() {
+      return elements.size();
+    }
+
     /** Create a GroupedListHelper from a single element. */
     public static <F> GroupedListHelper<F> create(F element) {
       return new GroupedListHelper<>(element);
@@ -0,0 +1,135 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes directory trees in the background, so that callers don't have to wait for them.
+ *
+ * <p>A tree is first moved into a trash directory, which is quick and frees its path right away,
+ * and then deleted with {@link ParallelFileSystemUtils#deleteTree} by low-priority threads. Trees
+ * that were left in the trash directory, e.g. because the server exited before they were deleted,
+ * are deleted when a new deleter for the same trash directory is created.
+ *
+ * <p>Each deleter walks its trees on a small fork-join pool of its own, so that deleting a large
+ * tree in the background never takes the threads of the pool of {@link ParallelFileSystemUtils}
+ * away from the operations that a command waits for.
+ */
+@ThreadSafe
+public final class AsynchronousTreeDeleter {
+  private static final Logger logger = Logger.getLogger(AsynchronousTreeDeleter.class.getName());
+
+  private final Path trashBase;
+  private final AtomicInteger trashCount = new AtomicInteger();
+  /** The number of threads that walk trees in the background. */
+  private static final int DELETER_THREADS =
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+
+  private final ForkJoinPool pool =
+      new ForkJoinPool(
+          DELETER_THREADS,
+          pool -> {
+            ForkJoinWorkerThread thread =
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("async-tree-deleter-walker-" + thread.getPoolIndex());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          },
+          /*handler=*/ null,
+          /*asyncMode=*/ false);
+
+  // Runs one deletion at a time, each of which walks its tree on the pool.
+  private final ExecutorService service =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("async-tree-deleter")
+              .setDaemon(true)
+              .setPriority(Thread.MIN_PRIORITY)
+              .build());
+
+  /**
+   * Creates a deleter that moves trees into {@code trashBase}, which is created if needed. Trees
+   * that are not on the same file system as {@code trashBase} are deleted synchronously.
+   */
+  public AsynchronousTreeDeleter(Path trashBase) throws IOException {
+    this.trashBase = trashBase;
+    trashBase.createDirectoryAndParents();
+    for (Path leftover : trashBase.getDirectoryEntries()) {
+      scheduleDeletion(leftover);
+    }
+  }
+
+  public Path getTrashBase() {
+    return trashBase;
+  }
+
+  /**
+   * Moves the tree at {@code path} out of the way and schedules its deletion. Falls back to
+   * deleting the tree right away if it cannot be moved.
+   *
+   * @throws IOException if the tree could neither be moved nor deleted
+   */
+  public void deleteTree(Path path) throws IOException {
+    Path trashPath;
+    do {
+      trashPath = trashBase.getChild(Integer.toString(trashCount.incrementAndGet()));
+    } while (trashPath.exists(Symlinks.NOFOLLOW));
+    try {
+      path.renameTo(trashPath);
+    } catch (IOException e) {
+      ParallelFileSystemUtils.deleteTree(path);
+      return;
+    }
+    scheduleDeletion(trashPath);
+  }
+
+  private void scheduleDeletion(Path trashPath) {
+    service.execute(
+        () -> {
+          try {
+            ParallelFileSystemUtils.deleteTree(trashPath, pool);
+          } catch (IOException e) {
+            // Whatever is left will be deleted by the next deleter for the same trash directory.
+            logger.log(Level.WARNING, "Failed to delete " + trashPath, e);
+          }
+        });
+  }
+
+  /** Stops accepting new trees. Trees that were already moved to the trash are still deleted. */
+  public void shutdown() {
+    // The pool is still needed by the deletions that were already scheduled.
+    service.execute(pool::shutdown);
+    service.shutdown();
+  }
+
+  /**
+   * Waits until all trees moved to the trash are deleted. Must be called after {@link #shutdown}.
+   */
+  @VisibleForTesting
+  public void awaitTermination() throws InterruptedException {
+    service.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+  }
+}
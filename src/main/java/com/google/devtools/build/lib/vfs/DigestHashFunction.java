@@ -69,6 +69,13 @@ public class DigestHashFunction {
   public static final DigestHashFunction SHA1 = register(Hashing.sha1(), "SHA-1", "SHA1");
   public static final DigestHashFunction SHA256 = register(Hashing.sha256(), "SHA-256", "SHA256");
 
+  /**
+   * SHA-256 applied to chunks of the input and to the list of their digests (see {@link
+   * TreeMessageDigest}), so that large files can be digested on several cores. This is not SHA-256
+   * of the contents, and is not understood by remote execution servers.
+   */
+  public static final DigestHashFunction SHA256_TREE = registerTree(SHA256, "SHA-256-TREE");
+
   private static DigestHashFunction defaultHash;
   private static boolean defaultHasBeenSet = false;
 
@@ -78,11 +85,15 @@ public class DigestHashFunction {
   private final MessageDigest messageDigestPrototype;
   private final boolean messageDigestPrototypeSupportsClone;
 
-  private DigestHashFunction(HashFunction hashFunction, DigestLength digestLength, String name) {
+  private DigestHashFunction(
+      HashFunction hashFunction,
+      DigestLength digestLength,
+      String name,
+      MessageDigest messageDigestPrototype) {
     this.hashFunction = hashFunction;
     this.digestLength = digestLength;
     this.name = name;
-    this.messageDigestPrototype = getMessageDigestInstance();
+    this.messageDigestPrototype = messageDigestPrototype;
     this.messageDigestPrototypeSupportsClone = supportsClone(messageDigestPrototype);
   }
 
@@ -104,16 +115,34 @@ public class DigestHashFunction {
    */
   public static DigestHashFunction register(
       HashFunction hash, DigestLength digestLength, String hashName, String... altNames) {
+    MessageDigest messageDigest;
     try {
-      MessageDigest.getInstance(hashName);
+      messageDigest = MessageDigest.getInstance(hashName);
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalArgumentException(
           "The hash function name provided does not correspond to a valid MessageDigest: "
               + hashName,
           e);
     }
+    return register(
+        new DigestHashFunction(hash, digestLength, hashName, messageDigest), hashName, altNames);
+  }
+
+  /** Registers the tree variant of a hash function (see {@link TreeMessageDigest}). */
+  private static DigestHashFunction registerTree(DigestHashFunction leafFunction, String hashName) {
+    MessageDigest messageDigest =
+        new TreeMessageDigest(hashName, leafFunction.cloneOrCreateMessageDigest());
+    return register(
+        new DigestHashFunction(
+            new MessageDigestHashFunction(messageDigest, hashName),
+            leafFunction.getDigestLength(),
+            hashName,
+            messageDigest),
+        hashName);
+  }
 
-    DigestHashFunction hashFunction = new DigestHashFunction(hash, digestLength, hashName);
+  private static DigestHashFunction register(
+      DigestHashFunction hashFunction, String hashName, String... altNames) {
     List<String> names = ImmutableList.<String>builder().add(hashName).add(altNames).build();
     synchronized (hashFunctionRegistry) {
       for (String name : names) {
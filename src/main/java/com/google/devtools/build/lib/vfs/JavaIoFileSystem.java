@@ -418,6 +418,9 @@ public class JavaIoFileSystem extends AbstractFileSystemWithCustomStat {
     String name = path.toString();
     long startTime = Profiler.nanoTimeMaybe();
     try {
+      if (getDigestFunction() == DigestHashFunction.SHA256_TREE) {
+        return ParallelTreeDigester.digest(getNioPath(path));
+      }
       return super.getDigest(path);
     } finally {
       profiler.logSimpleTask(startTime, ProfilerTask.VFS_MD5, name);
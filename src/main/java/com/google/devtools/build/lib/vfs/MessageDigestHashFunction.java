@@ -0,0 +1,222 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+/**
+ * A {@link HashFunction} for a {@link MessageDigest} that is not known to the security providers,
+ * so that Guava's {@link com.google.common.hash.Hashing} can't create it by name.
+ *
+ * <p>Like Guava's hash functions, primitives are hashed in little-endian byte order.
+ */
+final class MessageDigestHashFunction implements HashFunction {
+  private final MessageDigest prototype;
+  private final String name;
+
+  /** Creates a hash function from a prototype that supports {@link MessageDigest#clone}. */
+  MessageDigestHashFunction(MessageDigest prototype, String name) {
+    this.prototype = prototype;
+    this.name = name;
+  }
+
+  private MessageDigest newMessageDigest() {
+    try {
+      return (MessageDigest) prototype.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException("Could not clone message digest " + name, e);
+    }
+  }
+
+  @Override
+  public Hasher newHasher() {
+    return new MessageDigestHasher(newMessageDigest());
+  }
+
+  @Override
+  public Hasher newHasher(int expectedInputSize) {
+    Preconditions.checkArgument(expectedInputSize >= 0);
+    return newHasher();
+  }
+
+  @Override
+  public HashCode hashInt(int input) {
+    return newHasher().putInt(input).hash();
+  }
+
+  @Override
+  public HashCode hashLong(long input) {
+    return newHasher().putLong(input).hash();
+  }
+
+  @Override
+  public HashCode hashBytes(byte[] input) {
+    return hashBytes(input, 0, input.length);
+  }
+
+  @Override
+  public HashCode hashBytes(byte[] input, int off, int len) {
+    return newHasher().putBytes(input, off, len).hash();
+  }
+
+  @Override
+  public HashCode hashBytes(ByteBuffer input) {
+    return newHasher().putBytes(input).hash();
+  }
+
+  @Override
+  public HashCode hashUnencodedChars(CharSequence input) {
+    return newHasher().putUnencodedChars(input).hash();
+  }
+
+  @Override
+  public HashCode hashString(CharSequence input, Charset charset) {
+    return newHasher().putString(input, charset).hash();
+  }
+
+  @Override
+  public <T> HashCode hashObject(T instance, Funnel<? super T> funnel) {
+    return newHasher().putObject(instance, funnel).hash();
+  }
+
+  @Override
+  public int bits() {
+    return prototype.getDigestLength() * 8;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  private static final class MessageDigestHasher implements Hasher {
+    private final MessageDigest digest;
+    private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    private boolean done;
+
+    MessageDigestHasher(MessageDigest digest) {
+      this.digest = digest;
+    }
+
+    private Hasher update(int bytes) {
+      checkNotDone();
+      digest.update(scratch.array(), 0, bytes);
+      scratch.clear();
+      return this;
+    }
+
+    private void checkNotDone() {
+      Preconditions.checkState(!done, "Cannot re-use a Hasher after calling hash() on it");
+    }
+
+    @Override
+    public Hasher putByte(byte b) {
+      checkNotDone();
+      digest.update(b);
+      return this;
+    }
+
+    @Override
+    public Hasher putBytes(byte[] bytes) {
+      return putBytes(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public Hasher putBytes(byte[] bytes, int off, int len) {
+      checkNotDone();
+      digest.update(bytes, off, len);
+      return this;
+    }
+
+    @Override
+    public Hasher putBytes(ByteBuffer bytes) {
+      checkNotDone();
+      digest.update(bytes);
+      return this;
+    }
+
+    @Override
+    public Hasher putShort(short s) {
+      scratch.putShort(s);
+      return update(Short.BYTES);
+    }
+
+    @Override
+    public Hasher putInt(int i) {
+      scratch.putInt(i);
+      return update(Integer.BYTES);
+    }
+
+    @Override
+    public Hasher putLong(long l) {
+      scratch.putLong(l);
+      return update(Long.BYTES);
+    }
+
+    @Override
+    public Hasher putFloat(float f) {
+      return putInt(Float.floatToRawIntBits(f));
+    }
+
+    @Override
+    public Hasher putDouble(double d) {
+      return putLong(Double.doubleToRawLongBits(d));
+    }
+
+    @Override
+    public Hasher putBoolean(boolean b) {
+      return putByte(b ? (byte) 1 : (byte) 0);
+    }
+
+    @Override
+    public Hasher putChar(char c) {
+      scratch.putChar(c);
+      return update(Character.BYTES);
+    }
+
+    @Override
+    public Hasher putUnencodedChars(CharSequence charSequence) {
+      for (int i = 0; i < charSequence.length(); i++) {
+        putChar(charSequence.charAt(i));
+      }
+      return this;
+    }
+
+    @Override
+    public Hasher putString(CharSequence charSequence, Charset charset) {
+      return putBytes(charSequence.toString().getBytes(charset));
+    }
+
+    @Override
+    public <T> Hasher putObject(T instance, Funnel<? super T> funnel) {
+      funnel.funnel(instance, this);
+      return this;
+    }
+
+    @Override
+    public HashCode hash() {
+      checkNotDone();
+      done = true;
+      return HashCode.fromBytes(digest.digest());
+    }
+  }
+}
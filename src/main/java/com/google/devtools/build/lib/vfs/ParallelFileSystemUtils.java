@@ -0,0 +1,258 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.base.Throwables;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parallel versions of the tree operations of {@link FileSystemUtils}, for trees large enough that
+ * walking them one directory at a time dominates the time of a command.
+ *
+ * <p>All operations run on a single fork-join pool with one thread per core, no matter how many
+ * threads call them at the same time. Only the background deletions of {@link
+ * AsynchronousTreeDeleter} run on a pool of their own, so that they don't compete with the
+ * operations that a command waits for. Each directory is handled by its own task: it reads the
+ * directory once, together with the types of its entries (see {@link Path#readdir}), handles the
+ * files itself and forks a task for each subdirectory. The calling thread blocks until the whole
+ * tree is done.
+ */
+@ThreadSafe
+public final class ParallelFileSystemUtils {
+  /** The number of symlinks created by a single task. */
+  private static final int SYMLINKS_PER_TASK = 256;
+
+  private static final ForkJoinPool pool =
+      NamedForkJoinPool.newNamedPool(
+          "parallel-file-system-utils", Runtime.getRuntime().availableProcessors());
+
+  private ParallelFileSystemUtils() {}
+
+  /**
+   * Deletes {@code p}, and everything recursively beneath it if it's a directory. Does not follow
+   * any symbolic links. Equivalent to {@link FileSystemUtils#deleteTree}.
+   *
+   * @throws IOException if any file could not be removed
+   */
+  public static void deleteTree(Path p) throws IOException {
+    deleteTree(p, pool);
+  }
+
+  /** Like {@link #deleteTree(Path)}, but walks the tree on the given pool. */
+  static void deleteTree(Path p, ForkJoinPool pool) throws IOException {
+    if (p.isDirectory(Symlinks.NOFOLLOW)) {
+      invoke(pool, new DeleteTask(p, /*deleteSelf=*/ false));
+    }
+    p.delete();
+  }
+
+  /**
+   * Deletes all directory trees recursively beneath {@code dir} if it's a directory, nothing
+   * otherwise. Does not follow any symbolic links. Equivalent to {@link
+   * FileSystemUtils#deleteTreesBelow}.
+   *
+   * @throws IOException if any file could not be removed
+   */
+  public static void deleteTreesBelow(Path dir) throws IOException {
+    if (dir.isDirectory(Symlinks.NOFOLLOW)) {
+      invoke(pool, new DeleteTask(dir, /*deleteSelf=*/ false));
+    }
+  }
+
+  /**
+   * Deletes all the given paths as if by {@link #deleteTree}, sharing a single walk between them.
+   *
+   * @throws IOException if any file could not be removed
+   */
+  public static void deleteTrees(Collection<Path> paths) throws IOException {
+    List<DeleteTask> tasks = new ArrayList<>(paths.size());
+    for (Path path : paths) {
+      if (path.isDirectory(Symlinks.NOFOLLOW)) {
+        tasks.add(new DeleteTask(path, /*deleteSelf=*/ true));
+      } else {
+        path.delete();
+      }
+    }
+    if (!tasks.isEmpty()) {
+      invoke(
+          pool,
+          new RecursiveAction() {
+            @Override
+            protected void compute() {
+              invokeAll(tasks);
+            }
+          });
+    }
+  }
+
+  /**
+   * Copies all directory trees under {@code from} to {@code to}, overwriting files that already
+   * exist in {@code to}. Equivalent to {@link FileSystemUtils#copyTreesBelow}.
+   *
+   * @throws IllegalArgumentException if {@code to} is below {@code from}
+   * @throws IOException if any file could not be copied, or {@code from} does not exist
+   */
+  public static void copyTreesBelow(Path from, Path to, Symlinks followSymlinks)
+      throws IOException {
+    if (to.startsWith(from)) {
+      throw new IllegalArgumentException(to + " is a subdirectory of " + from);
+    }
+    invoke(pool, new CopyTask(from, to, followSymlinks));
+  }
+
+  /**
+   * Creates a symbolic link for each entry of {@code links}, from the key to the value. The parent
+   * directories of the links must already exist.
+   *
+   * <p>All links are attempted even if some of them cannot be created.
+   *
+   * @throws IOException the first error encountered while creating a link
+   */
+  public static void createSymbolicLinks(Map<Path, Path> links) throws IOException {
+    if (links.isEmpty()) {
+      return;
+    }
+    List<Map.Entry<Path, Path>> entries = new ArrayList<>(links.entrySet());
+    IOException firstError = pool.invoke(new SymlinkTask(entries, 0, entries.size()));
+    if (firstError != null) {
+      throw firstError;
+    }
+  }
+
+  private static void invoke(ForkJoinPool pool, ForkJoinTask<?> task) throws IOException {
+    try {
+      pool.invoke(task);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } catch (RuntimeException e) {
+      // Exceptions thrown in other threads of the pool may be rethrown in wrapped form.
+      Throwables.throwIfInstanceOf(e.getCause(), UncheckedIOException.class);
+      throw e;
+    }
+  }
+
+  private static final class DeleteTask extends RecursiveAction {
+    private final Path dir;
+    private final boolean deleteSelf;
+
+    DeleteTask(Path dir, boolean deleteSelf) {
+      this.dir = dir;
+      this.deleteSelf = deleteSelf;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        // Make sure that we can list and delete the contents, like
+        // FileSystemUtils#deleteTreesBelow.
+        dir.chmod(0700);
+        List<DeleteTask> subdirs = new ArrayList<>();
+        for (Dirent dirent : dir.readdir(Symlinks.NOFOLLOW)) {
+          Path child = dir.getChild(dirent.getName());
+          if (dirent.getType() == Dirent.Type.DIRECTORY) {
+            subdirs.add(new DeleteTask(child, /*deleteSelf=*/ true));
+          } else {
+            child.delete();
+          }
+        }
+        invokeAll(subdirs);
+        if (deleteSelf) {
+          dir.delete();
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private static final class CopyTask extends RecursiveAction {
+    private final Path from;
+    private final Path to;
+    private final Symlinks followSymlinks;
+
+    CopyTask(Path from, Path to, Symlinks followSymlinks) {
+      this.from = from;
+      this.to = to;
+      this.followSymlinks = followSymlinks;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        List<CopyTask> subdirs = new ArrayList<>();
+        for (Path entry : from.getDirectoryEntries()) {
+          Path toPath = to.getChild(entry.getBaseName());
+          if (!followSymlinks.toBoolean() && entry.isSymbolicLink()) {
+            FileSystemUtils.ensureSymbolicLink(toPath, entry.readSymbolicLink());
+          } else if (entry.isFile()) {
+            FileSystemUtils.copyFile(entry, toPath);
+          } else {
+            toPath.createDirectory();
+            subdirs.add(new CopyTask(entry, toPath, followSymlinks));
+          }
+        }
+        invokeAll(subdirs);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /** Creates a range of symlinks and returns the first error, or null if there was none. */
+  private static final class SymlinkTask extends RecursiveTask<IOException> {
+    private final List<Map.Entry<Path, Path>> links;
+    private final int start;
+    private final int end;
+
+    SymlinkTask(List<Map.Entry<Path, Path>> links, int start, int end) {
+      this.links = links;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected IOException compute() {
+      if (end - start > SYMLINKS_PER_TASK) {
+        int middle = (start + end) >>> 1;
+        SymlinkTask second = new SymlinkTask(links, middle, end);
+        second.fork();
+        IOException firstError = new SymlinkTask(links, start, middle).compute();
+        IOException secondError = second.join();
+        return firstError != null ? firstError : secondError;
+      }
+      IOException firstError = null;
+      for (Map.Entry<Path, Path> link : links.subList(start, end)) {
+        try {
+          link.getKey().createSymbolicLink(link.getValue());
+        } catch (IOException e) {
+          if (firstError == null) {
+            firstError = e;
+          }
+        }
+      }
+      return firstError;
+    }
+  }
+}
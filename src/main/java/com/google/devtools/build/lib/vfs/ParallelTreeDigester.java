@@ -0,0 +1,183 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Computes {@link DigestHashFunction#SHA256_TREE} digests of local files, digesting the chunks of
+ * large files on several cores. The result is the same as that of a {@link TreeMessageDigest} on
+ * the contents of the file.
+ */
+@ThreadSafe
+public final class ParallelTreeDigester {
+  /** Files smaller than this are digested on the calling thread. */
+  @VisibleForTesting static final long MIN_PARALLEL_SIZE = 8L * TreeMessageDigest.CHUNK_SIZE;
+
+  /** The number of chunks one task digests before it splits its range. */
+  private static final int CHUNKS_PER_TASK = 4;
+
+  private static final ForkJoinPool DEFAULT_POOL =
+      NamedForkJoinPool.newNamedPool(
+          "tree-digester", Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Direct buffers of one chunk each, which tasks take for as long as they read. At most as many
+   * buffers are kept as there are cores, so the memory outside the heap stays bounded no matter how
+   * many threads digest files.
+   */
+  private static final BlockingQueue<ByteBuffer> CHUNK_BUFFERS =
+      new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+
+  private static final AtomicLong filesDigested = new AtomicLong();
+  private static final AtomicLong bytesDigested = new AtomicLong();
+  private static final AtomicLong nanosDigesting = new AtomicLong();
+
+  private ParallelTreeDigester() {}
+
+  /** Returns the digest of the given file. */
+  public static byte[] digest(java.nio.file.Path file) throws IOException {
+    return digest(file, DEFAULT_POOL);
+  }
+
+  /**
+   * Returns the digest of the given file, digesting its chunks on {@code pool}, or serially if it
+   * is null.
+   */
+  @VisibleForTesting
+  static byte[] digest(java.nio.file.Path file, @Nullable ForkJoinPool pool) throws IOException {
+    long startTime = System.nanoTime();
+    byte[] digest;
+    long size;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      size = channel.size();
+      int chunkSize = TreeMessageDigest.CHUNK_SIZE;
+      int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+      byte[][] leaves = new byte[chunks][];
+      ChunkDigestTask task = new ChunkDigestTask(channel, size, leaves, 0, chunks);
+      if (pool == null || size < MIN_PARALLEL_SIZE) {
+        task.digestChunks();
+      } else {
+        try {
+          pool.invoke(task);
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+      }
+      MessageDigest root = newUnderlyingDigest();
+      root.update(TreeMessageDigest.ROOT_PREFIX);
+      for (byte[] leaf : leaves) {
+        root.update(leaf);
+      }
+      digest = root.digest();
+    }
+    filesDigested.incrementAndGet();
+    bytesDigested.addAndGet(size);
+    nanosDigesting.addAndGet(System.nanoTime() - startTime);
+    return digest;
+  }
+
+  private static MessageDigest newUnderlyingDigest() {
+    return DigestHashFunction.SHA256.cloneOrCreateMessageDigest();
+  }
+
+  /** Digests the chunks in a range of a file, splitting the range among subtasks if it is large. */
+  private static final class ChunkDigestTask extends RecursiveAction {
+    private final FileChannel channel;
+    private final long size;
+    private final byte[][] leaves;
+    private final int start;
+    private final int end;
+
+    ChunkDigestTask(FileChannel channel, long size, byte[][] leaves, int start, int end) {
+      this.channel = channel;
+      this.size = size;
+      this.leaves = leaves;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > CHUNKS_PER_TASK) {
+        int middle = (start + end) >>> 1;
+        invokeAll(
+            new ChunkDigestTask(channel, size, leaves, start, middle),
+            new ChunkDigestTask(channel, size, leaves, middle, end));
+        return;
+      }
+      try {
+        digestChunks();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void digestChunks() throws IOException {
+      ByteBuffer buffer = CHUNK_BUFFERS.poll();
+      if (buffer == null) {
+        buffer = ByteBuffer.allocateDirect(TreeMessageDigest.CHUNK_SIZE);
+      }
+      try {
+        digestChunks(buffer);
+      } finally {
+        // Dropped if enough buffers are pooled already.
+        CHUNK_BUFFERS.offer(buffer);
+      }
+    }
+
+    private void digestChunks(ByteBuffer buffer) throws IOException {
+      MessageDigest leaf = newUnderlyingDigest();
+      for (int chunk = start; chunk < end; chunk++) {
+        long position = (long) chunk * TreeMessageDigest.CHUNK_SIZE;
+        buffer.clear();
+        buffer.limit((int) Math.min(TreeMessageDigest.CHUNK_SIZE, size - position));
+        while (buffer.hasRemaining()) {
+          int read = channel.read(buffer, position + buffer.position());
+          if (read < 0) {
+            break;
+          }
+        }
+        buffer.flip();
+        leaf.update(TreeMessageDigest.LEAF_PREFIX);
+        leaf.update(buffer);
+        leaves[chunk] = leaf.digest();
+      }
+    }
+  }
+
+  /** Returns a description of how many bytes were digested so far, and how fast. */
+  public static String getStatsSummary() {
+    long files = filesDigested.get();
+    long bytes = bytesDigested.get();
+    long millis = Math.max(1, nanosDigesting.get() / 1_000_000);
+    return String.format(
+        "%d files, %d MB in %d ms (%d MB/s)",
+        files, bytes >> 20, millis, (bytes >> 20) * 1000 / millis);
+  }
+}
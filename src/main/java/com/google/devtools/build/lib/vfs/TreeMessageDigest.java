@@ -0,0 +1,110 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import java.security.MessageDigest;
+
+/**
+ * A {@link MessageDigest} that splits its input into chunks of {@link #CHUNK_SIZE} bytes and
+ * digests them independently, so that large inputs can be digested on several cores (see {@link
+ * ParallelTreeDigester}).
+ *
+ * <p>With {@code H} the underlying digest, the digest of chunks {@code c_1, ..., c_n} is {@code
+ * H(0x01 || H(0x00 || c_1) || ... || H(0x00 || c_n))}. The prefixes keep the digests of chunks
+ * apart from the digest of their concatenation. The digest of an empty input is {@code H(0x01)}.
+ */
+final class TreeMessageDigest extends MessageDigest implements Cloneable {
+  static final int CHUNK_SIZE = 1024 * 1024;
+
+  static final byte LEAF_PREFIX = 0x00;
+  static final byte ROOT_PREFIX = 0x01;
+
+  private MessageDigest leaf;
+  private MessageDigest root;
+  private int chunkBytes;
+
+  /**
+   * Creates a tree digest on top of the given digest, which must support {@link
+   * MessageDigest#clone}.
+   */
+  TreeMessageDigest(String algorithm, MessageDigest digest) {
+    super(algorithm);
+    try {
+      this.leaf = (MessageDigest) digest.clone();
+      this.root = (MessageDigest) digest.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalArgumentException(digest.getAlgorithm() + " does not support clone()", e);
+    }
+    engineReset();
+  }
+
+  @Override
+  protected int engineGetDigestLength() {
+    return root.getDigestLength();
+  }
+
+  @Override
+  protected void engineUpdate(byte input) {
+    startChunkIfNeeded();
+    leaf.update(input);
+    chunkBytes++;
+  }
+
+  @Override
+  protected void engineUpdate(byte[] input, int offset, int len) {
+    while (len > 0) {
+      startChunkIfNeeded();
+      int n = Math.min(len, CHUNK_SIZE - chunkBytes);
+      leaf.update(input, offset, n);
+      chunkBytes += n;
+      offset += n;
+      len -= n;
+    }
+  }
+
+  private void startChunkIfNeeded() {
+    if (chunkBytes == CHUNK_SIZE) {
+      root.update(leaf.digest());
+      leaf.update(LEAF_PREFIX);
+      chunkBytes = 0;
+    }
+  }
+
+  @Override
+  protected byte[] engineDigest() {
+    if (chunkBytes > 0) {
+      root.update(leaf.digest());
+    }
+    byte[] digest = root.digest();
+    engineReset();
+    return digest;
+  }
+
+  @Override
+  protected void engineReset() {
+    leaf.reset();
+    leaf.update(LEAF_PREFIX);
+    root.reset();
+    root.update(ROOT_PREFIX);
+    chunkBytes = 0;
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    TreeMessageDigest clone = (TreeMessageDigest) super.clone();
+    clone.leaf = (MessageDigest) leaf.clone();
+    clone.root = (MessageDigest) root.clone();
+    return clone;
+  }
+}
@@ -18,10 +18,10 @@ import com.google.devtools.build.lib.shell.Subprocess;
 import com.google.devtools.build.lib.shell.SubprocessBuilder;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -47,6 +47,7 @@ class Worker {
 
   private Subprocess process;
   private Thread shutdownHook;
+  private RecordingInputStream recordingStream;
 
   Worker(WorkerKey workerKey, int workerId, final Path workDir, Path logFile) {
     this.workerKey = workerKey;
@@ -69,6 +70,12 @@ class Worker {
   }
 
   void createProcess() throws IOException {
+    this.process = startProcess(workerKey, workDir, logFile);
+  }
+
+  /** Starts a worker process for the given key in {@code workDir}, logging stderr to a file. */
+  static Subprocess startProcess(WorkerKey workerKey, Path workDir, Path logFile)
+      throws IOException {
     List<String> args = workerKey.getArgs();
     File executable = new File(args.get(0));
     if (!executable.isAbsolute() && executable.getParent() != null) {
@@ -80,7 +87,7 @@ class Worker {
     processBuilder.setWorkingDirectory(workDir.getPathFile());
     processBuilder.setStderr(logFile.getPathFile());
     processBuilder.setEnv(workerKey.getEnv());
-    this.process = processBuilder.start();
+    return processBuilder.start();
   }
 
   void destroy() throws IOException {
@@ -98,7 +105,7 @@ class Worker {
    *
    * @param process the process to destroy.
    */
-  private static void destroyProcess(Subprocess process) {
+  static void destroyProcess(Subprocess process) {
     boolean wasInterrupted = false;
     try {
       process.destroy();
@@ -140,12 +147,29 @@ class Worker {
     return !process.finished();
   }
 
-  InputStream getInputStream() {
-    return process.getInputStream();
+  /** Sends a request to the worker process. */
+  void putRequest(WorkRequest request) throws IOException {
+    request.writeDelimitedTo(process.getOutputStream());
+    process.getOutputStream().flush();
   }
 
-  OutputStream getOutputStream() {
-    return process.getOutputStream();
+  /**
+   * Waits for the response to the last request. Returns null if the worker process has already
+   * closed its stdout.
+   */
+  WorkResponse getResponse() throws IOException, InterruptedException {
+    recordingStream = new RecordingInputStream(process.getInputStream());
+    recordingStream.startRecording(4096);
+    return WorkResponse.parseDelimitedFrom(recordingStream);
+  }
+
+  /**
+   * Returns the start of what the worker process wrote to stdout for the last request, including
+   * what {@link #getResponse} could not parse.
+   */
+  String getRecordingStreamMessage() {
+    recordingStream.readRemaining();
+    return recordingStream.getRecordedDataAsString();
   }
 
   public void prepareExecution(
@@ -36,6 +36,7 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
 
   private WorkerOptions workerOptions;
   private final Path workerBaseDir;
+  private final WorkerMultiplexerManager multiplexerManager = new WorkerMultiplexerManager();
   private Reporter reporter;
 
   public WorkerFactory(WorkerOptions workerOptions, Path workerBaseDir) {
@@ -59,7 +60,17 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
 
     Worker worker;
     boolean sandboxed = workerOptions.workerSandboxing || key.mustBeSandboxed();
-    if (sandboxed) {
+    if (key.isMultiplex()) {
+      // Multiplex workers share one process, and thus one working directory, per key, so they
+      // cannot be sandboxed. WorkerSpawnRunner doesn't use them when sandboxing is needed.
+      worker =
+          new WorkerProxy(
+              key,
+              workerId,
+              key.getExecRoot(),
+              multiplexerManager.acquire(key, logFile),
+              multiplexerManager);
+    } else if (sandboxed) {
       Path workDir = getSandboxedWorkerPath(key, workerId);
       worker = new SandboxedWorker(key, workerId, workDir, logFile);
     } else {
@@ -70,10 +81,10 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
           Event.info(
               String.format(
                   "Created new %s %s worker (id %d), logging to %s",
-                  sandboxed ? "sandboxed" : "non-sandboxed",
+                  key.isMultiplex() ? "multiplex" : sandboxed ? "sandboxed" : "non-sandboxed",
                   key.getMnemonic(),
                   workerId,
-                  logFile)));
+                  worker.getLogFile())));
     }
     return worker;
   }
@@ -33,6 +33,8 @@ final class WorkerKey {
   private final ImmutableMap<String, String> env;
   private final Path execRoot;
   private final String mnemonic;
+  /** Whether the requests for this key are sent to one multiplex worker process. */
+  private final boolean isMultiplex;
 
   /**
    * These are used during validation whether a worker is still usable. They are not used to
@@ -50,7 +52,8 @@ final class WorkerKey {
       String mnemonic,
       HashCode workerFilesCombinedHash,
       SortedMap<PathFragment, HashCode> workerFilesWithHashes,
-      boolean mustBeSandboxed) {
+      boolean mustBeSandboxed,
+      boolean isMultiplex) {
     this.args = ImmutableList.copyOf(Preconditions.checkNotNull(args));
     this.env = ImmutableMap.copyOf(Preconditions.checkNotNull(env));
     this.execRoot = Preconditions.checkNotNull(execRoot);
@@ -58,6 +61,7 @@ final class WorkerKey {
     this.workerFilesCombinedHash = Preconditions.checkNotNull(workerFilesCombinedHash);
     this.workerFilesWithHashes = Preconditions.checkNotNull(workerFilesWithHashes);
     this.mustBeSandboxed = mustBeSandboxed;
+    this.isMultiplex = isMultiplex;
   }
 
   public ImmutableList<String> getArgs() {
@@ -88,6 +92,10 @@ final class WorkerKey {
     return mustBeSandboxed;
   }
 
+  public boolean isMultiplex() {
+    return isMultiplex;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -108,6 +116,9 @@ final class WorkerKey {
     if (!execRoot.equals(workerKey.execRoot)) {
       return false;
     }
+    if (isMultiplex != workerKey.isMultiplex) {
+      return false;
+    }
     return mnemonic.equals(workerKey.mnemonic);
 
   }
@@ -118,6 +129,7 @@ final class WorkerKey {
     result = 31 * result + env.hashCode();
     result = 31 * result + execRoot.hashCode();
     result = 31 * result + mnemonic.hashCode();
+    result = 31 * result + Boolean.hashCode(isMultiplex);
     return result;
   }
 
@@ -51,6 +51,7 @@ public class WorkerModule extends BlazeModule {
   private WorkerFactory workerFactory;
   private WorkerPool workerPool;
   private ImmutableMap<String, Integer> workerPoolConfig;
+  private ImmutableMap<String, Integer> multiplexWorkerPoolConfig;
   private WorkerOptions options;
 
   @Override
@@ -108,21 +109,16 @@ public class WorkerModule extends BlazeModule {
     workerFactory.setReporter(env.getReporter());
     workerFactory.setOptions(options);
 
-    // Use a LinkedHashMap instead of an ImmutableMap.Builder to allow duplicates; the last value
-    // passed wins.
-    LinkedHashMap<String, Integer> newConfigBuilder = new LinkedHashMap<>();
-    for (Map.Entry<String, Integer> entry : options.workerMaxInstances) {
-      newConfigBuilder.put(entry.getKey(), entry.getValue());
-    }
-    if (!newConfigBuilder.containsKey("")) {
-      // Empty string gives the number of workers for any type of worker not explicitly specified.
-      // If no value is given, use the default, 4.
-      newConfigBuilder.put("", 4);
-    }
-    ImmutableMap<String, Integer> newConfig = ImmutableMap.copyOf(newConfigBuilder);
+    // If no value is given, use the default, 4 worker processes or 8 requests on a multiplex
+    // worker process.
+    ImmutableMap<String, Integer> newConfig = createPoolConfig(options.workerMaxInstances, 4);
+    ImmutableMap<String, Integer> newMultiplexConfig =
+        createPoolConfig(options.workerMaxMultiplexInstances, 8);
 
     // If the config changed compared to the last run, we have to create a new pool.
-    if (workerPoolConfig != null && !workerPoolConfig.equals(newConfig)) {
+    if ((workerPoolConfig != null && !workerPoolConfig.equals(newConfig))
+        || (multiplexWorkerPoolConfig != null
+            && !multiplexWorkerPoolConfig.equals(newMultiplexConfig))) {
       shutdownPool(
           "Worker configuration has changed, restarting worker pool...",
           /* alwaysLog= */ true);
@@ -130,8 +126,29 @@ public class WorkerModule extends BlazeModule {
 
     if (workerPool == null) {
       workerPoolConfig = newConfig;
-      workerPool = new WorkerPool(workerFactory, workerPoolConfig, options.highPriorityWorkers);
+      multiplexWorkerPoolConfig = newMultiplexConfig;
+      workerPool =
+          new WorkerPool(
+              workerFactory,
+              workerPoolConfig,
+              multiplexWorkerPoolConfig,
+              options.highPriorityWorkers);
+    }
+  }
+
+  private static ImmutableMap<String, Integer> createPoolConfig(
+      Iterable<Map.Entry<String, Integer>> maxInstances, int defaultMax) {
+    // Use a LinkedHashMap instead of an ImmutableMap.Builder to allow duplicates; the last value
+    // passed wins.
+    LinkedHashMap<String, Integer> newConfigBuilder = new LinkedHashMap<>();
+    for (Map.Entry<String, Integer> entry : maxInstances) {
+      newConfigBuilder.put(entry.getKey(), entry.getValue());
+    }
+    if (!newConfigBuilder.containsKey("")) {
+      // Empty string gives the number of workers for any type of worker not explicitly specified.
+      newConfigBuilder.put("", defaultMax);
     }
+    return ImmutableMap.copyOf(newConfigBuilder);
   }
 
   @Override
@@ -139,11 +156,13 @@ public class WorkerModule extends BlazeModule {
     Preconditions.checkNotNull(workerPool);
     ImmutableMultimap<String, String> extraFlags =
         ImmutableMultimap.copyOf(env.getOptions().getOptions(WorkerOptions.class).workerExtraFlags);
+    WorkerOptions workerOptions = env.getOptions().getOptions(WorkerOptions.class);
     WorkerSpawnRunner spawnRunner =
         new WorkerSpawnRunner(
             env.getExecRoot(),
             workerPool,
             extraFlags,
+            workerOptions.workerMultiplex && !workerOptions.workerSandboxing,
             env.getReporter(),
             createFallbackRunner(env));
     builder.addActionContext(new WorkerSpawnStrategy(env.getExecRoot(), spawnRunner));
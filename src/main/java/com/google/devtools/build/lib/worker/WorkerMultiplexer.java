@@ -0,0 +1,250 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.shell.Subprocess;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A worker process that processes several {@link WorkRequest}s at a time, shared by the {@link
+ * WorkerProxy}s of one {@link WorkerKey}.
+ *
+ * <p>Every request gets a unique request id. Requests are written to the process as they come, and
+ * a reader thread routes the responses, which may arrive in any order, to the waiting requests by
+ * their id.
+ */
+@ThreadSafe
+final class WorkerMultiplexer {
+  private static final Logger logger = Logger.getLogger(WorkerMultiplexer.class.getName());
+
+  private final Path logFile;
+  private final AtomicInteger nextRequestId = new AtomicInteger(1);
+  private final Map<Integer, PendingResponse> pendingResponses = new ConcurrentHashMap<>();
+
+  @GuardedBy("this")
+  private Subprocess process;
+
+  /** The connection to the current process, or null if none was started. */
+  @GuardedBy("this")
+  private Connection connection;
+
+  /** The start of what a process wrote to stdout when its responses could not be parsed. */
+  private volatile String unparseableOutput = "";
+
+  WorkerMultiplexer(Path logFile) {
+    this.logFile = logFile;
+  }
+
+  Path getLogFile() {
+    return logFile;
+  }
+
+  /** Starts the worker process, unless it is already running. */
+  synchronized void createProcess(WorkerKey workerKey, Path workDir) throws IOException {
+    if (process != null && !process.finished() && connection.readFailure == null) {
+      return;
+    }
+    destroyProcess();
+    process = Worker.startProcess(workerKey, workDir, logFile);
+    startReading(process.getInputStream(), process.getOutputStream());
+  }
+
+  /**
+   * Starts routing the responses read from {@code responses} to the requests that are sent to
+   * {@code requests}, which replace the streams of the previous process.
+   */
+  @VisibleForTesting
+  synchronized void startReading(InputStream responses, OutputStream requests) {
+    Connection newConnection = new Connection(requests);
+    Thread readerThread =
+        new Thread(() -> readResponses(newConnection, responses), "worker-multiplexer-reader");
+    readerThread.setDaemon(true);
+    readerThread.start();
+    connection = newConnection;
+  }
+
+  synchronized boolean isAlive() {
+    return connection != null
+        && connection.readFailure == null
+        && (process == null || !process.finished());
+  }
+
+  /** Returns a new request id to be used for the next request of a proxy. */
+  int newRequestId() {
+    return nextRequestId.getAndIncrement();
+  }
+
+  /**
+   * Sends a request to the worker process. The response has to be collected with {@link
+   * #getResponse}.
+   */
+  void putRequest(WorkRequest request) throws IOException {
+    Connection target;
+    synchronized (this) {
+      target = connection;
+    }
+    if (target == null) {
+      throw new IllegalStateException("The worker process was not started");
+    }
+    int requestId = request.getRequestId();
+    pendingResponses.put(requestId, new PendingResponse(target));
+    try {
+      // Checked after registering the request, as the reader sets it before failing all requests.
+      IOException failure = target.readFailure;
+      if (failure != null) {
+        throw failure;
+      }
+      target.write(request);
+    } catch (IOException e) {
+      pendingResponses.remove(requestId);
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the response to the request with the given id. Returns null if the worker process
+   * closed its stdout before sending it.
+   */
+  @Nullable
+  WorkResponse getResponse(int requestId) throws IOException, InterruptedException {
+    PendingResponse pending = pendingResponses.get(requestId);
+    if (pending == null) {
+      throw new IllegalStateException("No request with id " + requestId + " was sent");
+    }
+    try {
+      return pending.response.get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    } finally {
+      pendingResponses.remove(requestId);
+    }
+  }
+
+  /** Returns the start of the output of the process, if its responses could not be parsed. */
+  String getUnparseableOutput() {
+    return unparseableOutput;
+  }
+
+  private void readResponses(Connection connection, InputStream responses) {
+    RecordingInputStream recordingStream = new RecordingInputStream(responses);
+    while (true) {
+      WorkResponse response;
+      try {
+        recordingStream.startRecording(4096);
+        response = WorkResponse.parseDelimitedFrom(recordingStream);
+      } catch (IOException e) {
+        recordingStream.readRemaining();
+        unparseableOutput = recordingStream.getRecordedDataAsString();
+        failPendingResponses(connection, e);
+        return;
+      }
+      if (response == null) {
+        // The process closed its stdout, so the pending requests won't get a response.
+        failPendingResponses(connection, null);
+        return;
+      }
+      PendingResponse pending = pendingResponses.get(response.getRequestId());
+      if (pending == null || pending.connection != connection) {
+        logger.warning("Dropping worker response to unknown request " + response.getRequestId());
+      } else {
+        pending.response.set(response);
+      }
+    }
+  }
+
+  /**
+   * Fails the requests that were sent over the given connection. Requests sent to a process that
+   * replaced it are not affected.
+   */
+  private void failPendingResponses(Connection connection, @Nullable IOException e) {
+    connection.readFailure = e != null ? e : new IOException("Worker process closed its stdout");
+    List<PendingResponse> pending = new ArrayList<>(pendingResponses.values());
+    for (PendingResponse response : pending) {
+      if (response.connection != connection) {
+        continue;
+      }
+      if (e == null) {
+        response.response.set(null);
+      } else {
+        response.response.setException(e);
+      }
+    }
+  }
+
+  /**
+   * Destroys the worker process. Requests that are still waiting for a response fail once its
+   * reader thread sees the end of its stdout.
+   */
+  synchronized void destroyProcess() {
+    if (process != null) {
+      Worker.destroyProcess(process);
+      process = null;
+    }
+  }
+
+  /**
+   * The streams of one worker process and the state of its reader thread. Each process gets its
+   * own, so that the reader of a dead process can't fail the requests sent to its replacement.
+   */
+  private static final class Connection {
+    @GuardedBy("this")
+    private final OutputStream requests;
+
+    /** Set once the responses can no longer be read, failing all later requests. */
+    volatile IOException readFailure;
+
+    Connection(OutputStream requests) {
+      this.requests = requests;
+    }
+
+    /**
+     * Writes a request to the process. Only concurrent writes are serialized, so a slow process
+     * does not block the multiplexer itself.
+     */
+    synchronized void write(WorkRequest request) throws IOException {
+      request.writeDelimitedTo(requests);
+      requests.flush();
+    }
+  }
+
+  /** A request waiting for its response, and the connection it was sent over. */
+  private static final class PendingResponse {
+    final Connection connection;
+    final SettableFuture<WorkResponse> response = SettableFuture.create();
+
+    PendingResponse(Connection connection) {
+      this.connection = connection;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.Path;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Keeps one {@link WorkerMultiplexer} per {@link WorkerKey} and worker files, for as long as there
+ * are {@link WorkerProxy}s that use it.
+ *
+ * <p>The hash of the worker files is not part of the equality of {@link WorkerKey}s, but a process
+ * must not serve requests once its binary or runfiles changed. Proxies for the changed files get a
+ * new multiplexer, and the old one is destroyed once the pool has discarded its proxies.
+ */
+@ThreadSafe
+final class WorkerMultiplexerManager {
+  private static final class Entry {
+    final WorkerMultiplexer multiplexer;
+    int proxies;
+
+    Entry(WorkerMultiplexer multiplexer) {
+      this.multiplexer = multiplexer;
+    }
+  }
+
+  private final Table<WorkerKey, HashCode, Entry> multiplexers = HashBasedTable.create();
+
+  /**
+   * Returns the multiplexer for the given key, creating it if there is none. Every call must be
+   * matched by a call to {@link #release}.
+   *
+   * @param logFile where the worker process logs to, if a multiplexer is created
+   */
+  synchronized WorkerMultiplexer acquire(WorkerKey key, Path logFile) {
+    HashCode workerFiles = key.getWorkerFilesCombinedHash();
+    Entry entry = multiplexers.get(key, workerFiles);
+    if (entry == null) {
+      entry = new Entry(new WorkerMultiplexer(logFile));
+      multiplexers.put(key, workerFiles, entry);
+    }
+    entry.proxies++;
+    return entry.multiplexer;
+  }
+
+  /** Destroys the process of the multiplexer for the given key once no proxy uses it anymore. */
+  synchronized void release(WorkerKey key) {
+    HashCode workerFiles = key.getWorkerFilesCombinedHash();
+    Entry entry = Preconditions.checkNotNull(multiplexers.get(key, workerFiles), key);
+    if (--entry.proxies == 0) {
+      multiplexers.remove(key, workerFiles);
+      entry.multiplexer.destroyProcess();
+    }
+  }
+}
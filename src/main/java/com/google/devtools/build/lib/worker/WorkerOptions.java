@@ -58,6 +58,31 @@ public class WorkerOptions extends OptionsBase {
   )
   public List<Map.Entry<String, Integer>> workerMaxInstances;
 
+  @Option(
+      name = "worker_max_multiplex_instances",
+      converter = Converters.NamedIntegersConverter.class,
+      defaultValue = "",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS},
+      help =
+          "How many requests a multiplex worker process may work on at the same time if you use "
+              + "the 'worker' strategy with --experimental_worker_multiplex. May be specified as "
+              + "[name=value] to give a different value per worker mnemonic.",
+      allowMultiple = true)
+  public List<Map.Entry<String, Integer>> workerMaxMultiplexInstances;
+
+  @Option(
+      name = "experimental_worker_multiplex",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS},
+      help =
+          "If enabled, actions that support multiplex workers send their requests to a single "
+              + "worker process per mnemonic, which works on several of them at the same time. "
+              + "Multiplex workers are not used with --worker_sandboxing or for actions that "
+              + "need to be sandboxed.")
+  public boolean workerMultiplex;
+
   @Option(
       name = "high_priority_workers",
       defaultValue = "",
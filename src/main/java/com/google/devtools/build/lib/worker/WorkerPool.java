@@ -33,23 +33,38 @@ final class WorkerPool {
   private final AtomicInteger highPriorityWorkersInUse = new AtomicInteger(0);
   private final ImmutableSet<String> highPriorityWorkerMnemonics;
   private final ImmutableMap<String, Integer> config;
+  private final ImmutableMap<String, Integer> multiplexConfig;
   private final ImmutableMap<Integer, SimpleWorkerPool> pools;
+  private final ImmutableMap<Integer, SimpleWorkerPool> multiplexPools;
 
   /**
    * @param factory worker factory
    * @param config pool configuration; max number of workers per worker mnemonic; the empty string
    *     key specifies the default maximum
+   * @param multiplexConfig pool configuration for multiplex workers; max number of requests that
+   *     run concurrently on the single worker process of a worker mnemonic; the empty string key
+   *     specifies the default maximum
    * @param highPriorityWorkers mnemonics of high priority workers
    */
   public WorkerPool(
-      WorkerFactory factory, Map<String, Integer> config, Iterable<String> highPriorityWorkers) {
+      WorkerFactory factory,
+      Map<String, Integer> config,
+      Map<String, Integer> multiplexConfig,
+      Iterable<String> highPriorityWorkers) {
     highPriorityWorkerMnemonics = ImmutableSet.copyOf(highPriorityWorkers);
     this.config = ImmutableMap.copyOf(config);
+    this.multiplexConfig = ImmutableMap.copyOf(multiplexConfig);
+    pools = createPools(factory, config);
+    multiplexPools = createPools(factory, multiplexConfig);
+  }
+
+  private ImmutableMap<Integer, SimpleWorkerPool> createPools(
+      WorkerFactory factory, Map<String, Integer> config) {
     ImmutableMap.Builder<Integer, SimpleWorkerPool> poolsBuilder = ImmutableMap.builder();
     for (Integer max : new HashSet<>(config.values())) {
       poolsBuilder.put(max, new SimpleWorkerPool(factory, makeConfig(max)));
     }
-    pools = poolsBuilder.build();
+    return poolsBuilder.build();
   }
 
   private WorkerPoolConfig makeConfig(int max) {
@@ -84,11 +99,13 @@ final class WorkerPool {
   }
 
   private SimpleWorkerPool getPool(WorkerKey key) {
+    // Every worker of a multiplex pool is a proxy for a request to the same process.
+    ImmutableMap<String, Integer> config = key.isMultiplex() ? multiplexConfig : this.config;
     Integer max = config.get(key.getMnemonic());
     if (max == null) {
       max = config.get("");
     }
-    return pools.get(max);
+    return (key.isMultiplex() ? multiplexPools : pools).get(max);
   }
 
   /**
@@ -166,5 +183,8 @@ final class WorkerPool {
     for (SimpleWorkerPool pool : pools.values()) {
       pool.close();
     }
+    for (SimpleWorkerPool pool : multiplexPools.values()) {
+      pool.close();
+    }
   }
 }
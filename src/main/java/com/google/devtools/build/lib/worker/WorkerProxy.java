@@ -0,0 +1,90 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link Worker} that does not have a process of its own, but sends its requests to the {@link
+ * WorkerMultiplexer} of its key. The pool holds as many proxies per key as requests may run on the
+ * multiplexer at the same time.
+ */
+final class WorkerProxy extends Worker {
+  private final WorkerKey workerKey;
+  private final Path workDir;
+  private final WorkerMultiplexer multiplexer;
+  private final WorkerMultiplexerManager multiplexerManager;
+  private int requestId;
+
+  WorkerProxy(
+      WorkerKey workerKey,
+      int workerId,
+      Path workDir,
+      WorkerMultiplexer multiplexer,
+      WorkerMultiplexerManager multiplexerManager) {
+    super(workerKey, workerId, workDir, multiplexer.getLogFile());
+    this.workerKey = workerKey;
+    this.workDir = workDir;
+    this.multiplexer = multiplexer;
+    this.multiplexerManager = multiplexerManager;
+  }
+
+  @Override
+  void createProcess() throws IOException {
+    multiplexer.createProcess(workerKey, workDir);
+  }
+
+  @Override
+  void destroy() throws IOException {
+    super.destroy();
+    multiplexerManager.release(workerKey);
+  }
+
+  @Override
+  boolean isAlive() {
+    return multiplexer.isAlive();
+  }
+
+  @Override
+  public void prepareExecution(
+      Map<PathFragment, Path> inputFiles,
+      Set<PathFragment> outputFiles,
+      Set<PathFragment> workerFiles)
+      throws IOException {
+    createProcess();
+  }
+
+  @Override
+  void putRequest(WorkRequest request) throws IOException {
+    requestId = multiplexer.newRequestId();
+    multiplexer.putRequest(request.toBuilder().setRequestId(requestId).build());
+  }
+
+  @Override
+  WorkResponse getResponse() throws IOException, InterruptedException {
+    return multiplexer.getResponse(requestId);
+  }
+
+  @Override
+  String getRecordingStreamMessage() {
+    return multiplexer.getUnparseableOutput();
+  }
+}
@@ -74,6 +74,7 @@ final class WorkerSpawnRunner implements SpawnRunner {
   private final Path execRoot;
   private final WorkerPool workers;
   private final Multimap<String, String> extraFlags;
+  private final boolean multiplex;
   private final EventHandler reporter;
   private final SpawnRunner fallbackRunner;
 
@@ -81,11 +82,13 @@ final class WorkerSpawnRunner implements SpawnRunner {
       Path execRoot,
       WorkerPool workers,
       Multimap<String, String> extraFlags,
+      boolean multiplex,
       EventHandler reporter,
       SpawnRunner fallbackRunner) {
     this.execRoot = execRoot;
     this.workers = Preconditions.checkNotNull(workers);
     this.extraFlags = extraFlags;
+    this.multiplex = multiplex;
     this.reporter = reporter;
     this.fallbackRunner = fallbackRunner;
   }
@@ -146,7 +149,9 @@ final class WorkerSpawnRunner implements SpawnRunner {
             spawn.getMnemonic(),
             workerFilesCombinedHash,
             workerFiles,
-            context.speculating());
+            context.speculating(),
+            // Speculative spawns must be sandboxed, which a shared worker process can't be.
+            multiplex && !context.speculating() && supportsMultiplexWorkers(spawn));
 
     WorkRequest workRequest = createWorkRequest(spawn, context, flagFiles, inputFileCache);
 
@@ -166,6 +171,11 @@ final class WorkerSpawnRunner implements SpawnRunner {
         .build();
   }
 
+  private static boolean supportsMultiplexWorkers(Spawn spawn) {
+    return "1"
+        .equals(spawn.getExecutionInfo().get(ExecutionRequirements.SUPPORTS_MULTIPLEX_WORKERS));
+  }
+
   /**
    * Splits the command-line arguments of the {@code Spawn} into the part that is used to start the
    * persistent worker ({@code workerArgs}) and the part that goes into the {@code WorkRequest}
@@ -294,7 +304,9 @@ final class WorkerSpawnRunner implements SpawnRunner {
       }
 
       try (ResourceHandle handle =
-          ResourceManager.instance().acquireResources(owner, spawn.getLocalResources())) {
+          ResourceManager.instance()
+              .acquireResources(
+                  owner, spawn.getLocalResources(), ResourceManager.getPriority(spawn))) {
         context.report(ProgressStatus.EXECUTING, getName());
         try {
           worker.prepareExecution(inputFiles, outputFiles, key.getWorkerFilesWithHashes().keySet());
@@ -309,8 +321,7 @@ final class WorkerSpawnRunner implements SpawnRunner {
         }
 
         try {
-          request.writeDelimitedTo(worker.getOutputStream());
-          worker.getOutputStream().flush();
+          worker.putRequest(request);
         } catch (IOException e) {
           throw new UserExecException(
               ErrorMessage.builder()
@@ -323,17 +334,14 @@ final class WorkerSpawnRunner implements SpawnRunner {
                   .toString());
         }
 
-        RecordingInputStream recordingStream = new RecordingInputStream(worker.getInputStream());
-        recordingStream.startRecording(4096);
         try {
           // response can be null when the worker has already closed stdout at this point and thus
           // the InputStream is at EOF.
-          response = WorkResponse.parseDelimitedFrom(recordingStream);
+          response = worker.getResponse();
         } catch (IOException e) {
           // If protobuf couldn't parse the response, try to print whatever the failing worker wrote
           // to stdout - it's probably a stack trace or some kind of error message that will help
           // the user figure out why the compiler is failing.
-          recordingStream.readRemaining();
           throw new UserExecException(
               ErrorMessage.builder()
                   .message(
@@ -341,7 +349,7 @@ final class WorkerSpawnRunner implements SpawnRunner {
                           + "Did you try to print something to stdout? Workers aren't allowed to "
                           + "do this, as it breaks the protocol between Bazel and the worker "
                           + "process.")
-                  .logText(recordingStream.getRecordedDataAsString())
+                  .logText(worker.getRecordingStreamMessage())
                   .exception(e)
                   .build()
                   .toString());
@@ -393,7 +393,9 @@ public abstract class AbstractParallelEvaluator {
               new SkyFunctionEnvironment(
                   skyKey, state.getTemporaryDirectDeps(), oldDeps, evaluatorContext);
         } catch (UndonePreviouslyRequestedDep undonePreviouslyRequestedDep) {
-          // If a previously requested dep is no longer done, restart this node from scratch.
+          // If a previously requested dep is no longer done, restart this node from scratch. What
+          // the earlier calls kept in their state may depend on the old value of that dep.
+          evaluatorContext.removeComputeState(skyKey);
           restart(skyKey, state);
           // Top priority since this node has already been evaluating, so get it off our plate.
           evaluatorContext.getVisitor().enqueueEvaluation(skyKey, Integer.MAX_VALUE);
@@ -413,13 +415,32 @@ public abstract class AbstractParallelEvaluator {
                 state);
 
         SkyValue value = null;
+        boolean mayBeResumed = false;
         long startTimeNanos = BlazeClock.instance().nanoTime();
+        long startCpuTimeNanos = SkyFunctionMetrics.currentThreadCpuTimeNanos();
         try {
           try {
             evaluatorContext.getProgressReceiver().stateStarting(skyKey, NodeState.COMPUTE);
             value = factory.compute(skyKey, env);
+            mayBeResumed = value == null;
           } finally {
+            if (!mayBeResumed) {
+              // The node either completed, failed or starts over, so any partial work kept across
+              // restarts is no longer needed.
+              evaluatorContext.removeComputeState(skyKey);
+            }
             long elapsedTimeNanos = BlazeClock.instance().nanoTime() - startTimeNanos;
+            long cpuTimeNanos =
+                startCpuTimeNanos < 0
+                    ? -1
+                    : SkyFunctionMetrics.currentThreadCpuTimeNanos() - startCpuTimeNanos;
+            SkyFunctionMetrics.instance()
+                .recordCompute(
+                    functionName,
+                    elapsedTimeNanos,
+                    cpuTimeNanos,
+                    value instanceof Restart || env.valuesMissing(),
+                    env.getNewlyRequestedDeps().numElements());
             evaluatorContext
                 .getProgressReceiver()
                 .stateEnding(skyKey, NodeState.COMPUTE, elapsedTimeNanos);
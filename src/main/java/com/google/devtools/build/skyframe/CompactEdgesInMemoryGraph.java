@@ -0,0 +1,208 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link InMemoryGraphImpl} whose done nodes store their edges as varint-encoded int ids
+ * instead of {@link SkyKey} references, see {@link CompactEdgesInMemoryNodeEntry}.
+ *
+ * <p>Every node entry is assigned an id when it is created. The graph keeps the key of every id,
+ * and finds the id of a key through the node entry of that key.
+ *
+ * <p>The ids of removed nodes stay valid until {@link #releaseRemovedIds} is called between
+ * evaluations, since the edges that still mention them are only removed as the deletion of the
+ * nodes propagates. Their keys are dropped then, and their ids are handed out again.
+ */
+final class CompactEdgesInMemoryGraph extends InMemoryGraphImpl {
+  /** Returned by {@link #getId} for keys that have no node entry, and thus no id. */
+  static final int NO_ID = -1;
+
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  private final AtomicInteger nextId = new AtomicInteger();
+  /** Keys by id, in chunks of {@link #CHUNK_SIZE}. Grown under the lock of this graph. */
+  private volatile SkyKey[][] keysById = new SkyKey[16][];
+
+  /** Released ids that are handed out before new ones. Replaced whenever ids are released. */
+  private volatile FreeIds freeIds = new FreeIds(new int[0]);
+
+  /** Ids of nodes removed since the last {@link #releaseRemovedIds}. Guarded by this graph. */
+  private int[] removedIds = new int[16];
+  private int numRemovedIds = 0;
+
+  /** Done nodes whose reverse deps were decoded or added since they were last encoded. */
+  private final Queue<CompactEdgesInMemoryNodeEntry> reverseDepsToCompact =
+      new ConcurrentLinkedQueue<>();
+
+  CompactEdgesInMemoryGraph() {
+    super(/*keepEdges=*/ true);
+  }
+
+  @Override
+  protected NodeEntry newNodeEntry(SkyKey key) {
+    return new CompactEdgesInMemoryNodeEntry(this, register(key));
+  }
+
+  @Override
+  protected NodeEntry createIfAbsent(SkyKey key) {
+    NodeEntry existing = nodeMap.get(key);
+    if (existing != null) {
+      return existing;
+    }
+    NodeEntry newEntry = newNodeEntry(key);
+    existing = nodeMap.putIfAbsent(key, newEntry);
+    if (existing == null) {
+      return newEntry;
+    }
+    // Another thread created an entry for the same key concurrently. Nothing refers to the id of
+    // the losing entry.
+    addRemovedId(((CompactEdgesInMemoryNodeEntry) newEntry).getId());
+    return existing;
+  }
+
+  @Override
+  public void remove(SkyKey skyKey) {
+    NodeEntry entry = nodeMap.remove(skyKey);
+    if (entry instanceof CompactEdgesInMemoryNodeEntry) {
+      addRemovedId(((CompactEdgesInMemoryNodeEntry) entry).getId());
+    }
+  }
+
+  /**
+   * Returns the id of {@code key}, or {@link #NO_ID} if it has no node entry. The latter happens
+   * when an edge to a node that was just deleted is encoded, in which case the edges are kept as
+   * keys.
+   */
+  int getId(SkyKey key) {
+    NodeEntry entry = nodeMap.get(key);
+    return entry instanceof CompactEdgesInMemoryNodeEntry
+        ? ((CompactEdgesInMemoryNodeEntry) entry).getId()
+        : NO_ID;
+  }
+
+  /** Returns the key with the given id, which was returned by {@link #getId} or on creation. */
+  SkyKey getKey(int id) {
+    return keysById[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)];
+  }
+
+  /** Returns the number of distinct ids handed out so far, which bounds the key table size. */
+  int getNumIds() {
+    return nextId.get();
+  }
+
+  void queueForCompaction(CompactEdgesInMemoryNodeEntry entry) {
+    reverseDepsToCompact.add(entry);
+  }
+
+  /**
+   * Encodes the reverse deps of the nodes queued by {@link #queueForCompaction}. Meant to be called
+   * between evaluations, when the reverse deps of done nodes are not about to change again.
+   */
+  void compactQueuedReverseDeps() {
+    CompactEdgesInMemoryNodeEntry entry;
+    while ((entry = reverseDepsToCompact.poll()) != null) {
+      entry.compactReverseDeps();
+    }
+  }
+
+  /**
+   * Drops the keys of the nodes removed since the last call and makes their ids available again.
+   * Must be called between evaluations, once the deletion of the removed nodes has propagated to
+   * all edges mentioning them. Nodes may still be created concurrently, for example by a query of
+   * the graph, and either take an id of the previous free ids or a new one.
+   */
+  synchronized void releaseRemovedIds() {
+    if (numRemovedIds == 0) {
+      return;
+    }
+    SkyKey[][] chunks = keysById;
+    for (int i = 0; i < numRemovedIds; i++) {
+      int id = removedIds[i];
+      chunks[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)] = null;
+    }
+    // Exhaust the previous free ids first, so that the ids not taken yet are only handed out again
+    // from the new ones.
+    int[] oldIds = freeIds.ids;
+    int firstUnused = Math.min(freeIds.next.getAndSet(oldIds.length), oldIds.length);
+    int numUnused = oldIds.length - firstUnused;
+    int[] newIds = new int[numUnused + numRemovedIds];
+    System.arraycopy(oldIds, firstUnused, newIds, 0, numUnused);
+    System.arraycopy(removedIds, 0, newIds, numUnused, numRemovedIds);
+    removedIds = new int[16];
+    numRemovedIds = 0;
+    freeIds = new FreeIds(newIds);
+  }
+
+  private synchronized void addRemovedId(int id) {
+    if (numRemovedIds == removedIds.length) {
+      removedIds = Arrays.copyOf(removedIds, removedIds.length * 2);
+    }
+    removedIds[numRemovedIds++] = id;
+  }
+
+  private int register(SkyKey key) {
+    int id = takeFreeId();
+    if (id == NO_ID) {
+      id = nextId.getAndIncrement();
+      Preconditions.checkState(id >= 0, "Ran out of node ids: %s", key);
+    }
+    int chunk = id >>> CHUNK_BITS;
+    SkyKey[][] chunks = keysById;
+    if (chunk >= chunks.length || chunks[chunk] == null) {
+      chunks = growTo(chunk);
+    }
+    // Publication to readers is through the entry or edges that carry the id, which are
+    // published safely.
+    chunks[chunk][id & (CHUNK_SIZE - 1)] = key;
+    return id;
+  }
+
+  private int takeFreeId() {
+    FreeIds free = freeIds;
+    if (free.next.get() >= free.ids.length) {
+      return NO_ID;
+    }
+    int index = free.next.getAndIncrement();
+    return index < free.ids.length ? free.ids[index] : NO_ID;
+  }
+
+  private synchronized SkyKey[][] growTo(int chunk) {
+    SkyKey[][] chunks = keysById;
+    if (chunk >= chunks.length) {
+      chunks = Arrays.copyOf(chunks, Math.max(chunk + 1, chunks.length * 2));
+    }
+    if (chunks[chunk] == null) {
+      chunks[chunk] = new SkyKey[CHUNK_SIZE];
+    }
+    keysById = chunks;
+    return chunks;
+  }
+
+  /** Free ids together with the index of the next one to hand out. */
+  private static final class FreeIds {
+    private final int[] ids;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private FreeIds(int[] ids) {
+      this.ids = ids;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * {@link InMemoryNodeEntry} that stores the edges of a done node as ids of a {@link
+ * CompactEdgesInMemoryGraph}, varint-encoded as differences to the previous id in a {@code byte[]}.
+ *
+ * <p>Nodes tend to be created shortly after the nodes that request them, so the ids of a node's
+ * neighbors are usually close to its own and most edges take one or two bytes instead of a
+ * reference plus a share of the list and group objects holding it.
+ *
+ * <p>Edges are only encoded once the node is done and there are at least two of them. Reverse deps
+ * are decoded back into a list the first time they are accessed after that, since they may then be
+ * changed in place by {@link ReverseDepsUtility}. Most reverse deps of a node are added after it is
+ * done, so a done node whose reverse deps are accessed is queued with the graph, which encodes them
+ * again once evaluation is over, see {@link CompactEdgesInMemoryGraph#compactQueuedReverseDeps}.
+ */
+final class CompactEdgesInMemoryNodeEntry extends InMemoryNodeEntry {
+  private final CompactEdgesInMemoryGraph graph;
+  private final int id;
+  /** Whether this node is in the graph's queue of nodes whose reverse deps may be compacted. */
+  private boolean queuedForCompaction = false;
+
+  CompactEdgesInMemoryNodeEntry(CompactEdgesInMemoryGraph graph, int id) {
+    this.graph = graph;
+    this.id = id;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  @Override
+  protected void postProcessAfterDone() {
+    GroupedList<SkyKey> deps = super.getDirectDepsForDoneEntry();
+    if (deps.numElements() > 1) {
+      byte[] encoded = encodeDirectDeps(deps);
+      if (encoded != null) {
+        directDeps = encoded;
+      }
+    }
+    maybeEncodeReverseDeps();
+  }
+
+  /** Encodes the reverse deps of this node if it is done. Called by the graph after evaluation. */
+  synchronized void compactReverseDeps() {
+    queuedForCompaction = false;
+    if (isDone()) {
+      maybeEncodeReverseDeps();
+    }
+  }
+
+  private void maybeEncodeReverseDeps() {
+    if (getReverseDepsDataToConsolidateForReverseDepsUtil() == null
+        && reverseDeps instanceof List
+        && ((List<?>) reverseDeps).size() > 1) {
+      @SuppressWarnings("unchecked")
+      List<SkyKey> reverseDepsList = (List<SkyKey>) reverseDeps;
+      byte[] encoded = encodeReverseDeps(reverseDepsList);
+      if (encoded != null) {
+        reverseDeps = encoded;
+      }
+    }
+  }
+
+  @Override
+  protected GroupedList<SkyKey> getDirectDepsForDoneEntry() {
+    return directDeps instanceof byte[]
+        ? decodeDirectDeps((byte[]) directDeps)
+        : super.getDirectDepsForDoneEntry();
+  }
+
+  @Override
+  protected int getNumDirectDepsForDoneEntry() {
+    if (!(directDeps instanceof byte[])) {
+      return super.getNumDirectDepsForDoneEntry();
+    }
+    Decoder decoder = new Decoder((byte[]) directDeps);
+    int numElements = 0;
+    int numGroups = decoder.readVarInt();
+    for (int i = 0; i < numGroups; i++) {
+      int groupSize = decoder.readVarInt();
+      for (int j = 0; j < groupSize; j++) {
+        decoder.readVarInt();
+      }
+      numElements += groupSize;
+    }
+    return numElements;
+  }
+
+  @Override
+  synchronized Object getReverseDepsRawForReverseDepsUtil() {
+    if (reverseDeps instanceof byte[]) {
+      reverseDeps = decodeReverseDeps((byte[]) reverseDeps);
+    }
+    maybeQueueForCompaction();
+    return reverseDeps;
+  }
+
+  @Override
+  synchronized void setReverseDepsForReverseDepsUtil(List<SkyKey> reverseDeps) {
+    super.setReverseDepsForReverseDepsUtil(reverseDeps);
+    maybeQueueForCompaction();
+  }
+
+  private void maybeQueueForCompaction() {
+    if (!queuedForCompaction && isDone()) {
+      queuedForCompaction = true;
+      graph.queueForCompaction(this);
+    }
+  }
+
+  @Override
+  public synchronized InMemoryNodeEntry cloneNodeEntry() {
+    InMemoryNodeEntry newEntry = cloneNodeEntry(new InMemoryNodeEntry());
+    newEntry.directDeps = getDirectDepsForDoneEntry().compress();
+    return newEntry;
+  }
+
+  /** Returns the encoded deps, or null if one of them has no id. */
+  @Nullable
+  private byte[] encodeDirectDeps(GroupedList<SkyKey> deps) {
+    Encoder encoder = new Encoder(deps.listSize() + deps.numElements());
+    encoder.writeVarInt(deps.listSize());
+    for (Collection<SkyKey> group : deps) {
+      encoder.writeVarInt(group.size());
+      for (SkyKey dep : group) {
+        if (!encoder.writeId(graph.getId(dep))) {
+          return null;
+        }
+      }
+    }
+    return encoder.toByteArray();
+  }
+
+  private GroupedList<SkyKey> decodeDirectDeps(byte[] bytes) {
+    Decoder decoder = new Decoder(bytes);
+    GroupedList<SkyKey> deps = new GroupedList<>();
+    int numGroups = decoder.readVarInt();
+    for (int i = 0; i < numGroups; i++) {
+      int groupSize = decoder.readVarInt();
+      if (groupSize == 1) {
+        deps.appendGroup(ImmutableList.of(graph.getKey(decoder.readId())));
+        continue;
+      }
+      ImmutableList.Builder<SkyKey> group = ImmutableList.builderWithExpectedSize(groupSize);
+      for (int j = 0; j < groupSize; j++) {
+        group.add(graph.getKey(decoder.readId()));
+      }
+      deps.appendGroup(group.build());
+    }
+    return deps;
+  }
+
+  /** Returns the encoded reverse deps, or null if one of them has no id. */
+  @Nullable
+  private byte[] encodeReverseDeps(List<SkyKey> reverseDeps) {
+    Encoder encoder = new Encoder(reverseDeps.size() + 1);
+    encoder.writeVarInt(reverseDeps.size());
+    for (SkyKey reverseDep : reverseDeps) {
+      if (!encoder.writeId(graph.getId(reverseDep))) {
+        return null;
+      }
+    }
+    return encoder.toByteArray();
+  }
+
+  private List<SkyKey> decodeReverseDeps(byte[] bytes) {
+    Decoder decoder = new Decoder(bytes);
+    int size = decoder.readVarInt();
+    List<SkyKey> reverseDeps = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      reverseDeps.add(graph.getKey(decoder.readId()));
+    }
+    return reverseDeps;
+  }
+
+  /** Writes ids as zig-zag varints of the difference to the previous id, starting at the node's. */
+  private final class Encoder {
+    private byte[] bytes;
+    private int length = 0;
+    private int previousId = id;
+
+    Encoder(int expectedValues) {
+      bytes = new byte[expectedValues * 2];
+    }
+
+    /** Writes the id and returns true, unless it is {@link CompactEdgesInMemoryGraph#NO_ID}. */
+    boolean writeId(int nextId) {
+      if (nextId == CompactEdgesInMemoryGraph.NO_ID) {
+        return false;
+      }
+      int delta = nextId - previousId;
+      previousId = nextId;
+      writeVarInt((delta << 1) ^ (delta >> 31));
+      return true;
+    }
+
+    void writeVarInt(int value) {
+      if (length + 5 > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+      }
+      while ((value & ~0x7F) != 0) {
+        bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, length);
+    }
+  }
+
+  private final class Decoder {
+    private final byte[] bytes;
+    private int position = 0;
+    private int previousId = id;
+
+    Decoder(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    int readId() {
+      int zigZag = readVarInt();
+      previousId += (zigZag >>> 1) ^ -(zigZag & 1);
+      return previousId;
+    }
+
+    int readVarInt() {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = bytes[position++];
+        value |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+    }
+  }
+}
@@ -45,6 +45,7 @@ public class DirtyTrackingProgressReceiver implements EvaluationProgressReceiver
     if (progressReceiver != null) {
       progressReceiver.invalidated(skyKey, state);
     }
+    SkyFunctionMetrics.instance().recordInvalidated(skyKey.functionName(), state);
 
     switch (state) {
       case DELETED:
@@ -114,6 +115,7 @@ public class DirtyTrackingProgressReceiver implements EvaluationProgressReceiver
     if (progressReceiver != null) {
       progressReceiver.evaluated(skyKey, value, evaluationSuccessState, state);
     }
+    SkyFunctionMetrics.instance().recordEvaluated(skyKey.functionName(), state);
 
     // This key was either built or marked clean, so we can remove it from both the dirty and
     // inflight nodes.
@@ -0,0 +1,276 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Writes the done nodes of an {@link InMemoryGraph}, together with their direct deps, to a stream
+ * and restores them into an empty graph, so that a new server can start from the graph of its
+ * predecessor instead of from scratch.
+ *
+ * <p>Only nodes whose key and value can be encoded by the given {@link NodeCodec}, which have no
+ * error and no stored events, and all of whose transitive deps qualify as well, are written. The
+ * restored nodes are done at a version older than any version of the new server, so that the
+ * usual invalidation of the first evaluation (e.g. of changed files) re-evaluates exactly the
+ * nodes affected by changes made while no server was running.
+ */
+public final class InMemoryGraphSnapshot {
+  private static final int MAGIC = 0x536b7947; // "SkyG"
+  private static final int FORMAT_VERSION = 1;
+
+  /** Version of all restored nodes, lower than the first version a fresh evaluator evaluates at. */
+  static final Version RESTORED_VERSION = IntVersion.of(-1);
+
+  /** Encodes and decodes the keys and values stored in a snapshot. */
+  public interface NodeCodec {
+    /** Returns the encoded key, or null if it cannot be encoded. */
+    @Nullable
+    byte[] encodeKey(SkyKey key);
+
+    /** Returns the encoded value, or null if it cannot be encoded. */
+    @Nullable
+    byte[] encodeValue(SkyValue value);
+
+    SkyKey decodeKey(byte[] bytes) throws IOException;
+
+    SkyValue decodeValue(byte[] bytes) throws IOException;
+  }
+
+  private InMemoryGraphSnapshot() {}
+
+  /**
+   * Writes all qualifying done nodes of {@code graph} to {@code out}. Nodes are written after
+   * their deps, so that they can be restored in a single pass.
+   *
+   * @return the number of nodes written
+   */
+  public static int write(InMemoryGraph graph, NodeCodec codec, OutputStream out)
+      throws IOException, InterruptedException {
+    Map<SkyKey, ? extends NodeEntry> nodes = graph.getAllValues();
+    // Encoded keys of qualifying nodes, by key. Null values mark nodes known not to qualify.
+    Map<SkyKey, byte[]> encodedKeys = new HashMap<>();
+    Map<SkyKey, byte[]> encodedValues = new HashMap<>();
+    List<SkyKey> order = new ArrayList<>();
+    for (SkyKey root : nodes.keySet()) {
+      visitPostOrder(root, nodes, codec, encodedKeys, encodedValues, order);
+    }
+
+    Map<SkyKey, Integer> ids = new HashMap<>();
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(FORMAT_VERSION);
+    data.writeInt(order.size());
+    for (SkyKey key : order) {
+      ids.put(key, ids.size());
+      writeBytes(data, encodedKeys.get(key));
+      writeBytes(data, encodedValues.get(key));
+      GroupedList<SkyKey> deps = ((InMemoryNodeEntry) nodes.get(key)).getGroupedDirectDeps();
+      data.writeInt(deps.listSize());
+      for (Collection<SkyKey> group : deps) {
+        data.writeInt(group.size());
+        for (SkyKey dep : group) {
+          data.writeInt(ids.get(dep));
+        }
+      }
+    }
+    data.flush();
+    return order.size();
+  }
+
+  /**
+   * Restores the nodes written by {@link #write} into {@code graph}, which must not contain any of
+   * them yet.
+   *
+   * @return the number of nodes restored
+   */
+  public static int restore(InMemoryGraph graph, NodeCodec codec, InputStream in)
+      throws IOException, InterruptedException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+      throw new IOException("Not a Skyframe graph snapshot");
+    }
+    int count = data.readInt();
+    List<SkyKey> keys = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      SkyKey key = codec.decodeKey(readBytes(data));
+      SkyValue value = codec.decodeValue(readBytes(data));
+      List<List<SkyKey>> groups = new ArrayList<>();
+      int numGroups = data.readInt();
+      for (int g = 0; g < numGroups; g++) {
+        int groupSize = data.readInt();
+        List<SkyKey> group = new ArrayList<>(groupSize);
+        for (int d = 0; d < groupSize; d++) {
+          int depId = data.readInt();
+          if (depId < 0 || depId >= keys.size()) {
+            throw new IOException("Dep of " + key + " is not restored before it: " + depId);
+          }
+          group.add(keys.get(depId));
+        }
+        groups.add(group);
+      }
+      restoreNode(graph, key, value, groups);
+      keys.add(key);
+    }
+    return count;
+  }
+
+  /** Creates a done node for {@code key}, going through the usual node entry state transitions. */
+  private static void restoreNode(
+      InMemoryGraph graph, SkyKey key, SkyValue value, List<List<SkyKey>> groups)
+      throws IOException, InterruptedException {
+    NodeEntry entry =
+        graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+    if (entry.addReverseDepAndCheckIfDone(null) != NodeEntry.DependencyState.NEEDS_SCHEDULING) {
+      throw new IOException("Restored node already exists in the graph: " + key);
+    }
+    for (List<SkyKey> group : groups) {
+      entry.getTemporaryDirectDeps().appendGroup(group);
+    }
+    for (List<SkyKey> group : groups) {
+      for (SkyKey dep : group) {
+        NodeEntry depEntry = graph.get(key, Reason.OTHER, dep);
+        Preconditions.checkState(
+            depEntry.addReverseDepAndCheckIfDone(key) == NodeEntry.DependencyState.DONE,
+            "%s %s",
+            dep,
+            depEntry);
+        entry.signalDep(RESTORED_VERSION);
+      }
+    }
+    entry.setValue(value, RESTORED_VERSION);
+  }
+
+  /**
+   * Appends {@code root} and all its deps that qualify for the snapshot to {@code order}, deps
+   * first. Uses an explicit stack since dep chains can be very deep.
+   */
+  private static void visitPostOrder(
+      SkyKey root,
+      Map<SkyKey, ? extends NodeEntry> nodes,
+      NodeCodec codec,
+      Map<SkyKey, byte[]> encodedKeys,
+      Map<SkyKey, byte[]> encodedValues,
+      List<SkyKey> order)
+      throws InterruptedException {
+    if (encodedKeys.containsKey(root)) {
+      return;
+    }
+    Deque<SkyKey> stack = new ArrayDeque<>();
+    Deque<Iterator<SkyKey>> depIterators = new ArrayDeque<>();
+    if (!enter(root, nodes, codec, encodedKeys, encodedValues, stack, depIterators)) {
+      return;
+    }
+    while (!stack.isEmpty()) {
+      SkyKey key = stack.peek();
+      Iterator<SkyKey> deps = depIterators.peek();
+      boolean descended = false;
+      // The encoded key is cleared once a dep of this node turns out not to qualify.
+      boolean qualifies = encodedKeys.get(key) != null;
+      while (qualifies && deps.hasNext()) {
+        SkyKey dep = deps.next();
+        if (!encodedKeys.containsKey(dep)) {
+          if (enter(dep, nodes, codec, encodedKeys, encodedValues, stack, depIterators)) {
+            descended = true;
+            break;
+          }
+        }
+        // Cycles cannot occur among done nodes, so a dep on the stack is never seen here.
+        qualifies = encodedKeys.get(dep) != null;
+      }
+      if (descended) {
+        continue;
+      }
+      stack.pop();
+      depIterators.pop();
+      if (qualifies) {
+        order.add(key);
+      } else {
+        encodedKeys.put(key, null);
+        encodedValues.remove(key);
+        // The dep that was descended into last does not qualify, so neither does its parent.
+        if (!stack.isEmpty()) {
+          encodedKeys.put(stack.peek(), null);
+        }
+      }
+    }
+  }
+
+  /**
+   * Encodes {@code key} and pushes it on the stack if it may qualify. Otherwise, records that it
+   * does not qualify and returns false.
+   */
+  private static boolean enter(
+      SkyKey key,
+      Map<SkyKey, ? extends NodeEntry> nodes,
+      NodeCodec codec,
+      Map<SkyKey, byte[]> encodedKeys,
+      Map<SkyKey, byte[]> encodedValues,
+      Deque<SkyKey> stack,
+      Deque<Iterator<SkyKey>> depIterators)
+      throws InterruptedException {
+    NodeEntry entry = nodes.get(key);
+    byte[] encodedKey = null;
+    byte[] encodedValue = null;
+    if (entry != null && entry.isDone() && entry.getErrorInfo() == null) {
+      SkyValue value = entry.getValueMaybeWithMetadata();
+      // Values with stored events or postables would lose them, so they are not written.
+      if (!(value instanceof ValueWithMetadata)) {
+        encodedKey = codec.encodeKey(key);
+        encodedValue = encodedKey == null ? null : codec.encodeValue(value);
+      }
+    }
+    if (encodedValue == null) {
+      encodedKeys.put(key, null);
+      return false;
+    }
+    encodedKeys.put(key, encodedKey);
+    encodedValues.put(key, encodedValue);
+    stack.push(key);
+    depIterators.push(entry.getDirectDeps().iterator());
+    return true;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Negative length in Skyframe graph snapshot: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
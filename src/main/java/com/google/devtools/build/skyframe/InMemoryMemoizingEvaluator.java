@@ -31,6 +31,9 @@ import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DeletingInvali
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.InvalidationState;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -71,6 +74,8 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
   // Keep edges in graph. Can be false to save memory, in which case incremental builds are
   // not possible.
   private final boolean keepEdges;
+  // Whether the graph stores the edges of done nodes as compact ids.
+  private final boolean compactEdges;
 
   // Values that the caller explicitly specified are assumed to be changed -- they will be
   // re-evaluated even if none of their children are changed.
@@ -107,14 +112,43 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       EventFilter eventFilter,
       EmittedEventState emittedEventState,
       boolean keepEdges) {
+    this(
+        skyFunctions,
+        differencer,
+        progressReceiver,
+        graphInconsistencyReceiver,
+        eventFilter,
+        emittedEventState,
+        keepEdges,
+        /*compactEdges=*/ false);
+  }
+
+  /**
+   * Creates an evaluator whose graph stores the edges of done nodes as compact int ids if {@code
+   * compactEdges} and {@code keepEdges} are set, see {@link CompactEdgesInMemoryNodeEntry}.
+   */
+  public InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      GraphInconsistencyReceiver graphInconsistencyReceiver,
+      EventFilter eventFilter,
+      EmittedEventState emittedEventState,
+      boolean keepEdges,
+      boolean compactEdges) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = new DirtyTrackingProgressReceiver(progressReceiver);
     this.graphInconsistencyReceiver = Preconditions.checkNotNull(graphInconsistencyReceiver);
     this.eventFilter = eventFilter;
-    this.graph = new InMemoryGraphImpl(keepEdges);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
+    this.compactEdges = compactEdges && keepEdges;
+    this.graph = newGraph();
+  }
+
+  private InMemoryGraph newGraph() {
+    return compactEdges ? new CompactEdgesInMemoryGraph() : new InMemoryGraphImpl(keepEdges);
   }
 
   private void invalidate(Iterable<SkyKey> diff) {
@@ -222,6 +256,10 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
                 EvaluationVersionBehavior.MAX_CHILD_VERSIONS);
         result = evaluator.eval(roots);
       }
+      if (graph instanceof CompactEdgesInMemoryGraph) {
+        ((CompactEdgesInMemoryGraph) graph).compactQueuedReverseDeps();
+        ((CompactEdgesInMemoryGraph) graph).releaseRemovedIds();
+      }
       return EvaluationResult.<T>builder()
           .mergeFrom(result)
           .setWalkableGraph(new DelegatingWalkableGraph(graph))
@@ -357,6 +395,45 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     return graph;
   }
 
+  /**
+   * Writes the done nodes of the graph to {@code out}, so that a later evaluator can start from
+   * them with {@link #restoreSnapshot}. See {@link InMemoryGraphSnapshot}.
+   *
+   * @return the number of nodes written
+   */
+  public int writeSnapshot(InMemoryGraphSnapshot.NodeCodec codec, OutputStream out)
+      throws IOException, InterruptedException {
+    Preconditions.checkState(keepEdges, "Snapshots require edges to be kept");
+    Preconditions.checkState(!evaluating.get(), "Cannot write snapshot during evaluation");
+    return InMemoryGraphSnapshot.write(graph, codec, out);
+  }
+
+  /** Returns whether {@link #restoreSnapshot} may be called. */
+  public boolean canRestoreSnapshot() {
+    return keepEdges && lastGraphVersion == null && graph.getAllValues().isEmpty();
+  }
+
+  /**
+   * Restores the nodes written by {@link #writeSnapshot}. May only be called before the first
+   * evaluation. Changes made since the snapshot was written must be reported through the {@link
+   * Differencer} of the first evaluation, just as if the nodes had been evaluated by this
+   * evaluator.
+   *
+   * @return the number of nodes restored
+   */
+  public int restoreSnapshot(InMemoryGraphSnapshot.NodeCodec codec, InputStream in)
+      throws IOException, InterruptedException {
+    Preconditions.checkState(
+        canRestoreSnapshot(), "Cannot restore snapshot into this graph: %s", lastGraphVersion);
+    try {
+      return InMemoryGraphSnapshot.restore(graph, codec, in);
+    } catch (IOException | RuntimeException e) {
+      // Don't leave a partially restored graph behind.
+      graph = newGraph();
+      throw e;
+    }
+  }
+
   @Override
   public void dump(boolean summarize, PrintStream out) {
     if (summarize) {
@@ -429,4 +506,23 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       };
 
   public static final EvaluatorSupplier SUPPLIER = InMemoryMemoizingEvaluator::new;
+
+  /** Supplies evaluators whose graphs store edges compactly when they keep edges. */
+  public static final EvaluatorSupplier COMPACT_EDGES_SUPPLIER =
+      (skyFunctions,
+          differencer,
+          progressReceiver,
+          graphInconsistencyReceiver,
+          eventFilter,
+          emittedEventState,
+          keepEdges) ->
+          new InMemoryMemoizingEvaluator(
+              skyFunctions,
+              differencer,
+              progressReceiver,
+              graphInconsistencyReceiver,
+              eventFilter,
+              emittedEventState,
+              keepEdges,
+              /*compactEdges=*/ true);
 }
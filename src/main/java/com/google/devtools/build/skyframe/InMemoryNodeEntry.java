@@ -229,11 +229,24 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized GroupedList<SkyKey> getGroupedDirectDeps() {
     assertKeepDeps();
     Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
-    return GroupedList.create(directDeps);
+    return getDirectDepsForDoneEntry();
   }
 
   public int getNumDirectDeps() {
     Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
+    return getNumDirectDepsForDoneEntry();
+  }
+
+  /**
+   * Returns the direct deps of this done node from {@link #directDeps}. Subclasses that change the
+   * representation of {@link #directDeps} in {@link #postProcessAfterDone} must override this and
+   * {@link #getNumDirectDepsForDoneEntry}.
+   */
+  protected GroupedList<SkyKey> getDirectDepsForDoneEntry() {
+    return GroupedList.create(directDeps);
+  }
+
+  protected int getNumDirectDepsForDoneEntry() {
     return GroupedList.numElements(directDeps);
   }
 
@@ -480,7 +493,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     assertKeepDeps();
     if (isDone()) {
       dirtyBuildingState =
-          DirtyBuildingState.create(isChanged, GroupedList.<SkyKey>create(directDeps), value);
+          DirtyBuildingState.create(isChanged, getDirectDepsForDoneEntry(), value);
       value = null;
       directDeps = null;
       return new FromCleanMarkedDirtyResult(ReverseDepsUtility.getReverseDeps(this));
@@ -649,7 +662,7 @@ public class InMemoryNodeEntry implements NodeEntry {
         .add("value", value)
         .add("lastChangedVersion", lastChangedVersion)
         .add("lastEvaluatedVersion", lastEvaluatedVersion)
-        .add("directDeps", isDone() ? GroupedList.create(directDeps) : directDeps)
+        .add("directDeps", isDone() ? getDirectDepsForDoneEntry() : directDeps)
         .add("signaledDeps", signaledDeps)
         .add("reverseDeps", ReverseDepsUtility.toString(this))
         .add("dirtyBuildingState", dirtyBuildingState)
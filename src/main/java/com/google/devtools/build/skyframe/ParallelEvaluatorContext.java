@@ -23,13 +23,16 @@ import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.Postable;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import com.google.devtools.build.skyframe.SkyFunction.Environment.SkyKeyComputeState;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nullable;
 
 /**
  * Context object holding sufficient information for {@link SkyFunctionEnvironment} to perform its
  * duties. Shared among all {@link SkyFunctionEnvironment} instances, which should regard this
- * object as a read-only collection of data.
+ * object as a read-only collection of data, except for the {@link SkyKeyComputeState}s of the
+ * nodes being evaluated.
  *
  * <p>Also used during cycle detection.
  */
@@ -61,6 +64,14 @@ class ParallelEvaluatorContext {
    */
   private final Supplier<NodeEntryVisitor> visitorSupplier;
 
+  /**
+   * The states that {@link SkyFunction}s keep across restarts, keyed by the node being evaluated.
+   * Entries are removed as soon as their node stops needing them, and the whole table goes away
+   * with the evaluation.
+   */
+  private final ConcurrentHashMap<SkyKey, SkyKeyComputeState> computeStates =
+      new ConcurrentHashMap<>();
+
   /**
    * Returns a {@link Runnable} given a {@code key} to evaluate and an {@code evaluationPriority}
    * indicating whether it should be scheduled for evaluation soon (higher is better). The returned
@@ -147,6 +158,20 @@ class ParallelEvaluatorContext {
     }
   }
 
+  @Nullable
+  SkyKeyComputeState getComputeState(SkyKey key) {
+    return computeStates.get(key);
+  }
+
+  void putComputeState(SkyKey key, SkyKeyComputeState state) {
+    computeStates.put(key, state);
+  }
+
+  /** Drops the {@link SkyKeyComputeState} of {@code key}, if any. */
+  void removeComputeState(SkyKey key) {
+    computeStates.remove(key);
+  }
+
   QueryableGraph getGraph() {
     return graph;
   }
@@ -19,6 +19,7 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.util.GroupedList;
 import java.util.Map;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /**
@@ -333,5 +334,35 @@ public interface SkyFunction {
     /** Returns whether we are currently in error bubbling. */
     @VisibleForTesting
     boolean inErrorBubblingForTesting();
+
+    /**
+     * Returns the state that the {@link SkyFunction#compute} calls for the key being evaluated
+     * keep across restarts, creating it with {@code stateSupplier} if there is none.
+     *
+     * <p>A {@link SkyFunction} that does a lot of work before finding that some deps are missing
+     * can store the results of that work in the state and pick them up in the next call instead of
+     * redoing it. The state is only kept while the key is being evaluated: it is dropped once the
+     * call returns a value, throws, or returns a {@link Restart}, and whenever the evaluator
+     * decides to start the node over. Because it may be dropped at any point, a function must
+     * produce the same result whether or not it finds its state from an earlier call.
+     *
+     * <p>Whatever the earlier calls learned from deps it requested is still valid, because those
+     * deps are registered and their values do not change while the key is being evaluated. So
+     * deps whose values only fed into the stored state do not have to be requested again.
+     *
+     * <p>The default implementation keeps no state, so every call gets a new one.
+     */
+    default <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+      return stateSupplier.get();
+    }
+
+    /**
+     * Partial work of a {@link SkyFunction#compute} call, kept across restarts. See {@link
+     * #getState}.
+     *
+     * <p>Implementations are only accessed by the calls for a single key, which never run
+     * concurrently, so they need not be thread-safe.
+     */
+    interface SkyKeyComputeState {}
   }
 }
@@ -45,6 +45,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /** A {@link SkyFunction.Environment} implementation for {@link ParallelEvaluator}. */
@@ -150,6 +151,9 @@ class SkyFunctionEnvironment extends AbstractSkyFunctionEnvironment {
       };
   private final ParallelEvaluatorContext evaluatorContext;
 
+  /** Whether {@link #getState} found the state left by an earlier call. */
+  private boolean resumedFromComputeState = false;
+
   SkyFunctionEnvironment(
       SkyKey skyKey,
       GroupedList<SkyKey> directDeps,
@@ -815,6 +819,27 @@ class SkyFunctionEnvironment extends AbstractSkyFunctionEnvironment {
     return bubbleErrorInfo != null;
   }
 
+  @Override
+  public <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+    if (bubbleErrorInfo != null) {
+      // The node is not going to be restarted after error bubbling, and the errors it sees may
+      // differ from what it saw before.
+      return stateSupplier.get();
+    }
+    @SuppressWarnings("unchecked")
+    T state = (T) evaluatorContext.getComputeState(skyKey);
+    if (state != null) {
+      if (!resumedFromComputeState) {
+        resumedFromComputeState = true;
+        SkyFunctionMetrics.instance().recordResumed(skyKey.functionName());
+      }
+      return state;
+    }
+    state = stateSupplier.get();
+    evaluatorContext.putComputeState(skyKey, state);
+    return state;
+  }
+
   @Override
   public void registerDependencies(Iterable<SkyKey> keys) throws InterruptedException {
     if (EvaluationVersionBehavior.MAX_CHILD_VERSIONS.equals(
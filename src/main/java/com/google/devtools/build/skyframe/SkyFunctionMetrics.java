@@ -0,0 +1,309 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.skyframe.EvaluationProgressReceiver.EvaluationState;
+import com.google.devtools.build.skyframe.EvaluationProgressReceiver.InvalidationState;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts, per {@link SkyFunctionName}, how often nodes were evaluated, restarted, resumed from
+ * the state kept across restarts, invalidated and re-validated, and how much time their {@link
+ * SkyFunction#compute} calls took.
+ *
+ * <p>The counters are recorded by the evaluator for the lifetime of the server and are cheap
+ * enough to be always on: they are striped ({@link LongAdder}) and updating them never locks. To
+ * get the numbers of a single evaluation, take a {@link #snapshot} before and after it and use
+ * {@link #difference}.
+ */
+@ThreadSafe
+public final class SkyFunctionMetrics {
+  private static final SkyFunctionMetrics instance = new SkyFunctionMetrics();
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+  private static final boolean cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+
+  private final ConcurrentHashMap<SkyFunctionName, Counters> counters = new ConcurrentHashMap<>();
+
+  @VisibleForTesting
+  SkyFunctionMetrics() {}
+
+  /** Returns the metrics recorded by all evaluators of this server. */
+  public static SkyFunctionMetrics instance() {
+    return instance;
+  }
+
+  /**
+   * Returns the CPU time of the current thread in nanoseconds, or -1 if the JVM cannot measure it.
+   */
+  static long currentThreadCpuTimeNanos() {
+    return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : -1;
+  }
+
+  private Counters countersFor(SkyFunctionName functionName) {
+    Counters result = counters.get(functionName);
+    if (result == null) {
+      result = counters.computeIfAbsent(functionName, k -> new Counters());
+    }
+    return result;
+  }
+
+  /**
+   * Records a {@link SkyFunction#compute} call.
+   *
+   * @param wallTimeNanos the elapsed time of the call
+   * @param cpuTimeNanos the CPU time the calling thread spent in the call, or a negative number if
+   *     it was not measured
+   * @param restarted whether the call returned without a value because some deps were missing, so
+   *     that the node has to be computed again
+   * @param depsRequested the number of deps that the call requested and that had not been
+   *     requested by earlier calls for the same node, counting duplicates
+   */
+  void recordCompute(
+      SkyFunctionName functionName,
+      long wallTimeNanos,
+      long cpuTimeNanos,
+      boolean restarted,
+      int depsRequested) {
+    Counters c = countersFor(functionName);
+    c.evaluations.increment();
+    if (restarted) {
+      c.restarts.increment();
+    }
+    c.wallTimeNanos.add(wallTimeNanos);
+    if (cpuTimeNanos > 0) {
+      c.cpuTimeNanos.add(cpuTimeNanos);
+    }
+    c.depsRequested.add(depsRequested);
+  }
+
+  /**
+   * Records a {@link SkyFunction#compute} call that picked up the {@link
+   * SkyFunction.Environment.SkyKeyComputeState} of an earlier call instead of starting over.
+   */
+  void recordResumed(SkyFunctionName functionName) {
+    countersFor(functionName).resumed.increment();
+  }
+
+  /** Records that a node was invalidated. */
+  void recordInvalidated(SkyFunctionName functionName, InvalidationState state) {
+    if (state == InvalidationState.DIRTY) {
+      countersFor(functionName).dirtied.increment();
+    }
+  }
+
+  /** Records that a node was done evaluating. */
+  void recordEvaluated(SkyFunctionName functionName, EvaluationState state) {
+    Counters c = countersFor(functionName);
+    switch (state) {
+      case BUILT:
+        c.changed.increment();
+        break;
+      case CLEAN:
+        c.clean.increment();
+        break;
+      default:
+        throw new IllegalStateException(state.toString());
+    }
+  }
+
+  /** Returns the current value of all counters, keyed by function name. */
+  public ImmutableSortedMap<String, FunctionStats> snapshot() {
+    ImmutableSortedMap.Builder<String, FunctionStats> result =
+        ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<SkyFunctionName, Counters> entry : counters.entrySet()) {
+      result.put(entry.getKey().getName(), entry.getValue().snapshot());
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns what was recorded between the {@link #snapshot}s {@code before} and {@code after},
+   * omitting the functions for which nothing was recorded.
+   */
+  public static ImmutableSortedMap<String, FunctionStats> difference(
+      Map<String, FunctionStats> after, Map<String, FunctionStats> before) {
+    ImmutableSortedMap.Builder<String, FunctionStats> result =
+        ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, FunctionStats> entry : after.entrySet()) {
+      FunctionStats previous = before.get(entry.getKey());
+      FunctionStats stats =
+          previous == null ? entry.getValue() : entry.getValue().minus(previous);
+      if (!stats.isEmpty()) {
+        result.put(entry.getKey(), stats);
+      }
+    }
+    return result.build();
+  }
+
+  @VisibleForTesting
+  void clear() {
+    counters.clear();
+  }
+
+  private static final class Counters {
+    final LongAdder evaluations = new LongAdder();
+    final LongAdder restarts = new LongAdder();
+    final LongAdder resumed = new LongAdder();
+    final LongAdder wallTimeNanos = new LongAdder();
+    final LongAdder cpuTimeNanos = new LongAdder();
+    final LongAdder depsRequested = new LongAdder();
+    final LongAdder dirtied = new LongAdder();
+    final LongAdder changed = new LongAdder();
+    final LongAdder clean = new LongAdder();
+
+    FunctionStats snapshot() {
+      return new FunctionStats(
+          evaluations.sum(),
+          restarts.sum(),
+          resumed.sum(),
+          wallTimeNanos.sum(),
+          cpuTimeNanos.sum(),
+          depsRequested.sum(),
+          dirtied.sum(),
+          changed.sum(),
+          clean.sum());
+    }
+  }
+
+  /** The counters of a single {@link SkyFunctionName} at some point in time. */
+  public static final class FunctionStats {
+    /** Orders stats by decreasing wall time. */
+    public static final Comparator<FunctionStats> BY_WALL_TIME =
+        Comparator.comparingLong(FunctionStats::getWallTimeNanos).reversed();
+
+    private final long evaluations;
+    private final long restarts;
+    private final long resumed;
+    private final long wallTimeNanos;
+    private final long cpuTimeNanos;
+    private final long depsRequested;
+    private final long dirtied;
+    private final long changed;
+    private final long clean;
+
+    @VisibleForTesting
+    FunctionStats(
+        long evaluations,
+        long restarts,
+        long resumed,
+        long wallTimeNanos,
+        long cpuTimeNanos,
+        long depsRequested,
+        long dirtied,
+        long changed,
+        long clean) {
+      this.evaluations = evaluations;
+      this.restarts = restarts;
+      this.resumed = resumed;
+      this.wallTimeNanos = wallTimeNanos;
+      this.cpuTimeNanos = cpuTimeNanos;
+      this.depsRequested = depsRequested;
+      this.dirtied = dirtied;
+      this.changed = changed;
+      this.clean = clean;
+    }
+
+    /** Returns the number of {@link SkyFunction#compute} calls, including restarts. */
+    public long getEvaluations() {
+      return evaluations;
+    }
+
+    /** Returns the number of {@link SkyFunction#compute} calls that had to be restarted. */
+    public long getRestarts() {
+      return restarts;
+    }
+
+    /**
+     * Returns the number of {@link SkyFunction#compute} calls that continued from the state kept by
+     * an earlier, restarted call.
+     */
+    public long getResumed() {
+      return resumed;
+    }
+
+    public long getWallTimeNanos() {
+      return wallTimeNanos;
+    }
+
+    /** Returns the CPU time spent in {@link SkyFunction#compute}, or 0 if it is not measured. */
+    public long getCpuTimeNanos() {
+      return cpuTimeNanos;
+    }
+
+    /** Returns the number of deps newly requested by {@link SkyFunction#compute} calls. */
+    public long getDepsRequested() {
+      return depsRequested;
+    }
+
+    /** Returns the number of times a node was marked dirty. */
+    public long getDirtied() {
+      return dirtied;
+    }
+
+    /** Returns the number of times a node was done evaluating with a new value. */
+    public long getChanged() {
+      return changed;
+    }
+
+    /**
+     * Returns the number of times a dirty node was done evaluating with its old value, either
+     * because none of its deps changed or because it was recomputed to an equal value.
+     */
+    public long getClean() {
+      return clean;
+    }
+
+    FunctionStats minus(FunctionStats other) {
+      return new FunctionStats(
+          evaluations - other.evaluations,
+          restarts - other.restarts,
+          resumed - other.resumed,
+          wallTimeNanos - other.wallTimeNanos,
+          cpuTimeNanos - other.cpuTimeNanos,
+          depsRequested - other.depsRequested,
+          dirtied - other.dirtied,
+          changed - other.changed,
+          clean - other.clean);
+    }
+
+    boolean isEmpty() {
+      return evaluations == 0 && dirtied == 0 && changed == 0 && clean == 0;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("evaluations", evaluations)
+          .add("restarts", restarts)
+          .add("resumed", resumed)
+          .add("wallTimeNanos", wallTimeNanos)
+          .add("cpuTimeNanos", cpuTimeNanos)
+          .add("depsRequested", depsRequested)
+          .add("dirtied", dirtied)
+          .add("changed", changed)
+          .add("clean", clean)
+          .toString();
+    }
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.devtools.build.lib.actions.ResourceManager.ResourceHandle;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for {@link ResourceManager} under contention, modelling many small local spawns
+ * as run with a high {@code --jobs} value.
+ */
+public class ResourceManagerBenchmark {
+  @Param({"1", "8", "64"})
+  int threads;
+
+  /**
+   * Whether to use the lock-free accounting as is. Otherwise every acquisition and release holds
+   * the monitor of the resource manager, as the accounting used to, which serves as the baseline.
+   */
+  @Param({"true", "false"})
+  boolean lockFree;
+
+  private ResourceManager rm;
+  private final ResourceSet smallSpawn = ResourceSet.createWithRamCpuIo(10, 0.1, 0);
+  private ActionExecutionMetadata owner;
+
+  @BeforeExperiment
+  void setUp() {
+    rm = ResourceManager.instanceForTestingOnly();
+    rm.setAvailableResources(ResourceSet.create(64000, 32, 1, 4));
+    owner = new NullAction();
+  }
+
+  @Benchmark
+  void acquireAndRelease(int reps) throws Exception {
+    runConcurrently(reps, /*mixedPriorities=*/ false);
+  }
+
+  @Benchmark
+  void acquireAndReleaseWithMixedPriorities(int reps) throws Exception {
+    runConcurrently(reps, /*mixedPriorities=*/ true);
+  }
+
+  /**
+   * Runs {@code reps} acquire/release pairs spread over {@link #threads} threads. With {@code
+   * mixedPriorities}, the threads are spread over a few priority levels, otherwise they all use
+   * the default priority.
+   */
+  private void runConcurrently(int reps, boolean mixedPriorities) throws Exception {
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int priority = mixedPriorities ? t % 4 : ResourceManager.DEFAULT_PRIORITY;
+      Thread worker =
+          new Thread(
+              () -> {
+                try {
+                  for (int i = 0; i < reps / threads; i++) {
+                    acquireAndReleaseOnce(priority);
+                  }
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              });
+      worker.start();
+      workers.add(worker);
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  /**
+   * Acquires and releases {@link #smallSpawn}. Even {@code 64} of them fit at once, so no thread
+   * blocks while it holds the monitor for the baseline.
+   */
+  private void acquireAndReleaseOnce(int priority) throws InterruptedException {
+    ResourceHandle handle;
+    if (lockFree) {
+      handle = rm.acquireResources(owner, smallSpawn, priority);
+    } else {
+      synchronized (rm) {
+        handle = rm.acquireResources(owner, smallSpawn, priority);
+      }
+    }
+    // Hold the resources only for as long as the bookkeeping takes.
+    if (lockFree) {
+      handle.close();
+    } else {
+      synchronized (rm) {
+        handle.close();
+      }
+    }
+  }
+}
@@ -17,11 +17,15 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.actions.ResourceManager.ResourceHandle;
 import com.google.devtools.build.lib.analysis.platform.PlatformInfo;
 import com.google.devtools.build.lib.testutil.TestThread;
 import com.google.devtools.build.lib.testutil.TestUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -371,6 +375,115 @@ public class ResourceManagerTest {
     thread2.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
   }
 
+  @Test
+  public void testHigherPriorityRequestsAreGrantedFirst() throws Exception {
+    assertThat(rm.inUse()).isFalse();
+    List<String> grantOrder = Collections.synchronizedList(new ArrayList<>());
+    acquire(1000, 1, 0, 0);
+
+    TestThread lowPriority =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            rm.acquireResources(resourceOwner, ResourceSet.create(600, 0, 0, 0), 0);
+            grantOrder.add("low");
+            release(600, 0, 0, 0);
+          }
+        };
+    TestThread highPriority =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            rm.acquireResources(resourceOwner, ResourceSet.create(600, 0, 0, 0), 1);
+            grantOrder.add("high");
+            release(600, 0, 0, 0);
+          }
+        };
+    lowPriority.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    highPriority.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+
+    // Only one of the two requests fits once the resources are released.
+    release(1000, 1, 0, 0);
+    lowPriority.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    highPriority.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+
+    assertThat(grantOrder).containsExactly("high", "low").inOrder();
+    assertThat(rm.inUse()).isFalse();
+  }
+
+  @Test
+  public void testSmallerRequestsAreGrantedPastBlockedLargerOnes() throws Exception {
+    assertThat(rm.inUse()).isFalse();
+    acquire(1000, 1, 0, 0);
+
+    TestThread large =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            acquire(1500, 0, 0, 0);
+            release(1500, 0, 0, 0);
+          }
+        };
+    large.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    List<TestThread> small = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      TestThread thread =
+          new TestThread() {
+            @Override
+            public void runTest() throws Exception {
+              acquire(200, 0, 0, 0);
+            }
+          };
+      thread.start();
+      small.add(thread);
+    }
+    while (rm.getWaitCount() < 3) {
+      Thread.yield();
+    }
+
+    // The large request still doesn't fit, but both smaller ones do.
+    release(500, 0, 0, 0);
+    for (TestThread thread : small) {
+      thread.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    }
+    assertThat(rm.getWaitCount()).isEqualTo(1);
+
+    rm.resetResourceUsage();
+    large.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+  }
+
+  @Test
+  public void testTestSpawnsHaveLowerPriority() throws Exception {
+    Spawn build =
+        new SimpleSpawn(
+            resourceOwner,
+            ImmutableList.of("build"),
+            ImmutableMap.of(),
+            ImmutableMap.of(),
+            ImmutableList.of(),
+            ImmutableList.of(),
+            ResourceSet.create(100, 1, 0, 0));
+    Spawn test =
+        new SimpleSpawn(
+            resourceOwner,
+            ImmutableList.of("test"),
+            ImmutableMap.of(),
+            ImmutableMap.of(),
+            ImmutableList.of(),
+            ImmutableList.of(),
+            ResourceSet.createWithLocalTestCount(1));
+    assertThat(ResourceManager.getPriority(test)).isLessThan(ResourceManager.getPriority(build));
+  }
+
   @Test
   public void testOutOfOrderAllocation() throws Exception {
     final CyclicBarrier sync3 = new CyclicBarrier(2);
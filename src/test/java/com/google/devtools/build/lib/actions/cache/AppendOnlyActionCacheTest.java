@@ -0,0 +1,239 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Test for the AppendOnlyActionCache class. */
+@RunWith(JUnit4.class)
+public class AppendOnlyActionCacheTest {
+
+  private static final int LOG_HEADER_SIZE = 16;
+
+  private final ManualClock clock = new ManualClock();
+  private Path dataRoot;
+  private AppendOnlyActionCache cache;
+  /** Caches opened by a test in addition to {@link #cache}, closed after it. */
+  private final List<AppendOnlyActionCache> reopened = new ArrayList<>();
+
+  @Before
+  public final void createFiles() throws Exception {
+    // The log is accessed through java.nio channels, so it needs a real file system.
+    dataRoot =
+        new JavaIoFileSystem(DigestHashFunction.DEFAULT_HASH_FOR_TESTS)
+            .getPath(TestUtils.tmpDir())
+            .getRelative("append_only_action_cache");
+    FileSystemUtils.deleteTree(dataRoot);
+    dataRoot.createDirectoryAndParents();
+    cache = new AppendOnlyActionCache(dataRoot, clock);
+  }
+
+  @After
+  public final void deleteFiles() throws Exception {
+    cache.close();
+    for (AppendOnlyActionCache other : reopened) {
+      other.close();
+    }
+    FileSystemUtils.deleteTree(dataRoot);
+  }
+
+  @Test
+  public void testGetInvalidKey() {
+    assertThat(cache.get("key")).isNull();
+  }
+
+  @Test
+  public void testPutAndGet() {
+    putKey("key", cache, false);
+    ActionCache.Entry readentry = cache.get("key");
+    assertThat(readentry).isNotNull();
+    assertThat(readentry.getActionKey()).isEqualTo("key");
+    assertThat(AppendOnlyActionCache.indexFile(dataRoot).exists()).isFalse();
+  }
+
+  @Test
+  public void testPutAndRemove() throws Exception {
+    putKey("key", cache, false);
+    cache.remove("key");
+    assertThat(cache.get("key")).isNull();
+
+    assertThat(reopen().get("key")).isNull();
+  }
+
+  @Test
+  public void testSaveDiscoverInputs() throws Exception {
+    assertSave(true);
+  }
+
+  @Test
+  public void testSaveNoDiscoverInputs() throws Exception {
+    assertSave(false);
+  }
+
+  private void assertSave(boolean discoverInputs) throws Exception {
+    putKey("key", cache, discoverInputs);
+    cache.save();
+    assertThat(AppendOnlyActionCache.indexFile(dataRoot).exists()).isTrue();
+
+    AppendOnlyActionCache newcache = reopen();
+    assertKeyEquals(cache, newcache, "key");
+  }
+
+  @Test
+  public void testRecordsAfterLastSaveAreReplayed() throws Exception {
+    for (int i = 0; i < 300; i++) {
+      putKey(Integer.toString(i), cache, false);
+    }
+    cache.save();
+    // Let the filename index journal catch up, as it would during a build.
+    clock.advanceMillis(10000);
+    putKey("abc", cache, true);
+    putKey("0", cache, true);
+    cache.remove("1");
+
+    AppendOnlyActionCache newcache = reopen();
+    for (int i = 2; i < 300; i++) {
+      assertKeyEquals(cache, newcache, Integer.toString(i));
+    }
+    assertKeyEquals(cache, newcache, "abc");
+    assertKeyEquals(cache, newcache, "0");
+    assertThat(newcache.get("1")).isNull();
+    assertThat(newcache.get("not_a_key")).isNull();
+  }
+
+  @Test
+  public void testSaveCompactsDeadRecords() throws Exception {
+    String bigKey = Strings.repeat("x", 10000);
+    for (int i = 0; i < 300; i++) {
+      putKey(bigKey, cache, false);
+    }
+    putKey("small", cache, false);
+    long sizeBeforeSave = cache.getLogSize();
+    cache.save();
+
+    assertThat(cache.getLogSize()).isLessThan(sizeBeforeSave / 100);
+    assertThat(AppendOnlyActionCache.logFile(dataRoot).getFileSize())
+        .isEqualTo(cache.getLogSize());
+    AppendOnlyActionCache newcache = reopen();
+    assertKeyEquals(cache, newcache, bigKey);
+    assertKeyEquals(cache, newcache, "small");
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    putKey("key", cache, false);
+    cache.save();
+    cache.clear();
+    assertThat(cache.get("key")).isNull();
+
+    putKey("other", cache, false);
+    assertThat(cache.get("other")).isNotNull();
+  }
+
+  @Test
+  public void testTornRecordIsDiscarded() throws Exception {
+    putKey("key", cache, false);
+    cache.save();
+    putKey("torn", cache, false);
+    Path logFile = AppendOnlyActionCache.logFile(dataRoot);
+    byte[] content = FileSystemUtils.readContent(logFile);
+    FileSystemUtils.writeContent(logFile, Arrays.copyOf(content, content.length - 3));
+
+    AppendOnlyActionCache newcache = reopen();
+    assertThat(newcache.get("key")).isNotNull();
+    assertThat(newcache.get("torn")).isNull();
+    putKey("after", newcache, false);
+    assertThat(newcache.get("after")).isNotNull();
+  }
+
+  @Test
+  public void testCrashBeforeCompactedLogIsRenamed() throws Exception {
+    String bigKey = Strings.repeat("x", 10000);
+    for (int i = 0; i < 300; i++) {
+      putKey(bigKey, cache, false);
+    }
+    putKey("small", cache, false);
+    Path logFile = AppendOnlyActionCache.logFile(dataRoot);
+    byte[] uncompactedLog = FileSystemUtils.readContent(logFile);
+    String bigEntry = cache.get(bigKey).toString();
+    String smallEntry = cache.get("small").toString();
+    cache.save();
+    cache.close();
+
+    // The index of the compacted log was written, but the compacted log didn't replace the old one.
+    FileSystemUtils.writeContent(logFile, uncompactedLog);
+    cache = new AppendOnlyActionCache(dataRoot, clock);
+    assertThat(cache.get(bigKey).toString()).isEqualTo(bigEntry);
+    assertThat(cache.get("small").toString()).isEqualTo(smallEntry);
+  }
+
+  @Test
+  public void testRecordOfAnotherKeyIsRejected() throws Exception {
+    putKey("a", cache, false);
+    putKey("b", cache, false);
+    cache.save();
+    cache.close();
+
+    // Swap the two records of equal size, so that the index points each key to the other's record.
+    Path logFile = AppendOnlyActionCache.logFile(dataRoot);
+    byte[] content = FileSystemUtils.readContent(logFile);
+    int recordSize = (content.length - LOG_HEADER_SIZE) / 2;
+    byte[] swapped = Arrays.copyOf(content, content.length);
+    System.arraycopy(content, LOG_HEADER_SIZE, swapped, LOG_HEADER_SIZE + recordSize, recordSize);
+    System.arraycopy(content, LOG_HEADER_SIZE + recordSize, swapped, LOG_HEADER_SIZE, recordSize);
+    FileSystemUtils.writeContent(logFile, swapped);
+
+    cache = new AppendOnlyActionCache(dataRoot, clock);
+    assertThat(cache.get("a")).isSameAs(ActionCache.Entry.CORRUPTED);
+    assertThat(cache.get("b")).isSameAs(ActionCache.Entry.CORRUPTED);
+  }
+
+  /** Opens another cache on {@link #dataRoot}, as the next server would. */
+  private AppendOnlyActionCache reopen() throws IOException {
+    AppendOnlyActionCache other = new AppendOnlyActionCache(dataRoot, clock);
+    reopened.add(other);
+    return other;
+  }
+
+  private static void assertKeyEquals(ActionCache cache1, ActionCache cache2, String key) {
+    Object entry = cache1.get(key);
+    assertThat(entry).isNotNull();
+    assertThat(cache2.get(key).toString()).isEqualTo(entry.toString());
+  }
+
+  private static void putKey(String key, ActionCache ac, boolean discoversInputs) {
+    ActionCache.Entry entry =
+        new ActionCache.Entry(key, ImmutableMap.<String, String>of(), discoversInputs);
+    entry.getFileDigest();
+    ac.put(key, entry);
+  }
+}
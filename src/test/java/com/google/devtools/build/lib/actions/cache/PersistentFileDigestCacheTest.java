@@ -0,0 +1,155 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PersistentFileDigestCache}. */
+@RunWith(JUnit4.class)
+public class PersistentFileDigestCacheTest {
+  private static final DigestHashFunction HASH_FUNCTION = DigestHashFunction.MD5;
+  private static final byte[] DIGEST = {1, 2, 3, 4};
+
+  private final ManualClock clock = new ManualClock();
+  private final Scratch scratch = new Scratch(new InMemoryFileSystem(clock));
+  private Path cacheDirectory;
+  private PersistentFileDigestCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    clock.advanceMillis(100000);
+    cacheDirectory = scratch.dir("/cache");
+    cache = newCache(/*maxEntries=*/ 10);
+  }
+
+  private PersistentFileDigestCache newCache(int maxEntries) {
+    return new PersistentFileDigestCache(cacheDirectory, maxEntries, clock);
+  }
+
+  /** Creates a file and lets enough time pass for its digest to be cached. */
+  private Path file(String name) throws Exception {
+    Path file = scratch.file(name, name);
+    clock.advanceMillis(PersistentFileDigestCache.RACY_CHANGE_MILLIS + 1);
+    return file;
+  }
+
+  @Test
+  public void digestShouldSurviveRestart() throws Exception {
+    Path file = file("/foo");
+    cache.put(file, file.stat(), HASH_FUNCTION, DIGEST);
+    cache.save();
+
+    PersistentFileDigestCache reloaded = newCache(/*maxEntries=*/ 10);
+    assertThat(reloaded.get(file, file.stat(), HASH_FUNCTION)).isEqualTo(DIGEST);
+    assertThat(reloaded.getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void changedFileShouldMiss() throws Exception {
+    Path file = file("/foo");
+    cache.put(file, file.stat(), HASH_FUNCTION, DIGEST);
+
+    scratch.overwriteFile("/foo", "changed");
+    assertThat(cache.get(file, file.stat(), HASH_FUNCTION)).isNull();
+    assertThat(cache.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void otherHashFunctionShouldMiss() throws Exception {
+    Path file = file("/foo");
+    cache.put(file, file.stat(), HASH_FUNCTION, DIGEST);
+
+    assertThat(cache.get(file, file.stat(), DigestHashFunction.SHA256)).isNull();
+  }
+
+  @Test
+  public void recentlyChangedFileShouldNotBeCached() throws Exception {
+    Path file = scratch.file("/foo", "foo");
+    cache.put(file, file.stat(), HASH_FUNCTION, DIGEST);
+
+    assertThat(cache.get(file, file.stat(), HASH_FUNCTION)).isNull();
+  }
+
+  @Test
+  public void leastRecentlyUsedDigestShouldBeEvicted() throws Exception {
+    cache = newCache(/*maxEntries=*/ 2);
+    Path foo = file("/foo");
+    Path bar = file("/bar");
+    Path baz = file("/baz");
+    cache.put(foo, foo.stat(), HASH_FUNCTION, DIGEST);
+    cache.put(bar, bar.stat(), HASH_FUNCTION, DIGEST);
+    assertThat(cache.get(foo, foo.stat(), HASH_FUNCTION)).isEqualTo(DIGEST);
+    cache.put(baz, baz.stat(), HASH_FUNCTION, DIGEST);
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get(foo, foo.stat(), HASH_FUNCTION)).isEqualTo(DIGEST);
+    assertThat(cache.get(bar, bar.stat(), HASH_FUNCTION)).isNull();
+  }
+
+  @Test
+  public void corruptCacheFileShouldBeIgnored() throws Exception {
+    scratch.file("/cache/digests_v1.blaze", "not a cache");
+    Path file = file("/foo");
+
+    assertThat(cache.get(file, file.stat(), HASH_FUNCTION)).isNull();
+    cache.put(file, file.stat(), HASH_FUNCTION, DIGEST);
+    assertThat(cache.get(file, file.stat(), HASH_FUNCTION)).isEqualTo(DIGEST);
+  }
+
+  @Test
+  public void concurrentPutsShouldKeepTheCacheBounded() throws Exception {
+    cache = newCache(/*maxEntries=*/ 10);
+    List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      files.add(file("/file" + i));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (Path file : files) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  cache.put(file, file.stat(), HASH_FUNCTION, DIGEST);
+                  cache.get(file, file.stat(), HASH_FUNCTION);
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    cache.save();
+
+    assertThat(cache.size()).isEqualTo(10);
+    assertThat(newCache(/*maxEntries=*/ 10).size()).isEqualTo(10);
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ArchiveEntryWriter}. */
+@RunWith(JUnit4.class)
+public class ArchiveEntryWriterTest {
+  private Path outDir;
+
+  @Before
+  public void setUp() throws Exception {
+    FileSystem fs = new JavaIoFileSystem(DigestHashFunction.DEFAULT_HASH_FOR_TESTS);
+    outDir = fs.getPath(new File(TestUtils.tmpDir()).getCanonicalPath()).getRelative("out");
+    FileSystemUtils.deleteTree(outDir);
+  }
+
+  private static void writeFile(ArchiveEntryWriter writer, Path path, String contents)
+      throws Exception {
+    byte[] bytes = contents.getBytes(UTF_8);
+    writer.writeFile(path, new ByteArrayInputStream(bytes), bytes.length, 0644, 1000L);
+  }
+
+  @Test
+  public void testWritesSmallAndLargeFiles() throws Exception {
+    String large = Strings.repeat("x", ArchiveEntryWriter.MAX_BUFFERED_FILE_SIZE + 1);
+    try (ArchiveEntryWriter writer = new ArchiveEntryWriter("archive", null)) {
+      writer.createDirectory(outDir.getRelative("empty"));
+      for (int i = 0; i < 100; i++) {
+        writeFile(writer, outDir.getRelative("dir" + (i % 7) + "/file" + i), "contents " + i);
+      }
+      writeFile(writer, outDir.getRelative("large"), large);
+      // Files of unknown size are written like large files.
+      writer.writeFile(
+          outDir.getRelative("unknown"),
+          new ByteArrayInputStream("unknown size".getBytes(UTF_8)),
+          -1,
+          0755,
+          2000L);
+      writer.finish();
+    }
+
+    assertThat(outDir.getRelative("empty").isDirectory()).isTrue();
+    for (int i = 0; i < 100; i++) {
+      Path file = outDir.getRelative("dir" + (i % 7) + "/file" + i);
+      assertThat(FileSystemUtils.readContent(file, UTF_8)).isEqualTo("contents " + i);
+      assertThat(file.getLastModifiedTime()).isEqualTo(1000L);
+    }
+    assertThat(outDir.getRelative("large").getFileSize()).isEqualTo(large.length());
+    assertThat(FileSystemUtils.readContent(outDir.getRelative("unknown"), UTF_8))
+        .isEqualTo("unknown size");
+    assertThat(outDir.getRelative("unknown").isExecutable()).isTrue();
+  }
+
+  @Test
+  public void testLaterEntryForSamePathWins() throws Exception {
+    Path file = outDir.getRelative("file");
+    try (ArchiveEntryWriter writer = new ArchiveEntryWriter("archive", null)) {
+      for (int i = 0; i < 20; i++) {
+        writeFile(writer, file, "version " + i);
+      }
+      writer.finish();
+    }
+    assertThat(FileSystemUtils.readContent(file, UTF_8)).isEqualTo("version 19");
+  }
+
+  @Test
+  public void testAwaitWriteWaitsForFile() throws Exception {
+    Path file = outDir.getRelative("file");
+    try (ArchiveEntryWriter writer = new ArchiveEntryWriter("archive", null)) {
+      writeFile(writer, file, "contents");
+      writer.awaitWrite(file);
+      assertThat(FileSystemUtils.readContent(file, UTF_8)).isEqualTo("contents");
+      writer.finish();
+    }
+  }
+
+  @Test
+  public void testReportsFailureToWrite() throws Exception {
+    // A file cannot replace a directory that is not empty.
+    Path dir = outDir.getRelative("dir");
+    dir.createDirectoryAndParents();
+    FileSystemUtils.writeContent(dir.getRelative("child"), UTF_8, "child");
+    try (ArchiveEntryWriter writer = new ArchiveEntryWriter("archive", null)) {
+      writeFile(writer, dir, "contents");
+      writer.finish();
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("Error extracting archive");
+    }
+  }
+
+  @Test
+  public void testReportsProgress() throws Exception {
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    try (ArchiveEntryWriter writer = new ArchiveEntryWriter("archive.tar.gz", eventHandler)) {
+      writeFile(writer, outDir.getRelative("a"), "12345");
+      writeFile(writer, outDir.getRelative("b"), "67890");
+      writer.finish();
+    }
+    ExtendedEventHandler.Postable last = Iterables.getLast(eventHandler.getPosts());
+    assertThat(last).isInstanceOf(ExtractionProgressEvent.class);
+    ExtractionProgressEvent progress = (ExtractionProgressEvent) last;
+    assertThat(progress.isFinished()).isTrue();
+    assertThat(progress.getResourceIdentifier()).isEqualTo("extracting archive.tar.gz");
+    assertThat(progress.getFiles()).isEqualTo(2);
+    assertThat(progress.getBytes()).isEqualTo(10);
+  }
+
+  @Test
+  public void testConsumesContentsBeforeReturning() throws Exception {
+    byte[] bytes = "contents and the next entry".getBytes(UTF_8);
+    InputStream contents = new ByteArrayInputStream(bytes);
+    try (ArchiveEntryWriter writer = new ArchiveEntryWriter("archive", null)) {
+      writer.writeFile(outDir.getRelative("file"), contents, 8, 0644, 1000L);
+      // The rest of the stream can be read right away, e.g. the next entry of a tar file.
+      assertThat(contents.available()).isEqualTo(bytes.length - 8);
+      writer.finish();
+    }
+    assertThat(FileSystemUtils.readContent(outDir.getRelative("file"), UTF_8))
+        .isEqualTo("contents");
+  }
+}
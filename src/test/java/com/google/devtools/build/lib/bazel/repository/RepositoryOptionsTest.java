@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.bazel.repository;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.devtools.build.lib.bazel.repository.RepositoryOptions.CacheSizeMbConverter;
 import com.google.devtools.build.lib.bazel.repository.RepositoryOptions.RepositoryOverride;
 import com.google.devtools.build.lib.bazel.repository.RepositoryOptions.RepositoryOverrideConverter;
 import com.google.devtools.build.lib.cmdline.RepositoryName;
@@ -67,4 +68,24 @@ public class RepositoryOptionsTest {
     expectedException.expectMessage("Repository override directory must be an absolute path");
     converter.convert("foo=bar");
   }
+
+  @Test
+  public void testCacheSizeConverter() throws Exception {
+    assertThat(new CacheSizeMbConverter().convert("0")).isEqualTo(0L);
+    assertThat(new CacheSizeMbConverter().convert("1024")).isEqualTo(1024L);
+  }
+
+  @Test
+  public void testNegativeCacheSize() throws Exception {
+    expectedException.expect(OptionsParsingException.class);
+    expectedException.expectMessage("'-1' should be >= 0");
+    new CacheSizeMbConverter().convert("-1");
+  }
+
+  @Test
+  public void testCacheSizeTooLargeToCountInBytes() throws Exception {
+    expectedException.expect(OptionsParsingException.class);
+    expectedException.expectMessage("should be <= ");
+    new CacheSizeMbConverter().convert(Long.toString(Long.MAX_VALUE / 1024));
+  }
 }
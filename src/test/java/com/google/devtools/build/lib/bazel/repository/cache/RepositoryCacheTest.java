@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.bazel.repository.cache;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 import com.google.common.base.Strings;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
@@ -23,6 +24,11 @@ import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -193,4 +199,110 @@ public class RepositoryCacheTest {
         KeyType.SHA256);
   }
 
+  @Test
+  public void testPutWithWrongChecksumThrows() throws IOException {
+    String wrongSha = Strings.repeat("a", 64);
+    try {
+      repositoryCache.put(wrongSha, downloadedFile, KeyType.SHA256);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("does not match expected");
+    }
+    assertThat(repositoryCache.exists(wrongSha, KeyType.SHA256)).isFalse();
+    // No temporary files are left behind.
+    assertThat(repositoryCachePath.getChild("tmp").getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testGetDetectsValueModifiedAfterVerification() throws IOException {
+    repositoryCache.put(downloadedFileSha256, downloadedFile, KeyType.SHA256);
+    Path cacheValue =
+        KeyType.SHA256
+            .getCachePath(contentAddressableCachePath)
+            .getChild(downloadedFileSha256)
+            .getChild(RepositoryCache.DEFAULT_CACHE_FILENAME);
+    FileSystemUtils.writeContent(cacheValue, Charset.defaultCharset(), "poisoned contents");
+
+    Path targetPath = scratch.dir("/external").getChild(downloadedFile.getBaseName());
+    thrown.expect(IOException.class);
+    thrown.expectMessage("does not match expected");
+    repositoryCache.get(downloadedFileSha256, targetPath, KeyType.SHA256);
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedValues() throws Exception {
+    repositoryCache.setMaxSize(25);
+    repositoryCache.awaitEviction();
+    Path targetDirectory = scratch.dir("/external");
+
+    String first = repositoryCache.put(scratch.file("first", "0123456789"), KeyType.SHA256);
+    String second = repositoryCache.put(scratch.file("second", "abcdefghij"), KeyType.SHA256);
+    // Using the first value makes the second one the least recently used.
+    assertThat(repositoryCache.get(first, targetDirectory.getChild("first"), KeyType.SHA256))
+        .isNotNull();
+    String third = repositoryCache.put(scratch.file("third", "ABCDEFGHIJ"), KeyType.SHA256);
+    repositoryCache.awaitEviction();
+
+    assertThat(repositoryCache.exists(first, KeyType.SHA256)).isTrue();
+    assertThat(repositoryCache.exists(second, KeyType.SHA256)).isFalse();
+    assertThat(repositoryCache.exists(third, KeyType.SHA256)).isTrue();
+    assertThat(repositoryCache.getIndexedSizeBytes()).isAtMost(25L);
+  }
+
+  @Test
+  public void testIndexesExistingValuesWhenEvictionIsEnabled() throws Exception {
+    repositoryCache.put(downloadedFileSha256, downloadedFile, KeyType.SHA256);
+    String other = repositoryCache.put(scratch.file("other", "other contents"), KeyType.SHA256);
+
+    RepositoryCache newCache = new RepositoryCache();
+    newCache.setRepositoryCachePath(repositoryCachePath);
+    newCache.setMaxSize(1);
+    newCache.awaitEviction();
+
+    assertThat(newCache.exists(downloadedFileSha256, KeyType.SHA256)).isFalse();
+    assertThat(newCache.exists(other, KeyType.SHA256)).isFalse();
+    assertThat(newCache.getIndexedSizeBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testDeletesStaleTempFilesWhenOpened() throws Exception {
+    Path staleFile = scratch.file("/repository_cache/tmp/stale", "interrupted");
+    staleFile.setLastModifiedTime(0);
+    Path currentFile = scratch.file("/repository_cache/tmp/current", "being written");
+
+    RepositoryCache newCache = new RepositoryCache();
+    newCache.setRepositoryCachePath(repositoryCachePath);
+    newCache.awaitEviction();
+
+    assertThat(staleFile.exists()).isFalse();
+    assertThat(currentFile.exists()).isTrue();
+  }
+
+  @Test
+  public void testConcurrentPutsAndGets() throws Exception {
+    Path targetDirectory = scratch.dir("/external");
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 32; i++) {
+        int n = i;
+        futures.add(
+            executor.submit(
+                () -> {
+                  repositoryCache.put(downloadedFileSha256, downloadedFile, KeyType.SHA256);
+                  Path target = targetDirectory.getChild("file" + n);
+                  assertThat(repositoryCache.get(downloadedFileSha256, target, KeyType.SHA256))
+                      .isEqualTo(target);
+                  assertThat(FileSystemUtils.readContent(target, Charset.defaultCharset()))
+                      .isEqualTo("contents\n");
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 }
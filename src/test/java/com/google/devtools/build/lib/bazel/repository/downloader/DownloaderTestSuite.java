@@ -25,10 +25,12 @@ import org.junit.runners.Suite.SuiteClasses;
   HttpConnectorMultiplexerIntegrationTest.class,
   HttpConnectorMultiplexerTest.class,
   HttpConnectorTest.class,
+  HttpDownloaderTest.class,
   HttpStreamTest.class,
   HttpUtilsTest.class,
   ProgressInputStreamTest.class,
   ProxyHelperTest.class,
   RetryingInputStreamTest.class,
+  SegmentedDownloadTest.class,
 })
 public class DownloaderTestSuite {}
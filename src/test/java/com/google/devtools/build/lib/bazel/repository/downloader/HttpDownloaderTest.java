@@ -0,0 +1,243 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static com.google.common.io.ByteStreams.toByteArray;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.bazel.repository.downloader.DownloaderTestUtils.sendLines;
+import static com.google.devtools.build.lib.bazel.repository.downloader.HttpParser.readHttpRequest;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the streaming {@link HttpDownloader#download} against a local HTTP server. */
+@RunWith(JUnit4.class)
+public class HttpDownloaderTest {
+  private static final String HELLO_SHA256 =
+      "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+  private static final String OTHER_SHA256 =
+      "0000000000000000000000000000000000000000000000000000000000000000";
+
+  @Rule public final Timeout globalTimeout = new Timeout(30000);
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final StoredEventHandler eventHandler = new StoredEventHandler();
+  private final RepositoryCache repositoryCache = new RepositoryCache();
+  private final HttpDownloader downloader = new HttpDownloader(repositoryCache);
+  private Path workingDir;
+  private Path output;
+  private ServerSocket server;
+
+  @Before
+  public void setUp() throws Exception {
+    FileSystem fs = new JavaIoFileSystem(DigestHashFunction.DEFAULT_HASH_FOR_TESTS);
+    workingDir =
+        fs.getPath(new File(TestUtils.tmpDir()).getCanonicalPath()).getRelative("downloader");
+    FileSystemUtils.deleteTree(workingDir);
+    output = workingDir.getRelative("output/file");
+    output.getParentDirectory().createDirectoryAndParents();
+    server = new ServerSocket(0, 1, InetAddress.getByName(null));
+    @SuppressWarnings("unused")
+    Object possiblyIgnoredError =
+        executor.submit(
+            () -> {
+              // Serves the same file to every request until the server is closed.
+              while (true) {
+                try (Socket socket = server.accept()) {
+                  readHttpRequest(socket.getInputStream());
+                  sendLines(
+                      socket,
+                      "HTTP/1.1 200 OK",
+                      "Date: Fri, 31 Dec 1999 23:59:59 GMT",
+                      "Connection: close",
+                      "Content-Length: 5",
+                      "",
+                      "hello");
+                }
+              }
+            });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    executor.shutdownNow();
+  }
+
+  private void enableRepositoryCache() {
+    repositoryCache.setRepositoryCachePath(workingDir.getRelative("cache"));
+  }
+
+  private URL getUrl() throws IOException {
+    return new URL(String.format("http://localhost:%d", server.getLocalPort()));
+  }
+
+  /** Returns the URL of a port nothing listens on. */
+  private static URL getUnreachableUrl() throws IOException {
+    try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getByName(null))) {
+      return new URL(String.format("http://localhost:%d", unused.getLocalPort()));
+    }
+  }
+
+  /** Downloads the file of the server, adding what the consumer read to {@code consumed}. */
+  private void download(String sha256, List<String> consumed) throws Exception {
+    download(ImmutableList.of(getUrl()), sha256, consumed);
+  }
+
+  private void download(List<URL> urls, String sha256, List<String> consumed) throws Exception {
+    downloader.download(
+        urls,
+        sha256,
+        Optional.absent(),
+        output,
+        eventHandler,
+        ImmutableMap.of(),
+        contents -> consumed.add(new String(toByteArray(contents), US_ASCII)));
+  }
+
+  /** Downloads the file of the server and returns what the consumer read. */
+  private List<String> download(String sha256) throws Exception {
+    List<String> consumed = new ArrayList<>();
+    download(sha256, consumed);
+    return consumed;
+  }
+
+  @Test
+  public void fileWithChecksumShouldBeConsumed() throws Exception {
+    assertThat(download(HELLO_SHA256)).containsExactly("hello");
+    assertThat(output.exists()).isFalse();
+  }
+
+  @Test
+  public void fileWithChecksumShouldBeConsumedFromRepositoryCache() throws Exception {
+    enableRepositoryCache();
+    assertThat(download(HELLO_SHA256)).containsExactly("hello");
+    assertThat(repositoryCache.exists(HELLO_SHA256, KeyType.SHA256)).isTrue();
+    assertThat(output.exists()).isFalse();
+  }
+
+  @Test
+  public void fileWithWrongChecksumShouldNotBeConsumed() throws Exception {
+    List<String> consumed = new ArrayList<>();
+    try {
+      download(OTHER_SHA256, consumed);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("Checksum was " + HELLO_SHA256);
+    }
+    assertThat(consumed).isEmpty();
+  }
+
+  @Test
+  public void fileWithWrongChecksumShouldNotBeConsumedFromRepositoryCache() throws Exception {
+    enableRepositoryCache();
+    List<String> consumed = new ArrayList<>();
+    try {
+      download(OTHER_SHA256, consumed);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("Checksum was " + HELLO_SHA256);
+    }
+    assertThat(consumed).isEmpty();
+    assertThat(repositoryCache.exists(OTHER_SHA256, KeyType.SHA256)).isFalse();
+    assertThat(repositoryCache.exists(HELLO_SHA256, KeyType.SHA256)).isFalse();
+  }
+
+  @Test
+  public void fileWithoutChecksumShouldBeConsumedWhileItIsDownloaded() throws Exception {
+    enableRepositoryCache();
+    assertThat(download("")).containsExactly("hello");
+    assertThat(repositoryCache.exists(HELLO_SHA256, KeyType.SHA256)).isTrue();
+  }
+
+  @Test
+  public void segmentedDownloadShouldFallBackIfTheServerDoesNotSupportRanges() throws Exception {
+    enableRepositoryCache();
+    downloader.setConnectionsPerDownload(4);
+    assertThat(download(HELLO_SHA256)).containsExactly("hello");
+    assertThat(repositoryCache.exists(HELLO_SHA256, KeyType.SHA256)).isTrue();
+  }
+
+  @Test
+  public void segmentedDownloadShouldFallBackToOtherMirrorsIfTheFirstIsDown() throws Exception {
+    enableRepositoryCache();
+    downloader.setConnectionsPerDownload(4);
+    List<String> consumed = new ArrayList<>();
+    long start = System.nanoTime();
+    download(ImmutableList.of(getUnreachableUrl(), getUrl()), HELLO_SHA256, consumed);
+
+    assertThat(consumed).containsExactly("hello");
+    // Retrying the first mirror with backoff before trying the other one takes over 12 seconds.
+    assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).isLessThan(10L);
+  }
+
+  @Test
+  public void prefetchShouldAddFilesToTheRepositoryCache() throws Exception {
+    enableRepositoryCache();
+    downloader.prefetch(
+        ImmutableMap.of(HELLO_SHA256, ImmutableList.of(getUrl())), eventHandler, ImmutableMap.of());
+
+    assertThat(repositoryCache.exists(HELLO_SHA256, KeyType.SHA256)).isTrue();
+    assertThat(workingDir.getRelative("cache/prefetch").getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void prefetchShouldSkipFilesThatFailToDownload() throws Exception {
+    enableRepositoryCache();
+    downloader.prefetch(
+        ImmutableMap.of(
+            OTHER_SHA256,
+            ImmutableList.of(getUrl()),
+            HELLO_SHA256,
+            ImmutableList.of(getUnreachableUrl(), getUrl())),
+        eventHandler,
+        ImmutableMap.of());
+
+    assertThat(repositoryCache.exists(HELLO_SHA256, KeyType.SHA256)).isTrue();
+    assertThat(repositoryCache.exists(OTHER_SHA256, KeyType.SHA256)).isFalse();
+    assertThat(eventHandler.getEvents().toString()).contains("Failed to prefetch");
+    assertThat(workingDir.getRelative("cache/prefetch").getDirectoryEntries()).isEmpty();
+  }
+}
@@ -0,0 +1,305 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static com.google.common.io.ByteStreams.toByteArray;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.bazel.repository.downloader.HttpParser.readHttpRequest;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Integration tests for {@link SegmentedDownload} against a local HTTP server. */
+@RunWith(JUnit4.class)
+public class SegmentedDownloadTest {
+
+  private static final int SEGMENT_SIZE = 1024;
+
+  @Rule public final Timeout globalTimeout = new Timeout(30000);
+
+  private final StoredEventHandler eventHandler = new StoredEventHandler();
+  private final ManualClock clock = new ManualClock();
+  private final HttpConnector connector =
+      new HttpConnector(
+          Locale.US, eventHandler, new ProxyHelper(ImmutableMap.of()), millis -> {});
+  private final byte[] contents = new byte[5 * SEGMENT_SIZE + 512];
+  private Path partialFile;
+  private RangeServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    new Random(42).nextBytes(contents);
+    FileSystem fs = new JavaIoFileSystem(DigestHashFunction.DEFAULT_HASH_FOR_TESTS);
+    Path dir = fs.getPath(new File(TestUtils.tmpDir()).getCanonicalPath()).getRelative("partial");
+    FileSystemUtils.deleteTree(dir);
+    partialFile = dir.getChild("file");
+    server = new RangeServer(contents);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  private SegmentedDownload start(boolean checksummed) throws IOException {
+    return SegmentedDownload.start(
+        connector,
+        server.getUrl(),
+        partialFile,
+        checksummed,
+        3,
+        SEGMENT_SIZE,
+        eventHandler,
+        clock,
+        Locale.US);
+  }
+
+  @Test
+  public void downloadsFileInSegments() throws Exception {
+    try (SegmentedDownload download = start(false)) {
+      assertThat(toByteArray(download)).isEqualTo(contents);
+    }
+    // The response to the first request is the first segment.
+    assertThat(server.ranges)
+        .containsExactly(
+            "bytes=0-1023",
+            "bytes=1024-2047",
+            "bytes=2048-3071",
+            "bytes=3072-4095",
+            "bytes=4096-5119",
+            "bytes=5120-5631");
+    assertThat(partialFile.exists()).isFalse();
+  }
+
+  @Test
+  public void smallFileIsDownloadedWithOneRequest() throws Exception {
+    server.close();
+    server = new RangeServer(new byte[] {1, 2, 3});
+    try (SegmentedDownload download = start(false)) {
+      assertThat(toByteArray(download)).isEqualTo(new byte[] {1, 2, 3});
+    }
+    assertThat(server.ranges).containsExactly("bytes=0-1023");
+  }
+
+  @Test
+  public void serverWithoutRangeSupport_returnsNull() throws Exception {
+    server.supportsRanges = false;
+    assertThat(start(false)).isNull();
+    assertThat(partialFile.exists()).isFalse();
+  }
+
+  @Test
+  public void failedSegmentIsRetried() throws Exception {
+    server.failOnce.add("bytes=3072-4095");
+    try (SegmentedDownload download = start(false)) {
+      assertThat(toByteArray(download)).isEqualTo(contents);
+    }
+    assertThat(server.ranges.stream().filter("bytes=3072-4095"::equals).count()).isEqualTo(2);
+  }
+
+  @Test
+  public void unfinishedDownloadIsResumed() throws Exception {
+    server.blockAfter = 2 * SEGMENT_SIZE;
+    try (SegmentedDownload download = start(true)) {
+      byte[] prefix = new byte[2 * SEGMENT_SIZE];
+      new DataInputStream(download).readFully(prefix);
+    }
+    assertThat(partialFile.exists()).isTrue();
+
+    server.close();
+    server = new RangeServer(contents);
+    try (SegmentedDownload download = start(true)) {
+      assertThat(toByteArray(download)).isEqualTo(contents);
+    }
+    // Only the first request asks for a segment that was already downloaded.
+    assertThat(server.ranges).doesNotContain("bytes=1024-2047");
+    assertThat(server.ranges).contains("bytes=2048-3071");
+    assertThat(partialFile.exists()).isFalse();
+  }
+
+  @Test
+  public void changedFileIsDownloadedAgain() throws Exception {
+    server.blockAfter = 2 * SEGMENT_SIZE;
+    try (SegmentedDownload download = start(false)) {
+      new DataInputStream(download).readFully(new byte[2 * SEGMENT_SIZE]);
+    }
+    assertThat(partialFile.exists()).isTrue();
+
+    server.close();
+    contents[SEGMENT_SIZE] ^= 1;
+    server = new RangeServer(contents);
+    server.etag = "\"changed\"";
+    try (SegmentedDownload download = start(false)) {
+      assertThat(toByteArray(download)).isEqualTo(contents);
+    }
+    assertThat(server.ranges).contains("bytes=1024-2047");
+  }
+
+  @Test
+  public void fileChangedDuringDownload_fails() throws Exception {
+    server.blockAfter = SEGMENT_SIZE;
+    try (SegmentedDownload download = start(false)) {
+      server.etag = "\"changed\"";
+      server.unblock();
+      try {
+        toByteArray(download);
+        fail();
+      } catch (IOException expected) {
+        assertThat(expected).hasMessageThat().contains("changed during the download");
+      }
+    }
+  }
+
+  /**
+   * A stand-in for an HTTP server that serves a single file with an ETag and supports single
+   * range requests, including If-Range. Every response closes the connection.
+   */
+  private static final class RangeServer implements AutoCloseable {
+    private final byte[] contents;
+    private final ServerSocket socket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CountDownLatch unblocked = new CountDownLatch(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    final List<String> ranges = new CopyOnWriteArrayList<>();
+    final List<String> failOnce = new CopyOnWriteArrayList<>();
+    volatile boolean supportsRanges = true;
+    volatile String etag = "\"v1\"";
+    /** Ranges starting at or after this offset are only served after {@link #unblock}. */
+    volatile int blockAfter = Integer.MAX_VALUE;
+
+    RangeServer(byte[] contents) throws IOException {
+      this.contents = contents;
+      this.socket = new ServerSocket(0, 50, InetAddress.getByName(null));
+      executor.execute(this::acceptConnections);
+    }
+
+    URL getUrl() throws IOException {
+      return new URL(String.format("http://localhost:%d/file", socket.getLocalPort()));
+    }
+
+    void unblock() {
+      unblocked.countDown();
+    }
+
+    private void acceptConnections() {
+      while (!closed.get()) {
+        try {
+          Socket connection = socket.accept();
+          executor.execute(() -> serve(connection));
+        } catch (IOException e) {
+          return;
+        }
+      }
+    }
+
+    private void serve(Socket connection) {
+      try (Socket s = connection) {
+        Map<String, String> request = new HashMap<>();
+        readHttpRequest(new BufferedInputStream(s.getInputStream()), request);
+        String range = request.get("range");
+        OutputStream out = s.getOutputStream();
+        if (!supportsRanges || range == null) {
+          send(out, "200 OK", 0, contents.length - 1, contents.length);
+          return;
+        }
+        ranges.add(range);
+        String[] bounds = range.substring("bytes=".length()).split("-");
+        int first = Integer.parseInt(bounds[0]);
+        int last = Math.min(Integer.parseInt(bounds[1]), contents.length - 1);
+        if (first >= blockAfter) {
+          unblocked.await();
+        }
+        String ifRange = request.get("if-range");
+        if (ifRange != null && !ifRange.equals(etag)) {
+          send(out, "200 OK", 0, contents.length - 1, contents.length);
+        } else if (failOnce.remove(range)) {
+          // Sends half of the range and drops the connection.
+          send(out, "206 Partial Content", first, last, (last - first + 1) / 2);
+        } else {
+          send(out, "206 Partial Content", first, last, last - first + 1);
+        }
+      } catch (IOException | InterruptedException e) {
+        // The client went away.
+      }
+    }
+
+    private void send(OutputStream out, String status, int first, int last, int sent)
+        throws IOException {
+      String headers =
+          "HTTP/1.1 "
+              + status
+              + "\r\n"
+              + "Accept-Ranges: "
+              + (supportsRanges ? "bytes" : "none")
+              + "\r\n"
+              + "ETag: "
+              + etag
+              + "\r\n"
+              + (status.startsWith("206")
+                  ? "Content-Range: bytes " + first + "-" + last + "/" + contents.length + "\r\n"
+                  : "")
+              + "Content-Length: "
+              + (last - first + 1)
+              + "\r\n"
+              + "Connection: close\r\n\r\n";
+      out.write(headers.getBytes(ISO_8859_1));
+      out.write(contents, first, sent);
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed.set(true);
+      unblock();
+      socket.close();
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,220 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventservice;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.StringValue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BuildEventServiceJournal}. */
+@RunWith(JUnit4.class)
+public class BuildEventServiceJournalTest {
+
+  /** Each message is 102 bytes when serialized, so that 3 of them fit into the window. */
+  private static final int WINDOW = 310;
+
+  private Path file;
+  private BuildEventServiceJournal<StringValue> journal;
+
+  @Before
+  public void setUp() throws Exception {
+    FileSystem fs = new JavaIoFileSystem(DigestHashFunction.DEFAULT_HASH_FOR_TESTS);
+    Path dir = fs.getPath(new File(TestUtils.tmpDir()).getCanonicalPath()).getRelative("journal");
+    FileSystemUtils.deleteTree(dir);
+    dir.createDirectoryAndParents();
+    file = dir.getChild("events");
+    journal = new BuildEventServiceJournal<>(file, WINDOW, StringValue.parser());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    journal.close();
+  }
+
+  private static StringValue message(int i) {
+    return StringValue.newBuilder()
+        .setValue(Strings.padStart(Integer.toString(i), 100, '0'))
+        .build();
+  }
+
+  private List<StringValue> sendAll() throws Exception {
+    List<StringValue> sent = new ArrayList<>();
+    StringValue message;
+    while ((message = journal.next(0, MILLISECONDS)) != null) {
+      sent.add(message);
+    }
+    return sent;
+  }
+
+  @Test
+  public void messagesThatFitTheWindowAreNotSpilled() throws Exception {
+    journal.append(1, message(1));
+    journal.append(2, message(2));
+    journal.finish();
+
+    assertThat(sendAll()).containsExactly(message(1), message(2)).inOrder();
+    assertThat(journal.allSent()).isTrue();
+    assertThat(journal.getSpilledCount()).isEqualTo(0);
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test
+  public void messagesBeyondTheWindowAreSpilledAndReadBack() throws Exception {
+    for (int i = 1; i <= 5; i++) {
+      journal.append(i, message(i));
+    }
+    assertThat(journal.getSpilledCount()).isEqualTo(2);
+    assertThat(file.getFileSize()).isEqualTo(2 * message(0).getSerializedSize());
+
+    // Only a window of unacknowledged messages is sent at once.
+    assertThat(sendAll()).containsExactly(message(1), message(2), message(3)).inOrder();
+    assertThat(journal.acknowledge(1)).isTrue();
+    assertThat(sendAll()).containsExactly(message(4));
+    assertThat(journal.acknowledge(2)).isTrue();
+    assertThat(journal.acknowledge(3)).isTrue();
+    assertThat(sendAll()).containsExactly(message(5));
+    assertThat(journal.acknowledge(4)).isTrue();
+    assertThat(journal.acknowledge(5)).isTrue();
+    assertThat(journal.isComplete()).isFalse();
+    journal.finish();
+    assertThat(journal.isComplete()).isTrue();
+
+    journal.close();
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test
+  public void acknowledgementsMustBeInOrder() throws Exception {
+    journal.append(1, message(1));
+    journal.append(2, message(2));
+    sendAll();
+
+    assertThat(journal.acknowledge(2)).isFalse();
+    assertThat(journal.firstUnacknowledged()).isEqualTo(1);
+    assertThat(journal.acknowledge(1)).isTrue();
+    assertThat(journal.firstUnacknowledged()).isEqualTo(2);
+  }
+
+  @Test
+  public void rewindReplaysUnacknowledgedMessages() throws Exception {
+    for (int i = 1; i <= 5; i++) {
+      journal.append(i, message(i));
+    }
+    journal.finish();
+    sendAll();
+    assertThat(journal.acknowledge(1)).isTrue();
+    assertThat(sendAll()).containsExactly(message(4));
+
+    // The stream failed: everything that was not acknowledged is sent again, in order.
+    journal.rewind();
+    assertThat(sendAll()).containsExactly(message(2), message(3), message(4)).inOrder();
+    for (int i = 2; i <= 4; i++) {
+      assertThat(journal.acknowledge(i)).isTrue();
+    }
+    assertThat(sendAll()).containsExactly(message(5));
+    assertThat(journal.allSent()).isTrue();
+  }
+
+  @Test
+  public void nextWaitsForAppend() throws Exception {
+    assertThat(journal.next(10, MILLISECONDS)).isNull();
+
+    Thread appender =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(100);
+                journal.append(1, message(1));
+              } catch (InterruptedException | IOException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    appender.start();
+    assertThat(journal.next(TestUtils.WAIT_TIMEOUT_MILLISECONDS, MILLISECONDS))
+        .isEqualTo(message(1));
+    appender.join();
+  }
+
+  @Test
+  public void nextWaitsForAcknowledgementWhileWindowIsFull() throws Exception {
+    for (int i = 1; i <= 4; i++) {
+      journal.append(i, message(i));
+    }
+    assertThat(sendAll()).hasSize(3);
+
+    Thread acknowledger =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(100);
+              } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+              journal.acknowledge(1);
+            });
+    acknowledger.start();
+    assertThat(journal.next(TestUtils.WAIT_TIMEOUT_MILLISECONDS, MILLISECONDS))
+        .isEqualTo(message(4));
+    acknowledger.join();
+  }
+
+  @Test
+  public void closedJournalFails() throws Exception {
+    journal.append(1, message(1));
+    journal.close();
+    try {
+      journal.append(2, message(2));
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("closed");
+    }
+    try {
+      journal.next(0, MILLISECONDS);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("closed");
+    }
+  }
+
+  @Test
+  public void journalsOfAPreviousServerShouldBeDeletedAtStartup() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      journal.append(i, message(i));
+    }
+    // The server is killed before the upload ends, so the journal is never closed.
+    assertThat(file.exists()).isTrue();
+
+    BuildEventServiceModule.deleteStaleJournals(file.getParentDirectory());
+    assertThat(file.getParentDirectory().exists()).isFalse();
+  }
+}
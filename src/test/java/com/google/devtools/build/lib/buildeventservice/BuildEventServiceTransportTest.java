@@ -0,0 +1,278 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventservice;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader.LOCAL_FILES_UPLOADER;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import com.google.devtools.build.lib.buildeventservice.client.ManagedBuildEventServiceGrpcClient;
+import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
+import com.google.devtools.build.lib.buildeventstream.BuildEventId;
+import com.google.devtools.build.lib.buildeventstream.BuildEventProtocolOptions;
+import com.google.devtools.build.lib.buildeventstream.GenericBuildEvent;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.runtime.BlazeModule.ModuleEnvironment;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.AbruptExitException;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.v1.PublishBuildEventGrpc.PublishBuildEventImplBase;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamRequest;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamResponse;
+import com.google.devtools.build.v1.PublishLifecycleEventRequest;
+import com.google.devtools.common.options.Options;
+import com.google.protobuf.Empty;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link BuildEventServiceTransport} spilling events to a {@link
+ * BuildEventServiceJournal}, against an in-process BES backend.
+ */
+@RunWith(JUnit4.class)
+public class BuildEventServiceTransportTest {
+  private static final int EVENTS = 20;
+  private static final ArtifactGroupNamer NO_NAMER = id -> null;
+
+  @Rule public final Timeout globalTimeout = new Timeout(60000);
+
+  private final FakeBuildEventService service = new FakeBuildEventService();
+  private final StoredEventHandler commandLineReporter = new StoredEventHandler();
+  private final List<AbruptExitException> exits = new CopyOnWriteArrayList<>();
+  private Server server;
+  private Path journalDirectory;
+
+  @Before
+  public void setUp() throws Exception {
+    String serverName = "BES server for " + getClass();
+    server =
+        InProcessServerBuilder.forName(serverName)
+            .addService(service)
+            .directExecutor()
+            .build()
+            .start();
+    FileSystem fs = new JavaIoFileSystem(DigestHashFunction.DEFAULT_HASH_FOR_TESTS);
+    journalDirectory =
+        fs.getPath(new File(TestUtils.tmpDir()).getCanonicalPath()).getRelative("bes_journal");
+    FileSystemUtils.deleteTree(journalDirectory);
+    journalDirectory.createDirectoryAndParents();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    service.releaseAcks();
+    server.shutdownNow();
+    server.awaitTermination();
+  }
+
+  private BuildEventServiceTransport createTransport(long window) {
+    return new BuildEventServiceTransport(
+        new ManagedBuildEventServiceGrpcClient(
+            InProcessChannelBuilder.forName("BES server for " + getClass())
+                .directExecutor()
+                .build(),
+            /* callCredentials= */ null),
+        /* uploadTimeout= */ Duration.ZERO,
+        /* publishLifecycleEvents= */ true,
+        "build-request-id",
+        "invocation-id",
+        "build",
+        new ModuleEnvironment() {
+          @Override
+          public Path getFileFromWorkspace(Label label) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public void exit(AbruptExitException exception) {
+            exits.add(exception);
+          }
+        },
+        new ManualClock(),
+        Options.getDefaults(BuildEventProtocolOptions.class),
+        commandLineReporter,
+        /* projectId= */ null,
+        ImmutableSet.of(),
+        /* besResultsUrl= */ null,
+        LOCAL_FILES_UPLOADER,
+        /* sleeper= */ millis -> {},
+        /* errorsShouldFailTheBuild= */ true,
+        new EventBus(),
+        new BuildEventServiceJournal<>(
+            journalDirectory.getChild("invocation-id"),
+            window,
+            PublishBuildToolEventStreamRequest.parser()));
+  }
+
+  private static void sendEvents(BuildEventServiceTransport transport) {
+    for (int i = 0; i < EVENTS; i++) {
+      transport.sendBuildEvent(
+          new GenericBuildEvent(BuildEventId.progressId(i), ImmutableList.of()), NO_NAMER);
+    }
+  }
+
+  /** The sequence numbers of all events and of the final stream-finished event. */
+  private static List<Long> allSequenceNumbers() {
+    return LongStream.rangeClosed(1, EVENTS + 1).boxed().collect(Collectors.toList());
+  }
+
+  @Test
+  public void spilledEventsAreUploadedInOrder() throws Exception {
+    BuildEventServiceTransport transport = createTransport(/* window= */ 1);
+    sendEvents(transport);
+    transport.close().get();
+
+    service.finished.await();
+    assertThat(service.received).containsExactlyElementsIn(allSequenceNumbers()).inOrder();
+    assertThat(exits).isEmpty();
+  }
+
+  @Test
+  public void streamIsReplayedFromJournalAfterFailure() throws Exception {
+    service.failOnce = 5;
+    BuildEventServiceTransport transport = createTransport(/* window= */ 1024);
+    sendEvents(transport);
+    transport.close().get();
+
+    service.finished.await();
+    // The failed event is sent again on the new stream, followed by the rest.
+    List<Long> expected = new ArrayList<>(allSequenceNumbers().subList(0, 5));
+    expected.addAll(allSequenceNumbers().subList(4, EVENTS + 1));
+    assertThat(service.received).containsExactlyElementsIn(expected).inOrder();
+    assertThat(exits).isEmpty();
+  }
+
+  @Test
+  public void closeDoesNotWaitForAcks() throws Exception {
+    service.holdAcks = true;
+    BuildEventServiceTransport transport = createTransport(/* window= */ 1);
+    sendEvents(transport);
+    transport.close().get(TestUtils.WAIT_TIMEOUT_SECONDS, SECONDS);
+    assertThat(service.finished.getCount()).isEqualTo(1);
+
+    // The upload finishes after the transport is closed.
+    service.releaseAcks();
+    service.finished.await();
+    assertThat(service.received).containsExactlyElementsIn(allSequenceNumbers()).inOrder();
+  }
+
+  /**
+   * A stand-in for a BES backend that acknowledges every event it receives, unless it is told to
+   * fail the stream once or to hold back the acknowledgements.
+   */
+  private static final class FakeBuildEventService extends PublishBuildEventImplBase {
+    final List<Long> received = new CopyOnWriteArrayList<>();
+    final CountDownLatch finished = new CountDownLatch(1);
+    /** The stream fails instead of acknowledging the event with this sequence number. */
+    volatile long failOnce = -1;
+    /** Acknowledgements are sent only after {@link #releaseAcks} while this is set. */
+    volatile boolean holdAcks;
+
+    private final List<Runnable> heldAcks = new ArrayList<>();
+
+    @Override
+    public void publishLifecycleEvent(
+        PublishLifecycleEventRequest request, StreamObserver<Empty> responseObserver) {
+      responseObserver.onNext(Empty.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<PublishBuildToolEventStreamRequest> publishBuildToolEventStream(
+        StreamObserver<PublishBuildToolEventStreamResponse> responseObserver) {
+      return new StreamObserver<PublishBuildToolEventStreamRequest>() {
+        private boolean failed;
+
+        @Override
+        public void onNext(PublishBuildToolEventStreamRequest request) {
+          if (failed) {
+            return;
+          }
+          long sequenceNumber = request.getOrderedBuildEvent().getSequenceNumber();
+          received.add(sequenceNumber);
+          if (sequenceNumber == failOnce) {
+            failOnce = -1;
+            failed = true;
+            responseObserver.onError(Status.UNAVAILABLE.asException());
+            return;
+          }
+          boolean last = request.getOrderedBuildEvent().getEvent().hasComponentStreamFinished();
+          ack(
+              () -> {
+                responseObserver.onNext(
+                    PublishBuildToolEventStreamResponse.newBuilder()
+                        .setStreamId(request.getOrderedBuildEvent().getStreamId())
+                        .setSequenceNumber(sequenceNumber)
+                        .build());
+                if (last) {
+                  finished.countDown();
+                }
+              });
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {
+          if (!failed) {
+            ack(responseObserver::onCompleted);
+          }
+        }
+      };
+    }
+
+    private synchronized void ack(Runnable ack) {
+      if (holdAcks) {
+        heldAcks.add(ack);
+      } else {
+        ack.run();
+      }
+    }
+
+    synchronized void releaseAcks() {
+      holdAcks = false;
+      heldAcks.forEach(Runnable::run);
+      heldAcks.clear();
+    }
+  }
+}
@@ -44,11 +44,14 @@ import com.google.devtools.common.options.Options;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -118,6 +121,37 @@ public class BinaryFormatFileTransportTest {
     }
   }
 
+  @Test
+  public void testCompressedFile() throws Exception {
+    File output = tmp.newFile();
+
+    BinaryFormatFileTransport transport =
+        new BinaryFormatFileTransport(
+            output.getAbsolutePath(),
+            defaultOpts,
+            LOCAL_FILES_UPLOADER,
+            (e) -> {},
+            /* compress= */ true);
+    List<BuildEventStreamProtos.BuildEvent> events = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      BuildEventStreamProtos.BuildEvent event =
+          BuildEventStreamProtos.BuildEvent.newBuilder()
+              .setProgress(Progress.newBuilder().setStdout("line " + i))
+              .build();
+      when(buildEvent.asStreamProto(Matchers.<BuildEventContext>any())).thenReturn(event);
+      transport.sendBuildEvent(buildEvent, artifactGroupNamer);
+      events.add(event);
+    }
+
+    transport.close().get();
+    try (InputStream in = new GZIPInputStream(new FileInputStream(output))) {
+      for (BuildEventStreamProtos.BuildEvent event : events) {
+        assertThat(BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(in)).isEqualTo(event);
+      }
+      assertThat(in.read()).isEqualTo(-1);
+    }
+  }
+
   @Test
   public void testFileDoesNotExist() throws Exception {
     // Get a file that doesn't exist by creating a new file and immediately deleting it.
@@ -0,0 +1,226 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.buildeventstream.transports;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader.LOCAL_FILES_UPLOADER;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.buildeventstream.BuildEventId;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildEvent;
+import com.google.devtools.build.lib.buildeventstream.transports.FileTransport.SequentialWriter;
+import com.google.devtools.build.lib.util.AbruptExitException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the write queue of {@link FileTransport}. */
+@RunWith(JUnit4.class)
+public class FileTransportTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+  @Rule public final Timeout globalTimeout = new Timeout(60000);
+
+  private final ExecutorService sender = Executors.newSingleThreadExecutor();
+  private final List<AbruptExitException> exits =
+      Collections.synchronizedList(new ArrayList<>());
+
+  @After
+  public void tearDown() {
+    sender.shutdownNow();
+  }
+
+  private static BuildEvent event(int id) {
+    return BuildEvent.newBuilder().setId(BuildEventId.progressId(id).asStreamProto()).build();
+  }
+
+  private static byte[] serialize(BuildEvent event) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      event.writeDelimitedTo(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  private SequentialWriter newWriter(File output, Function<BuildEvent, byte[]> serializeFunc) {
+    return new SequentialWriter(
+        output.getAbsolutePath(),
+        /* compress= */ false,
+        serializeFunc,
+        exits::add,
+        LOCAL_FILES_UPLOADER,
+        "FileTransportTest");
+  }
+
+  /**
+   * Sends an event whose conversion doesn't finish, waits for the writer to wait for it and fills
+   * the queue behind it.
+   */
+  private SettableFuture<BuildEvent> fillQueue(SequentialWriter writer) throws Exception {
+    SettableFuture<BuildEvent> first = SettableFuture.create();
+    writer.write(first);
+    while (!writer.pendingWrites.isEmpty()) {
+      Thread.sleep(10);
+    }
+    for (int i = 1; i <= SequentialWriter.MAX_PENDING_WRITES; i++) {
+      writer.write(Futures.immediateFuture(event(i)));
+    }
+    assertThat(writer.pendingWrites.remainingCapacity()).isEqualTo(0);
+    return first;
+  }
+
+  private static void assertBlocked(Future<?> future) throws Exception {
+    try {
+      future.get(2 * SequentialWriter.FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+      throw new AssertionError("expected the sender to be blocked");
+    } catch (TimeoutException expected) {
+      // Expected.
+    }
+  }
+
+  private static void assertWrittenInOrder(File output, int count) throws IOException {
+    try (InputStream in = new FileInputStream(output)) {
+      for (int i = 0; i < count; i++) {
+        assertThat(BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(in)).isEqualTo(event(i));
+      }
+      assertThat(in.available()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testFullQueueBlocksTheSender() throws Exception {
+    File output = tmp.newFile();
+    SequentialWriter writer = newWriter(output, FileTransportTest::serialize);
+    SettableFuture<BuildEvent> first = fillQueue(writer);
+
+    int last = SequentialWriter.MAX_PENDING_WRITES + 1;
+    Future<?> blocked = sender.submit(() -> writer.write(Futures.immediateFuture(event(last))));
+    assertBlocked(blocked);
+
+    first.set(event(0));
+    blocked.get();
+    writer.close().get();
+
+    assertWrittenInOrder(output, last + 1);
+    assertThat(exits).isEmpty();
+  }
+
+  @Test
+  public void testCloseNowReleasesBlockedSenders() throws Exception {
+    File output = tmp.newFile();
+    SequentialWriter writer = newWriter(output, FileTransportTest::serialize);
+    SettableFuture<BuildEvent> first = fillQueue(writer);
+
+    Future<?> blocked = sender.submit(() -> writer.write(Futures.immediateFuture(event(-1))));
+    assertBlocked(blocked);
+
+    // The writer is still waiting for the first event, but the queue is dropped.
+    writer.closeNow();
+    blocked.get();
+
+    first.set(event(0));
+    writer.close().get();
+    try (InputStream in = new FileInputStream(output)) {
+      assertThat(BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(in)).isEqualTo(event(0));
+      // The released event may have been queued before the writer was closed, the dropped ones
+      // were not written.
+      if (in.available() > 0) {
+        assertThat(BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(in)).isEqualTo(event(-1));
+      }
+      assertThat(in.available()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testCloseWaitsForSpaceAndReleasesBlockedSenders() throws Exception {
+    File output = tmp.newFile();
+    SequentialWriter writer = newWriter(output, FileTransportTest::serialize);
+    SettableFuture<BuildEvent> first = fillQueue(writer);
+
+    Future<?> closing = sender.submit(() -> writer.close().get());
+    assertBlocked(closing);
+
+    first.set(event(0));
+    closing.get();
+
+    assertThat(writer.isClosed()).isTrue();
+    assertWrittenInOrder(output, SequentialWriter.MAX_PENDING_WRITES + 1);
+  }
+
+  @Test
+  public void testWriterFailureReleasesBlockedSenders() throws Exception {
+    File output = tmp.newFile();
+    SequentialWriter writer = newWriter(output, FileTransportTest::serialize);
+    SettableFuture<BuildEvent> first = fillQueue(writer);
+
+    Future<?> blocked = sender.submit(() -> writer.write(Futures.immediateFuture(event(-1))));
+    assertBlocked(blocked);
+
+    first.setException(new IOException("conversion failed"));
+    blocked.get();
+
+    writer.close().get();
+    assertThat(exits).hasSize(1);
+  }
+
+  @Test
+  public void testEventsAreWrittenInOrderWhenLaterOnesAreSerializedFirst() throws Exception {
+    int count = 10;
+    CountDownLatch laterEventsSerialized = new CountDownLatch(count - 1);
+    File output = tmp.newFile();
+    SequentialWriter writer =
+        newWriter(
+            output,
+            event -> {
+              laterEventsSerialized.countDown();
+              return serialize(event);
+            });
+
+    SettableFuture<BuildEvent> first = SettableFuture.create();
+    writer.write(first);
+    for (int i = 1; i < count; i++) {
+      writer.write(Futures.immediateFuture(event(i)));
+    }
+    laterEventsSerialized.await();
+    first.set(event(0));
+    writer.close().get();
+
+    assertWrittenInOrder(output, count);
+    assertThat(exits).isEmpty();
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
+import com.google.devtools.build.lib.util.Fingerprint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Microbenchmarks for flattening and fingerprinting {@link NestedSet}s shaped like the transitive
+ * inputs of large builds.
+ */
+public class NestedSetBenchmark {
+  /** The shape of the dependency graph the nested sets are built from. */
+  enum Shape {
+    /**
+     * Libraries that each depend on a few of the libraries below them, so that most child sets are
+     * shared by many parents, like the transitive jars of Java targets.
+     */
+    DIAMONDS,
+    /**
+     * A binary that depends directly on many libraries with many sources each, like the transitive
+     * object files of a C++ binary.
+     */
+    WIDE,
+  }
+
+  @Param({"DIAMONDS", "WIDE"})
+  Shape shape;
+
+  @Param({"1000"})
+  int libraries;
+
+  @Param({"false", "true"})
+  boolean parallel;
+
+  private ForkJoinPool pool;
+
+  @BeforeExperiment
+  void setUp() {
+    pool =
+        NamedForkJoinPool.newNamedPool(
+            "nested-set-benchmark", Runtime.getRuntime().availableProcessors());
+  }
+
+  @Benchmark
+  int flatten(int reps) {
+    int size = 0;
+    for (int i = 0; i < reps; i++) {
+      // Every set is flattened only once, so build new ones every time.
+      size += build().toList().size();
+    }
+    return size;
+  }
+
+  @Benchmark
+  int fingerprint(int reps) {
+    int hash = 0;
+    for (int i = 0; i < reps; i++) {
+      NestedSet<String> set = build();
+      NestedSetFingerprintCache cache = new NestedSetFingerprintCache(parallel ? pool : null);
+      Fingerprint fingerprint = new Fingerprint();
+      cache.addNestedSetToFingerprint(fingerprint, set);
+      hash += fingerprint.hexDigestAndReset().hashCode();
+    }
+    return hash;
+  }
+
+  private NestedSet<String> build() {
+    switch (shape) {
+      case DIAMONDS:
+        return buildDiamonds();
+      case WIDE:
+        return buildWide();
+    }
+    throw new AssertionError(shape);
+  }
+
+  private NestedSet<String> buildDiamonds() {
+    List<NestedSet<String>> sets = new ArrayList<>(libraries);
+    for (int i = 0; i < libraries; i++) {
+      NestedSetBuilder<String> builder = NestedSetBuilder.stableOrder();
+      builder.add("lib" + i + ".jar");
+      // Depend on the previous few libraries and a couple of far away ones.
+      for (int dep : new int[] {i - 1, i - 2, i - 3, i / 2, i / 3}) {
+        if (dep >= 0 && dep < i) {
+          builder.addTransitive(sets.get(dep));
+        }
+      }
+      sets.add(builder.build());
+    }
+    return sets.get(libraries - 1);
+  }
+
+  private NestedSet<String> buildWide() {
+    NestedSetBuilder<String> binary = NestedSetBuilder.stableOrder();
+    for (int i = 0; i < libraries; i++) {
+      NestedSetBuilder<String> library = NestedSetBuilder.stableOrder();
+      for (int j = 0; j < 20; j++) {
+        library.add("lib" + i + "/src" + j + ".o");
+      }
+      binary.addTransitive(library.build());
+    }
+    return binary.build();
+  }
+}
@@ -21,8 +21,13 @@ import com.google.common.collect.Multiset;
 import com.google.devtools.build.lib.actions.CommandLineItem;
 import com.google.devtools.build.lib.actions.CommandLineItem.CapturingMapFn;
 import com.google.devtools.build.lib.actions.CommandLineItem.MapFn;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
 import com.google.devtools.build.lib.testutil.MoreAsserts;
 import com.google.devtools.build.lib.util.Fingerprint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 import org.junit.Before;
 import org.junit.Test;
@@ -92,6 +97,39 @@ public class NestedSetFingerprintCacheTest {
     }
   }
 
+  @Test
+  public void testParallelFingerprintIsSameAsSerialFingerprint() {
+    // Builds a random graph where most sets have many child sets, shared between parents.
+    Random random = new Random(42);
+    List<NestedSet<String>> sets = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      NestedSetBuilder<String> builder = NestedSetBuilder.stableOrder();
+      builder.add("s" + i).add("t" + i);
+      for (int j = 0; j < 10 && !sets.isEmpty(); j++) {
+        builder.addTransitive(sets.get(random.nextInt(sets.size())));
+      }
+      sets.add(builder.build());
+    }
+    NestedSetBuilder<String> top = NestedSetBuilder.stableOrder();
+    for (NestedSet<String> set : sets) {
+      top.addTransitive(set);
+    }
+    NestedSet<String> nestedSet = top.build();
+
+    Fingerprint serialFingerprint = new Fingerprint();
+    new NestedSetFingerprintCache(/*pool=*/ null)
+        .addNestedSetToFingerprint(serialFingerprint, nestedSet);
+    ForkJoinPool pool = NamedForkJoinPool.newNamedPool("fingerprint-test", 4);
+    try {
+      Fingerprint parallelFingerprint = new Fingerprint();
+      new NestedSetFingerprintCache(pool).addNestedSetToFingerprint(parallelFingerprint, nestedSet);
+      assertThat(parallelFingerprint.hexDigestAndReset())
+          .isEqualTo(serialFingerprint.hexDigestAndReset());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
   @Test
   public void testMapFn() {
     // Make sure that the map function assigns completely different key spaces
@@ -122,6 +122,7 @@ public class SkylarkSemanticsConsistencyTest {
             + rand.nextDouble()
             + ","
             + rand.nextDouble(),
+        "--experimental_compile_skylark_functions=" + rand.nextBoolean(),
         "--experimental_enable_repo_mapping=" + rand.nextBoolean(),
         "--experimental_remap_main_repo=" + rand.nextBoolean(),
         "--incompatible_bzl_disallow_load_after_statement=" + rand.nextBoolean(),
@@ -158,6 +159,7 @@ public class SkylarkSemanticsConsistencyTest {
         // <== Add new options here in alphabetic order ==>
         .experimentalCcSkylarkApiEnabledPackages(
             ImmutableList.of(String.valueOf(rand.nextDouble()), String.valueOf(rand.nextDouble())))
+        .experimentalCompileSkylarkFunctions(rand.nextBoolean())
         .experimentalEnableRepoMapping(rand.nextBoolean())
         .experimentalRemapMainRepo(rand.nextBoolean())
         .incompatibleBzlDisallowLoadAfterStatement(rand.nextBoolean())
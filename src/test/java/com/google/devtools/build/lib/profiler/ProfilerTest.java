@@ -17,6 +17,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.profiler.Profiler.Format.BINARY_BAZEL_FORMAT;
 import static com.google.devtools.build.lib.profiler.Profiler.Format.JSON_TRACE_FILE_FORMAT;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
@@ -30,6 +31,10 @@ import com.google.devtools.build.lib.testutil.ManualClock;
 import com.google.devtools.build.lib.testutil.Suite;
 import com.google.devtools.build.lib.testutil.TestSpec;
 import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -404,6 +409,55 @@ public class ProfilerTest {
     assertThat(endId).isGreaterThan(info.tasksByThread.get(id2)[9999].id);
   }
 
+  @Test
+  public void testJsonTraceFileFormatNamesEachThreadOnce() throws Exception {
+    ByteArrayOutputStream buffer = start(ProfiledTaskKinds.ALL, JSON_TRACE_FILE_FORMAT);
+    // Log more tasks than fit into the buffer of a thread, so that the thread has to wait for the
+    // writer.
+    Thread thread =
+        new Thread("profiled thread") {
+          @Override
+          public void run() {
+            for (int i = 0; i < 10000; i++) {
+              try (SilentCloseable c = profiler.profile(ProfilerTask.INFO, "outer")) {
+                clock.advanceMillis(1);
+                Profiler.instance().logEvent(ProfilerTask.INFO, "inner");
+              }
+            }
+          }
+        };
+    thread.start();
+    thread.join();
+    profiler.stop();
+
+    JsonArray events =
+        new JsonParser().parse(new String(buffer.toByteArray(), UTF_8)).getAsJsonArray();
+    int threadNames = 0;
+    int outerTasks = 0;
+    int innerTasks = 0;
+    for (JsonElement element : events) {
+      JsonObject event = element.getAsJsonObject();
+      if (event.get("tid").getAsLong() != thread.getId()) {
+        continue;
+      }
+      String name = event.get("name").getAsString();
+      if (name.equals("thread_name")) {
+        assertThat(event.getAsJsonObject("args").get("name").getAsString())
+            .isEqualTo("profiled thread");
+        threadNames++;
+      } else if (name.equals("outer")) {
+        assertThat(event.get("ph").getAsString()).isEqualTo("X");
+        outerTasks++;
+      } else if (name.equals("inner")) {
+        assertThat(event.get("ph").getAsString()).isEqualTo("i");
+        innerTasks++;
+      }
+    }
+    assertThat(threadNames).isEqualTo(1);
+    assertThat(outerTasks).isEqualTo(10000);
+    assertThat(innerTasks).isEqualTo(10000);
+  }
+
   @Test
   public void testPhaseTasks() throws Exception {
     ByteArrayOutputStream buffer = start(ProfiledTaskKinds.ALL, BINARY_BAZEL_FORMAT);
@@ -0,0 +1,141 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link TaskRingBuffer}. */
+@RunWith(JUnit4.class)
+public class TaskRingBufferTest {
+
+  private static void publish(TaskRingBuffer buffer, int id) {
+    TaskRingBuffer.Slot slot = buffer.claim();
+    assertThat(slot).isNotNull();
+    slot.id = id;
+    slot.type = ProfilerTask.INFO;
+    slot.description = "task " + id;
+    buffer.publish();
+  }
+
+  private static int pollAndRelease(TaskRingBuffer buffer) {
+    TaskRingBuffer.Slot slot = buffer.poll();
+    assertThat(slot).isNotNull();
+    int id = slot.id;
+    assertThat(slot.description).isEqualTo("task " + id);
+    buffer.release(slot);
+    return id;
+  }
+
+  @Test
+  public void testCapacityMustBePowerOfTwo() {
+    try {
+      new TaskRingBuffer(Thread.currentThread(), 3);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().contains("power of two");
+    }
+  }
+
+  @Test
+  public void testPollReturnsPublishedTasksInOrder() {
+    TaskRingBuffer buffer = new TaskRingBuffer(Thread.currentThread(), 4);
+    assertThat(buffer.poll()).isNull();
+
+    publish(buffer, 1);
+    publish(buffer, 2);
+    assertThat(pollAndRelease(buffer)).isEqualTo(1);
+    assertThat(pollAndRelease(buffer)).isEqualTo(2);
+    assertThat(buffer.poll()).isNull();
+  }
+
+  @Test
+  public void testClaimedSlotIsInvisibleUntilPublished() {
+    TaskRingBuffer buffer = new TaskRingBuffer(Thread.currentThread(), 4);
+    TaskRingBuffer.Slot slot = buffer.claim();
+    slot.id = 1;
+    slot.description = "task 1";
+    assertThat(buffer.poll()).isNull();
+    buffer.publish();
+    assertThat(pollAndRelease(buffer)).isEqualTo(1);
+  }
+
+  @Test
+  public void testFullBufferRefusesClaimsUntilReleased() {
+    TaskRingBuffer buffer = new TaskRingBuffer(Thread.currentThread(), 4);
+    for (int i = 0; i < 4; i++) {
+      publish(buffer, i);
+    }
+    assertThat(buffer.claim()).isNull();
+
+    // Polling alone does not free the slot, releasing it does.
+    TaskRingBuffer.Slot slot = buffer.poll();
+    assertThat(buffer.claim()).isNull();
+    buffer.release(slot);
+    assertThat(slot.description).isNull();
+    publish(buffer, 4);
+    assertThat(buffer.claim()).isNull();
+
+    for (int i = 1; i <= 4; i++) {
+      assertThat(pollAndRelease(buffer)).isEqualTo(i);
+    }
+    assertThat(buffer.poll()).isNull();
+  }
+
+  @Test
+  public void testConcurrentProducerAndConsumer() throws Exception {
+    int tasks = 100000;
+    AtomicReference<TaskRingBuffer> bufferRef = new AtomicReference<>();
+    Thread producer =
+        new Thread() {
+          @Override
+          public void run() {
+            TaskRingBuffer buffer = bufferRef.get();
+            for (int i = 0; i < tasks; i++) {
+              TaskRingBuffer.Slot slot;
+              while ((slot = buffer.claim()) == null) {
+                Thread.yield();
+              }
+              slot.id = i;
+              slot.description = "task " + i;
+              buffer.publish();
+            }
+          }
+        };
+    TaskRingBuffer buffer = new TaskRingBuffer(producer, 16);
+    bufferRef.set(buffer);
+    producer.start();
+
+    int next = 0;
+    while (next < tasks) {
+      TaskRingBuffer.Slot slot = buffer.poll();
+      if (slot == null) {
+        Thread.yield();
+        continue;
+      }
+      assertThat(slot.id).isEqualTo(next);
+      assertThat(slot.description).isEqualTo("task " + next);
+      buffer.release(slot);
+      next++;
+    }
+    producer.join();
+    assertThat(buffer.isOwnerAlive()).isFalse();
+    assertThat(buffer.poll()).isNull();
+  }
+}
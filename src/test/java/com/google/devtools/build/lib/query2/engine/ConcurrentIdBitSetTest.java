@@ -0,0 +1,100 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ConcurrentIdBitSet}. */
+@RunWith(JUnit4.class)
+public class ConcurrentIdBitSetTest {
+  private final ConcurrentIdBitSet set = new ConcurrentIdBitSet();
+
+  @Test
+  public void addShouldReturnWhetherTheIdIsNew() {
+    assertThat(set.contains(5)).isFalse();
+    assertThat(set.add(5)).isTrue();
+    assertThat(set.add(5)).isFalse();
+    assertThat(set.contains(5)).isTrue();
+    assertThat(set.contains(4)).isFalse();
+    assertThat(set.contains(6)).isFalse();
+  }
+
+  @Test
+  public void idsShouldBeKeptApartAcrossWordsAndBlocks() {
+    // The last and first bits of words and of blocks of 4096 ids.
+    int[] ids = {0, 63, 64, 4095, 4096, 4097, 8191, 8192, 1 << 20, Integer.MAX_VALUE};
+    for (int id : ids) {
+      assertThat(set.add(id)).isTrue();
+    }
+    for (int id : ids) {
+      assertThat(set.contains(id)).isTrue();
+      assertThat(set.add(id)).isFalse();
+    }
+    for (int id : new int[] {1, 62, 65, 4094, 4098, 8190, 8193, (1 << 20) + 1}) {
+      assertThat(set.contains(id)).isFalse();
+    }
+  }
+
+  @Test
+  public void idsOfUnallocatedBlocksAndNegativeIdsShouldNotBeContained() {
+    set.add(1);
+    assertThat(set.contains(1 << 24)).isFalse();
+    // The id of keys that were never interned.
+    assertThat(set.contains(-1)).isFalse();
+  }
+
+  @Test
+  public void everyIdShouldBeAddedOnceByConcurrentAdds() throws Exception {
+    int threads = 8;
+    int ids = 20000;
+    AtomicInteger added = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  // All threads add all ids, so they race on every bit and every new block.
+                  for (int id = 0; id < ids; id++) {
+                    if (set.add(id)) {
+                      added.incrementAndGet();
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(added.get()).isEqualTo(ids);
+    for (int id = 0; id < ids; id++) {
+      assertThat(set.contains(id)).isTrue();
+    }
+    assertThat(set.contains(ids)).isFalse();
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link IdBlocks}. */
+@RunWith(JUnit4.class)
+public class IdBlocksTest {
+  private final AtomicInteger created = new AtomicInteger();
+  private final IdBlocks<Object> blocks = new IdBlocks<>(() -> created.incrementAndGet());
+
+  @Test
+  public void missingBlocksShouldNotBeCreatedByGet() {
+    assertThat(blocks.get(0)).isNull();
+    assertThat(blocks.get(100)).isNull();
+    assertThat(created.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void blocksShouldSurviveGrowth() {
+    Object first = blocks.getOrCreate(0);
+    Object second = blocks.getOrCreate(1);
+    // Grows the directory past twice its size.
+    Object far = blocks.getOrCreate(1000);
+
+    assertThat(blocks.get(0)).isSameAs(first);
+    assertThat(blocks.get(1)).isSameAs(second);
+    assertThat(blocks.get(1000)).isSameAs(far);
+    assertThat(blocks.getOrCreate(1)).isSameAs(second);
+    assertThat(blocks.get(999)).isNull();
+    assertThat(blocks.get(1001)).isNull();
+    assertThat(created.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void concurrentCallsShouldCreateEachBlockOnce() throws Exception {
+    int threads = 8;
+    int indices = 500;
+    List<List<Object>> seen = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<Object>>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  List<Object> result = new ArrayList<>();
+                  for (int index = 0; index < indices; index++) {
+                    result.add(blocks.getOrCreate(index));
+                  }
+                  return result;
+                }));
+      }
+      for (Future<List<Object>> future : futures) {
+        seen.add(future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(created.get()).isEqualTo(indices);
+    for (List<Object> result : seen) {
+      for (int index = 0; index < indices; index++) {
+        assertThat(result.get(index)).isSameAs(blocks.get(index));
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link IdInterner}. */
+@RunWith(JUnit4.class)
+public class IdInternerTest {
+  private final IdInterner<String> interner = new IdInterner<>(/*concurrencyLevel=*/ 4);
+
+  @Test
+  public void idsShouldBeDenseAndStable() {
+    assertThat(interner.intern("a")).isEqualTo(0);
+    assertThat(interner.intern("b")).isEqualTo(1);
+    assertThat(interner.intern("a")).isEqualTo(0);
+    assertThat(interner.getId("b")).isEqualTo(1);
+    assertThat(interner.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void keysThatWereNeverInternedShouldHaveNoId() {
+    interner.intern("a");
+    assertThat(interner.getId("b")).isEqualTo(-1);
+    assertThat(interner.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void concurrentInterningShouldAssignEachKeyOneId() throws Exception {
+    int threads = 8;
+    int keys = 10000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<int[]> results = new ArrayList<>();
+    try {
+      List<Future<int[]>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  int[] ids = new int[keys];
+                  for (int key = 0; key < keys; key++) {
+                    ids[key] = interner.intern("key" + key);
+                  }
+                  return ids;
+                }));
+      }
+      for (Future<int[]> future : futures) {
+        results.add(future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(interner.size()).isEqualTo(keys);
+    Set<Integer> distinctIds = new HashSet<>();
+    for (int key = 0; key < keys; key++) {
+      int id = interner.getId("key" + key);
+      assertThat(id).isAtLeast(0);
+      assertThat(id).isLessThan(keys);
+      distinctIds.add(id);
+      for (int[] ids : results) {
+        assertThat(ids[key]).isEqualTo(id);
+      }
+    }
+    assertThat(distinctIds).hasSize(keys);
+  }
+}
@@ -0,0 +1,234 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.IdMinDepthUniquifierImpl;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.IdUniquifierImpl;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the id-based uniquifiers of {@link QueryUtil}. */
+@RunWith(JUnit4.class)
+public class QueryUtilTest {
+  private static final KeyExtractor<String, String> IDENTITY = element -> element;
+
+  private final IdInterner<String> interner = new IdInterner<>(/*concurrencyLevel=*/ 4);
+
+  private IdUniquifierImpl<String, String> newUniquifier() {
+    return new IdUniquifierImpl<>(IDENTITY, interner);
+  }
+
+  private IdMinDepthUniquifierImpl<String, String> newMinDepthUniquifier() {
+    return new IdMinDepthUniquifierImpl<>(IDENTITY, interner);
+  }
+
+  @Test
+  public void uniquifierShouldReturnElementsOnce() throws Exception {
+    IdUniquifierImpl<String, String> uniquifier = newUniquifier();
+    assertThat(uniquifier.uniquePure("a")).isTrue();
+    assertThat(uniquifier.unique("a")).isTrue();
+    assertThat(uniquifier.uniquePure("a")).isFalse();
+    assertThat(uniquifier.unique("a")).isFalse();
+    assertThat(uniquifier.unique(ImmutableList.of("a", "b", "c", "b"))).containsExactly("b", "c");
+  }
+
+  @Test
+  public void uniquePureShouldNotRecordElements() {
+    IdUniquifierImpl<String, String> uniquifier = newUniquifier();
+    assertThat(uniquifier.uniquePure("a")).isTrue();
+    assertThat(uniquifier.uniquePure("a")).isTrue();
+    // Doesn't intern the element either.
+    assertThat(interner.getId("a")).isEqualTo(-1);
+  }
+
+  @Test
+  public void uniquifiersSharingAnInternerShouldBeIndependent() throws Exception {
+    IdUniquifierImpl<String, String> first = newUniquifier();
+    IdUniquifierImpl<String, String> second = newUniquifier();
+    first.unique("a");
+    assertThat(second.uniquePure("a")).isTrue();
+    assertThat(second.unique("a")).isTrue();
+    assertThat(interner.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void uniquifierShouldHandleElementsInManyBlocks() throws Exception {
+    IdUniquifierImpl<String, String> uniquifier = newUniquifier();
+    for (int i = 0; i < 10000; i++) {
+      assertThat(uniquifier.unique("e" + i)).isTrue();
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertThat(uniquifier.uniquePure("e" + i)).isFalse();
+    }
+  }
+
+  /** Filters {@code lhs} the way {@code lhs ^ rhs...} and {@code lhs - rhs...} are evaluated. */
+  private ImmutableList<String> filter(
+      List<String> lhs, List<List<String>> rhs, boolean keepSeen) throws Exception {
+    List<IdUniquifierImpl<String, String>> rhsValues = new ArrayList<>();
+    for (List<String> operand : rhs) {
+      IdUniquifierImpl<String, String> value = newUniquifier();
+      for (String element : operand) {
+        value.unique(element);
+      }
+      rhsValues.add(value);
+    }
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    for (String element : lhs) {
+      boolean seenByAll = true;
+      boolean seenByNone = true;
+      for (IdUniquifierImpl<String, String> value : rhsValues) {
+        if (value.uniquePure(element)) {
+          seenByAll = false;
+        } else {
+          seenByNone = false;
+        }
+      }
+      if (keepSeen ? seenByAll : seenByNone) {
+        result.add(element);
+      }
+    }
+    return result.build();
+  }
+
+  @Test
+  public void intersectShouldKeepElementsOfAllOperands() throws Exception {
+    assertThat(
+            filter(
+                ImmutableList.of("a", "b", "c", "d"),
+                ImmutableList.of(ImmutableList.of("b", "c", "x"), ImmutableList.of("c", "b", "y")),
+                /*keepSeen=*/ true))
+        .containsExactly("b", "c")
+        .inOrder();
+    // An element that no operand has seen was never interned.
+    assertThat(
+            filter(
+                ImmutableList.of("z"),
+                ImmutableList.of(ImmutableList.of("a")),
+                /*keepSeen=*/ true))
+        .isEmpty();
+  }
+
+  @Test
+  public void exceptShouldDropElementsOfAnyOperand() throws Exception {
+    assertThat(
+            filter(
+                ImmutableList.of("a", "b", "c", "d"),
+                ImmutableList.of(ImmutableList.of("b"), ImmutableList.of("d", "x")),
+                /*keepSeen=*/ false))
+        .containsExactly("a", "c")
+        .inOrder();
+    assertThat(
+            filter(
+                ImmutableList.of("z"),
+                ImmutableList.of(ImmutableList.of("a")),
+                /*keepSeen=*/ false))
+        .containsExactly("z");
+  }
+
+  @Test
+  public void lowerDepthShouldWinAndHigherDepthShouldBeRejected() {
+    IdMinDepthUniquifierImpl<String, String> uniquifier = newMinDepthUniquifier();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualToPure("a", 5)).isTrue();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo("a", 5)).isTrue();
+
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo("a", 5)).isFalse();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo("a", 7)).isFalse();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualToPure("a", 6)).isFalse();
+
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualToPure("a", 3)).isTrue();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo("a", 3)).isTrue();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo("a", 4)).isFalse();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo("a", 0)).isTrue();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo("a", 0)).isFalse();
+  }
+
+  @Test
+  public void minDepthPureShouldNotRecordDepths() {
+    IdMinDepthUniquifierImpl<String, String> uniquifier = newMinDepthUniquifier();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualToPure("a", 2)).isTrue();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualToPure("a", 2)).isTrue();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo("a", 2)).isTrue();
+  }
+
+  @Test
+  public void minDepthShouldBeTrackedPerElementAcrossBlocks() {
+    IdMinDepthUniquifierImpl<String, String> uniquifier = newMinDepthUniquifier();
+    for (int i = 0; i < 10000; i++) {
+      assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo("e" + i, i % 7)).isTrue();
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertThat(uniquifier.uniqueAtDepthLessThanOrEqualToPure("e" + i, i % 7)).isFalse();
+      if (i % 7 > 0) {
+        assertThat(uniquifier.uniqueAtDepthLessThanOrEqualToPure("e" + i, i % 7 - 1)).isTrue();
+      }
+    }
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo(ImmutableList.of("e7", "e8", "x"), 0))
+        .containsExactly("e8", "x")
+        .inOrder();
+  }
+
+  @Test
+  public void concurrentMinDepthUpdatesShouldKeepTheMinimum() throws Exception {
+    IdMinDepthUniquifierImpl<String, String> uniquifier = newMinDepthUniquifier();
+    int threads = 8;
+    int rounds = 200;
+    AtomicInteger accepted = new AtomicInteger();
+    CyclicBarrier barrier = new CyclicBarrier(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        int thread = i;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int round = 0; round < rounds; round++) {
+                    barrier.await();
+                    // Every thread offers a different depth for the element of the round.
+                    if (uniquifier.uniqueAtDepthLessThanOrEqualTo("r" + round, thread + 1)) {
+                      accepted.incrementAndGet();
+                    }
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    for (int round = 0; round < rounds; round++) {
+      // Whatever the interleaving, the lowest depth was recorded last.
+      assertThat(uniquifier.uniqueAtDepthLessThanOrEqualToPure("r" + round, 1)).isFalse();
+      assertThat(uniquifier.uniqueAtDepthLessThanOrEqualToPure("r" + round, 0)).isTrue();
+    }
+    // At least one offer per round, and at most one per thread.
+    assertThat(accepted.get()).isAtLeast(rounds);
+    assertThat(accepted.get()).isAtMost(rounds * threads);
+  }
+}
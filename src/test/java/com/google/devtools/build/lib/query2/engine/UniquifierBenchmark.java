@@ -0,0 +1,150 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.IdMinDepthUniquifierImpl;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.IdUniquifierImpl;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.MinDepthUniquifierImpl;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.UniquifierImpl;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for the hash-based ({@link UniquifierImpl}) and id-based ({@link IdUniquifierImpl})
+ * uniquifiers, visiting the reverse dependencies of a synthetic target graph like rdeps does.
+ *
+ * <p>The graph imitates a large monorepo: every target depends on a few targets defined before it,
+ * mostly nearby ones, and a visitation from the most depended-upon targets reaches most of it.
+ */
+public class UniquifierBenchmark {
+  private static final int DEPS_PER_TARGET = 3;
+  private static final int ROOTS = 10;
+
+  @Param({"100000", "5000000"})
+  int targets;
+
+  @Param({"hash", "id"})
+  String uniquifier;
+
+  private String[] labels;
+  // Shared by all uniquifiers, like the interner of a query is shared by all of its uniquifiers.
+  private IdInterner<String> interner;
+  // rdeps[i] holds the targets that depend on target i.
+  private int[][] rdeps;
+
+  @BeforeExperiment
+  void setUp() {
+    Random random = new Random(42);
+    labels = new String[targets];
+    int[] rdepCounts = new int[targets];
+    int[][] deps = new int[targets][];
+    for (int i = 0; i < targets; i++) {
+      labels[i] = "//pkg" + (i / 50) + ":target" + i;
+      int depCount = Math.min(i, DEPS_PER_TARGET);
+      deps[i] = new int[depCount];
+      for (int j = 0; j < depCount; j++) {
+        // Half of the deps are within the last thousand targets, the others anywhere before.
+        int dep =
+            random.nextBoolean()
+                ? i - 1 - random.nextInt(Math.min(i, 1000))
+                : random.nextInt(Math.max(1, i / 100));
+        deps[i][j] = dep;
+        rdepCounts[dep]++;
+      }
+    }
+    interner = new IdInterner<>(/*concurrencyLevel=*/ 1);
+    rdeps = new int[targets][];
+    for (int i = 0; i < targets; i++) {
+      rdeps[i] = new int[rdepCounts[i]];
+      rdepCounts[i] = 0;
+    }
+    for (int i = 0; i < targets; i++) {
+      for (int dep : deps[i]) {
+        rdeps[dep][rdepCounts[dep]++] = i;
+      }
+    }
+  }
+
+  private Uniquifier<String> newUniquifier() {
+    return uniquifier.equals("hash")
+        ? new UniquifierImpl<>(label -> label)
+        : new IdUniquifierImpl<>(label -> label, interner);
+  }
+
+  private MinDepthUniquifier<String> newMinDepthUniquifier() {
+    return uniquifier.equals("hash")
+        ? new MinDepthUniquifierImpl<>(label -> label, /*concurrencyLevel=*/ 1)
+        : new IdMinDepthUniquifierImpl<>(label -> label, interner);
+  }
+
+  /** Visits all the reverse dependencies of the roots, like {@code allrdeps(roots)}. */
+  @Benchmark
+  int allRdeps(int reps) throws Exception {
+    int visited = 0;
+    for (int rep = 0; rep < reps; rep++) {
+      Uniquifier<String> uniquifier = newUniquifier();
+      List<Integer> current = new ArrayList<>();
+      for (int root = 0; root < ROOTS; root++) {
+        if (uniquifier.unique(labels[root])) {
+          current.add(root);
+        }
+      }
+      while (!current.isEmpty()) {
+        visited += current.size();
+        List<Integer> next = new ArrayList<>();
+        for (int target : current) {
+          for (int rdep : rdeps[target]) {
+            if (uniquifier.unique(labels[rdep])) {
+              next.add(rdep);
+            }
+          }
+        }
+        current = next;
+      }
+    }
+    return visited;
+  }
+
+  /**
+   * Visits the reverse dependencies of the roots up to a depth, like {@code allrdeps(roots, 8)}.
+   */
+  @Benchmark
+  int boundedRdeps(int reps) {
+    int visited = 0;
+    for (int rep = 0; rep < reps; rep++) {
+      MinDepthUniquifier<String> uniquifier = newMinDepthUniquifier();
+      List<Integer> current = new ArrayList<>();
+      for (int root = 0; root < ROOTS; root++) {
+        current.add(root);
+      }
+      for (int depth = 0; depth <= 8 && !current.isEmpty(); depth++) {
+        List<Integer> next = new ArrayList<>();
+        for (int target : current) {
+          if (uniquifier.uniqueAtDepthLessThanOrEqualTo(labels[target], depth)) {
+            visited++;
+            for (int rdep : rdeps[target]) {
+              next.add(rdep);
+            }
+          }
+        }
+        current = next;
+      }
+    }
+    return visited;
+  }
+}
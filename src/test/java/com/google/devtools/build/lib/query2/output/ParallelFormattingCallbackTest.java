@@ -0,0 +1,148 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.packages.Target;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelFormattingCallback}. */
+@RunWith(JUnit4.class)
+public class ParallelFormattingCallbackTest {
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+  /** Writes the names of the targets, one per line, between a header and a footer. */
+  private class NameFormattingCallback extends ParallelFormattingCallback {
+    NameFormattingCallback(int parallelism) {
+      super(out, parallelism);
+    }
+
+    @Override
+    protected void writeHeader(OutputStream out) throws IOException {
+      out.write("header\n".getBytes(UTF_8));
+    }
+
+    @Override
+    protected void writeTarget(Target target, OutputStream out)
+        throws IOException, InterruptedException {
+      String name = target.getName();
+      int index = Integer.parseInt(name);
+      if (index % 64 == 0) {
+        // Holds up every chunk of 64 targets a little longer than the one after it, so that the
+        // chunks finish out of order.
+        Thread.sleep(Math.max(0, 20 - index / 64));
+      }
+      out.write((name + "\n").getBytes(UTF_8));
+    }
+
+    @Override
+    protected void writeFooter(OutputStream out) throws IOException {
+      out.write("footer\n".getBytes(UTF_8));
+    }
+  }
+
+  private static List<Target> targets(int count) {
+    List<Target> targets = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Target target = mock(Target.class);
+      when(target.getName()).thenReturn(Integer.toString(i));
+      targets.add(target);
+    }
+    return targets;
+  }
+
+  private static String expectedOutput(List<Target> targets) {
+    StringBuilder expected = new StringBuilder("header\n");
+    for (Target target : targets) {
+      expected.append(target.getName()).append('\n');
+    }
+    return expected.append("footer\n").toString();
+  }
+
+  private void format(ParallelFormattingCallback callback, List<Target> targets) throws Exception {
+    callback.start();
+    // Several batches, none of which is a multiple of a chunk.
+    for (List<Target> batch : Iterables.partition(targets, 100)) {
+      callback.processOutput(batch);
+    }
+    callback.close(/*failFast=*/ false);
+  }
+
+  @Test
+  public void outputShouldBeInProcessingOrder() throws Exception {
+    List<Target> targets = targets(1000);
+    format(new NameFormattingCallback(/*parallelism=*/ 4), targets);
+
+    assertThat(out.toString(UTF_8.name())).isEqualTo(expectedOutput(targets));
+  }
+
+  @Test
+  public void outputShouldNotDependOnParallelism() throws Exception {
+    List<Target> targets = targets(300);
+    format(new NameFormattingCallback(/*parallelism=*/ 1), targets);
+    String serial = out.toString(UTF_8.name());
+    out.reset();
+    format(new NameFormattingCallback(/*parallelism=*/ 8), targets);
+
+    assertThat(out.toString(UTF_8.name())).isEqualTo(serial);
+  }
+
+  @Test
+  public void failureToWriteATargetShouldBePropagated() throws Exception {
+    List<Target> targets = targets(500);
+    ParallelFormattingCallback callback =
+        new NameFormattingCallback(/*parallelism=*/ 4) {
+          @Override
+          protected void writeTarget(Target target, OutputStream out)
+              throws IOException, InterruptedException {
+            if (target.getName().equals("100")) {
+              throw new IOException("cannot write 100");
+            }
+            super.writeTarget(target, out);
+          }
+        };
+    try {
+      format(callback, targets);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().isEqualTo("cannot write 100");
+    }
+    assertThat(out.toString(UTF_8.name())).doesNotContain("footer");
+  }
+
+  @Test
+  public void failFastCloseShouldDropPendingTargets() throws Exception {
+    ParallelFormattingCallback callback = new NameFormattingCallback(/*parallelism=*/ 4);
+    callback.start();
+    callback.processOutput(targets(1000));
+    callback.close(/*failFast=*/ true);
+
+    String output = out.toString(UTF_8.name());
+    assertThat(output).startsWith("header\n");
+    assertThat(output).doesNotContain("footer");
+  }
+}
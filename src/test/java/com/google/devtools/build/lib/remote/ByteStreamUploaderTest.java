@@ -236,6 +236,64 @@ public class ByteStreamUploaderTest {
     withEmptyMetadata.detach(prevContext);
   }
 
+  @Test
+  public void uploadsShouldNotExceedMaxBytesInFlight() throws Exception {
+    Context prevContext = withEmptyMetadata.attach();
+    RemoteRetrier retrier =
+        new RemoteRetrier(() -> mockBackoff, (e) -> true, retryService, Retrier.ALLOW_ALL_CALLS);
+    // Room for the chunks of only one upload at a time.
+    ByteStreamUploader uploader =
+        new ByteStreamUploader(
+            INSTANCE_NAME, new ReferenceCountedChannel(channel), null, 3, retrier, CHUNK_SIZE);
+
+    int numUploads = 10;
+    List<Chunker> builders = new ArrayList<>(numUploads);
+    Random rand = new Random();
+    for (int i = 0; i < numUploads; i++) {
+      byte[] blob = new byte[CHUNK_SIZE * 3];
+      rand.nextBytes(blob);
+      builders.add(Chunker.builder(DIGEST_UTIL).setInput(blob).setChunkSize(CHUNK_SIZE).build());
+    }
+
+    AtomicInteger activeUploads = new AtomicInteger();
+    AtomicInteger maxActiveUploads = new AtomicInteger();
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public StreamObserver<WriteRequest> write(StreamObserver<WriteResponse> response) {
+            return new StreamObserver<WriteRequest>() {
+              @Override
+              public void onNext(WriteRequest writeRequest) {
+                if (writeRequest.getWriteOffset() == 0) {
+                  maxActiveUploads.accumulateAndGet(activeUploads.incrementAndGet(), Math::max);
+                }
+              }
+
+              @Override
+              public void onError(Throwable throwable) {
+                fail("onError should never be called.");
+              }
+
+              @Override
+              public void onCompleted() {
+                activeUploads.decrementAndGet();
+                response.onNext(
+                    WriteResponse.newBuilder().setCommittedSize(CHUNK_SIZE * 3).build());
+                response.onCompleted();
+              }
+            };
+          }
+        });
+
+    uploader.uploadBlobs(builders, true);
+
+    blockUntilInternalStateConsistent(uploader);
+    assertThat(maxActiveUploads.get()).isEqualTo(1);
+    assertThat(uploader.bytesInFlight()).isEqualTo(0);
+
+    withEmptyMetadata.detach(prevContext);
+  }
+
   @Test
   public void contextShouldBePreservedUponRetries() throws Exception {
     Context prevContext = withEmptyMetadata.attach();
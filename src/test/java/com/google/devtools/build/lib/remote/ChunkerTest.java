@@ -17,19 +17,26 @@ import static com.google.common.truth.Truth.assertThat;
 import static junit.framework.TestCase.fail;
 
 import build.bazel.remote.execution.v2.Digest;
+import com.google.common.io.Files;
 import com.google.devtools.build.lib.remote.Chunker.Chunk;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.protobuf.ByteString;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.Mockito;
@@ -38,6 +45,8 @@ import org.mockito.Mockito;
 @RunWith(JUnit4.class)
 public class ChunkerTest {
 
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
   private final DigestUtil digestUtil = new DigestUtil(DigestHashFunction.SHA256);
 
   @Test
@@ -163,6 +172,32 @@ public class ChunkerTest {
     Mockito.verify(in.get()).close();
   }
 
+  @Test
+  public void chunksOfLargeFilesSurviveTruncation() throws Exception {
+    byte[] data = new byte[1024 * 1024 + 17];
+    new Random().nextBytes(data);
+    File file = tmp.newFile();
+    Files.write(data, file);
+    Digest digest = digestUtil.compute(data);
+    Chunker chunker =
+        new Chunker(
+            () -> {
+              try {
+                return new FileInputStream(file);
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            },
+            digest,
+            4096,
+            digestUtil);
+    Chunk first = chunker.next();
+    // Truncating the file must not affect chunks that were already handed out.
+    new FileOutputStream(file).close();
+    assertThat(first.getData().toByteArray()).isEqualTo(Arrays.copyOf(data, 4096));
+    chunker.reset();
+  }
+
   private void assertNextEquals(Chunker chunker, byte... data) throws IOException {
     assertThat(chunker.hasNext()).isTrue();
     ByteString next = chunker.next().getData();
@@ -283,6 +283,7 @@ public class GrpcRemoteExecutionClientTest {
             executor,
             retrier,
             DIGEST_UTIL,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
     inputDigest = fakeFileCache.createScratchInput(simpleSpawn.getInputFiles().get(0), "xyz");
     command =
@@ -0,0 +1,173 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MissingDigestsFinder}. */
+@RunWith(JUnit4.class)
+public class MissingDigestsFinderTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(DigestHashFunction.SHA256);
+
+  private final Digest foo = DIGEST_UTIL.computeAsUtf8("foo");
+  private final Digest bar = DIGEST_UTIL.computeAsUtf8("bar");
+  private final Digest baz = DIGEST_UTIL.computeAsUtf8("baz");
+  private final Digest qux = DIGEST_UTIL.computeAsUtf8("qux");
+
+  /** A fake server that is missing a fixed set of blobs and records the calls it receives. */
+  private static final class FakeServer implements MissingDigestsFinder.FindMissingBlobs {
+    private final ImmutableSet<Digest> missing;
+    final List<ImmutableList<Digest>> calls = Collections.synchronizedList(new ArrayList<>());
+
+    FakeServer(Digest... missing) {
+      this.missing = ImmutableSet.copyOf(missing);
+    }
+
+    @Override
+    public ImmutableSet<Digest> findMissing(Iterable<Digest> digests) {
+      ImmutableList<Digest> call = ImmutableList.copyOf(digests);
+      calls.add(call);
+      ImmutableSet.Builder<Digest> result = ImmutableSet.builder();
+      for (Digest digest : call) {
+        if (missing.contains(digest)) {
+          result.add(digest);
+        }
+      }
+      return result.build();
+    }
+  }
+
+  @Test
+  public void requestsDuringACallShouldBeMerged() throws Exception {
+    FakeServer server = new FakeServer(foo, baz, qux);
+    CountDownLatch firstCallStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstCall = new CountDownLatch(1);
+    MissingDigestsFinder finder =
+        new MissingDigestsFinder(
+            digests -> {
+              if (firstCallStarted.getCount() > 0) {
+                firstCallStarted.countDown();
+                releaseFirstCall.await();
+              }
+              return server.findMissing(digests);
+            },
+            /*batchWindowMillis=*/ 60_000,
+            /*maxBatchSize=*/ 100);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Future<ImmutableSet<Digest>> first =
+          executor.submit(() -> finder.getMissingDigests(ImmutableList.of(foo)));
+      firstCallStarted.await();
+      Future<ImmutableSet<Digest>> second =
+          executor.submit(() -> finder.getMissingDigests(ImmutableList.of(bar, baz)));
+      Future<ImmutableSet<Digest>> third =
+          executor.submit(() -> finder.getMissingDigests(ImmutableList.of(baz, qux)));
+      while (finder.getRequestedDigests() < 5) {
+        Thread.sleep(1);
+      }
+      releaseFirstCall.countDown();
+
+      assertThat(first.get()).containsExactly(foo);
+      assertThat(second.get()).containsExactly(baz);
+      assertThat(third.get()).containsExactly(baz, qux);
+      assertThat(server.calls).hasSize(2);
+      assertThat(server.calls.get(0)).containsExactly(foo);
+      assertThat(server.calls.get(1)).containsExactly(bar, baz, qux);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void loneRequestShouldNotWaitForBatchWindow() throws Exception {
+    FakeServer server = new FakeServer(foo);
+    MissingDigestsFinder finder =
+        new MissingDigestsFinder(server, /*batchWindowMillis=*/ 60_000, /*maxBatchSize=*/ 100);
+
+    long start = System.nanoTime();
+    assertThat(finder.getMissingDigests(ImmutableList.of(foo, bar))).containsExactly(foo);
+    assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(30));
+  }
+
+  @Test
+  public void presentDigestsShouldNotBeRequestedAgain() throws Exception {
+    FakeServer server = new FakeServer(foo);
+    MissingDigestsFinder finder =
+        new MissingDigestsFinder(server, /*batchWindowMillis=*/ 0, /*maxBatchSize=*/ 100);
+
+    assertThat(finder.getMissingDigests(ImmutableList.of(foo, bar))).containsExactly(foo);
+    finder.markPresent(ImmutableList.of(foo));
+    assertThat(finder.getMissingDigests(ImmutableList.of(foo, bar))).isEmpty();
+    assertThat(finder.getMissingDigests(ImmutableList.of(bar, baz))).isEmpty();
+
+    assertThat(server.calls).hasSize(2);
+    assertThat(server.calls.get(1)).containsExactly(baz);
+  }
+
+  @Test
+  public void largeRequestsShouldBeSplit() throws Exception {
+    FakeServer server = new FakeServer(bar);
+    MissingDigestsFinder finder =
+        new MissingDigestsFinder(server, /*batchWindowMillis=*/ 0, /*maxBatchSize=*/ 2);
+
+    assertThat(finder.getMissingDigests(ImmutableList.of(foo, bar, baz))).containsExactly(bar);
+    assertThat(server.calls).hasSize(2);
+    assertThat(finder.getCalls()).isEqualTo(2);
+  }
+
+  @Test
+  public void failedRequestsShouldBeRetriedLater() throws Exception {
+    Set<Digest> requested = Collections.synchronizedSet(new HashSet<>());
+    MissingDigestsFinder finder =
+        new MissingDigestsFinder(
+            digests -> {
+              if (requested.isEmpty()) {
+                digests.forEach(requested::add);
+                throw new IOException("unavailable");
+              }
+              return ImmutableSet.copyOf(digests);
+            },
+            /*batchWindowMillis=*/ 0,
+            /*maxBatchSize=*/ 100);
+
+    try {
+      finder.getMissingDigests(ImmutableList.of(foo));
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("unavailable");
+    }
+    assertThat(finder.getMissingDigests(ImmutableList.of(foo))).containsExactly(foo);
+  }
+}
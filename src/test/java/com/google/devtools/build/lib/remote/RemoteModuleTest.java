@@ -0,0 +1,74 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.util.AbruptExitException;
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.Options;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RemoteModule}. */
+@RunWith(JUnit4.class)
+public class RemoteModuleTest {
+  private final RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+
+  private static void assertRejected(RemoteOptions options) {
+    try {
+      RemoteModule.checkDigestFunction(options, DigestHashFunction.SHA256_TREE);
+      fail();
+    } catch (AbruptExitException e) {
+      assertThat(e.getExitCode()).isEqualTo(ExitCode.COMMAND_LINE_ERROR);
+      assertThat(e).hasMessageThat().contains("SHA-256-TREE");
+    }
+  }
+
+  @Test
+  public void treeDigestsShouldBeRejectedForRemoteCaches() {
+    options.remoteCache = "localhost:1234";
+    assertRejected(options);
+  }
+
+  @Test
+  public void treeDigestsShouldBeRejectedForRemoteExecution() {
+    options.remoteExecutor = "localhost:1234";
+    assertRejected(options);
+  }
+
+  @Test
+  public void treeDigestsShouldBeRejectedForHttpCaches() {
+    options.remoteHttpCache = "http://localhost:1234";
+    assertRejected(options);
+  }
+
+  @Test
+  public void treeDigestsShouldBeAllowedForTheDiskCache() throws Exception {
+    options.diskCache = PathFragment.create("/tmp/cache");
+    RemoteModule.checkDigestFunction(options, DigestHashFunction.SHA256_TREE);
+  }
+
+  @Test
+  public void otherDigestFunctionsShouldBeAllowedForRemoteCaches() throws Exception {
+    options.remoteCache = "localhost:1234";
+    options.remoteExecutor = "localhost:1234";
+    RemoteModule.checkDigestFunction(options, DigestHashFunction.SHA256);
+    RemoteModule.checkDigestFunction(options, DigestHashFunction.SHA1);
+  }
+}
@@ -190,7 +190,8 @@ public class RemoteSpawnCacheTest {
             "build-req-id",
             "command-id",
             reporter,
-            digestUtil);
+            digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0));
     fakeFileCache.createScratchInput(simpleSpawn.getInputFiles().get(0), "xyz");
   }
 
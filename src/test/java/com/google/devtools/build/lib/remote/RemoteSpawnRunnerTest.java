@@ -179,6 +179,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     ExecuteResponse succeeded = ExecuteResponse.newBuilder().setResult(
@@ -241,6 +242,7 @@ public class RemoteSpawnRunnerTest {
             null,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     // Throw an IOException to trigger the local fallback.
@@ -297,6 +299,7 @@ public class RemoteSpawnRunnerTest {
                 null,
                 retrier,
                 digestUtil,
+                new MerkleTreeCache(/*maxDirectories=*/ 0),
                 logDir));
 
     Spawn spawn = newSimpleSpawn();
@@ -358,6 +361,7 @@ public class RemoteSpawnRunnerTest {
                 null,
                 retrier,
                 digestUtil,
+                new MerkleTreeCache(/*maxDirectories=*/ 0),
                 logDir));
 
     try {
@@ -394,6 +398,7 @@ public class RemoteSpawnRunnerTest {
             null,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     Spawn spawn = newSimpleSpawn();
@@ -454,6 +459,7 @@ public class RemoteSpawnRunnerTest {
             null,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     Spawn spawn = newSimpleSpawn();
@@ -495,6 +501,7 @@ public class RemoteSpawnRunnerTest {
             null,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     Spawn spawn = newSimpleSpawn();
@@ -533,6 +540,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     when(cache.getCachedActionResult(any(ActionKey.class))).thenReturn(null);
@@ -570,6 +578,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     Digest logDigest = digestUtil.computeAsUtf8("bla");
@@ -612,6 +621,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     Digest logDigest = digestUtil.computeAsUtf8("bla");
@@ -657,6 +667,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     Digest logDigest = digestUtil.computeAsUtf8("bla");
@@ -697,6 +708,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     Digest logDigest = digestUtil.computeAsUtf8("bla");
@@ -739,6 +751,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     ActionResult cachedResult = ActionResult.newBuilder().setExitCode(0).build();
@@ -785,6 +798,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     ActionResult cachedResult = ActionResult.newBuilder().setExitCode(0).build();
@@ -834,6 +848,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     ActionResult cachedResult = ActionResult.newBuilder().setExitCode(0).build();
@@ -881,6 +896,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     ActionResult cachedResult = ActionResult.newBuilder().setExitCode(0).build();
@@ -923,6 +939,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     when(cache.getCachedActionResult(any(ActionKey.class))).thenReturn(null);
@@ -961,6 +978,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     when(cache.getCachedActionResult(any(ActionKey.class))).thenThrow(new IOException());
@@ -996,6 +1014,7 @@ public class RemoteSpawnRunnerTest {
             executor,
             retrier,
             digestUtil,
+            new MerkleTreeCache(/*maxDirectories=*/ 0),
             logDir);
 
     ExecuteResponse succeeded =
@@ -135,6 +135,37 @@ public class TreeNodeRepositoryTest {
     assertThat(repo.getAllDigests(root)).hasSize(3);
   }
 
+  @Test
+  public void testMerkleTreeCacheSharedBetweenRepositories() throws Exception {
+    Artifact fooCc = new Artifact(scratch.file("/exec/root/a/foo.cc", "1"), rootDir);
+    Artifact fooH = new Artifact(scratch.file("/exec/root/a/foo.h", "2"), rootDir);
+    Artifact bar = new Artifact(scratch.file("/exec/root/b/bar.txt", "3"), rootDir);
+    Artifact baz = new Artifact(scratch.file("/exec/root/c/baz.txt", "4"), rootDir);
+    MetadataProvider inputFileCache =
+        new SingleBuildFileCache(execRoot.getPathString(), scratch.getFileSystem());
+    MerkleTreeCache cache = new MerkleTreeCache(/*maxDirectories=*/ 100);
+
+    TreeNodeRepository repo1 = new TreeNodeRepository(execRoot, inputFileCache, digestUtil, cache);
+    TreeNode root1 = buildFromActionInputs(repo1, fooCc, fooH, bar);
+    repo1.computeMerkleDigests(root1);
+    repo1.markUploaded(root1);
+
+    TreeNodeRepository repo2 = new TreeNodeRepository(execRoot, inputFileCache, digestUtil, cache);
+    TreeNode root2 = buildFromActionInputs(repo2, fooCc, fooH, baz);
+    repo2.computeMerkleDigests(root2);
+    TreeNode aNode = root2.getChildEntries().get(0).getChild();
+    TreeNode cNode = root2.getChildEntries().get(1).getChild();
+    // The "a" subtree is shared with the first tree, so it is reused and known to be uploaded.
+    assertThat(aNode).isSameAs(root1.getChildEntries().get(0).getChild());
+    assertThat(repo2.getMerkleDigest(aNode)).isEqualTo(repo1.getMerkleDigest(aNode));
+    assertThat(repo2.getDigestsNotUploaded(root2))
+        .containsExactly(
+            repo2.getMerkleDigest(root2),
+            repo2.getMerkleDigest(cNode),
+            repo2.getMerkleDigest(cNode.getChildEntries().get(0).getChild()));
+    assertThat(repo2.getAllDigests(root2)).hasSize(6);
+  }
+
   @Test
   public void testEmptyTree() throws Exception {
     SortedMap<PathFragment, ActionInput> inputs = new TreeMap<>();
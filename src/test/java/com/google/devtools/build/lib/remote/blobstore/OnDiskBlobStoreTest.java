@@ -0,0 +1,157 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.remote.util.Utils.getFromFuture;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link OnDiskBlobStore}. */
+@RunWith(JUnit4.class)
+public class OnDiskBlobStoreTest {
+
+  private Path root;
+
+  @Before
+  public final void setUp() throws Exception {
+    root = new InMemoryFileSystem().getPath("/cache");
+    root.createDirectoryAndParents();
+  }
+
+  @Test
+  public void blobsAreStoredInFanOutDirectories() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root);
+    put(store, "abcdef", new byte[] {1, 2, 3});
+    store.putActionResult("123456", new byte[] {4, 5});
+
+    assertThat(root.getRelative("cas/ab/abcdef").isFile()).isTrue();
+    assertThat(root.getRelative("ac/12/123456").isFile()).isTrue();
+    assertThat(store.containsKey("abcdef")).isTrue();
+    assertThat(get(store, "abcdef")).isEqualTo(new byte[] {1, 2, 3});
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(store.getActionResult("123456", out)).isTrue();
+    assertThat(out.toByteArray()).isEqualTo(new byte[] {4, 5});
+  }
+
+  @Test
+  public void missingBlobIsNotFound() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root);
+    assertThat(store.containsKey("abcdef")).isFalse();
+    assertThat(getFromFuture(store.get("abcdef", new ByteArrayOutputStream()))).isFalse();
+  }
+
+  @Test
+  public void leastRecentlyUsedBlobsAreEvicted() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, /* maxSizeBytes= */ 100);
+    store.awaitBackgroundWork();
+    put(store, "aa0000", new byte[40]);
+    put(store, "bb0000", new byte[40]);
+    // Touch the first blob so that the second one is the least recently used.
+    assertThat(get(store, "aa0000")).hasLength(40);
+    put(store, "cc0000", new byte[40]);
+    store.awaitBackgroundWork();
+
+    assertThat(store.containsKey("aa0000")).isTrue();
+    assertThat(store.containsKey("bb0000")).isFalse();
+    assertThat(store.containsKey("cc0000")).isTrue();
+    assertThat(store.getIndexedSizeBytes()).isEqualTo(80);
+    store.close();
+  }
+
+  @Test
+  public void containsKeyCountsAsAccess() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, /* maxSizeBytes= */ 100);
+    store.awaitBackgroundWork();
+    put(store, "aa0000", new byte[40]);
+    put(store, "bb0000", new byte[40]);
+    assertThat(store.containsKey("aa0000")).isTrue();
+    put(store, "cc0000", new byte[40]);
+    store.awaitBackgroundWork();
+
+    assertThat(store.containsKey("aa0000")).isTrue();
+    assertThat(store.containsKey("bb0000")).isFalse();
+    store.close();
+  }
+
+  @Test
+  public void flatLayoutIsMigrated() throws Exception {
+    FileSystemUtils.writeContent(root.getChild("abcdef"), new byte[] {1, 2, 3});
+    FileSystemUtils.writeContent(root.getChild("ac_123456"), new byte[] {4, 5});
+    FileSystemUtils.writeContent(
+        root.getChild("0e4b8a2c-54a4-4c28-b1a9-d1f3c7b04e57"), new byte[] {6});
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root);
+    store.awaitBackgroundWork();
+
+    assertThat(get(store, "abcdef")).isEqualTo(new byte[] {1, 2, 3});
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(store.getActionResult("123456", out)).isTrue();
+    assertThat(out.toByteArray()).isEqualTo(new byte[] {4, 5});
+    assertThat(root.getChild("abcdef").exists()).isFalse();
+    assertThat(root.getChild("ac_123456").exists()).isFalse();
+    assertThat(root.getChild("0e4b8a2c-54a4-4c28-b1a9-d1f3c7b04e57").exists()).isFalse();
+    store.close();
+  }
+
+  @Test
+  public void staleTempFilesAreDeleted() throws Exception {
+    Path stale = root.getRelative("tmp/0e4b8a2c-54a4-4c28-b1a9-d1f3c7b04e57");
+    Path recent = root.getRelative("tmp/9d1a7c3e-1f2b-4c5d-8e6f-a7b8c9d0e1f2");
+    stale.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContent(stale, new byte[] {1});
+    FileSystemUtils.writeContent(recent, new byte[] {2});
+    stale.setLastModifiedTime(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root);
+    store.awaitBackgroundWork();
+
+    assertThat(stale.exists()).isFalse();
+    assertThat(recent.exists()).isTrue();
+    store.close();
+  }
+
+  @Test
+  public void existingBlobsAreIndexedOnStartup() throws Exception {
+    OnDiskBlobStore unbounded = new OnDiskBlobStore(root);
+    put(unbounded, "aa0000", new byte[60]);
+    put(unbounded, "bb0000", new byte[60]);
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root, /* maxSizeBytes= */ 100);
+    store.awaitBackgroundWork();
+
+    assertThat(store.getIndexedSizeBytes()).isEqualTo(60);
+    store.close();
+  }
+
+  private static void put(OnDiskBlobStore store, String key, byte[] data) throws Exception {
+    store.put(key, data.length, new ByteArrayInputStream(data));
+  }
+
+  private static byte[] get(OnDiskBlobStore store, String key) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(getFromFuture(store.get(key, out))).isTrue();
+    return out.toByteArray();
+  }
+}
@@ -115,9 +115,9 @@ public class CompressedTarFunctionTest {
     Path outputDir =
         new CompressedTarFunction() {
           @Override
-          protected InputStream getDecompressorStream(DecompressorDescriptor descriptor)
+          protected InputStream getDecompressorStream(InputStream compressedStream)
               throws IOException {
-            return new GZIPInputStream(new FileInputStream(descriptor.archivePath().getPathFile()));
+            return new GZIPInputStream(compressedStream);
           }
         }.decompress(descriptorBuilder.build());
 
@@ -138,15 +138,32 @@ public class CompressedTarFunctionTest {
     Path outputDir =
         new CompressedTarFunction() {
           @Override
-          protected InputStream getDecompressorStream(DecompressorDescriptor descriptor)
+          protected InputStream getDecompressorStream(InputStream compressedStream)
               throws IOException {
-            return new GZIPInputStream(new FileInputStream(descriptor.archivePath().getPathFile()));
+            return new GZIPInputStream(compressedStream);
           }
         }.decompress(descriptorBuilder.build());
 
     assertOutputFiles(outputDir.getRelative(INNER_FOLDER_NAME));
   }
 
+  /** Test decompressing a tar.gz file that is read from a stream, e.g. while it is downloaded. */
+  @Test
+  public void testDecompressFromStream() throws Exception {
+    descriptorBuilder.setPrefix(ROOT_FOLDER_NAME);
+
+    Path outputDir;
+    try (InputStream archiveStream = new FileInputStream(tarballPath.getPathFile())) {
+      outputDir =
+          ((CompressedTarFunction) TarGzFunction.INSTANCE)
+              .decompress(descriptorBuilder.build(), archiveStream);
+      // The stream is left open for the caller.
+      archiveStream.read();
+    }
+
+    assertOutputFiles(outputDir.getRelative(INNER_FOLDER_NAME));
+  }
+
   /** Validate the content of the output directory */
   private void assertOutputFiles(Path outputDir) throws Exception {
 
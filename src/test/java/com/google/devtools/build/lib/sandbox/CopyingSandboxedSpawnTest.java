@@ -0,0 +1,88 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CopyingSandboxedSpawn}. */
+@RunWith(JUnit4.class)
+public class CopyingSandboxedSpawnTest extends SandboxTestCase {
+  private Path workspaceDir;
+  private Path sandboxDir;
+  private Path execRoot;
+
+  @Before
+  public final void setupTestDirs() throws IOException {
+    workspaceDir = testRoot.getRelative("workspace");
+    workspaceDir.createDirectory();
+    sandboxDir = testRoot.getRelative("sandbox");
+    sandboxDir.createDirectory();
+    execRoot = sandboxDir.getRelative("execroot");
+    execRoot.createDirectory();
+  }
+
+  @Test
+  public void createFileSystem() throws Exception {
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    FileSystemUtils.writeContentAsLatin1(helloTxt, "hello");
+    // A directory input, as for tree artifacts.
+    Path tree = workspaceDir.getRelative("tree");
+    FileSystemUtils.createDirectoryAndParents(tree.getRelative("sub/subsub"));
+    FileSystemUtils.writeContentAsLatin1(tree.getRelative("top.txt"), "top");
+    FileSystemUtils.writeContentAsLatin1(tree.getRelative("sub/subsub/deep.txt"), "deep");
+    tree.getRelative("link").createSymbolicLink(PathFragment.create("top.txt"));
+
+    CopyingSandboxedSpawn copyingExecRoot =
+        new CopyingSandboxedSpawn(
+            sandboxDir,
+            execRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.of(),
+            ImmutableMap.of(
+                PathFragment.create("such/input.txt"),
+                helloTxt,
+                PathFragment.create("such/tree"),
+                tree),
+            ImmutableSet.of(PathFragment.create("very/output.txt")),
+            ImmutableSet.of(execRoot.getRelative("wow/writable")));
+
+    copyingExecRoot.createFileSystem();
+
+    Path input = execRoot.getRelative("such/input.txt");
+    assertThat(input.isFile(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(FileSystemUtils.readContentAsLatin1(input)).isEqualTo("hello".toCharArray());
+    Path treeCopy = execRoot.getRelative("such/tree");
+    assertThat(treeCopy.isDirectory(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(FileSystemUtils.readContentAsLatin1(treeCopy.getRelative("sub/subsub/deep.txt")))
+        .isEqualTo("deep".toCharArray());
+    assertThat(treeCopy.getRelative("top.txt").isFile(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(treeCopy.getRelative("link").readSymbolicLink())
+        .isEqualTo(PathFragment.create("top.txt"));
+    assertThat(execRoot.getRelative("very").isDirectory()).isTrue();
+    assertThat(execRoot.getRelative("wow/writable").isDirectory()).isTrue();
+  }
+}
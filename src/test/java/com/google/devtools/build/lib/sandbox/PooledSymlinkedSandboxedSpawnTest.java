@@ -0,0 +1,136 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.AsynchronousTreeDeleter;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PooledSymlinkedSandboxedSpawn} and {@link SandboxDirectoryPool}. */
+@RunWith(JUnit4.class)
+public class PooledSymlinkedSandboxedSpawnTest extends SandboxTestCase {
+  private Path workspaceDir;
+  private AsynchronousTreeDeleter treeDeleter;
+  private SandboxDirectoryPool pool;
+
+  @Before
+  public final void setupPool() throws IOException {
+    workspaceDir = testRoot.getRelative("workspace");
+    workspaceDir.createDirectory();
+    treeDeleter = new AsynchronousTreeDeleter(testRoot.getRelative("trash"));
+    pool = new SandboxDirectoryPool(testRoot.getRelative("pool"), treeDeleter);
+  }
+
+  @After
+  public final void shutdownDeleter() throws InterruptedException {
+    treeDeleter.shutdown();
+    treeDeleter.awaitTermination();
+  }
+
+  private PooledSymlinkedSandboxedSpawn runSpawn(
+      String mnemonic, Map<PathFragment, Path> inputs, String... outputs) throws IOException {
+    Path sandboxPath = pool.acquire(mnemonic);
+    ImmutableSet.Builder<PathFragment> outputFragments = ImmutableSet.builder();
+    for (String output : outputs) {
+      outputFragments.add(PathFragment.create(output));
+    }
+    PooledSymlinkedSandboxedSpawn spawn =
+        new PooledSymlinkedSandboxedSpawn(
+            pool,
+            mnemonic,
+            sandboxPath,
+            sandboxPath.getRelative("execroot"),
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.of(),
+            inputs,
+            outputFragments.build(),
+            ImmutableSet.of());
+    spawn.createFileSystem();
+    return spawn;
+  }
+
+  private Path createSource(String name) throws IOException {
+    Path source = workspaceDir.getRelative(name);
+    FileSystemUtils.createEmptyFile(source);
+    return source;
+  }
+
+  @Test
+  public void reusedDirectoryOnlyContainsNewInputs() throws Exception {
+    Path a = createSource("a.txt");
+    Path b = createSource("b.txt");
+    Path c = createSource("c.txt");
+
+    PooledSymlinkedSandboxedSpawn first =
+        runSpawn(
+            "Javac",
+            ImmutableMap.of(
+                PathFragment.create("pkg/a.txt"), a,
+                PathFragment.create("pkg/b.txt"), b,
+                PathFragment.create("old/c.txt"), c),
+            "out/first.jar");
+    Path execRoot = first.getSandboxExecRoot();
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("out/first.jar"));
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("pkg/leftover.txt"));
+    first.delete();
+
+    Map<PathFragment, Path> inputs = new HashMap<>();
+    inputs.put(PathFragment.create("pkg/a.txt"), a);
+    inputs.put(PathFragment.create("pkg/b.txt"), c);
+    // A null value stands for an empty file.
+    inputs.put(PathFragment.create("new/empty.txt"), null);
+    PooledSymlinkedSandboxedSpawn second = runSpawn("Javac", inputs, "out/second.jar");
+
+    assertThat(second.getSandboxExecRoot()).isEqualTo(execRoot);
+    assertThat(execRoot.getRelative("pkg/a.txt").readSymbolicLink()).isEqualTo(a.asFragment());
+    assertThat(execRoot.getRelative("pkg/b.txt").readSymbolicLink()).isEqualTo(c.asFragment());
+    assertThat(execRoot.getRelative("new/empty.txt").isFile(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(execRoot.getRelative("out").isDirectory()).isTrue();
+    assertThat(execRoot.getRelative("out/first.jar").exists()).isFalse();
+    assertThat(execRoot.getRelative("pkg/leftover.txt").exists()).isFalse();
+    assertThat(execRoot.getRelative("old").exists()).isFalse();
+    assertThat(pool.getSummary()).contains("2 spawns, 1 reused directories, 1 inputs kept");
+  }
+
+  @Test
+  public void directoriesAreOnlyReusedForTheSameMnemonic() throws Exception {
+    Path a = createSource("a.txt");
+    ImmutableMap<PathFragment, Path> inputs = ImmutableMap.of(PathFragment.create("a.txt"), a);
+
+    PooledSymlinkedSandboxedSpawn javac = runSpawn("Javac", inputs);
+    javac.delete();
+    PooledSymlinkedSandboxedSpawn genrule = runSpawn("Genrule", inputs);
+    PooledSymlinkedSandboxedSpawn otherJavac = runSpawn("Javac", inputs);
+    PooledSymlinkedSandboxedSpawn concurrentJavac = runSpawn("Javac", inputs);
+
+    assertThat(genrule.getSandboxExecRoot()).isNotEqualTo(javac.getSandboxExecRoot());
+    assertThat(otherJavac.getSandboxExecRoot()).isEqualTo(javac.getSandboxExecRoot());
+    assertThat(concurrentJavac.getSandboxExecRoot()).isNotEqualTo(javac.getSandboxExecRoot());
+  }
+}
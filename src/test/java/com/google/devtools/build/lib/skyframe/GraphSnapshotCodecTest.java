@@ -0,0 +1,185 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.FileStateValue;
+import com.google.devtools.build.lib.actions.FileValue;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.packages.BuildFileName;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.GraphTester;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.SequencedRecordingDifferencer;
+import com.google.devtools.build.skyframe.SequentialBuildDriver;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link GraphSnapshotCodec}. */
+@RunWith(JUnit4.class)
+public class GraphSnapshotCodecTest {
+  private final FileSystem fileSystem = new InMemoryFileSystem();
+  private final GraphSnapshotCodec codec = new GraphSnapshotCodec(fileSystem);
+  private Root root;
+
+  @Before
+  public final void createWorkspace() throws Exception {
+    Path workspace = fileSystem.getPath("/workspace");
+    workspace.getRelative("pkg").createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(workspace.getRelative("pkg/BUILD"), "# BUILD");
+    root = Root.fromPath(workspace);
+  }
+
+  private SkyKey roundTrip(SkyKey key) throws Exception {
+    byte[] encoded = codec.encodeKey(key);
+    assertThat(encoded).isNotNull();
+    SkyKey decoded = codec.decodeKey(encoded);
+    assertThat(decoded).isEqualTo(key);
+    return decoded;
+  }
+
+  private void roundTrip(SkyValue value) throws Exception {
+    byte[] encoded = codec.encodeValue(value);
+    assertThat(encoded).isNotNull();
+    assertThat(codec.decodeValue(encoded)).isEqualTo(value);
+  }
+
+  @Test
+  public void fileNodesRoundTrip() throws Exception {
+    RootedPath buildFile =
+        RootedPath.toRootedPath(root, fileSystem.getPath("/workspace/pkg/BUILD"));
+    RootedPath pkg = RootedPath.toRootedPath(root, fileSystem.getPath("/workspace/pkg"));
+    FileStateValue fileState = FileStateValue.create(buildFile, /*tsgm=*/ null);
+
+    SkyKey decoded = roundTrip(FileValue.key(buildFile));
+    assertThat(((RootedPath) decoded.argument()).asPath().getFileSystem()).isSameAs(fileSystem);
+    roundTrip(FileValue.value(buildFile, fileState, buildFile, fileState));
+    roundTrip(FileStateValue.key(buildFile));
+    roundTrip(fileState);
+    roundTrip(DirectoryListingStateValue.key(pkg));
+    roundTrip(DirectoryListingStateValue.create(pkg));
+    roundTrip(DirectoryListingValue.key(pkg));
+    roundTrip(
+        new DirectoryListingValue.RegularDirectoryListingValue(
+            DirectoryListingStateValue.create(pkg)));
+  }
+
+  @Test
+  public void packageLookupsRoundTrip() throws Exception {
+    roundTrip(PackageLookupValue.key(PackageIdentifier.createInMainRepo("pkg")));
+    roundTrip(PackageLookupValue.success(root, BuildFileName.BUILD));
+    roundTrip(PackageLookupValue.NO_BUILD_FILE_VALUE);
+    roundTrip(PrecomputedValue.PATH_PACKAGE_LOCATOR.getKeyForTesting());
+    roundTrip(
+        new PrecomputedValue(
+            new PathPackageLocator(
+                fileSystem.getPath("/output_base"),
+                ImmutableList.of(root),
+                ImmutableList.of(BuildFileName.BUILD))));
+  }
+
+  @Test
+  public void packageLookupIsRestoredWithItsDeps() throws Exception {
+    RootedPath buildFile =
+        RootedPath.toRootedPath(root, fileSystem.getPath("/workspace/pkg/BUILD"));
+    FileStateValue fileState = FileStateValue.create(buildFile, /*tsgm=*/ null);
+    SkyKey pkgLocatorKey = PrecomputedValue.PATH_PACKAGE_LOCATOR.getKeyForTesting();
+    SkyKey lookupKey = PackageLookupValue.key(PackageIdentifier.createInMainRepo("pkg"));
+    SkyKey containingKey =
+        ContainingPackageLookupValue.key(PackageIdentifier.createInMainRepo("pkg"));
+    GraphTester tester = new GraphTester();
+    for (SkyFunctionName functionName :
+        ImmutableList.of(
+            FileStateValue.FILE_STATE,
+            FileValue.FILE,
+            SkyFunctions.PRECOMPUTED,
+            SkyFunctions.PACKAGE_LOOKUP,
+            SkyFunctions.CONTAINING_PACKAGE_LOOKUP)) {
+      tester.putSkyFunction(functionName, tester.getFunction());
+    }
+    tester.set(FileStateValue.key(buildFile), fileState);
+    tester.set(
+        pkgLocatorKey,
+        new PrecomputedValue(
+            new PathPackageLocator(
+                fileSystem.getPath("/output_base"),
+                ImmutableList.of(root),
+                ImmutableList.of(BuildFileName.BUILD))));
+    tester
+        .getOrCreate(FileValue.key(buildFile))
+        .addDependency(FileStateValue.key(buildFile))
+        .setConstantValue(FileValue.value(buildFile, fileState, buildFile, fileState));
+    tester
+        .getOrCreate(lookupKey)
+        .addDependency(pkgLocatorKey)
+        .addDependency(FileValue.key(buildFile))
+        .setConstantValue(PackageLookupValue.success(root, BuildFileName.BUILD));
+    tester
+        .getOrCreate(containingKey)
+        .addDependency(lookupKey)
+        .setConstantValue(ContainingPackageLookupValue.NONE);
+
+    InMemoryMemoizingEvaluator evaluator =
+        new InMemoryMemoizingEvaluator(
+            tester.getSkyFunctionMap(), new SequencedRecordingDifferencer());
+    EvaluationResult<SkyValue> result =
+        new SequentialBuildDriver(evaluator)
+            .evaluate(
+                ImmutableList.of(containingKey),
+                /*keepGoing=*/ false,
+                /*numThreads=*/ 1,
+                NullEventHandler.INSTANCE);
+    assertThat(result.hasError()).isFalse();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // Everything but the containing package lookup is written.
+    assertThat(evaluator.writeSnapshot(codec, out)).isEqualTo(4);
+
+    InMemoryMemoizingEvaluator restored =
+        new InMemoryMemoizingEvaluator(
+            tester.getSkyFunctionMap(), new SequencedRecordingDifferencer());
+    GraphSnapshotCodec newCodec = new GraphSnapshotCodec(fileSystem);
+    assertThat(restored.restoreSnapshot(newCodec, new ByteArrayInputStream(out.toByteArray())))
+        .isEqualTo(4);
+    assertThat(restored.getExistingValue(lookupKey))
+        .isEqualTo(PackageLookupValue.success(root, BuildFileName.BUILD));
+    assertThat(restored.getExistingValue(containingKey)).isNull();
+  }
+
+  @Test
+  public void otherNodesAreNotEncoded() throws Exception {
+    assertThat(codec.encodeKey(PrecomputedValue.BUILD_ID.getKeyForTesting())).isNull();
+    assertThat(
+            codec.encodeKey(
+                ContainingPackageLookupValue.key(PackageIdentifier.createInMainRepo("pkg"))))
+        .isNull();
+    assertThat(codec.encodeValue(PackageLookupValue.DELETED_PACKAGE_VALUE)).isNull();
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ObjectArrays;
+import com.google.devtools.build.lib.syntax.SkylarkList.MutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Runs the evaluation tests with Skylark Environment with compiled function bodies (see {@link
+ * CompiledFunction}), which must behave exactly like interpreted ones.
+ */
+@RunWith(JUnit4.class)
+public class CompiledSkylarkEvaluationTest extends SkylarkEvaluationTest {
+
+  @Override
+  protected Environment newEnvironmentWithSkylarkOptions(String... skylarkOptions)
+      throws Exception {
+    return super.newEnvironmentWithSkylarkOptions(
+        ObjectArrays.concat(skylarkOptions, "--experimental_compile_skylark_functions=true"));
+  }
+
+  @Test
+  public void testLoopWithBreakAndContinue() throws Exception {
+    new SkylarkTest()
+        .setUp(
+            "def f(n):",
+            "  total = 0",
+            "  for i in range(n):",
+            "    if i % 3 == 0:",
+            "      continue",
+            "    if i > 20:",
+            "      break",
+            "    total += i",
+            "  return total",
+            "x = [f(0), f(5), f(100)]")
+        .testLookup("x", MutableList.of(env, 0, 7, 147));
+  }
+
+  @Test
+  public void testCollectionIsUnlockedAfterBreakAndReturn() throws Exception {
+    new SkylarkTest()
+        .setUp(
+            "def f(l):",
+            "  for x in l:",
+            "    for y in l:",
+            "      break",
+            "    return x",
+            "l = [1, 2]",
+            "y = f(l)",
+            "l.append(3)")
+        .testLookup("l", MutableList.of(env, 1, 2, 3));
+  }
+
+  @Test
+  public void testShortCircuitingOperators() throws Exception {
+    new SkylarkTest()
+        .setUp(
+            "def f(a, b):",
+            "  return [a and b, a or b, not a, a if b else b, (a and b) or 'x']",
+            "x = f(0, 1) + f('a', '')")
+        .testExactOrder("x", 0, 1, true, 0, "x", "", "a", false, "", "x");
+  }
+
+  @Test
+  public void testComprehensionReadsLocals() throws Exception {
+    new SkylarkTest()
+        .setUp(
+            "def f():",
+            "  k = 5",
+            "  y = [i * k for i in range(3)]",
+            "  return y + [k]",
+            "x = f()")
+        .testExactOrder("x", 0, 5, 10, 5);
+  }
+
+  @Test
+  public void testLocalReferencedBeforeAssignment() throws Exception {
+    new SkylarkTest("--incompatible_static_name_resolution=true")
+        .testIfErrorContains(
+            "local variable 'y' is referenced before assignment.",
+            "def f(x):",
+            "  if x:",
+            "    y = 1",
+            "  return y",
+            "f(False)");
+  }
+
+  @Test
+  public void testAssignmentToKnownGlobal() throws Exception {
+    new SkylarkTest()
+        .testIfErrorContains(
+            "Variable 'x' is referenced before assignment. "
+                + "The variable is defined in the global scope.",
+            "x = 3",
+            "def f():",
+            "  y = x",
+            "  x = 2",
+            "f()");
+  }
+}
@@ -0,0 +1,189 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.packages.BazelLibrary;
+
+/**
+ * Microbenchmarks for evaluating Skylark code with interpreted and compiled (see {@link
+ * CompiledFunction}) function bodies.
+ *
+ * <p>The corpus imitates the kind of code found in macros and rule implementations: building
+ * lists of labels and flags, manipulating paths and merging dicts of attributes.
+ */
+public class SkylarkEvaluationBenchmark {
+  private static final String[] MACROS = {
+    "def _label(name, package = ''):",
+    "  if name.startswith('//') or name.startswith('@'):",
+    "    return name",
+    "  if name.startswith(':'):",
+    "    name = name[1:]",
+    "  return '//%s:%s' % (package, name)",
+    "",
+    "def _copts(features, defines):",
+    "  copts = ['-Wall', '-Werror']",
+    "  for feature in features:",
+    "    if feature == 'opt':",
+    "      copts += ['-O2', '-DNDEBUG']",
+    "    elif feature == 'dbg':",
+    "      copts += ['-g', '-O0']",
+    "    elif feature.startswith('no_'):",
+    "      copts.append('-Wno-' + feature[3:])",
+    "  for d in defines:",
+    "    copts.append('-D' + d)",
+    "  return copts",
+    "",
+    "def cc_library_macro(name, srcs, hdrs = [], deps = [], features = [], defines = []):",
+    "  attrs = {",
+    "      'name': name,",
+    "      'srcs': srcs,",
+    "      'hdrs': hdrs,",
+    "      'deps': [_label(d, 'foo/bar') for d in deps],",
+    "      'copts': _copts(features, defines),",
+    "  }",
+    "  if not hdrs:",
+    "    attrs['hdrs'] = [s.replace('.cc', '.h') for s in srcs if s.endswith('.cc')]",
+    "  return attrs",
+    "",
+    "targets = []",
+    "for i in range(200):",
+    "  targets.append(cc_library_macro(",
+    "      name = 'lib%d' % i,",
+    "      srcs = ['a%d.cc' % i, 'b%d.cc' % i],",
+    "      deps = [':lib%d' % j for j in range(i % 5)] + ['//base'],",
+    "      features = ['opt', 'no_unused'] if i % 2 else ['dbg'],",
+    "      defines = ['N=%d' % i]))",
+  };
+
+  private static final String[] PATHS = {
+    "def _dirname(path):",
+    "  prefix, sep, _ = path.rpartition('/')",
+    "  if not prefix:",
+    "    return sep",
+    "  return prefix",
+    "",
+    "def _basename(path):",
+    "  return path.rpartition('/')[-1]",
+    "",
+    "def _relativize(path, start):",
+    "  segments = path.split('/')",
+    "  start_segments = start.split('/')",
+    "  n = 0",
+    "  for i in range(min(len(segments), len(start_segments))):",
+    "    if segments[i] != start_segments[i]:",
+    "      break",
+    "    n += 1",
+    "  return '/'.join(['..'] * (len(start_segments) - n) + segments[n:])",
+    "",
+    "def group_by_directory(files, root):",
+    "  groups = {}",
+    "  for f in files:",
+    "    d = _relativize(_dirname(f), root)",
+    "    if d in groups:",
+    "      groups[d].append(_basename(f))",
+    "    else:",
+    "      groups[d] = [_basename(f)]",
+    "  return groups",
+    "",
+    "files = ['src/main/java/com/example/pkg%d/File%d.java' % (i % 13, i) for i in range(500)]",
+    "groups = group_by_directory(files, 'src/main/java/com/example')",
+  };
+
+  private static final String[] PROVIDERS = {
+    "def _merge(infos):",
+    "  transitive = []",
+    "  direct = {}",
+    "  for info in infos:",
+    "    transitive += info['transitive']",
+    "    for k, v in info['direct'].items():",
+    "      if k not in direct:",
+    "        direct[k] = v",
+    "  return {'transitive': transitive, 'direct': direct}",
+    "",
+    "def _info(i):",
+    "  return {'transitive': ['t%d' % i], 'direct': {'k%d' % (i % 7): i}}",
+    "",
+    "def collect(n):",
+    "  infos = []",
+    "  for i in range(n):",
+    "    infos.append(_info(i))",
+    "  result = _merge(infos)",
+    "  total = 0",
+    "  for v in result['direct'].values():",
+    "    total += v",
+    "  return len(result['transitive']), total",
+    "",
+    "results = [collect(n) for n in range(1, 60)]",
+  };
+
+  @Param({"macros", "paths", "providers"})
+  String corpus;
+
+  @Param({"false", "true"})
+  boolean compile;
+
+  private SkylarkSemantics semantics;
+  private BuildFileAST ast;
+
+  @BeforeExperiment
+  void setUp() throws Exception {
+    semantics =
+        SkylarkSemantics.DEFAULT_SEMANTICS
+            .toBuilder()
+            .experimentalCompileSkylarkFunctions(compile)
+            .build();
+    String[] lines;
+    switch (corpus) {
+      case "macros":
+        lines = MACROS;
+        break;
+      case "paths":
+        lines = PATHS;
+        break;
+      case "providers":
+        lines = PROVIDERS;
+        break;
+      default:
+        throw new IllegalArgumentException(corpus);
+    }
+    try (Mutability mutability = Mutability.create("benchmark")) {
+      ast = BuildFileAST.parseAndValidateSkylarkString(newEnvironment(mutability), lines);
+    }
+  }
+
+  private Environment newEnvironment(Mutability mutability) {
+    return Environment.builder(mutability)
+        .setSemantics(semantics)
+        .setGlobals(BazelLibrary.GLOBALS)
+        .setEventHandler(NullEventHandler.INSTANCE)
+        .build();
+  }
+
+  @Benchmark
+  int eval(int reps) throws Exception {
+    int hash = 0;
+    for (int i = 0; i < reps; i++) {
+      try (Mutability mutability = Mutability.create("benchmark")) {
+        Environment env = newEnvironment(mutability);
+        ast.eval(env);
+        hash += env.getGlobals().getBindings().size();
+      }
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Microbenchmarks for digesting large files, comparing the streaming SHA-256 digest of {@link
+ * FileSystem#getDigest} with the SHA-256 tree digest, computed serially and in parallel.
+ */
+public class DigestBenchmark {
+  @Param({"16", "256", "1024"})
+  int megabytes;
+
+  private java.nio.file.Path file;
+  private FileSystem sha256FileSystem;
+  private Path sha256Path;
+
+  @BeforeExperiment
+  void setUp() throws IOException {
+    file = Files.createTempFile("digest-benchmark", ".bin");
+    byte[] block = new byte[1024 * 1024];
+    Random random = new Random(0);
+    try (OutputStream out = Files.newOutputStream(file)) {
+      for (int i = 0; i < megabytes; i++) {
+        random.nextBytes(block);
+        out.write(block);
+      }
+    }
+    sha256FileSystem = new JavaIoFileSystem(DigestHashFunction.SHA256);
+    sha256Path = sha256FileSystem.getPath(file.toString());
+  }
+
+  @AfterExperiment
+  void tearDown() throws IOException {
+    Files.delete(file);
+  }
+
+  @Benchmark
+  int sha256Stream(int reps) throws IOException {
+    int hash = 0;
+    for (int i = 0; i < reps; i++) {
+      hash += sha256Path.getDigest()[0];
+    }
+    return hash;
+  }
+
+  @Benchmark
+  int sha256TreeSerial(int reps) throws IOException {
+    int hash = 0;
+    for (int i = 0; i < reps; i++) {
+      hash += ParallelTreeDigester.digest(file, /*pool=*/ null)[0];
+    }
+    return hash;
+  }
+
+  @Benchmark
+  int sha256TreeParallel(int reps) throws IOException {
+    int hash = 0;
+    for (int i = 0; i < reps; i++) {
+      hash += ParallelTreeDigester.digest(file)[0];
+    }
+    return hash;
+  }
+}
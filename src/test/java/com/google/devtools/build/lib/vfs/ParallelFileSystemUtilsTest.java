@@ -0,0 +1,185 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelFileSystemUtils} and {@link AsynchronousTreeDeleter}. */
+@RunWith(JUnit4.class)
+public class ParallelFileSystemUtilsTest {
+  private FileSystem fileSystem;
+  private Path workingDir;
+
+  @Before
+  public final void initializeFileSystem() throws Exception {
+    fileSystem = new InMemoryFileSystem();
+    workingDir = fileSystem.getPath("/workingDir");
+    workingDir.createDirectory();
+  }
+
+  /** Creates a tree {@code depth} levels deep with {@code width} files and subdirectories each. */
+  private static void createTree(Path dir, int depth, int width) throws IOException {
+    dir.createDirectoryAndParents();
+    for (int i = 0; i < width; i++) {
+      FileSystemUtils.writeContentAsLatin1(dir.getChild("file" + i), "content " + i);
+      if (depth > 0) {
+        createTree(dir.getChild("dir" + i), depth - 1, width);
+      }
+    }
+    dir.getChild("link").createSymbolicLink(PathFragment.create("../outside"));
+  }
+
+  @Test
+  public void deleteTree() throws Exception {
+    Path outside = workingDir.getChild("outside");
+    outside.createDirectory();
+    FileSystemUtils.touchFile(outside.getChild("keep"));
+    Path tree = workingDir.getChild("tree");
+    createTree(tree, 3, 4);
+    Path readOnlyDir = tree.getRelative("dir1/dir2");
+    readOnlyDir.setWritable(false);
+    readOnlyDir.setExecutable(false);
+
+    ParallelFileSystemUtils.deleteTree(tree);
+
+    assertThat(tree.exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(outside.getChild("keep").exists()).isTrue();
+  }
+
+  @Test
+  public void deleteTreesBelowKeepsDirectory() throws Exception {
+    Path tree = workingDir.getChild("tree");
+    createTree(tree, 2, 3);
+
+    ParallelFileSystemUtils.deleteTreesBelow(tree);
+
+    assertThat(tree.isDirectory(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(tree.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void deleteTreeOfFileOrMissingPath() throws Exception {
+    Path file = workingDir.getChild("file");
+    FileSystemUtils.touchFile(file);
+
+    ParallelFileSystemUtils.deleteTree(file);
+    ParallelFileSystemUtils.deleteTree(workingDir.getChild("missing"));
+
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test
+  public void deleteTrees() throws Exception {
+    Path a = workingDir.getChild("a");
+    Path b = workingDir.getChild("b");
+    Path c = workingDir.getChild("c");
+    createTree(a, 2, 3);
+    FileSystemUtils.touchFile(b);
+    createTree(c, 1, 2);
+
+    ParallelFileSystemUtils.deleteTrees(ImmutableList.of(a, b));
+
+    assertThat(workingDir.getDirectoryEntries()).containsExactly(c);
+  }
+
+  @Test
+  public void copyTreesBelow() throws Exception {
+    Path from = workingDir.getChild("from");
+    createTree(from, 2, 3);
+    Path to = workingDir.getChild("to");
+    to.createDirectory();
+
+    ParallelFileSystemUtils.copyTreesBelow(from, to, Symlinks.NOFOLLOW);
+
+    assertThat(FileSystemUtils.readContent(to.getRelative("dir2/dir1/file0"), UTF_8))
+        .isEqualTo("content 0");
+    assertThat(to.getRelative("dir0/link").readSymbolicLink())
+        .isEqualTo(PathFragment.create("../outside"));
+    assertThat(to.getRelative("dir0/dir0").isDirectory()).isTrue();
+  }
+
+  @Test
+  public void copyTreesBelowRejectsSubdirectory() throws Exception {
+    Path from = workingDir.getChild("from");
+    createTree(from, 1, 1);
+    try {
+      ParallelFileSystemUtils.copyTreesBelow(from, from.getChild("dir0"), Symlinks.NOFOLLOW);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().contains("is a subdirectory of");
+    }
+  }
+
+  @Test
+  public void createSymbolicLinks() throws Exception {
+    Map<Path, Path> links = new HashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      links.put(workingDir.getChild("link" + i), workingDir.getChild("target" + i));
+    }
+
+    ParallelFileSystemUtils.createSymbolicLinks(links);
+
+    assertThat(workingDir.getDirectoryEntries()).hasSize(1000);
+    assertThat(workingDir.getChild("link123").readSymbolicLink())
+        .isEqualTo(workingDir.getChild("target123").asFragment());
+  }
+
+  @Test
+  public void createSymbolicLinksReportsFirstErrorAfterCreatingTheRest() throws Exception {
+    FileSystemUtils.touchFile(workingDir.getChild("taken"));
+
+    try {
+      ParallelFileSystemUtils.createSymbolicLinks(
+          ImmutableMap.of(
+              workingDir.getChild("taken"), workingDir.getChild("a"),
+              workingDir.getChild("free"), workingDir.getChild("b")));
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("taken");
+    }
+    assertThat(workingDir.getChild("free").isSymbolicLink()).isTrue();
+  }
+
+  @Test
+  public void asynchronousTreeDeleter() throws Exception {
+    Path trash = workingDir.getChild("trash");
+    createTree(trash.getChild("leftover"), 1, 2);
+    Path tree = workingDir.getChild("tree");
+    createTree(tree, 2, 3);
+
+    AsynchronousTreeDeleter deleter = new AsynchronousTreeDeleter(trash);
+    deleter.deleteTree(tree);
+    // The path is free right away.
+    assertThat(tree.exists(Symlinks.NOFOLLOW)).isFalse();
+    tree.createDirectory();
+    deleter.deleteTree(tree);
+    deleter.shutdown();
+    deleter.awaitTermination();
+
+    assertThat(trash.getDirectoryEntries()).isEmpty();
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelTreeDigester} and {@link TreeMessageDigest}. */
+@RunWith(JUnit4.class)
+public class ParallelTreeDigesterTest {
+  private static final int CHUNK_SIZE = TreeMessageDigest.CHUNK_SIZE;
+
+  private final ForkJoinPool pool = NamedForkJoinPool.newNamedPool("digester-test", 4);
+
+  @After
+  public final void shutDownPool() {
+    pool.shutdownNow();
+  }
+
+  private void assertDigestsAgree(int size) throws Exception {
+    byte[] contents = new byte[size];
+    new Random(size).nextBytes(contents);
+    java.nio.file.Path file =
+        Files.createTempFile(TestUtils.tmpDirFile().toPath(), "digester", ".bin");
+    try {
+      Files.write(file, contents);
+      byte[] expected =
+          DigestHashFunction.SHA256_TREE.cloneOrCreateMessageDigest().digest(contents);
+      assertThat(ParallelTreeDigester.digest(file, pool)).isEqualTo(expected);
+      assertThat(ParallelTreeDigester.digest(file, /*pool=*/ null)).isEqualTo(expected);
+      assertThat(DigestHashFunction.SHA256_TREE.getHashFunction().hashBytes(contents).asBytes())
+          .isEqualTo(expected);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void emptyFile() throws Exception {
+    assertDigestsAgree(0);
+  }
+
+  @Test
+  public void smallFile() throws Exception {
+    assertDigestsAgree(100);
+  }
+
+  @Test
+  public void fileOfOneChunk() throws Exception {
+    assertDigestsAgree(CHUNK_SIZE);
+  }
+
+  @Test
+  public void fileOfOneChunkAndOneByte() throws Exception {
+    assertDigestsAgree(CHUNK_SIZE + 1);
+  }
+
+  @Test
+  public void fileLargeEnoughToDigestInParallel() throws Exception {
+    assertDigestsAgree((int) ParallelTreeDigester.MIN_PARALLEL_SIZE + 3 * CHUNK_SIZE + 7);
+  }
+
+  @Test
+  public void treeDigestDiffersFromPlainDigest() {
+    byte[] contents = "Bazel".getBytes();
+    assertThat(DigestHashFunction.SHA256_TREE.getHashFunction().hashBytes(contents))
+        .isNotEqualTo(DigestHashFunction.SHA256.getHashFunction().hashBytes(contents));
+  }
+}
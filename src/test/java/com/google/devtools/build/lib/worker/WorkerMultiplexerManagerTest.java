@@ -0,0 +1,74 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerMultiplexerManager}. */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerManagerTest {
+  private final FileSystem fs = new InMemoryFileSystem();
+  private final Path logFile = fs.getPath("/worker.log");
+  private final WorkerMultiplexerManager manager = new WorkerMultiplexerManager();
+
+  private WorkerKey createKey(HashCode workerFilesHash) {
+    return new WorkerKey(
+        ImmutableList.of("worker"),
+        ImmutableMap.of(),
+        fs.getPath("/execroot"),
+        "Mnemonic",
+        workerFilesHash,
+        ImmutableSortedMap.of(),
+        false,
+        false);
+  }
+
+  @Test
+  public void proxiesOfTheSameKeyShareAMultiplexer() {
+    WorkerKey key = createKey(HashCode.fromInt(1));
+    WorkerMultiplexer first = manager.acquire(key, logFile);
+    WorkerMultiplexer second = manager.acquire(createKey(HashCode.fromInt(1)), logFile);
+    assertThat(second).isSameAs(first);
+
+    manager.release(key);
+    manager.release(key);
+    assertThat(manager.acquire(key, logFile)).isNotSameAs(first);
+  }
+
+  @Test
+  public void changedWorkerFilesGetANewMultiplexer() {
+    WorkerKey oldKey = createKey(HashCode.fromInt(1));
+    WorkerKey newKey = createKey(HashCode.fromInt(2));
+    // The hash of the worker files is not part of the equality of keys.
+    assertThat(newKey).isEqualTo(oldKey);
+
+    WorkerMultiplexer old = manager.acquire(oldKey, logFile);
+    WorkerMultiplexer changed = manager.acquire(newKey, logFile);
+    assertThat(changed).isNotSameAs(old);
+
+    manager.release(oldKey);
+    assertThat(manager.acquire(newKey, logFile)).isSameAs(changed);
+  }
+}
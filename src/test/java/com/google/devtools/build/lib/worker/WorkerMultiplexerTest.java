@@ -0,0 +1,135 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerMultiplexer}. */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerTest {
+  private final FileSystem fs = new InMemoryFileSystem();
+
+  private WorkerMultiplexer multiplexer;
+  // What the multiplexer writes to the worker process, and what it reads from it.
+  private PipedInputStream workerStdin;
+  private PipedOutputStream workerStdout;
+
+  @Before
+  public final void startMultiplexer() throws Exception {
+    multiplexer = new WorkerMultiplexer(fs.getPath("/worker.log"));
+    restartWorker();
+  }
+
+  /** Replaces the streams of the worker process, as if it was restarted. */
+  private void restartWorker() throws IOException {
+    PipedOutputStream requests = new PipedOutputStream();
+    workerStdin = new PipedInputStream(requests);
+    workerStdout = new PipedOutputStream();
+    multiplexer.startReading(new PipedInputStream(workerStdout), requests);
+  }
+
+  private WorkRequest putRequest(String argument) throws IOException {
+    WorkRequest request =
+        WorkRequest.newBuilder()
+            .addArguments(argument)
+            .setRequestId(multiplexer.newRequestId())
+            .build();
+    multiplexer.putRequest(request);
+    return WorkRequest.parseDelimitedFrom(workerStdin);
+  }
+
+  private void respond(WorkRequest request) throws IOException {
+    WorkResponse.newBuilder()
+        .setOutput(request.getArguments(0))
+        .setRequestId(request.getRequestId())
+        .build()
+        .writeDelimitedTo(workerStdout);
+    workerStdout.flush();
+  }
+
+  @Test
+  public void responsesShouldBeRoutedById() throws Exception {
+    WorkRequest first = putRequest("first");
+    WorkRequest second = putRequest("second");
+    assertThat(first.getRequestId()).isNotEqualTo(second.getRequestId());
+
+    // The worker may answer in any order.
+    respond(second);
+    respond(first);
+
+    assertThat(multiplexer.getResponse(first.getRequestId()).getOutput()).isEqualTo("first");
+    assertThat(multiplexer.getResponse(second.getRequestId()).getOutput()).isEqualTo("second");
+  }
+
+  @Test
+  public void pendingRequestsShouldGetNoResponseWhenWorkerClosesStdout() throws Exception {
+    WorkRequest request = putRequest("request");
+    workerStdout.close();
+
+    assertThat(multiplexer.getResponse(request.getRequestId())).isNull();
+    assertThat(multiplexer.isAlive()).isFalse();
+    try {
+      putRequest("another request");
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("closed its stdout");
+    }
+  }
+
+  @Test
+  public void unparseableOutputShouldFailPendingRequests() throws Exception {
+    WorkRequest request = putRequest("request");
+    workerStdout.write("Exception in thread \"main\"\n".getBytes("UTF-8"));
+    workerStdout.close();
+
+    try {
+      multiplexer.getResponse(request.getRequestId());
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      assertThat(multiplexer.getUnparseableOutput()).contains("Exception in thread");
+    }
+  }
+
+  @Test
+  public void deadWorkerShouldNotFailRequestsToItsReplacement() throws Exception {
+    WorkRequest toDeadWorker = putRequest("dead");
+    PipedOutputStream deadWorkerStdout = workerStdout;
+    restartWorker();
+    WorkRequest toNewWorker = putRequest("new");
+
+    // The reader of the dead worker only sees the end of its stdout after the restart.
+    deadWorkerStdout.close();
+    assertThat(multiplexer.getResponse(toDeadWorker.getRequestId())).isNull();
+
+    assertThat(multiplexer.isAlive()).isTrue();
+    WorkRequest another = putRequest("another");
+    respond(another);
+    respond(toNewWorker);
+    assertThat(multiplexer.getResponse(toNewWorker.getRequestId()).getOutput()).isEqualTo("new");
+    assertThat(multiplexer.getResponse(another.getRequestId()).getOutput()).isEqualTo("another");
+  }
+}
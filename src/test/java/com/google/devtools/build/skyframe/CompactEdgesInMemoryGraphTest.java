@@ -0,0 +1,162 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CompactEdgesInMemoryGraph}. */
+@RunWith(JUnit4.class)
+public class CompactEdgesInMemoryGraphTest {
+  private final CompactEdgesInMemoryGraph graph = new CompactEdgesInMemoryGraph();
+
+  private int create(SkyKey key) {
+    graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key));
+    return graph.getId(key);
+  }
+
+  @Test
+  public void idOfRemovedNodeIsReusedOnceReleased() {
+    int id = create(skyKey("a"));
+    graph.remove(skyKey("a"));
+    // The key stays around for edges that still mention it.
+    assertThat(graph.getKey(id)).isEqualTo(skyKey("a"));
+
+    graph.releaseRemovedIds();
+    assertThat(graph.getKey(id)).isNull();
+    assertThat(create(skyKey("b"))).isEqualTo(id);
+    assertThat(graph.getKey(id)).isEqualTo(skyKey("b"));
+    assertThat(graph.getNumIds()).isEqualTo(1);
+  }
+
+  @Test
+  public void releasedIdsAreNotHandedOutTwiceUnderConcurrentCreation() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      create(skyKey("old" + i));
+      graph.remove(skyKey("old" + i));
+    }
+    graph.releaseRemovedIds();
+    for (int i = 0; i < 500; i++) {
+      create(skyKey("older" + i));
+      graph.remove(skyKey("older" + i));
+    }
+
+    int numThreads = 4;
+    int nodesPerThread = 500;
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      String prefix = "new" + t + "-";
+      Thread thread =
+          new Thread(
+              () -> {
+                Uninterruptibles.awaitUninterruptibly(start);
+                for (int i = 0; i < nodesPerThread; i++) {
+                  create(skyKey(prefix + i));
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    graph.releaseRemovedIds();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Set<Integer> ids = new HashSet<>();
+    for (int t = 0; t < numThreads; t++) {
+      for (int i = 0; i < nodesPerThread; i++) {
+        SkyKey key = skyKey("new" + t + "-" + i);
+        int id = graph.getId(key);
+        assertThat(ids.add(id)).isTrue();
+        assertThat(graph.getKey(id)).isEqualTo(key);
+      }
+    }
+  }
+
+  @Test
+  public void existingNodeGetsNoNewId() {
+    int id = create(skyKey("a"));
+    assertThat(create(skyKey("a"))).isEqualTo(id);
+    assertThat(graph.getNumIds()).isEqualTo(1);
+  }
+
+  @Test
+  public void keyWithoutNodeGetsNoId() {
+    assertThat(graph.getId(skyKey("a"))).isEqualTo(CompactEdgesInMemoryGraph.NO_ID);
+    assertThat(graph.getNumIds()).isEqualTo(0);
+  }
+
+  @Test
+  public void idsDoNotGrowAcrossIncrementalBuilds() throws Exception {
+    GraphTester tester = new GraphTester();
+    InMemoryMemoizingEvaluator evaluator =
+        new InMemoryMemoizingEvaluator(
+            ImmutableMap.of(GraphTester.NODE_TYPE, tester.getFunction()),
+            new SequencedRecordingDifferencer(),
+            /*progressReceiver=*/ null,
+            GraphInconsistencyReceiver.THROWING,
+            InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+            new MemoizingEvaluator.EmittedEventState(),
+            /*keepEdges=*/ true,
+            /*compactEdges=*/ true);
+    SequentialBuildDriver driver = new SequentialBuildDriver(evaluator);
+    CompactEdgesInMemoryGraph compactGraph =
+        (CompactEdgesInMemoryGraph) evaluator.getGraphForTesting();
+
+    for (int build = 0; build < 10; build++) {
+      String suffix = "-" + build;
+      SkyKey top = skyKey("top" + suffix);
+      List<SkyKey> leaves = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        SkyKey leaf = skyKey("leaf" + i + suffix);
+        tester.set(leaf, new StringValue(Integer.toString(i)));
+        leaves.add(leaf);
+        tester.getOrCreate(top).addDependency(leaf);
+      }
+      tester.getOrCreate(top).setComputedValue(CONCATENATE);
+      // The nodes of the previous build are deleted as the new ones are created.
+      String previousSuffix = "-" + (build - 1);
+      evaluator.delete(key -> key.argument().toString().endsWith(previousSuffix));
+
+      EvaluationResult<StringValue> result =
+          driver.evaluate(
+              ImmutableList.of(top), /*keepGoing=*/ false, 1, NullEventHandler.INSTANCE);
+      assertThat(result.get(top).getValue()).isEqualTo("0123456789");
+      assertThat(evaluator.getExistingEntryAtLatestVersion(top).getDirectDeps())
+          .containsExactlyElementsIn(leaves)
+          .inOrder();
+    }
+    // Enough ids for the nodes of two builds, as those of the previous one are only released
+    // after the current one is evaluated, and for the error transience node.
+    assertThat(compactGraph.getNumIds()).isAtMost(23);
+  }
+}
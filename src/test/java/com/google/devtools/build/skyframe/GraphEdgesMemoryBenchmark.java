@@ -0,0 +1,115 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for the memory used by graph edges, with and without {@link
+ * CompactEdgesInMemoryGraph}. Builds a synthetic graph of done nodes shaped like a build: layers of
+ * nodes that each depend on a few nodes of the layer below, in groups.
+ *
+ * <p>Run with Caliper's allocation instrument to compare the bytes allocated per graph, or use
+ * {@link #retainedBytes} in a heap dump of a single rep to see what the graph retains.
+ */
+public class GraphEdgesMemoryBenchmark {
+  @Param({"1000000", "10000000"})
+  int nodes;
+
+  @Param({"false", "true"})
+  boolean compactEdges;
+
+  @Param({"8"})
+  int depsPerNode;
+
+  private List<SkyKey> keys;
+
+  @BeforeExperiment
+  void createKeys() {
+    keys = new ArrayList<>(nodes);
+    for (int i = 0; i < nodes; i++) {
+      keys.add(GraphTester.toSkyKey(Integer.toString(i)));
+    }
+  }
+
+  @Benchmark
+  long buildGraph(int reps) throws InterruptedException {
+    long dummy = 0;
+    for (int i = 0; i < reps; i++) {
+      dummy += buildGraph().getAllValues().size();
+    }
+    return dummy;
+  }
+
+  /**
+   * Builds the graph once and returns the heap it retains, as far as the garbage collector can
+   * tell. Meant to be called from a standalone harness; the number is only indicative.
+   */
+  long retainedBytes() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    long before = runtime.totalMemory() - runtime.freeMemory();
+    InMemoryGraph graph = buildGraph();
+    System.gc();
+    long after = runtime.totalMemory() - runtime.freeMemory();
+    // Keep the graph reachable until after the measurement.
+    return graph.getAllValues().isEmpty() ? 0 : after - before;
+  }
+
+  /**
+   * Evaluates the nodes from the bottom up, so that every node is created after its deps, just as
+   * in the parallel evaluator when deps are requested first and ids follow creation order.
+   */
+  private InMemoryGraph buildGraph() throws InterruptedException {
+    InMemoryGraph graph =
+        compactEdges ? new CompactEdgesInMemoryGraph() : new InMemoryGraphImpl(/*keepEdges=*/ true);
+    Version version = IntVersion.of(0);
+    SkyValue value = new GraphTester.StringValue("v");
+    int layerSize = Math.max(depsPerNode * 16, 1024);
+    for (int i = 0; i < nodes; i++) {
+      SkyKey key = keys.get(i);
+      NodeEntry entry =
+          graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+      entry.addReverseDepAndCheckIfDone(null);
+      int layerStart = (i / layerSize) * layerSize;
+      if (layerStart > 0) {
+        GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+        helper.startGroup();
+        for (int d = 0; d < depsPerNode; d++) {
+          // Spread the deps over the previous layer, several nodes apart.
+          int dep = layerStart - layerSize + (i * 7 + d * 131) % layerSize;
+          helper.add(keys.get(dep));
+        }
+        helper.endGroup();
+        for (SkyKey dep : entry.addTemporaryDirectDeps(helper)) {
+          graph.get(null, Reason.OTHER, dep).addReverseDepAndCheckIfDone(key);
+          entry.signalDep(version);
+        }
+      }
+      entry.setValue(value, version);
+    }
+    if (graph instanceof CompactEdgesInMemoryGraph) {
+      // As InMemoryMemoizingEvaluator does at the end of an evaluation.
+      ((CompactEdgesInMemoryGraph) graph).compactQueuedReverseDeps();
+    }
+    return graph;
+  }
+}
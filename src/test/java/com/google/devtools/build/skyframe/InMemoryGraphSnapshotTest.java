@@ -0,0 +1,163 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link InMemoryGraphSnapshot}. */
+@RunWith(JUnit4.class)
+public class InMemoryGraphSnapshotTest {
+
+  /**
+   * Encodes test keys and string values, except for keys starting with "unencodable". Non-hermetic
+   * keys are prefixed with "!".
+   */
+  private static final InMemoryGraphSnapshot.NodeCodec CODEC =
+      new InMemoryGraphSnapshot.NodeCodec() {
+        @Nullable
+        @Override
+        public byte[] encodeKey(SkyKey key) {
+          if (!(key instanceof GraphTester.Key || key instanceof GraphTester.NonHermeticKey)) {
+            return null;
+          }
+          String name = (String) key.argument();
+          if (name.startsWith("unencodable")) {
+            return null;
+          }
+          return ((key instanceof GraphTester.NonHermeticKey ? "!" : "") + name).getBytes(UTF_8);
+        }
+
+        @Nullable
+        @Override
+        public byte[] encodeValue(SkyValue value) {
+          return value instanceof StringValue
+              ? ((StringValue) value).getValue().getBytes(UTF_8)
+              : null;
+        }
+
+        @Override
+        public SkyKey decodeKey(byte[] bytes) {
+          String name = new String(bytes, UTF_8);
+          return name.startsWith("!")
+              ? GraphTester.nonHermeticKey(name.substring(1))
+              : GraphTester.toSkyKey(name);
+        }
+
+        @Override
+        public SkyValue decodeValue(byte[] bytes) {
+          return new StringValue(new String(bytes, UTF_8));
+        }
+      };
+
+  private static final SkyKey A = GraphTester.nonHermeticKey("a");
+  private static final SkyKey B = GraphTester.nonHermeticKey("b");
+
+  private final AtomicInteger topEvaluations = new AtomicInteger();
+  private GraphTester tester;
+
+  @Before
+  public final void setUp() {
+    tester = new GraphTester();
+    tester.set(A, new StringValue("a"));
+    tester.set(B, new StringValue("b"));
+    tester.set("unencodable", new StringValue("u"));
+    tester
+        .getOrCreate("top")
+        .addDependency(A)
+        .addDependency(B)
+        .setComputedValue(
+            (deps, env) -> {
+              topEvaluations.incrementAndGet();
+              return GraphTester.CONCATENATE.compute(deps, env);
+            });
+    tester.getOrCreate("mid").addDependency("unencodable").setComputedValue(GraphTester.COPY);
+    tester.getOrCreate("high").addDependency("mid").setComputedValue(GraphTester.COPY);
+  }
+
+  @Test
+  public void restoredNodesAreNotReevaluated() throws Exception {
+    byte[] snapshot = evaluateAndWriteSnapshot("top", 3);
+
+    InMemoryMemoizingEvaluator evaluator = newEvaluator(new SequencedRecordingDifferencer());
+    assertThat(evaluator.canRestoreSnapshot()).isTrue();
+    assertThat(evaluator.restoreSnapshot(CODEC, new ByteArrayInputStream(snapshot))).isEqualTo(3);
+    assertThat(evaluator.canRestoreSnapshot()).isFalse();
+    topEvaluations.set(0);
+
+    assertThat(evaluate(evaluator, "top")).isEqualTo(new StringValue("ab"));
+    assertThat(topEvaluations.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void changedDepsInvalidateRestoredNodes() throws Exception {
+    byte[] snapshot = evaluateAndWriteSnapshot("top", 3);
+
+    RecordingDifferencer differencer = new SequencedRecordingDifferencer();
+    InMemoryMemoizingEvaluator evaluator = newEvaluator(differencer);
+    evaluator.restoreSnapshot(CODEC, new ByteArrayInputStream(snapshot));
+    topEvaluations.set(0);
+    tester.set(A, new StringValue("new"));
+    differencer.invalidate(ImmutableList.of(A));
+
+    assertThat(evaluate(evaluator, "top")).isEqualTo(new StringValue("newb"));
+    assertThat(topEvaluations.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void nodesWithUnencodableTransitiveDepsAreNotWritten() throws Exception {
+    byte[] snapshot = evaluateAndWriteSnapshot("high", 0);
+
+    InMemoryMemoizingEvaluator evaluator = newEvaluator(new SequencedRecordingDifferencer());
+    assertThat(evaluator.restoreSnapshot(CODEC, new ByteArrayInputStream(snapshot))).isEqualTo(0);
+    assertThat(evaluator.getExistingValue(GraphTester.toSkyKey("high"))).isNull();
+  }
+
+  private byte[] evaluateAndWriteSnapshot(String root, int expectedNodes) throws Exception {
+    InMemoryMemoizingEvaluator evaluator = newEvaluator(new SequencedRecordingDifferencer());
+    evaluate(evaluator, root);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(evaluator.writeSnapshot(CODEC, out)).isEqualTo(expectedNodes);
+    return out.toByteArray();
+  }
+
+  private InMemoryMemoizingEvaluator newEvaluator(Differencer differencer) {
+    return new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), differencer);
+  }
+
+  private static SkyValue evaluate(InMemoryMemoizingEvaluator evaluator, String root)
+      throws InterruptedException {
+    EvaluationResult<SkyValue> result =
+        new SequentialBuildDriver(evaluator)
+            .evaluate(
+                ImmutableList.of(GraphTester.toSkyKey(root)),
+                /*keepGoing=*/ false,
+                /*numThreads=*/ 1,
+                NullEventHandler.INSTANCE);
+    assertThat(result.hasError()).isFalse();
+    return result.get(GraphTester.toSkyKey(root));
+  }
+}
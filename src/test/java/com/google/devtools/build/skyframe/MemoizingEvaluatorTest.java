@@ -52,7 +52,9 @@ import com.google.devtools.build.skyframe.NotifyingHelper.EventType;
 import com.google.devtools.build.skyframe.NotifyingHelper.Listener;
 import com.google.devtools.build.skyframe.NotifyingHelper.Order;
 import com.google.devtools.build.skyframe.SkyFunction.Environment;
+import com.google.devtools.build.skyframe.SkyFunction.Environment.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics.FunctionStats;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -3157,6 +3159,120 @@ public class MemoizingEvaluatorTest {
     assertThat(tester.getDeletedKeys()).isEmpty();
   }
 
+  @Test
+  public void skyFunctionMetrics() throws Exception {
+    SkyKey leaf = GraphTester.nonHermeticKey("leaf");
+    SkyKey mid = GraphTester.toSkyKey("mid");
+    SkyKey top = GraphTester.toSkyKey("top");
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(COPY);
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(COPY);
+    tester.set(leaf, new StringValue("leafy"));
+    String leafType = leaf.functionName().getName();
+    String nodeType = NODE_TYPE.getName();
+
+    // mid and top are restarted once, because their deps are not done when they first request them.
+    Map<String, FunctionStats> metrics = evalAndGetMetrics(top);
+    assertThat(metrics.keySet()).containsExactly(leafType, nodeType);
+    FunctionStats stats = metrics.get(nodeType);
+    assertThat(stats.getEvaluations()).isEqualTo(4);
+    assertThat(stats.getRestarts()).isEqualTo(2);
+    assertThat(stats.getDepsRequested()).isEqualTo(2);
+    assertThat(stats.getChanged()).isEqualTo(2);
+    assertThat(stats.getDirtied()).isEqualTo(0);
+    assertThat(stats.getClean()).isEqualTo(0);
+    stats = metrics.get(leafType);
+    assertThat(stats.getEvaluations()).isEqualTo(1);
+    assertThat(stats.getRestarts()).isEqualTo(0);
+    assertThat(stats.getChanged()).isEqualTo(1);
+
+    // leaf is re-evaluated to the same value, so mid and top are dirty but not re-evaluated.
+    tester.getOrCreate(leaf, /*markAsModified=*/ true);
+    tester.invalidate();
+    stats = evalAndGetMetrics(top).get(nodeType);
+    assertThat(stats.getEvaluations()).isEqualTo(0);
+    assertThat(stats.getDirtied()).isEqualTo(2);
+    assertThat(stats.getClean()).isEqualTo(2);
+    assertThat(stats.getChanged()).isEqualTo(0);
+
+    // A changed leaf changes mid and top. Their deps are done, so they don't need a restart.
+    tester
+        .getOrCreate(leaf, /*markAsModified=*/ true)
+        .setConstantValue(new StringValue("crunchy"));
+    tester.invalidate();
+    stats = evalAndGetMetrics(top).get(nodeType);
+    assertThat(stats.getEvaluations()).isEqualTo(2);
+    assertThat(stats.getRestarts()).isEqualTo(0);
+    assertThat(stats.getDirtied()).isEqualTo(2);
+    assertThat(stats.getClean()).isEqualTo(0);
+    assertThat(stats.getChanged()).isEqualTo(2);
+  }
+
+  private Map<String, FunctionStats> evalAndGetMetrics(SkyKey key) throws InterruptedException {
+    Map<String, FunctionStats> before = SkyFunctionMetrics.instance().snapshot();
+    tester.evalAndGet(/*keepGoing=*/ false, key);
+    return SkyFunctionMetrics.difference(SkyFunctionMetrics.instance().snapshot(), before);
+  }
+
+  /** The values of the deps found by earlier calls. */
+  private static final class SerialDepsState implements SkyKeyComputeState {
+    final List<String> values = new ArrayList<>();
+  }
+
+  @Test
+  public void computeStateKeptAcrossRestarts() throws Exception {
+    SkyKey leaf = GraphTester.nonHermeticKey("leaf");
+    ImmutableList<SkyKey> deps =
+        ImmutableList.of(
+            GraphTester.toSkyKey("dep1"),
+            GraphTester.toSkyKey("dep2"),
+            GraphTester.toSkyKey("dep3"));
+    for (SkyKey dep : deps) {
+      tester.getOrCreate(dep).addDependency(leaf).setComputedValue(COPY);
+    }
+    tester.set(leaf, new StringValue("leafy"));
+    List<Integer> depsFoundAtStart = Collections.synchronizedList(new ArrayList<>());
+    SkyKey top = GraphTester.toSkyKey("top");
+    tester
+        .getOrCreate(top)
+        .setBuilder(
+            new NoExtractorFunction() {
+              @Override
+              public SkyValue compute(SkyKey skyKey, Environment env)
+                  throws InterruptedException {
+                // Requests the deps one at a time, so that each one costs a restart.
+                SerialDepsState state = env.getState(SerialDepsState::new);
+                depsFoundAtStart.add(state.values.size());
+                while (state.values.size() < deps.size()) {
+                  StringValue value = (StringValue) env.getValue(deps.get(state.values.size()));
+                  if (value == null) {
+                    return null;
+                  }
+                  state.values.add(value.getValue());
+                }
+                return new StringValue(String.join(",", state.values));
+              }
+            });
+
+    // Each call continues after the deps found by the earlier ones, instead of starting over.
+    Map<String, FunctionStats> before = SkyFunctionMetrics.instance().snapshot();
+    assertThat(tester.evalAndGet(/*keepGoing=*/ false, top))
+        .isEqualTo(new StringValue("leafy,leafy,leafy"));
+    Map<String, FunctionStats> metrics =
+        SkyFunctionMetrics.difference(SkyFunctionMetrics.instance().snapshot(), before);
+    assertThat(depsFoundAtStart).containsExactly(0, 0, 1, 2).inOrder();
+    assertThat(metrics.get(NODE_TYPE.getName()).getResumed()).isEqualTo(3);
+
+    // The state was dropped once top was done, so the next evaluation starts over.
+    depsFoundAtStart.clear();
+    tester
+        .getOrCreate(leaf, /*markAsModified=*/ true)
+        .setConstantValue(new StringValue("crunchy"));
+    tester.invalidate();
+    assertThat(tester.evalAndGet(/*keepGoing=*/ false, top))
+        .isEqualTo(new StringValue("crunchy,crunchy,crunchy"));
+    assertThat(depsFoundAtStart.get(0)).isEqualTo(0);
+  }
+
   @Test
   public void changePruningWithDoneValue() throws Exception {
     SkyKey leaf = GraphTester.nonHermeticKey("leaf");